@@ -516,6 +516,15 @@ static vector<string> GetArgumentArray() {
   if (globals->options.watchfs) {
     result.push_back("--watchfs");
   }
+  if (!globals->options.digest_function.empty()) {
+    result.push_back("--digest_function=" + globals->options.digest_function);
+  }
+  if (globals->options.mapped_action_cache_index) {
+    result.push_back("--experimental_mapped_action_cache_index");
+  }
+  if (globals->options.compact_skyframe_graph) {
+    result.push_back("--experimental_compact_skyframe_graph");
+  }
   if (globals->options.fatal_event_bus_exceptions) {
     result.push_back("--fatal_event_bus_exceptions");
   } else {
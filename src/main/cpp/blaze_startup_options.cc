@@ -55,6 +55,9 @@ BlazeStartupOptions::BlazeStartupOptions(const BlazeStartupOptions &rhs)
       oom_more_eagerly(rhs.oom_more_eagerly),
       oom_more_eagerly_threshold(rhs.oom_more_eagerly_threshold),
       watchfs(rhs.watchfs),
+      digest_function(rhs.digest_function),
+      mapped_action_cache_index(rhs.mapped_action_cache_index),
+      compact_skyframe_graph(rhs.compact_skyframe_graph),
       allow_configurable_attributes(rhs.allow_configurable_attributes),
       option_sources(rhs.option_sources),
       command_port(rhs.command_port),
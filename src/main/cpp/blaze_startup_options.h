@@ -167,6 +167,18 @@ class BlazeStartupOptions {
   // If true, Blaze will listen to OS-level file change notifications.
   bool watchfs;
 
+  // The hash function used by the server for action keys. If empty, the
+  // server default is used.
+  string digest_function;
+
+  // If true, the action cache keeps its file name index in a memory-mapped
+  // file instead of on the heap.
+  bool mapped_action_cache_index;
+
+  // If true, the Skyframe graph stores the deps of evaluated nodes as arrays
+  // of integer node ids.
+  bool compact_skyframe_graph;
+
   // Temporary experimental flag that permits configurable attribute syntax
   // in BUILD files. This will be removed when configurable attributes is
   // a more stable feature.
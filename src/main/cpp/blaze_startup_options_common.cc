@@ -58,6 +58,9 @@ void BlazeStartupOptions::Init() {
   command_port = 0;
   oom_more_eagerly = false;
   watchfs = false;
+  digest_function = "";
+  mapped_action_cache_index = false;
+  compact_skyframe_graph = false;
   invocation_policy = NULL;
 }
 
@@ -91,6 +94,9 @@ void BlazeStartupOptions::Copy(
   lhs->oom_more_eagerly = rhs.oom_more_eagerly;
   lhs->oom_more_eagerly_threshold = rhs.oom_more_eagerly_threshold;
   lhs->watchfs = rhs.watchfs;
+  lhs->digest_function = rhs.digest_function;
+  lhs->mapped_action_cache_index = rhs.mapped_action_cache_index;
+  lhs->compact_skyframe_graph = rhs.compact_skyframe_graph;
   lhs->allow_configurable_attributes = rhs.allow_configurable_attributes;
   lhs->fatal_event_bus_exceptions = rhs.fatal_event_bus_exceptions;
   lhs->option_sources = rhs.option_sources;
@@ -239,6 +245,24 @@ blaze_exit_code::ExitCode BlazeStartupOptions::ProcessArg(
   } else if (GetNullaryOption(arg, "--nowatchfs")) {
     watchfs = false;
     option_sources["watchfs"] = rcfile;
+  } else if (GetNullaryOption(arg,
+                              "--experimental_mapped_action_cache_index")) {
+    mapped_action_cache_index = true;
+    option_sources["experimental_mapped_action_cache_index"] = rcfile;
+  } else if (GetNullaryOption(arg,
+                              "--noexperimental_mapped_action_cache_index")) {
+    mapped_action_cache_index = false;
+    option_sources["experimental_mapped_action_cache_index"] = rcfile;
+  } else if (GetNullaryOption(arg, "--experimental_compact_skyframe_graph")) {
+    compact_skyframe_graph = true;
+    option_sources["experimental_compact_skyframe_graph"] = rcfile;
+  } else if (GetNullaryOption(arg, "--noexperimental_compact_skyframe_graph")) {
+    compact_skyframe_graph = false;
+    option_sources["experimental_compact_skyframe_graph"] = rcfile;
+  } else if ((value = GetUnaryOption(
+      arg, next_arg, "--digest_function")) != NULL) {
+    digest_function = value;
+    option_sources["digest_function"] = rcfile;
   } else if ((value = GetUnaryOption(
       arg, next_arg, "--command_port")) != NULL) {
     if (!blaze_util::safe_strto32(value, &command_port) ||
@@ -0,0 +1,262 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.lib.actions;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Splitter;
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The CPU and memory limits that Linux control groups put on this process, which inside of a
+ * container are usually far lower than the capacity of the host.
+ *
+ * <p>Both cgroup v1, with a hierarchy per controller, and cgroup v2, with a single unified
+ * hierarchy, are supported. As a limit of any ancestor group applies, too, the lowest limit of the
+ * group of this process and its ancestors is used. Limits that can't be read are ignored.
+ */
+public final class CgroupLimits {
+  private static final Splitter NEWLINE_SPLITTER = Splitter.on('\n').omitEmptyStrings();
+  private static final Splitter WHITESPACE_SPLITTER =
+      Splitter.on(' ').trimResults().omitEmptyStrings();
+
+  /** Memory limits at least this high are how cgroup v1 says that there is no limit. */
+  private static final long UNLIMITED_MEMORY_BYTES = Long.MAX_VALUE / 2;
+
+  /** The key of the cgroup v2 hierarchy in {@link #groups}. */
+  private static final String UNIFIED = "";
+
+  private final String cgroupRoot;
+
+  /** The group of this process by the controller, or {@link #UNIFIED}, of its hierarchy. */
+  private final Map<String, String> groups;
+
+  private CgroupLimits(String cgroupRoot, Map<String, String> groups) {
+    this.cgroupRoot = cgroupRoot;
+    this.groups = groups;
+  }
+
+  /** Returns the limits of this process. */
+  public static CgroupLimits forCurrentProcess() {
+    return create("/proc/self/cgroup", "/sys/fs/cgroup");
+  }
+
+  /**
+   * Returns the limits of the process whose groups are listed in {@code procCgroupFile}, where
+   * the hierarchies are mounted under {@code cgroupRoot}. If the file can't be read, there are no
+   * limits.
+   */
+  @VisibleForTesting
+  static CgroupLimits create(String procCgroupFile, String cgroupRoot) {
+    Map<String, String> groups = new HashMap<>();
+    String content = readContent(procCgroupFile);
+    if (content != null) {
+      // Each line is "<hierarchy id>:<comma separated controllers>:<group>". The controllers are
+      // empty for cgroup v2.
+      for (String line : NEWLINE_SPLITTER.split(content)) {
+        List<String> fields = Splitter.on(':').limit(3).splitToList(line);
+        if (fields.size() != 3) {
+          continue;
+        }
+        if (fields.get(1).isEmpty()) {
+          groups.put(UNIFIED, fields.get(2));
+        } else {
+          for (String controller : Splitter.on(',').split(fields.get(1))) {
+            groups.put(controller, fields.get(2));
+          }
+        }
+      }
+    }
+    return new CgroupLimits(cgroupRoot, groups);
+  }
+
+  /**
+   * Returns the number of CPUs that the processes of the group may use on average, or infinity if
+   * there is no CPU quota.
+   */
+  public double getCpuLimit() {
+    double limit = Double.POSITIVE_INFINITY;
+    for (String dir : getGroupDirs("cpu", "cpu")) {
+      // A quota of -1 means that there is none.
+      long quota = readLong(dir + "/cpu.cfs_quota_us");
+      long period = readLong(dir + "/cpu.cfs_period_us");
+      if (quota > 0 && period > 0) {
+        limit = Math.min(limit, (double) quota / period);
+      }
+    }
+    for (String dir : getGroupDirs(UNIFIED, "")) {
+      // The file is "<quota> <period>", where the quota is "max" if there is none.
+      List<String> fields = readFields(dir + "/cpu.max");
+      if (fields != null && fields.size() == 2) {
+        long quota = parseLong(fields.get(0));
+        long period = parseLong(fields.get(1));
+        if (quota > 0 && period > 0) {
+          limit = Math.min(limit, (double) quota / period);
+        }
+      }
+    }
+    return limit;
+  }
+
+  /**
+   * Returns the memory in MB that the processes of the group may use, or infinity if there is no
+   * memory limit.
+   */
+  public double getMemoryLimitMb() {
+    double limit = Double.POSITIVE_INFINITY;
+    for (MemoryFiles files : getMemoryFiles()) {
+      long limitBytes = readLong(files.limit);
+      if (limitBytes > 0 && limitBytes < UNLIMITED_MEMORY_BYTES) {
+        limit = Math.min(limit, bytesToMb(limitBytes));
+      }
+    }
+    return limit;
+  }
+
+  /**
+   * Returns the memory in MB that the processes of the group may still use before they reach the
+   * memory limit, or infinity if there is no memory limit.
+   *
+   * <p>Inactive file pages count as free, as the kernel reclaims them before it kills processes
+   * for being over the limit.
+   */
+  public double getFreeMemoryMb() {
+    double free = Double.POSITIVE_INFINITY;
+    for (MemoryFiles files : getMemoryFiles()) {
+      long limitBytes = readLong(files.limit);
+      long usageBytes = readLong(files.usage);
+      if (limitBytes <= 0 || limitBytes >= UNLIMITED_MEMORY_BYTES || usageBytes < 0) {
+        continue;
+      }
+      long inactiveFileBytes = Math.max(0, readStat(files.stat, files.inactiveFileKey));
+      long workingSetBytes = Math.max(0, usageBytes - inactiveFileBytes);
+      free = Math.min(free, bytesToMb(Math.max(0, limitBytes - workingSetBytes)));
+    }
+    return free;
+  }
+
+  private List<MemoryFiles> getMemoryFiles() {
+    List<MemoryFiles> files = new ArrayList<>();
+    for (String dir : getGroupDirs("memory", "memory")) {
+      files.add(
+          new MemoryFiles(
+              dir + "/memory.limit_in_bytes",
+              dir + "/memory.usage_in_bytes",
+              dir + "/memory.stat",
+              "total_inactive_file"));
+    }
+    for (String dir : getGroupDirs(UNIFIED, "")) {
+      files.add(
+          new MemoryFiles(
+              dir + "/memory.max", dir + "/memory.current", dir + "/memory.stat", "inactive_file"));
+    }
+    return files;
+  }
+
+  /**
+   * Returns the directories of the group of this process in the given hierarchy and of its
+   * ancestors, up to the root of the mounted hierarchy.
+   *
+   * <p>Inside a container the hierarchy is often mounted so that its root is the group of the
+   * container, and the directories of the full group path don't exist. These are skipped.
+   */
+  private List<String> getGroupDirs(String key, String mountDir) {
+    List<String> dirs = new ArrayList<>();
+    String group = groups.get(key);
+    if (group == null) {
+      return dirs;
+    }
+    String mount = mountDir.isEmpty() ? cgroupRoot : cgroupRoot + "/" + mountDir;
+    while (!group.isEmpty() && !group.equals("/")) {
+      if (new File(mount + group).isDirectory()) {
+        dirs.add(mount + group);
+      }
+      int slash = group.lastIndexOf('/');
+      group = slash < 0 ? "" : group.substring(0, slash);
+    }
+    if (new File(mount).isDirectory()) {
+      dirs.add(mount);
+    }
+    return dirs;
+  }
+
+  private static double bytesToMb(long bytes) {
+    return bytes / 1E6;
+  }
+
+  /** Returns the value of the given key in a file of "key value" lines, or -1. */
+  private static long readStat(String file, String key) {
+    String content = readContent(file);
+    if (content == null) {
+      return -1;
+    }
+    for (String line : NEWLINE_SPLITTER.split(content)) {
+      List<String> fields = WHITESPACE_SPLITTER.splitToList(line);
+      if (fields.size() == 2 && fields.get(0).equals(key)) {
+        return parseLong(fields.get(1));
+      }
+    }
+    return -1;
+  }
+
+  /** Returns the number in the given file, or -1 if there is none. */
+  private static long readLong(String file) {
+    List<String> fields = readFields(file);
+    return fields != null && fields.size() == 1 ? parseLong(fields.get(0)) : -1;
+  }
+
+  private static List<String> readFields(String file) {
+    String content = readContent(file);
+    return content == null ? null : WHITESPACE_SPLITTER.splitToList(content.trim());
+  }
+
+  private static long parseLong(String value) {
+    try {
+      return Long.parseLong(value);
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  private static String readContent(String file) {
+    try {
+      return Files.toString(new File(file), StandardCharsets.UTF_8);
+    } catch (IOException e) {
+      return null;
+    }
+  }
+
+  /** The files that describe the memory limit and usage of a group. */
+  private static final class MemoryFiles {
+    private final String limit;
+    private final String usage;
+    private final String stat;
+    private final String inactiveFileKey;
+
+    private MemoryFiles(String limit, String usage, String stat, String inactiveFileKey) {
+      this.limit = limit;
+      this.usage = usage;
+      this.stat = stat;
+      this.inactiveFileKey = inactiveFileKey;
+    }
+  }
+}
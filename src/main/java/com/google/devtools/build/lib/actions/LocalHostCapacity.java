@@ -53,4 +53,17 @@ public final class LocalHostCapacity {
     return localResources;
   }
 
+  /**
+   * Returns the resources that are currently not in use on the local host, or null if they can't
+   * be determined on this platform. Unlike {@link #getLocalHostCapacity}, this is sampled anew on
+   * every call.
+   */
+  public static ResourceSet getFreeLocalHostResources() {
+    switch (currentOS) {
+      case LINUX:
+        return LocalHostResourceManagerLinux.getFreeLocalHostResources();
+      default:
+        return null;
+    }
+  }
 }
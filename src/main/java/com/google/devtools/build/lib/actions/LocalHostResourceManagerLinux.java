@@ -26,6 +26,9 @@ import java.util.Set;
 
 /**
  * This class estimates the local host's resource capacity for Linux.
+ *
+ * <p>The capacity is capped by the limits of the control groups of this process, see
+ * {@link CgroupLimits}.
  */
 public class LocalHostResourceManagerLinux {
   private static String cpuInfoContent = null;
@@ -33,6 +36,7 @@ public class LocalHostResourceManagerLinux {
   private static final Splitter NEWLINE_SPLITTER = Splitter.on('\n').omitEmptyStrings();
   private static final String CPU_INFO_FILE = "/proc/cpuinfo";
   private static final String MEM_INFO_FILE = "/proc/meminfo";
+  private static final String LOAD_AVG_FILE = "/proc/loadavg";
 
   private static int getLogicalCpuCount() throws IOException {
     String content = getCpuInfoContent();
@@ -56,9 +60,12 @@ public class LocalHostResourceManagerLinux {
 
       boolean hyperthreading = (logicalCpuCount != physicalCpuCount);
       final double EFFECTIVE_CPUS_PER_HYPERTHREADED_CPU = 0.6;
+      double cpuUsage =
+          logicalCpuCount * (hyperthreading ? EFFECTIVE_CPUS_PER_HYPERTHREADED_CPU : 1.0);
+      CgroupLimits cgroupLimits = CgroupLimits.forCurrentProcess();
       return ResourceSet.create(
-          ramMb,
-          logicalCpuCount * (hyperthreading ? EFFECTIVE_CPUS_PER_HYPERTHREADED_CPU : 1.0),
+          Math.min(ramMb, cgroupLimits.getMemoryLimitMb()),
+          Math.min(cpuUsage, cgroupLimits.getCpuLimit()),
           1.0,
           Integer.MAX_VALUE);
     } catch (IOException | IllegalArgumentException e) {
@@ -66,6 +73,31 @@ public class LocalHostResourceManagerLinux {
     }
   }
 
+  /**
+   * Returns the RAM (in MB) and CPU that are currently not in use on the local host, or null if
+   * they can't be determined.
+   *
+   * <p>Free RAM is the lower of what /proc/meminfo and the memory limit of the control groups of
+   * this process allow. Free CPU is the number of logical CPUs minus the one minute load average,
+   * unless a control group CPU quota applies: the load average covers the whole host then, so CPU
+   * is reported as unlimited and the quota-based capacity is left in place.
+   */
+  public static ResourceSet getFreeLocalHostResources() {
+    try {
+      CgroupLimits cgroupLimits = CgroupLimits.forCurrentProcess();
+      double freeRamMb =
+          Math.min(getFreeMemoryInMbHelper(MEM_INFO_FILE), cgroupLimits.getFreeMemoryMb());
+      double freeCpu = Double.POSITIVE_INFINITY;
+      if (Double.isInfinite(cgroupLimits.getCpuLimit())) {
+        freeCpu =
+            Math.max(0, getLogicalCpuCount() - getLoadAverageHelper(readContent(LOAD_AVG_FILE)));
+      }
+      return ResourceSet.create(freeRamMb, freeCpu, 1.0, Integer.MAX_VALUE);
+    } catch (IOException | IllegalArgumentException e) {
+      return null;
+    }
+  }
+
   private static String getCpuInfoContent() throws IOException {
     if (cpuInfoContent == null) {
       cpuInfoContent = readContent(CPU_INFO_FILE);
@@ -129,4 +161,31 @@ public class LocalHostResourceManagerLinux {
     double ramMb = ProcMeminfoParser.kbToMb(memInfo.getTotalKb());
     return ramMb;
   }
+
+  /**
+   * Returns the free RAM in MB, using the kernel's MemAvailable estimate where there is one.
+   */
+  public static double getFreeMemoryInMbHelper(String memInfoFileName) throws IOException {
+    ProcMeminfoParser memInfo = new ProcMeminfoParser(memInfoFileName);
+    long freeKb;
+    try {
+      freeKb = memInfo.getRamKb("MemAvailable");
+    } catch (IllegalArgumentException e) {
+      // Kernels before 3.14 don't report MemAvailable.
+      freeKb = memInfo.getFreeRamKb();
+    }
+    return ProcMeminfoParser.kbToMb(Math.max(0, freeKb));
+  }
+
+  /**
+   * Returns the one minute load average from the content of /proc/loadavg.
+   */
+  public static double getLoadAverageHelper(String content) {
+    String first = Splitter.on(' ').omitEmptyStrings().split(content.trim()).iterator().next();
+    try {
+      return Double.parseDouble(first);
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException("Can't get load average from '" + content + "'", e);
+    }
+  }
 }
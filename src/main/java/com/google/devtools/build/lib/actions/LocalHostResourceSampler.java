@@ -0,0 +1,117 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.lib.actions;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.devtools.build.lib.util.Preconditions;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Periodically samples the free RAM and CPU of the local host and lowers the resources available
+ * to the {@link ResourceManager} accordingly, so that actions aren't started when memory is taken
+ * by other processes, e.g. other builds on the same machine or container.
+ *
+ * <p>The resources are never raised above the capacity the sampler was started with. Resources
+ * acquired by actions count as available, as the memory and CPU these actions use are already
+ * missing from what is sampled as free.
+ */
+public final class LocalHostResourceSampler {
+
+  /** At least this much CPU stays available, however loaded the host is. */
+  @VisibleForTesting static final double MIN_AVAILABLE_CPU = 1.0;
+
+  private final ResourceManager resourceManager;
+  private final ResourceSet capacity;
+  private final ScheduledExecutorService executor;
+
+  private LocalHostResourceSampler(ResourceManager resourceManager, ResourceSet capacity) {
+    this.resourceManager = resourceManager;
+    this.capacity = capacity;
+    this.executor =
+        Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder()
+                .setNameFormat("local-resource-sampler")
+                .setDaemon(true)
+                .build());
+  }
+
+  /**
+   * Starts sampling the local host every {@code intervalMillis} and feeding the result to
+   * {@code resourceManager}, whose available resources must have been set to {@code capacity}.
+   * Returns null if free resources can't be sampled on this platform.
+   */
+  public static LocalHostResourceSampler start(
+      ResourceManager resourceManager, ResourceSet capacity, long intervalMillis) {
+    Preconditions.checkArgument(intervalMillis > 0, intervalMillis);
+    if (LocalHostCapacity.getFreeLocalHostResources() == null) {
+      return null;
+    }
+    final LocalHostResourceSampler sampler =
+        new LocalHostResourceSampler(resourceManager, capacity);
+    sampler.executor.scheduleWithFixedDelay(
+        new Runnable() {
+          @Override
+          public void run() {
+            sampler.sample();
+          }
+        },
+        intervalMillis,
+        intervalMillis,
+        TimeUnit.MILLISECONDS);
+    return sampler;
+  }
+
+  /**
+   * Stops sampling and restores the capacity the sampler was started with.
+   */
+  public void stop() {
+    executor.shutdownNow();
+    try {
+      executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    resourceManager.setAvailableResources(capacity);
+  }
+
+  private void sample() {
+    ResourceSet free = LocalHostCapacity.getFreeLocalHostResources();
+    if (free != null) {
+      resourceManager.setAvailableResources(
+          computeAvailableResources(capacity, resourceManager.getUsedResources(), free));
+    }
+  }
+
+  /**
+   * Returns the resources the resource manager may hand out, given its full {@code capacity}, the
+   * resources that are currently acquired and those that are currently free on the host.
+   */
+  @VisibleForTesting
+  static ResourceSet computeAvailableResources(
+      ResourceSet capacity, ResourceSet used, ResourceSet free) {
+    double memoryMb =
+        Math.min(capacity.getMemoryMb(), used.getMemoryMb() + free.getMemoryMb());
+    double cpu =
+        Math.min(
+            capacity.getCpuUsage(),
+            Math.max(MIN_AVAILABLE_CPU, used.getCpuUsage() + free.getCpuUsage()));
+    return ResourceSet.create(
+        memoryMb, cpu, capacity.getIoUsage(), capacity.getLocalTestCount());
+  }
+}
@@ -21,13 +21,18 @@ import com.google.common.eventbus.EventBus;
 import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
 import com.google.devtools.build.lib.profiler.AutoProfiler;
 import com.google.devtools.build.lib.profiler.ProfilerTask;
-import com.google.devtools.build.lib.util.Pair;
 import com.google.devtools.build.lib.util.Preconditions;
 
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
-import java.util.List;
+import java.util.ListIterator;
+import java.util.Set;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.annotation.Nullable;
 
 /**
  * Used to keep track of resources consumed by the Blaze action execution threads and throttle them
@@ -56,10 +61,40 @@ import java.util.concurrent.CountDownLatch;
  * guarantees that at least one thread will always be able to acquire any amount of requested
  * resources (even if it is greater than amount of available resources). Therefore, assuming that
  * threads correctly release acquired resources, Blaze will never be fully blocked.
+ *
+ * <p>Waiting requests are granted by their {@link ActionPriority}, and in the order in which they
+ * were made among requests of the same priority, but a request that fits into the free resources
+ * may overtake requests that don't. To keep large requests from starving, a request that has been
+ * overtaken {@link #MAX_GRANTS_WHILE_WAITING} times is not overtaken any more: later requests, and
+ * requests of a higher priority, wait until it was granted.
+ *
+ * <p>The used resources are accounted for without locking: while no request waits, requests are
+ * granted and released by atomically updating them. Only waiting requests, and the releases that
+ * may grant them, take the lock of the resource manager.
  */
 @ThreadSafe
 public class ResourceManager {
 
+  /**
+   * Gives the priority of the resource requests of actions. When there are not enough resources
+   * for all of them, requests of a higher priority are granted first.
+   */
+  @ThreadSafe
+  public interface ActionPriority {
+
+    /** Gives all requests the same priority. They are then granted in the order they were made. */
+    ActionPriority NONE =
+        new ActionPriority() {
+          @Override
+          public int getPriority(ActionExecutionMetadata action) {
+            return 0;
+          }
+        };
+
+    /** Returns the priority of the resource requests of {@code action}. */
+    int getPriority(ActionExecutionMetadata action);
+  }
+
   /**
    * A handle returned by {@link #acquireResources(ActionExecutionMetadata, ResourceSet)} that must
    * be closed in order to free the resources again.
@@ -119,39 +154,42 @@ public class ResourceManager {
   private static final double MIN_NECESSARY_RAM_RATIO = 1.0;
   private static final double MIN_NECESSARY_IO_RATIO = 1.0;
 
-  // List of blocked threads. Associated CountDownLatch object will always
-  // be initialized to 1 during creation in the acquire() method.
-  private final List<Pair<ResourceSet, CountDownLatch>> requestList;
+  // How many requests may be granted while a request is waiting, before no more requests may be
+  // granted ahead of it. Large requests, which only fit when few resources are used, would
+  // otherwise wait as long as smaller requests keep coming.
+  @VisibleForTesting static final int MAX_GRANTS_WHILE_WAITING = 100;
 
-  // The total amount of resources on the local host. Must be set by
-  // an explicit call to setAvailableResources(), often using
-  // LocalHostCapacity.getLocalHostCapacity() as an argument.
-  private ResourceSet staticResources = null;
+  // The resources used by granted requests. Updated by compare-and-set, so that requests can be
+  // granted and released without taking the lock while no request waits.
+  private final AtomicReference<Usage> used = new AtomicReference<>(Usage.NONE);
 
-  private ResourceSet availableResources = null;
+  // The number of waiting requests, and of requests about to find out whether they have to wait.
+  // Requests are only granted without the lock while it is zero. A request increments it before it
+  // checks the used resources, and a release reads it after it updated them, so that either the
+  // request sees the released resources or the release sees the request.
+  private final AtomicInteger waitingCount = new AtomicInteger();
 
-  // Used amount of CPU capacity (where 1.0 corresponds to the one fully
-  // occupied CPU core. Corresponds to the CPU resource definition in the
-  // ResourceSet class.
-  private double usedCpu;
+  // Blocked threads, highest priority first and in the order in which they started to wait among
+  // threads of the same priority. Guarded by this.
+  private final LinkedList<WaitingRequest> requestList = new LinkedList<>();
 
-  // Used amount of RAM capacity in MB. Corresponds to the RAM resource
-  // definition in the ResourceSet class.
-  private double usedRam;
+  // Blocked threads in the order in which they started to wait. Guarded by this.
+  private final Set<WaitingRequest> requestsByAge = new LinkedHashSet<>();
 
-  // Used amount of I/O resources. Corresponds to the I/O resource
-  // definition in the ResourceSet class.
-  private double usedIo;
+  private volatile ActionPriority actionPriority = ActionPriority.NONE;
 
-  // Used local test count. Corresponds to the local test count definition in the ResourceSet class.
-  private int usedLocalTestCount;
+  // The total amount of resources on the local host. Must be set by
+  // an explicit call to setAvailableResources(), often using
+  // LocalHostCapacity.getLocalHostCapacity() as an argument.
+  private ResourceSet staticResources = null;
+
+  private volatile ResourceSet availableResources = null;
 
   // Specifies how much of the RAM in staticResources we should allow to be used.
   public static final int DEFAULT_RAM_UTILIZATION_PERCENTAGE = 67;
   private int ramUtilizationPercentage = DEFAULT_RAM_UTILIZATION_PERCENTAGE;
 
   private ResourceManager() {
-    requestList = new LinkedList<>();
   }
 
   @VisibleForTesting public static ResourceManager instanceForTestingOnly() {
@@ -163,15 +201,14 @@ public class ResourceManager {
    * Note - it does not reset available resources. Use separate call to setAvailableResources().
    */
   public synchronized void resetResourceUsage() {
-    usedCpu = 0;
-    usedRam = 0;
-    usedIo = 0;
-    usedLocalTestCount = 0;
-    for (Pair<ResourceSet, CountDownLatch> request : requestList) {
+    used.set(Usage.NONE);
+    for (WaitingRequest request : requestList) {
       // CountDownLatch can be set only to 0 or 1.
-      request.second.countDown();
+      request.latch.countDown();
     }
     requestList.clear();
+    requestsByAge.clear();
+    waitingCount.set(0);
   }
 
   /**
@@ -189,6 +226,14 @@ public class ResourceManager {
     processWaitingThreads();
   }
 
+  /**
+   * Returns the resources currently acquired by action execution threads.
+   */
+  public ResourceSet getUsedResources() {
+    Usage usage = used.get();
+    return ResourceSet.create(usage.ram, usage.cpu, usage.io, usage.localTestCount);
+  }
+
   /**
    * Specify how much of the available RAM we should allow to be used.
    */
@@ -196,6 +241,14 @@ public class ResourceManager {
     ramUtilizationPercentage = percentage;
   }
 
+  /**
+   * Sets the priority of the requests that have to wait for resources. Defaults to
+   * {@link ActionPriority#NONE}.
+   */
+  public void setActionPriority(ActionPriority actionPriority) {
+    this.actionPriority = Preconditions.checkNotNull(actionPriority);
+  }
+
   /**
    * Acquires requested resource set. Will block if resource is not available.
    * NB! This method must be thread-safe!
@@ -207,7 +260,7 @@ public class ResourceManager {
     CountDownLatch latch = null;
     try {
       waiting(owner);
-      latch = acquire(resources);
+      latch = acquire(owner, resources);
       if (latch != null) {
         latch.await();
       }
@@ -229,11 +282,12 @@ public class ResourceManager {
    * @return true iff the given resources were locked (all or nothing).
    */
   public boolean tryAcquire(ActionExecutionMetadata owner, ResourceSet resources) {
-    boolean acquired = false;
-    synchronized (this) {
-      if (areResourcesAvailable(resources)) {
-        incrementResources(resources);
-        acquired = true;
+    boolean acquired;
+    if (waitingCount.get() == 0) {
+      acquired = tryIncrementResources(resources);
+    } else {
+      synchronized (this) {
+        acquired = tryGrantNow(resources);
       }
     }
 
@@ -246,19 +300,24 @@ public class ResourceManager {
     return acquired;
   }
 
-  private void incrementResources(ResourceSet resources) {
-    usedCpu += resources.getCpuUsage();
-    usedRam += resources.getMemoryMb();
-    usedIo += resources.getIoUsage();
-    usedLocalTestCount += resources.getLocalTestCount();
+  /** Marks the given resources as used if they are available. */
+  private boolean tryIncrementResources(ResourceSet resources) {
+    while (true) {
+      Usage usage = used.get();
+      if (!areResourcesAvailable(usage, resources)) {
+        return false;
+      }
+      if (used.compareAndSet(usage, usage.plus(resources))) {
+        return true;
+      }
+    }
   }
 
   /**
    * Return true if any resources have been claimed through this manager.
    */
-  public synchronized boolean inUse() {
-    return usedCpu != 0.0 || usedRam != 0.0 || usedIo != 0.0 || usedLocalTestCount != 0
-        || !requestList.isEmpty();
+  public boolean inUse() {
+    return !used.get().isZero() || waitingCount.get() != 0;
   }
 
 
@@ -313,66 +372,137 @@ public class ResourceManager {
     }
   }
 
-  private synchronized CountDownLatch acquire(ResourceSet resources) {
-    if (areResourcesAvailable(resources)) {
-      incrementResources(resources);
+  private CountDownLatch acquire(ActionExecutionMetadata owner, ResourceSet resources) {
+    if (waitingCount.get() == 0 && tryIncrementResources(resources)) {
       return null;
     }
-    Pair<ResourceSet, CountDownLatch> request =
-      new Pair<>(resources, new CountDownLatch(1));
-    requestList.add(request);
-    return request.second;
-  }
-
-  private synchronized boolean release(ResourceSet resources) {
-    usedCpu -= resources.getCpuUsage();
-    usedRam -= resources.getMemoryMb();
-    usedIo -= resources.getIoUsage();
-    usedLocalTestCount -= resources.getLocalTestCount();
-
-    // TODO(bazel-team): (2010) rounding error can accumulate and value below can end up being
-    // e.g. 1E-15. So if it is small enough, we set it to 0. But maybe there is a better solution.
-    double epsilon = 0.0001;
-    if (usedCpu < epsilon) {
-      usedCpu = 0;
+    synchronized (this) {
+      // Counted before the used resources are checked, see waitingCount.
+      waitingCount.incrementAndGet();
+      if (tryGrantNow(resources)) {
+        waitingCount.decrementAndGet();
+        return null;
+      }
+      WaitingRequest request =
+          new WaitingRequest(resources, actionPriority.getPriority(owner), used.get().grantCount);
+      // Goes after the waiting requests of the same or a higher priority.
+      ListIterator<WaitingRequest> iterator = requestList.listIterator(requestList.size());
+      while (iterator.hasPrevious()) {
+        if (iterator.previous().priority >= request.priority) {
+          iterator.next();
+          break;
+        }
+      }
+      iterator.add(request);
+      requestsByAge.add(request);
+      return request.latch;
+    }
+  }
+
+  /**
+   * Marks the resources of a new request as used if they are available and no waiting request is
+   * starving.
+   */
+  private synchronized boolean tryGrantNow(ResourceSet resources) {
+    if (!isZero(resources) && getStarvingRequest() != null) {
+      return false;
     }
-    if (usedRam < epsilon) {
-      usedRam = 0;
+    return tryIncrementResources(resources);
+  }
+
+  /**
+   * Returns the request that waited longest if it has been overtaken too often to be overtaken
+   * again, or null.
+   */
+  @Nullable
+  private synchronized WaitingRequest getStarvingRequest() {
+    if (requestsByAge.isEmpty()) {
+      return null;
     }
-    if (usedIo < epsilon) {
-      usedIo = 0;
+    WaitingRequest oldest = requestsByAge.iterator().next();
+    return used.get().grantCount - oldest.grantCountWhenWaitingStarted >= MAX_GRANTS_WHILE_WAITING
+        ? oldest
+        : null;
+  }
+
+  private static boolean isZero(ResourceSet resources) {
+    return resources.getCpuUsage() == 0 && resources.getMemoryMb() == 0
+        && resources.getIoUsage() == 0 && resources.getLocalTestCount() == 0;
+  }
+
+  private boolean release(ResourceSet resources) {
+    Usage usage;
+    do {
+      usage = used.get();
+    } while (!used.compareAndSet(usage, usage.minus(resources)));
+    // Read after the resources were released, see waitingCount.
+    if (waitingCount.get() == 0) {
+      return false;
     }
-    if (!requestList.isEmpty()) {
+    synchronized (this) {
+      if (requestList.isEmpty()) {
+        return false;
+      }
       processWaitingThreads();
       return true;
     }
-    return false;
   }
 
-
   /**
    * Tries to unblock one or more waiting threads if there are sufficient resources available.
    */
   private synchronized void processWaitingThreads() {
-    Iterator<Pair<ResourceSet, CountDownLatch>> iterator = requestList.iterator();
+    // While the request that waited longest is starving, it has to be granted first.
+    for (WaitingRequest starving = getStarvingRequest();
+        starving != null;
+        starving = getStarvingRequest()) {
+      if (!tryIncrementResources(starving.resources)) {
+        return;
+      }
+      requestList.remove(starving);
+      granted(starving);
+    }
+    // Most waiting requests share a few resource sets. A request for the same set as a request
+    // that did not fit in this pass doesn't fit either.
+    ResourceSet lastUnavailable = null;
+    Iterator<WaitingRequest> iterator = requestList.iterator();
     while (iterator.hasNext()) {
-      Pair<ResourceSet, CountDownLatch> request = iterator.next();
-      if (areResourcesAvailable(request.first)) {
-        incrementResources(request.first);
-        request.second.countDown();
+      WaitingRequest request = iterator.next();
+      if (request.resources == lastUnavailable) {
+        continue;
+      }
+      if (tryIncrementResources(request.resources)) {
         iterator.remove();
+        granted(request);
+        if (getStarvingRequest() != null) {
+          // It is granted on a later release, before any other request.
+          return;
+        }
+      } else {
+        lastUnavailable = request.resources;
       }
     }
   }
 
+  /** Unblocks the thread of a request that was removed from the list of waiting requests. */
+  private void granted(WaitingRequest request) {
+    requestsByAge.remove(request);
+    waitingCount.decrementAndGet();
+    request.latch.countDown();
+  }
+
   // Method will return true if all requested resources are considered to be available.
-  private boolean areResourcesAvailable(ResourceSet resources) {
-    Preconditions.checkNotNull(availableResources);
+  private boolean areResourcesAvailable(Usage usage, ResourceSet resources) {
+    ResourceSet availableResources = Preconditions.checkNotNull(this.availableResources);
     // Comparison below is robust, since any calculation errors will be fixed
     // by the release() method.
-    if (usedCpu == 0.0 && usedRam == 0.0 && usedIo == 0.0 && usedLocalTestCount == 0) {
+    if (usage.isZero()) {
       return true;
     }
+    double usedCpu = usage.cpu;
+    double usedRam = usage.ram;
+    double usedIo = usage.io;
+    int usedLocalTestCount = usage.localTestCount;
     // Use only MIN_NECESSARY_???_RATIO of the resource value to check for
     // allocation. This is necessary to account for the fact that most of the
     // requested resource sets use pessimistic estimations. Note that this
@@ -404,13 +534,91 @@ public class ResourceManager {
   }
 
 
+  /** A thread that waits for resources. */
+  private static final class WaitingRequest {
+    private final ResourceSet resources;
+    // Will be counted down once the resources are granted.
+    private final CountDownLatch latch = new CountDownLatch(1);
+    private final int priority;
+    private final long grantCountWhenWaitingStarted;
+
+    private WaitingRequest(
+        ResourceSet resources, int priority, long grantCountWhenWaitingStarted) {
+      this.resources = resources;
+      this.priority = priority;
+      this.grantCountWhenWaitingStarted = grantCountWhenWaitingStarted;
+    }
+  }
+
+  /** The resources used by the granted requests, and the number of requests granted so far. */
+  private static final class Usage {
+    private static final Usage NONE = new Usage(0, 0, 0, 0, 0);
+
+    // Used amount of CPU capacity (where 1.0 corresponds to the one fully
+    // occupied CPU core. Corresponds to the CPU resource definition in the
+    // ResourceSet class.
+    private final double cpu;
+
+    // Used amount of RAM capacity in MB. Corresponds to the RAM resource
+    // definition in the ResourceSet class.
+    private final double ram;
+
+    // Used amount of I/O resources. Corresponds to the I/O resource
+    // definition in the ResourceSet class.
+    private final double io;
+
+    // Used local test count. Corresponds to the local test count definition in the ResourceSet
+    // class.
+    private final int localTestCount;
+
+    private final long grantCount;
+
+    private Usage(double cpu, double ram, double io, int localTestCount, long grantCount) {
+      this.cpu = cpu;
+      this.ram = ram;
+      this.io = io;
+      this.localTestCount = localTestCount;
+      this.grantCount = grantCount;
+    }
+
+    private Usage plus(ResourceSet resources) {
+      return new Usage(
+          cpu + resources.getCpuUsage(),
+          ram + resources.getMemoryMb(),
+          io + resources.getIoUsage(),
+          localTestCount + resources.getLocalTestCount(),
+          grantCount + 1);
+    }
+
+    private Usage minus(ResourceSet resources) {
+      // TODO(bazel-team): (2010) rounding error can accumulate and value below can end up being
+      // e.g. 1E-15. So if it is small enough, we set it to 0. But maybe there is a better
+      // solution.
+      double epsilon = 0.0001;
+      double cpu = this.cpu - resources.getCpuUsage();
+      double ram = this.ram - resources.getMemoryMb();
+      double io = this.io - resources.getIoUsage();
+      return new Usage(
+          cpu < epsilon ? 0 : cpu,
+          ram < epsilon ? 0 : ram,
+          io < epsilon ? 0 : io,
+          localTestCount - resources.getLocalTestCount(),
+          grantCount);
+    }
+
+    private boolean isZero() {
+      return cpu == 0.0 && ram == 0.0 && io == 0.0 && localTestCount == 0;
+    }
+  }
+
   @VisibleForTesting
   synchronized int getWaitCount() {
     return requestList.size();
   }
 
   @VisibleForTesting
-  synchronized boolean isAvailable(double ram, double cpu, double io, int localTestCount) {
-    return areResourcesAvailable(ResourceSet.create(ram, cpu, io, localTestCount));
+  boolean isAvailable(double ram, double cpu, double io, int localTestCount) {
+    return areResourcesAvailable(
+        used.get(), ResourceSet.create(ram, cpu, io, localTestCount));
   }
 }
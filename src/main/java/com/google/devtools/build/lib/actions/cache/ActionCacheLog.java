@@ -0,0 +1,403 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.lib.actions.cache;
+
+import com.google.common.collect.Sets;
+import com.google.common.primitives.Ints;
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+
+/**
+ * An append-only log of int-keyed records, used as the backing store of
+ * {@link CompactPersistentActionCache}.
+ *
+ * <p>The log file holds a header followed by records of the form {@code (key, length, value)};
+ * a length of -1 marks a removal and a later record for a key supersedes the earlier ones. Saving
+ * only appends the records that changed since the previous save. Once most of the records in the
+ * file are superseded, {@link #compact} rewrites it with the live records only.
+ *
+ * <p>Loading streams the file into a few large blocks and only records where the value of each
+ * key starts; values are copied out when they are looked up. Updates go to a concurrent map, so
+ * callers do not need to serialize access.
+ */
+@ThreadSafe
+final class ActionCacheLog {
+  private static final Logger LOG = Logger.getLogger(ActionCacheLog.class.getName());
+
+  private static final long MAGIC = 0x20160901L;
+  private static final int HEADER_SIZE = 16;
+  private static final int RECORD_HEADER_SIZE = 8;
+  private static final int REMOVED = -1;
+
+  /** Compact once the file holds this many times as many records as there are live entries. */
+  private static final int COMPACTION_RATIO = 2;
+  private static final int MIN_RECORDS_FOR_COMPACTION = 1024;
+
+  /** The size of the blocks holding the values read at load time. Larger values get their own. */
+  private static final int BLOCK_SIZE = 1 << 20;
+
+  /** Marks a key removed since loading. Compared by identity. */
+  private static final byte[] TOMBSTONE = new byte[0];
+
+  private final Path logFile;
+  private final long version;
+
+  /**
+   * The values in the log file at load time, each preceded by its length. Never modified after
+   * loading.
+   */
+  private final List<byte[]> loaded = new ArrayList<>();
+
+  /**
+   * For every non-negative key, the position of its value in {@link #loaded}, with the index of
+   * the block in the upper and the position in the block in the lower 32 bits, or -1 if the key
+   * had no value at load time. Negative keys are rare and go to {@link #updates} instead.
+   */
+  private final long[] loadedOffsets;
+
+  /** Values put or removed since loading. They take precedence over {@link #loaded}. */
+  private final ConcurrentMap<Integer, byte[]> updates = new ConcurrentHashMap<>();
+
+  /** Keys whose current value has not been written to the log file yet. */
+  private final Set<Integer> unflushed = Sets.newConcurrentHashSet();
+
+  /** The number of keys that currently have a value. */
+  private final AtomicInteger liveEntries = new AtomicInteger();
+
+  private final ReentrantLock fileLock = new ReentrantLock();
+
+  /** The number of records in the log file. */
+  @GuardedBy("fileLock")
+  private long records;
+
+  /**
+   * True if the log file does not exist yet or may end in a partial record, in which case it
+   * cannot be appended to and must be rewritten.
+   */
+  @GuardedBy("fileLock")
+  private boolean rewriteOnFlush;
+
+  /** Set by {@link #close}, after which the log file is left alone. */
+  @GuardedBy("fileLock")
+  private boolean closed;
+
+  /**
+   * Loads the log from {@code logFile}, if it exists.
+   *
+   * @throws IOException if the file cannot be read or was not written by this class with the
+   *     same {@code version}
+   */
+  ActionCacheLog(Path logFile, long version) throws IOException {
+    this.logFile = logFile;
+    this.version = version;
+    if (!logFile.exists()) {
+      loadedOffsets = new long[0];
+      rewriteOnFlush = true;
+      return;
+    }
+
+    long fileSize = logFile.getFileSize();
+    long[] offsets = new long[0];
+    long count = 0;
+    long position = HEADER_SIZE;
+    byte[] block = new byte[0];
+    ByteBuffer blockBuffer = ByteBuffer.wrap(block);
+    try (DataInputStream in =
+        new DataInputStream(new BufferedInputStream(logFile.getInputStream()))) {
+      if (fileSize < HEADER_SIZE || in.readLong() != MAGIC || in.readLong() != version) {
+        throw new IOException("Unexpected format of " + logFile);
+      }
+      while (fileSize - position >= RECORD_HEADER_SIZE) {
+        int key = in.readInt();
+        int length = in.readInt();
+        if (length < REMOVED || length > fileSize - position - RECORD_HEADER_SIZE) {
+          // The file ends in a record that was only partially written.
+          break;
+        }
+        position += RECORD_HEADER_SIZE;
+        if (key < 0) {
+          if (length == REMOVED) {
+            updates.remove(key);
+          } else {
+            byte[] value = new byte[length];
+            in.readFully(value);
+            updates.put(key, value);
+          }
+        } else {
+          if (key >= offsets.length) {
+            int oldLength = offsets.length;
+            offsets = Arrays.copyOf(offsets, Math.max(key + 1, oldLength * 2));
+            Arrays.fill(offsets, oldLength, offsets.length, -1);
+          }
+          if (length == REMOVED) {
+            offsets[key] = -1;
+          } else {
+            if (block.length - blockBuffer.position() < 4 + length) {
+              block = new byte[Math.max(BLOCK_SIZE, 4 + length)];
+              blockBuffer = ByteBuffer.wrap(block);
+              loaded.add(block);
+            }
+            offsets[key] = ((long) (loaded.size() - 1) << 32) | blockBuffer.position();
+            blockBuffer.putInt(length);
+            in.readFully(block, blockBuffer.position(), length);
+            blockBuffer.position(blockBuffer.position() + length);
+          }
+        }
+        if (length > 0) {
+          position += length;
+        }
+        count++;
+      }
+    }
+    loadedOffsets = offsets;
+    records = count;
+    rewriteOnFlush = position < fileSize;
+
+    int live = 0;
+    for (long offset : offsets) {
+      if (offset >= 0) {
+        live++;
+      }
+    }
+    liveEntries.set(live + updates.size());
+  }
+
+  /** Returns the value for {@code key}, or null if there is none. */
+  @Nullable
+  byte[] get(int key) {
+    byte[] value = updates.get(key);
+    if (value != null) {
+      return value == TOMBSTONE ? null : value;
+    }
+    if (!hasLoadedValue(key)) {
+      return null;
+    }
+    long offset = loadedOffsets[key];
+    byte[] block = loaded.get((int) (offset >>> 32));
+    int position = (int) offset;
+    int length = Ints.fromBytes(
+        block[position], block[position + 1], block[position + 2], block[position + 3]);
+    return Arrays.copyOfRange(block, position + 4, position + 4 + length);
+  }
+
+  private boolean hasLoadedValue(int key) {
+    return key >= 0 && key < loadedOffsets.length && loadedOffsets[key] >= 0;
+  }
+
+  void put(int key, byte[] value) {
+    byte[] previous = updates.put(key, value);
+    if (previous == null ? !hasLoadedValue(key) : previous == TOMBSTONE) {
+      liveEntries.incrementAndGet();
+    }
+    unflushed.add(key);
+  }
+
+  void remove(int key) {
+    byte[] previous = updates.put(key, TOMBSTONE);
+    if (previous == null ? hasLoadedValue(key) : previous != TOMBSTONE) {
+      liveEntries.decrementAndGet();
+      unflushed.add(key);
+    }
+  }
+
+  /** Returns the keys that currently have a value. Not atomic with respect to updates. */
+  List<Integer> keys() {
+    List<Integer> keys = new ArrayList<>();
+    for (int key = 0; key < loadedOffsets.length; key++) {
+      if (loadedOffsets[key] >= 0 && !updates.containsKey(key)) {
+        keys.add(key);
+      }
+    }
+    for (Map.Entry<Integer, byte[]> entry : updates.entrySet()) {
+      if (entry.getValue() != TOMBSTONE) {
+        keys.add(entry.getKey());
+      }
+    }
+    return keys;
+  }
+
+  /** Returns the number of keys that currently have a value. */
+  int size() {
+    return liveEntries.get();
+  }
+
+  /**
+   * Appends the records changed since the last flush to the log file, waiting for a concurrent
+   * compaction to finish if needed.
+   *
+   * @return the size of the log file
+   */
+  long flush() throws IOException {
+    fileLock.lock();
+    try {
+      if (closed) {
+        return 0;
+      }
+      flushLocked();
+      return logFile.getFileSize();
+    } finally {
+      fileLock.unlock();
+    }
+  }
+
+  /**
+   * Like {@link #flush}, but returns right away if the log file is in use. Failures are logged;
+   * the next flush will write the log file from scratch.
+   */
+  void flushIfIdle() {
+    if (!fileLock.tryLock()) {
+      return;
+    }
+    try {
+      flushLocked();
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "Failed to write " + logFile, e);
+    } finally {
+      fileLock.unlock();
+    }
+  }
+
+  @GuardedBy("fileLock")
+  private void flushLocked() throws IOException {
+    if (closed) {
+      return;
+    }
+    if (rewriteOnFlush) {
+      FileSystemUtils.createDirectoryAndParents(logFile.getParentDirectory());
+      rewrite();
+      return;
+    }
+    if (unflushed.isEmpty()) {
+      return;
+    }
+    try (DataOutputStream out =
+        new DataOutputStream(new BufferedOutputStream(logFile.getOutputStream(true)))) {
+      for (Iterator<Integer> it = unflushed.iterator(); it.hasNext(); ) {
+        Integer key = it.next();
+        // Remove the key before reading its value, so that a concurrent put is flushed again.
+        it.remove();
+        writeRecord(out, key, updates.get(key));
+        records++;
+      }
+    } catch (IOException e) {
+      rewriteOnFlush = true;
+      throw e;
+    }
+  }
+
+  /** Returns whether most of the records in the log file are superseded. */
+  boolean needsCompaction() {
+    long fileRecords;
+    fileLock.lock();
+    try {
+      fileRecords = records;
+    } finally {
+      fileLock.unlock();
+    }
+    return fileRecords >= MIN_RECORDS_FOR_COMPACTION
+        && fileRecords > (long) COMPACTION_RATIO * size();
+  }
+
+  /**
+   * Rewrites the log file so that it only contains the current value of each key. Does nothing if
+   * the log is closed or its directory no longer exists.
+   */
+  void compact() throws IOException {
+    fileLock.lock();
+    try {
+      if (!closed && logFile.getParentDirectory().exists()) {
+        rewrite();
+      }
+    } finally {
+      fileLock.unlock();
+    }
+  }
+
+  /**
+   * Stops writing to the log file, waiting for a concurrent flush or compaction to finish. Must
+   * be called before the log file is deleted, so that it is not written again.
+   */
+  void close() {
+    fileLock.lock();
+    try {
+      closed = true;
+    } finally {
+      fileLock.unlock();
+    }
+  }
+
+  @GuardedBy("fileLock")
+  private void rewrite() throws IOException {
+    Path tmpFile = logFile.getParentDirectory().getChild(logFile.getBaseName() + ".tmp");
+    // Everything is written below, including updates that race with the rewrite.
+    unflushed.clear();
+    long count = 0;
+    try {
+      try (DataOutputStream out =
+          new DataOutputStream(new BufferedOutputStream(tmpFile.getOutputStream()))) {
+        out.writeLong(MAGIC);
+        out.writeLong(version);
+        for (int key : keys()) {
+          byte[] value = get(key);
+          if (value != null) {
+            writeRecord(out, key, value);
+            count++;
+          }
+        }
+      }
+      tmpFile.renameTo(logFile);
+    } catch (IOException e) {
+      rewriteOnFlush = true;
+      tmpFile.delete();
+      throw e;
+    }
+    records = count;
+    rewriteOnFlush = false;
+  }
+
+  private static void writeRecord(DataOutputStream out, int key, byte[] value)
+      throws IOException {
+    out.writeInt(key);
+    if (value == TOMBSTONE) {
+      out.writeInt(REMOVED);
+    } else {
+      out.writeInt(value.length);
+      out.write(value);
+    }
+  }
+}
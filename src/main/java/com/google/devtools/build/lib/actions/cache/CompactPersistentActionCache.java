@@ -15,12 +15,13 @@ package com.google.devtools.build.lib.actions.cache;
 
 import static java.nio.charset.StandardCharsets.ISO_8859_1;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.devtools.build.lib.concurrent.ThreadSafety.ConditionallyThreadSafe;
 import com.google.devtools.build.lib.profiler.AutoProfiler;
 import com.google.devtools.build.lib.util.Clock;
 import com.google.devtools.build.lib.util.CompactStringIndexer;
-import com.google.devtools.build.lib.util.PersistentMap;
 import com.google.devtools.build.lib.util.Preconditions;
 import com.google.devtools.build.lib.util.StringIndexer;
 import com.google.devtools.build.lib.util.VarInt;
@@ -28,22 +29,29 @@ import com.google.devtools.build.lib.vfs.Path;
 import com.google.devtools.build.lib.vfs.UnixGlob;
 
 import java.io.ByteArrayOutputStream;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.util.Collection;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import javax.annotation.concurrent.GuardedBy;
+
 /**
  * An implementation of the ActionCache interface that uses
  * {@link CompactStringIndexer} to reduce memory footprint and saves
- * cached actions using the {@link PersistentMap}.
+ * cached actions to an append-only {@link ActionCacheLog}.
+ *
+ * <p>Saving only appends the entries changed since the last save. The log is compacted in the
+ * background once most of it consists of superseded entries.
  *
  * <p>This cache is not fully correct: as hashes are xor'd together, a permutation of input
  * file contents will erroneously be considered up to date.
@@ -63,123 +71,68 @@ public class CompactPersistentActionCache implements ActionCache {
 
   private static final int NO_INPUT_DISCOVERY_COUNT = -1;
 
-  private static final int VERSION = 11;
+  private static final int VERSION = 12;
 
   private static final Logger LOG = Logger.getLogger(CompactPersistentActionCache.class.getName());
 
-  private final class ActionMap extends PersistentMap<Integer, byte[]> {
-    private final Clock clock;
-    private long nextUpdateSecs;
-
-    public ActionMap(Map<Integer, byte[]> map, Clock clock, Path mapFile, Path journalFile)
-        throws IOException {
-      super(VERSION, map, mapFile, journalFile);
-      this.clock = clock;
-      // Using nanoTime. currentTimeMillis may not provide enough granularity.
-      nextUpdateSecs = TimeUnit.NANOSECONDS.toSeconds(clock.nanoTime()) + SAVE_INTERVAL_SECONDS;
-      load();
-    }
-
-    @Override
-    protected boolean updateJournal() {
-      // Using nanoTime. currentTimeMillis may not provide enough granularity.
-      long timeSecs = TimeUnit.NANOSECONDS.toSeconds(clock.nanoTime());
-      if (SAVE_INTERVAL_SECONDS == 0 || timeSecs > nextUpdateSecs) {
-        nextUpdateSecs = timeSecs + SAVE_INTERVAL_SECONDS;
-        // Force flushing of the PersistentStringIndexer instance. This is needed to ensure
-        // that filename index data on disk is always up-to-date when we save action cache
-        // data.
-        indexer.flush();
-        return true;
-      }
-      return false;
-    }
-
-    @Override
-    protected void markAsDirty() {
-      try (AutoProfiler p =
-          AutoProfiler.logged("slow write to journal", LOG, MIN_TIME_FOR_LOGGING_MILLIS)) {
-        super.markAsDirty();
-      }
-    }
-
-    @Override
-    protected boolean keepJournal() {
-      // We must first flush the journal to get an accurate measure of its size.
-      forceFlush();
-      try {
-        return journalSize() * 100 < cacheSize();
-      } catch (IOException e) {
-        return false;
-      }
-    }
-
-    @Override
-    protected Integer readKey(DataInputStream in) throws IOException {
-      return in.readInt();
-    }
-
-    @Override
-    protected byte[] readValue(DataInputStream in)
-        throws IOException {
-      int size = in.readInt();
-      if (size < 0) {
-        throw new IOException("found negative array size: " + size);
-      }
-      byte[] data = new byte[size];
-      in.readFully(data);
-      return data;
-    }
-
-    @Override
-    protected void writeKey(Integer key, DataOutputStream out)
-        throws IOException {
-      out.writeInt(key);
-    }
-
-    @Override
-    // TODO(bazel-team): (2010) This method, writeKey() and related Metadata methods
-    // should really use protocol messages. Doing so would allow easy inspection
-    // of the action cache content and, more importantly, would cut down on the
-    // need to change VERSION to different number every time we touch those
-    // methods. Especially when we'll start to add stuff like statistics for
-    // each action.
-    protected void writeValue(byte[] value, DataOutputStream out)
-        throws IOException {
-      out.writeInt(value.length);
-      out.write(value);
-    }
-  }
-
-  private final PersistentMap<Integer, byte[]> map;
-  private final PersistentStringIndexer indexer;
+  /** Compacts action cache logs in the background. */
+  private static final Executor COMPACTOR = Executors.newSingleThreadExecutor(
+      new ThreadFactoryBuilder()
+          .setNameFormat("action-cache-compactor-%d")
+          .setDaemon(true)
+          .build());
+
+  private final ActionCacheLog log;
+  private final PersistentIndexer indexer;
+  private final Clock clock;
+  private final AtomicLong nextUpdateSecs;
+  private final AtomicBoolean compacting = new AtomicBoolean();
+  /** Held by a running background compaction. */
+  private final Object compactionLock = new Object();
+  @GuardedBy("compactionLock")
+  private boolean closed;
   static final ActionCache.Entry CORRUPTED = new ActionCache.Entry(null, false);
 
   public CompactPersistentActionCache(Path cacheRoot, Clock clock) throws IOException {
-    Path cacheFile = cacheFile(cacheRoot);
-    Path journalFile = journalFile(cacheRoot);
-    Path indexFile = cacheRoot.getChild("filename_index_v" + VERSION + ".blaze");
-    // we can now use normal hash map as backing map, since dependency checker
-    // will manually purge records from the action cache.
-    Map<Integer, byte[]> backingMap = new HashMap<>();
+    this(cacheRoot, clock, /*mappedIndex=*/false);
+  }
+
+  /**
+   * Creates the action cache stored in {@code cacheRoot}.
+   *
+   * @param mappedIndex whether to keep the file names referenced by cache entries in a
+   *     memory-mapped {@link MappedStringIndexer} instead of on the heap. The two modes use
+   *     separate files.
+   */
+  public CompactPersistentActionCache(Path cacheRoot, Clock clock, boolean mappedIndex)
+      throws IOException {
+    String mode = mappedIndex ? "_mapped" : "";
+    Path cacheFile = cacheRoot.getChild("action_cache" + mode + "_v" + VERSION + ".blaze");
+    Path indexFile = cacheRoot.getChild("filename_index" + mode + "_v" + VERSION + ".blaze");
+    this.clock = clock;
+    // Using nanoTime. currentTimeMillis may not provide enough granularity.
+    nextUpdateSecs = new AtomicLong(
+        TimeUnit.NANOSECONDS.toSeconds(clock.nanoTime()) + SAVE_INTERVAL_SECONDS);
 
     try {
-      indexer = PersistentStringIndexer.newPersistentStringIndexer(indexFile, clock);
+      indexer = mappedIndex
+          ? MappedStringIndexer.newMappedStringIndexer(indexFile, clock)
+          : PersistentStringIndexer.newPersistentStringIndexer(indexFile, clock);
     } catch (IOException e) {
       renameCorruptedFiles(cacheRoot);
       throw new IOException("Failed to load filename index data", e);
     }
 
     try {
-      map = new ActionMap(backingMap, clock, cacheFile, journalFile);
+      log = new ActionCacheLog(cacheFile, VERSION);
     } catch (IOException e) {
       renameCorruptedFiles(cacheRoot);
       throw new IOException("Failed to load action cache data", e);
     }
 
     // Validate referential integrity between two collections.
-    if (!map.isEmpty()) {
-      String integrityError = validateIntegrity(indexer.size(), map.get(VALIDATION_KEY));
+    if (!log.keys().isEmpty()) {
+      String integrityError = validateIntegrity(indexer.size(), log.get(VALIDATION_KEY));
       if (integrityError != null) {
         renameCorruptedFiles(cacheRoot);
         throw new IOException("Failed action cache referential integrity check: " + integrityError);
@@ -234,20 +187,13 @@ public class CompactPersistentActionCache implements ActionCache {
     return cacheRoot.getChild("action_cache_v" + VERSION + ".blaze");
   }
 
-  public static Path journalFile(Path cacheRoot) {
-    return cacheRoot.getChild("action_journal_v" + VERSION + ".blaze");
-  }
-
   @Override
   public ActionCache.Entry get(String key) {
     int index = indexer.getIndex(key);
     if (index < 0) {
       return null;
     }
-    byte[] data;
-    synchronized (this) {
-      data = map.get(index);
-    }
+    byte[] data = log.get(index);
     try {
       return data != null ? CompactPersistentActionCache.decode(indexer, data) : null;
     } catch (IOException e) {
@@ -271,42 +217,113 @@ public class CompactPersistentActionCache implements ActionCache {
     // updating the VALIDATION_KEY. If the most recent update loses the race,
     // a value lower than the indexer size will remain in the validation record.
     // This will still pass the integrity check.
-    synchronized (this) {
-      map.put(VALIDATION_KEY, buffer.array());
-      // Now update record itself.
-      map.put(index, content);
-    }
+    log.put(VALIDATION_KEY, buffer.array());
+    // Now update record itself.
+    log.put(index, content);
+    maybeFlush();
   }
 
   @Override
-  public synchronized void remove(String key) {
-    map.remove(indexer.getIndex(key));
+  public void remove(String key) {
+    int index = indexer.getIndex(key);
+    if (index >= 0) {
+      log.remove(index);
+      maybeFlush();
+    }
+  }
+
+  /**
+   * Appends recent updates to the log every {@link #SAVE_INTERVAL_SECONDS}, so that little is
+   * lost if the server dies before the next {@link #save}.
+   */
+  private void maybeFlush() {
+    // Using nanoTime. currentTimeMillis may not provide enough granularity.
+    long timeSecs = TimeUnit.NANOSECONDS.toSeconds(clock.nanoTime());
+    long next = nextUpdateSecs.get();
+    if ((SAVE_INTERVAL_SECONDS == 0 || timeSecs > next)
+        && nextUpdateSecs.compareAndSet(next, timeSecs + SAVE_INTERVAL_SECONDS)) {
+      try (AutoProfiler p =
+          AutoProfiler.logged("slow write to journal", LOG, MIN_TIME_FOR_LOGGING_MILLIS)) {
+        // Force flushing of the PersistentStringIndexer instance. This is needed to ensure
+        // that filename index data on disk is always up-to-date when we save action cache
+        // data.
+        indexer.flush();
+        log.flushIfIdle();
+      }
+    }
   }
 
   @Override
-  public synchronized long save() throws IOException {
+  public long save() throws IOException {
     long indexSize = indexer.save();
-    long mapSize = map.save();
-    return indexSize + mapSize;
+    long logSize = log.flush();
+    compactInBackgroundIfNeeded();
+    return indexSize + logSize;
+  }
+
+  private void compactInBackgroundIfNeeded() {
+    if (!log.needsCompaction() || !compacting.compareAndSet(false, true)) {
+      return;
+    }
+    COMPACTOR.execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          synchronized (compactionLock) {
+            if (closed) {
+              return;
+            }
+            // Entries written by the compaction may refer to index entries that were not saved
+            // yet.
+            indexer.flush();
+            log.compact();
+          }
+        } catch (IOException e) {
+          LOG.log(Level.WARNING, "Failed to compact the action cache", e);
+        } finally {
+          compacting.set(false);
+        }
+      }
+    });
+  }
+
+  /**
+   * Cancels a pending background compaction and waits for a running one to finish. After this,
+   * the cache no longer writes to disk, so its files can be deleted.
+   */
+  public void close() {
+    synchronized (compactionLock) {
+      closed = true;
+    }
+    log.close();
+  }
+
+  /** Compacts the log right away. Only meant for tests. */
+  @VisibleForTesting
+  void compact() throws IOException {
+    indexer.flush();
+    log.compact();
   }
 
   @Override
-  public synchronized String toString() {
+  public String toString() {
     StringBuilder builder = new StringBuilder();
-    // map.size() - 1 to avoid counting the validation key.
-    builder.append("Action cache (" + (map.size() - 1) + " records):\n");
-    int size = map.size() > 1000 ? 10 : map.size();
+    List<Integer> keys = log.keys();
+    // keys.size() - 1 to avoid counting the validation key.
+    builder.append("Action cache (" + (keys.size() - 1) + " records):\n");
+    int size = keys.size() > 1000 ? 10 : keys.size();
     int ct = 0;
-    for (Map.Entry<Integer, byte[]> entry: map.entrySet()) {
-      if (entry.getKey() == VALIDATION_KEY) { continue; }
+    for (int key : keys) {
+      byte[] data = log.get(key);
+      if (key == VALIDATION_KEY || data == null) { continue; }
       String content;
       try {
-        content = decode(indexer, entry.getValue()).toString();
+        content = decode(indexer, data).toString();
       } catch (IOException e) {
         content = e + "\n";
       }
-      builder.append("-> ").append(indexer.getStringForIndex(entry.getKey())).append("\n")
-          .append(content).append("  packed_len = ").append(entry.getValue().length).append("\n");
+      builder.append("-> ").append(indexer.getStringForIndex(key)).append("\n")
+          .append(content).append("  packed_len = ").append(data.length).append("\n");
       if (++ct > size) {
         builder.append("...");
         break;
@@ -319,20 +336,22 @@ public class CompactPersistentActionCache implements ActionCache {
    * Dumps action cache content.
    */
   @Override
-  public synchronized void dump(PrintStream out) {
+  public void dump(PrintStream out) {
     out.println("String indexer content:\n");
     out.println(indexer);
-    out.println("Action cache (" + map.size() + " records):\n");
-    for (Map.Entry<Integer, byte[]> entry: map.entrySet()) {
-      if (entry.getKey() == VALIDATION_KEY) { continue; }
+    List<Integer> keys = log.keys();
+    out.println("Action cache (" + keys.size() + " records):\n");
+    for (int key : keys) {
+      byte[] data = log.get(key);
+      if (key == VALIDATION_KEY || data == null) { continue; }
       String content;
       try {
-        content = CompactPersistentActionCache.decode(indexer, entry.getValue()).toString();
+        content = CompactPersistentActionCache.decode(indexer, data).toString();
       } catch (IOException e) {
         content = e + "\n";
       }
-      out.println(entry.getKey() + ", " + indexer.getStringForIndex(entry.getKey()) + ":\n"
-          +  content + "\n      packed_len = " + entry.getValue().length + "\n");
+      out.println(key + ", " + indexer.getStringForIndex(key) + ":\n"
+          +  content + "\n      packed_len = " + data.length + "\n");
     }
   }
 
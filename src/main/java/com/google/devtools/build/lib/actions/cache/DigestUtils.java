@@ -19,11 +19,12 @@ import com.google.devtools.build.lib.profiler.ProfilerTask;
 import com.google.devtools.build.lib.util.BlazeClock;
 import com.google.devtools.build.lib.util.LoggingUtil;
 import com.google.devtools.build.lib.util.Preconditions;
+import com.google.devtools.build.lib.vfs.FileStatus;
 import com.google.devtools.build.lib.vfs.Path;
 
 import java.io.IOException;
 import java.util.Objects;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.Semaphore;
 import java.util.logging.Level;
 
 import javax.annotation.Nullable;
@@ -32,24 +33,34 @@ import javax.annotation.Nullable;
  * Utility class for getting md5 digests of files.
  */
 public class DigestUtils {
-  // Object to synchronize on when serializing large file reads.
-  private static final Object MD5_LOCK = new Object();
-  private static final AtomicBoolean MULTI_THREADED_DIGEST = new AtomicBoolean(false);
+  // Files larger than this are digested with bounded parallelism and their digests are cached.
+  private static final long LARGE_FILE_SIZE = 4096;
+
+  // Bounds the number of large files read concurrently, or null if unbounded.
+  @Nullable private static volatile Semaphore largeFileDigestPermits = new Semaphore(1, true);
+
+  @Nullable private static volatile PersistentDigestCache digestCache;
 
   /** Private constructor to prevent instantiation of utility class. */
   private DigestUtils() {}
 
   /**
-   * Obtain file's MD5 metadata using synchronized method, ensuring that system
-   * is not overloaded in case when multiple threads are requesting MD5
-   * calculations and underlying file system cannot provide it via extended
-   * attribute.
+   * Obtain file's MD5 metadata while holding one of the {@link #largeFileDigestPermits}, ensuring
+   * that system is not overloaded in case when multiple threads are requesting MD5 calculations
+   * and underlying file system cannot provide it via extended attribute.
    */
-  private static byte[] getDigestInExclusiveMode(Path path) throws IOException {
+  private static byte[] getDigestWithBoundedParallelism(Path path) throws IOException {
+    Semaphore permits = largeFileDigestPermits;
+    if (permits == null) {
+      return getDigestInternal(path);
+    }
     long startTime = BlazeClock.nanoTime();
-    synchronized (MD5_LOCK) {
+    permits.acquireUninterruptibly();
+    try {
       Profiler.instance().logSimpleTask(startTime, ProfilerTask.WAIT, path.getPathString());
       return getDigestInternal(path);
+    } finally {
+      permits.release();
     }
   }
 
@@ -84,7 +95,24 @@ public class DigestUtils {
    * Enable or disable multi-threaded digesting even for large files.
    */
   public static void setMultiThreadedDigest(boolean multiThreadedDigest) {
-    DigestUtils.MULTI_THREADED_DIGEST.set(multiThreadedDigest);
+    setDigestParallelism(multiThreadedDigest ? 0 : 1);
+  }
+
+  /**
+   * Sets the maximum number of large files that are read concurrently in order to compute their
+   * digests. Zero means unbounded.
+   */
+  public static void setDigestParallelism(int parallelism) {
+    Preconditions.checkArgument(parallelism >= 0, parallelism);
+    largeFileDigestPermits = parallelism == 0 ? null : new Semaphore(parallelism, true);
+  }
+
+  /**
+   * Sets the cache used to avoid recomputing the digests of large unchanged files, e.g. after a
+   * server restart. Null disables caching.
+   */
+  public static void configureCache(@Nullable PersistentDigestCache cache) {
+    digestCache = cache;
   }
 
   /**
@@ -93,8 +121,8 @@ public class DigestUtils {
    *
    * @param path Path of the file.
    * @param fileSize size of the file. Used to determine if digest calculation should be done
-   * serially or in parallel. Files larger than a certain threshold will be read serially, in order
-   * to avoid excessive disk seeks.
+   * serially or in parallel. Files larger than a certain threshold will be read with bounded
+   * parallelism, in order to avoid excessive disk seeks.
    */
   public static byte[] getDigestOrFail(Path path, long fileSize) throws IOException {
     byte[] md5bin = getFastDigest(path);
@@ -110,14 +138,29 @@ public class DigestUtils {
 
     if (md5bin != null) {
       return md5bin;
-    } else if (fileSize > 4096 && !MULTI_THREADED_DIGEST.get()) {
+    } else if (fileSize > LARGE_FILE_SIZE) {
+      PersistentDigestCache cache = digestCache;
+      FileStatus status = null;
+      if (cache != null) {
+        // The status must be obtained before reading the file, so that a concurrent modification
+        // is never recorded with the old status.
+        status = path.stat();
+        md5bin = cache.get(path, status);
+        if (md5bin != null) {
+          return md5bin;
+        }
+      }
       // We'll have to read file content in order to calculate the digest. In that case
-      // it would be beneficial to serialize those calculations since there is a high
-      // probability that MD5 will be requested for multiple output files simultaneously.
+      // it would be beneficial to limit the number of concurrent calculations since there is a
+      // high probability that MD5 will be requested for multiple output files simultaneously.
       // Exception is made for small (<=4K) files since they will not likely to introduce
       // significant delays (at worst they will result in two extra disk seeks by
       // interrupting other reads).
-      return getDigestInExclusiveMode(path);
+      md5bin = getDigestWithBoundedParallelism(path);
+      if (cache != null) {
+        cache.put(path, status, md5bin);
+      }
+      return md5bin;
     } else {
       return getDigestInternal(path);
     }
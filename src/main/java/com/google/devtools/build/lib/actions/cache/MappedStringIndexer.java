@@ -0,0 +1,496 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.lib.actions.cache;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ConditionallyThreadSafe;
+import com.google.devtools.build.lib.util.Clock;
+import com.google.devtools.build.lib.util.OS;
+import com.google.devtools.build.lib.util.StringCanonicalizer;
+import com.google.devtools.build.lib.vfs.FileSystem;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.JavaIoFileSystem;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.UnixFileSystem;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.annotation.concurrent.GuardedBy;
+
+/**
+ * A persistent string indexer that leaves the strings in a memory-mapped file. Loading it does
+ * not read the strings into the heap, and only the strings that are looked up are materialized.
+ *
+ * <p>The index file holds the strings known when it was written, followed by an open addressing
+ * hash table from strings to indices. Strings added later are kept on the heap and appended to a
+ * journal file. The index file is only rewritten once the journal holds more than
+ * {@link #MAX_JOURNAL_PERCENT} percent as many strings as the index file.
+ *
+ * <p>Windows does not allow renaming over or deleting a file that is mapped, so there the index
+ * file is read into the heap instead.
+ *
+ * <p>Index file layout, all numbers big-endian:
+ * <pre>
+ *   long magic, int version, int count, int tableSize
+ *   int[count + 1] start of each string relative to the string data
+ *   int[tableSize] hash table; each slot holds index + 1, or 0 if empty
+ *   byte[] UTF-8 string data
+ * </pre>
+ */
+@ConditionallyThreadSafe // condition: each instance must instantiated with
+                         // different dataFile.
+final class MappedStringIndexer implements PersistentIndexer {
+  private static final long MAGIC = 0x20160902L;
+  private static final int VERSION = 1;
+  private static final int INDEX_HEADER_SIZE = 20;
+  private static final int JOURNAL_HEADER_SIZE = 16;
+  private static final long SAVE_INTERVAL_NS = 3L * 1000 * 1000 * 1000;
+  private static final int MAX_JOURNAL_PERCENT = 10;
+  private static final int NOT_FOUND = -1;
+
+  private final Path indexFile;
+  private final Path journalFile;
+  private final Clock clock;
+
+  /**
+   * The index file as loaded. Not modified when the file is rewritten, only replaced by an empty
+   * one when the indexer is cleared.
+   */
+  private volatile LoadedIndex base;
+
+  /** Strings added since the index file was loaded. */
+  private final ConcurrentMap<String, Integer> added = new ConcurrentHashMap<>();
+  private final ConcurrentMap<Integer, String> addedByIndex = new ConcurrentHashMap<>();
+  private volatile int size;
+
+  @GuardedBy("this")
+  private long nextUpdate;
+
+  /** The number of strings in the index file on disk. */
+  @GuardedBy("this")
+  private int fileCount;
+
+  /** The number of strings in the index file or the journal. */
+  @GuardedBy("this")
+  private int journaled;
+
+  /** True if the journal may end in a partial entry and must be written from scratch. */
+  @GuardedBy("this")
+  private boolean rewriteJournal;
+
+  /** The message of a failed journal write, reported by the next {@link #save}. */
+  @GuardedBy("this")
+  private String deferredIOFailure;
+
+  /**
+   * Instantiates and loads instance of the mapped string indexer.
+   */
+  static MappedStringIndexer newMappedStringIndexer(Path indexFile, Clock clock)
+      throws IOException {
+    return new MappedStringIndexer(
+        indexFile, FileSystemUtils.replaceExtension(indexFile, ".journal"), clock);
+  }
+
+  private MappedStringIndexer(Path indexFile, Path journalFile, Clock clock) throws IOException {
+    this.indexFile = indexFile;
+    this.journalFile = journalFile;
+    this.clock = clock;
+    this.nextUpdate = clock.nanoTime();
+    base = indexFile.exists() ? LoadedIndex.load(indexFile, map(indexFile)) : LoadedIndex.EMPTY;
+    size = base.count;
+    fileCount = base.count;
+    loadJournal();
+    journaled = size;
+  }
+
+  /** The contents of an index file. */
+  private static final class LoadedIndex {
+    private static final LoadedIndex EMPTY =
+        new LoadedIndex(ByteBuffer.allocate(0), 0, 0, INDEX_HEADER_SIZE, INDEX_HEADER_SIZE);
+
+    private final ByteBuffer buffer;
+    private final int count;
+    private final int tableSize;
+    private final int tableStart;
+    private final int dataStart;
+
+    private LoadedIndex(ByteBuffer buffer, int count, int tableSize, int tableStart,
+        int dataStart) {
+      this.buffer = buffer;
+      this.count = count;
+      this.tableSize = tableSize;
+      this.tableStart = tableStart;
+      this.dataStart = dataStart;
+    }
+
+    private static LoadedIndex load(Path indexFile, ByteBuffer buffer) throws IOException {
+      if (buffer.limit() < INDEX_HEADER_SIZE
+          || buffer.getLong(0) != MAGIC
+          || buffer.getInt(8) != VERSION) {
+        throw new IOException("Unexpected format of " + indexFile);
+      }
+      int count = buffer.getInt(12);
+      int tableSize = buffer.getInt(16);
+      long tableStart = INDEX_HEADER_SIZE + 4L * (count + 1);
+      long dataStart = tableStart + 4L * tableSize;
+      if (count < 0
+          || tableSize <= count
+          || Integer.bitCount(tableSize) != 1
+          || dataStart > buffer.limit()
+          || dataStart + buffer.getInt((int) tableStart - 4) != buffer.limit()) {
+        throw new IOException(indexFile + " is corrupted");
+      }
+      return new LoadedIndex(buffer, count, tableSize, (int) tableStart, (int) dataStart);
+    }
+
+    private int find(byte[] bytes) {
+      int mask = tableSize - 1;
+      int slot = hash(ByteBuffer.wrap(bytes), 0, bytes.length) & mask;
+      for (int probes = 0; probes < tableSize; probes++, slot = (slot + 1) & mask) {
+        int entry = buffer.getInt(tableStart + 4 * slot);
+        if (entry == 0) {
+          return NOT_FOUND;
+        }
+        if (stringEquals(entry - 1, bytes)) {
+          return entry - 1;
+        }
+      }
+      return NOT_FOUND;
+    }
+
+    private boolean stringEquals(int index, byte[] bytes) {
+      int start = start(index);
+      if (start(index + 1) - start != bytes.length) {
+        return false;
+      }
+      int pos = dataStart + start;
+      for (int i = 0; i < bytes.length; i++) {
+        if (buffer.get(pos + i) != bytes[i]) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    private int start(int index) {
+      return buffer.getInt(INDEX_HEADER_SIZE + 4 * index);
+    }
+
+    private byte[] getBytes(int index) {
+      int start = start(index);
+      byte[] bytes = new byte[start(index + 1) - start];
+      ByteBuffer source = buffer.duplicate();
+      source.position(dataStart + start);
+      source.get(bytes);
+      return bytes;
+    }
+  }
+
+  private static ByteBuffer map(Path file) throws IOException {
+    FileSystem fs = file.getFileSystem();
+    if (OS.getCurrent() != OS.WINDOWS
+        && (fs instanceof UnixFileSystem || fs instanceof JavaIoFileSystem)) {
+      try (FileChannel channel =
+          FileChannel.open(file.getPathFile().toPath(), StandardOpenOption.READ)) {
+        if (channel.size() > Integer.MAX_VALUE) {
+          throw new IOException(file + " is too large: " + channel.size() + " bytes");
+        }
+        return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      }
+    }
+    // Other file systems, e.g. in tests, cannot be mapped. See the class comment for Windows.
+    return ByteBuffer.wrap(FileSystemUtils.readContent(file)).asReadOnlyBuffer();
+  }
+
+  private synchronized void loadJournal() throws IOException {
+    if (!journalFile.exists()) {
+      return;
+    }
+    ByteBuffer in = ByteBuffer.wrap(FileSystemUtils.readContent(journalFile));
+    if (in.remaining() < JOURNAL_HEADER_SIZE
+        || in.getLong() != MAGIC
+        || in.getInt() != VERSION) {
+      throw new IOException("Unexpected format of " + journalFile);
+    }
+    // If the server died between rewriting the index file and deleting the journal, the journal
+    // starts at an older index and its first strings are already in the index file.
+    int baseCount = base.count;
+    int journalStart = in.getInt();
+    if (journalStart < 0 || journalStart > baseCount) {
+      throw new IOException("Unexpected format of " + journalFile);
+    }
+    int index = journalStart;
+    while (in.remaining() >= 4) {
+      int length = in.getInt();
+      if (length < 0 || length > in.remaining()) {
+        // The journal ends in a partially written entry.
+        break;
+      }
+      byte[] bytes = new byte[length];
+      in.get(bytes);
+      if (index < baseCount) {
+        if (!Arrays.equals(bytes, getBytes(index))) {
+          throw new IOException(journalFile + " does not match " + indexFile);
+        }
+      } else {
+        String s = StringCanonicalizer.intern(new String(bytes, UTF_8));
+        if (getIndex(s) != NOT_FOUND) {
+          throw new IOException("Corrupted filename index has duplicate entry: " + s);
+        }
+        add(s);
+      }
+      index++;
+    }
+    rewriteJournal = in.hasRemaining() || journalStart != baseCount;
+  }
+
+  /**
+   * Forgets all strings and deletes the index file and the journal. Lookups must not run
+   * concurrently, since the indices they return are reused.
+   */
+  @Override
+  public synchronized void clear() {
+    // Strings added from now on start at index 0 again, so they must not be mixed with an old
+    // index file or journal. The files are deleted rather than truncated, since truncating a
+    // mapped file makes reading the mapping fail.
+    base = LoadedIndex.EMPTY;
+    added.clear();
+    addedByIndex.clear();
+    size = 0;
+    fileCount = 0;
+    journaled = 0;
+    rewriteJournal = false;
+    try {
+      indexFile.delete();
+      journalFile.delete();
+    } catch (IOException e) {
+      deferredIOFailure = e.getMessage() + " during clear";
+    }
+  }
+
+  @Override
+  public int size() {
+    return size;
+  }
+
+  @Override
+  public int getOrCreateIndex(String s) {
+    int index = getIndex(s);
+    if (index != NOT_FOUND) {
+      return index;
+    }
+    synchronized (this) {
+      // First, make sure another thread hasn't just added the entry:
+      index = getIndex(s);
+      if (index != NOT_FOUND) {
+        return index;
+      }
+      index = add(StringCanonicalizer.intern(s));
+      long time = clock.nanoTime();
+      if (time > nextUpdate) {
+        nextUpdate = time + SAVE_INTERVAL_NS;
+        flush();
+      }
+      return index;
+    }
+  }
+
+  @GuardedBy("this")
+  private int add(String s) {
+    int index = size;
+    // Make the string available by index before publishing the index.
+    addedByIndex.put(index, s);
+    added.put(s, index);
+    size = index + 1;
+    return index;
+  }
+
+  @Override
+  public int getIndex(String s) {
+    Integer index = added.get(s);
+    if (index != null) {
+      return index;
+    }
+    LoadedIndex base = this.base;
+    return base.count > 0 ? base.find(s.getBytes(UTF_8)) : NOT_FOUND;
+  }
+
+  private static int hash(ByteBuffer buffer, int pos, int length) {
+    int h = 1;
+    for (int i = 0; i < length; i++) {
+      h = 31 * h + buffer.get(pos + i);
+    }
+    return h ^ (h >>> 16);
+  }
+
+  @Override
+  public synchronized boolean addString(String s) {
+    int originalSize = size();
+    getOrCreateIndex(s);
+    return (size() > originalSize);
+  }
+
+  @Override
+  public String getStringForIndex(int i) {
+    if (i < 0) {
+      return null;
+    }
+    LoadedIndex base = this.base;
+    return i < base.count ? new String(base.getBytes(i), UTF_8) : addedByIndex.get(i);
+  }
+
+  private byte[] getBytes(int index) {
+    LoadedIndex base = this.base;
+    return index < base.count
+        ? base.getBytes(index)
+        : addedByIndex.get(index).getBytes(UTF_8);
+  }
+
+  /**
+   * Flushes the journal.
+   */
+  @Override
+  public synchronized void flush() {
+    try {
+      writeJournal();
+    } catch (IOException e) {
+      deferredIOFailure = e.getMessage() + " during journal append";
+    }
+  }
+
+  @GuardedBy("this")
+  private void writeJournal() throws IOException {
+    if (journaled == size && !rewriteJournal) {
+      return;
+    }
+    boolean append = !rewriteJournal && journalFile.exists();
+    FileSystemUtils.createDirectoryAndParents(journalFile.getParentDirectory());
+    try (DataOutputStream out = new DataOutputStream(
+        new BufferedOutputStream(journalFile.getOutputStream(append)))) {
+      int from = journaled;
+      if (!append) {
+        out.writeLong(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(fileCount);
+        from = fileCount;
+      }
+      int to = size;
+      for (int i = from; i < to; i++) {
+        byte[] bytes = getBytes(i);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+      }
+      journaled = to;
+      rewriteJournal = false;
+    } catch (IOException e) {
+      rewriteJournal = true;
+      throw e;
+    }
+  }
+
+  /**
+   * Saves index data. Usually only the journal is written.
+   */
+  @Override
+  public synchronized long save() throws IOException {
+    try {
+      if ((long) (size - fileCount) * 100 > (long) fileCount * MAX_JOURNAL_PERCENT) {
+        writeIndexFile();
+      } else {
+        writeJournal();
+      }
+    } finally {
+      if (deferredIOFailure != null) {
+        String failure = deferredIOFailure;
+        deferredIOFailure = null;
+        throw new IOException(failure);
+      }
+    }
+    return (indexFile.exists() ? indexFile.getFileSize() : 0)
+        + (journalFile.exists() ? journalFile.getFileSize() : 0);
+  }
+
+  @GuardedBy("this")
+  private void writeIndexFile() throws IOException {
+    int count = size;
+    int newTableSize = Integer.highestOneBit(Math.max(2 * count, 8) - 1) << 1;
+    int[] starts = new int[count + 1];
+    int[] table = new int[newTableSize];
+    int mask = newTableSize - 1;
+    long dataSize = 0;
+    for (int i = 0; i < count; i++) {
+      byte[] bytes = getBytes(i);
+      starts[i] = (int) dataSize;
+      dataSize += bytes.length;
+      int slot = hash(ByteBuffer.wrap(bytes), 0, bytes.length) & mask;
+      while (table[slot] != 0) {
+        slot = (slot + 1) & mask;
+      }
+      table[slot] = i + 1;
+    }
+    if (INDEX_HEADER_SIZE + 4L * (count + 1 + newTableSize) + dataSize > Integer.MAX_VALUE) {
+      throw new IOException("Too much data for " + indexFile + ": " + dataSize + " bytes");
+    }
+    starts[count] = (int) dataSize;
+
+    Path tmpFile = FileSystemUtils.replaceExtension(indexFile, ".tmp");
+    FileSystemUtils.createDirectoryAndParents(indexFile.getParentDirectory());
+    try {
+      try (DataOutputStream out =
+          new DataOutputStream(new BufferedOutputStream(tmpFile.getOutputStream()))) {
+        out.writeLong(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(count);
+        out.writeInt(newTableSize);
+        for (int start : starts) {
+          out.writeInt(start);
+        }
+        for (int entry : table) {
+          out.writeInt(entry);
+        }
+        for (int i = 0; i < count; i++) {
+          out.write(getBytes(i));
+        }
+      }
+      tmpFile.renameTo(indexFile);
+    } finally {
+      tmpFile.delete();
+    }
+    journalFile.delete();
+    fileCount = count;
+    journaled = count;
+    rewriteJournal = false;
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder builder = new StringBuilder();
+    int count = size;
+    builder.append("size = ").append(count).append("\n");
+    for (int i = 0; i < count; i++) {
+      builder.append(getStringForIndex(i)).append(" <==> ").append(i).append("\n");
+    }
+    return builder.toString();
+  }
+}
@@ -0,0 +1,208 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.lib.actions.cache;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+import com.google.devtools.build.lib.util.Clock;
+import com.google.devtools.build.lib.util.PersistentMap;
+import com.google.devtools.build.lib.vfs.FileStatus;
+import com.google.devtools.build.lib.vfs.Path;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
+
+/**
+ * A cache of file digests that survives server restarts. Entries are keyed by path and are only
+ * returned if the inode number, modification time, change time and size of the file are unchanged
+ * since the digest was computed.
+ *
+ * <p>Like git's index, a digest is not recorded if the file changed so recently that a further
+ * change could go unnoticed because of the granularity of the file system timestamps.
+ */
+@ThreadSafe
+public final class PersistentDigestCache {
+  private static final int VERSION = 1;
+  private static final int SAVE_INTERVAL_SECONDS = 3;
+
+  /** Files whose change time is this close to the current time are not recorded. */
+  private static final long RACY_INTERVAL_MILLIS = 2000;
+
+  /**
+   * Bounds the size of the cache, which otherwise keeps entries for deleted files forever. The
+   * least recently used entries are evicted first.
+   */
+  private static final int MAX_ENTRIES = 4 * 1024 * 1024;
+
+  /** A digest along with the file status it was computed for. */
+  private static final class CachedDigest {
+    private final long nodeId;
+    private final long lastModifiedTime;
+    private final long lastChangeTime;
+    private final long size;
+    private final byte[] digest;
+
+    CachedDigest(long nodeId, long lastModifiedTime, long lastChangeTime, long size,
+        byte[] digest) {
+      this.nodeId = nodeId;
+      this.lastModifiedTime = lastModifiedTime;
+      this.lastChangeTime = lastChangeTime;
+      this.size = size;
+      this.digest = digest;
+    }
+
+    boolean matches(FileStatus status) throws IOException {
+      return nodeId == status.getNodeId()
+          && lastModifiedTime == status.getLastModifiedTime()
+          && lastChangeTime == status.getLastChangeTime()
+          && size == status.getSize();
+    }
+  }
+
+  private final class DigestMap extends PersistentMap<String, CachedDigest> {
+    private long nextUpdateSecs;
+
+    DigestMap(Path mapFile, Path journalFile, final int maxEntries) throws IOException {
+      super(
+          VERSION,
+          new LinkedHashMap<String, CachedDigest>(16, 0.75f, /*accessOrder=*/ true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedDigest> eldest) {
+              return size() > maxEntries;
+            }
+          },
+          mapFile,
+          journalFile);
+      nextUpdateSecs = TimeUnit.NANOSECONDS.toSeconds(clock.nanoTime()) + SAVE_INTERVAL_SECONDS;
+      load();
+    }
+
+    @Override
+    protected boolean updateJournal() {
+      long timeSecs = TimeUnit.NANOSECONDS.toSeconds(clock.nanoTime());
+      if (timeSecs > nextUpdateSecs) {
+        nextUpdateSecs = timeSecs + SAVE_INTERVAL_SECONDS;
+        return true;
+      }
+      return false;
+    }
+
+    @Override
+    protected boolean keepJournal() {
+      forceFlush();
+      try {
+        return journalSize() * 100 < cacheSize();
+      } catch (IOException e) {
+        return false;
+      }
+    }
+
+    @Override
+    protected String readKey(DataInputStream in) throws IOException {
+      return in.readUTF();
+    }
+
+    @Override
+    protected CachedDigest readValue(DataInputStream in) throws IOException {
+      long nodeId = in.readLong();
+      long lastModifiedTime = in.readLong();
+      long lastChangeTime = in.readLong();
+      long size = in.readLong();
+      int length = in.readUnsignedByte();
+      byte[] digest = new byte[length];
+      in.readFully(digest);
+      return new CachedDigest(nodeId, lastModifiedTime, lastChangeTime, size, digest);
+    }
+
+    @Override
+    protected void writeKey(String key, DataOutputStream out) throws IOException {
+      out.writeUTF(key);
+    }
+
+    @Override
+    protected void writeValue(CachedDigest value, DataOutputStream out) throws IOException {
+      out.writeLong(value.nodeId);
+      out.writeLong(value.lastModifiedTime);
+      out.writeLong(value.lastChangeTime);
+      out.writeLong(value.size);
+      out.writeByte(value.digest.length);
+      out.write(value.digest);
+    }
+  }
+
+  private final Clock clock;
+  private final DigestMap map;
+
+  public PersistentDigestCache(Path cacheRoot, Clock clock) throws IOException {
+    this(cacheRoot, clock, MAX_ENTRIES);
+  }
+
+  @VisibleForTesting
+  PersistentDigestCache(Path cacheRoot, Clock clock, int maxEntries) throws IOException {
+    this.clock = clock;
+    this.map = new DigestMap(cacheFile(cacheRoot), journalFile(cacheRoot), maxEntries);
+  }
+
+  public static Path cacheFile(Path cacheRoot) {
+    return cacheRoot.getChild("digest_cache_v" + VERSION + ".blaze");
+  }
+
+  public static Path journalFile(Path cacheRoot) {
+    return cacheRoot.getChild("digest_journal_v" + VERSION + ".blaze");
+  }
+
+  /**
+   * Returns the digest previously recorded for {@code path}, or null if there is none or the file
+   * changed since.
+   */
+  @Nullable
+  public byte[] get(Path path, FileStatus status) throws IOException {
+    CachedDigest cached;
+    synchronized (this) {
+      cached = map.get(path.getPathString());
+    }
+    return cached != null && cached.matches(status) ? cached.digest : null;
+  }
+
+  /**
+   * Records the digest of {@code path}. {@code status} must have been obtained before the digest
+   * was computed.
+   */
+  public void put(Path path, FileStatus status, byte[] digest) throws IOException {
+    if (clock.currentTimeMillis() - status.getLastChangeTime() < RACY_INTERVAL_MILLIS) {
+      return;
+    }
+    CachedDigest cached = new CachedDigest(status.getNodeId(), status.getLastModifiedTime(),
+        status.getLastChangeTime(), status.getSize(), digest);
+    synchronized (this) {
+      map.put(path.getPathString(), cached);
+    }
+  }
+
+  public synchronized int size() {
+    return map.size();
+  }
+
+  /** Writes the cache to disk and returns the size of the files written. */
+  public synchronized long save() throws IOException {
+    return map.save();
+  }
+}
@@ -0,0 +1,37 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.lib.actions.cache;
+
+import com.google.devtools.build.lib.util.StringIndexer;
+
+import java.io.IOException;
+
+/**
+ * A {@link StringIndexer} whose mappings are kept on disk.
+ */
+interface PersistentIndexer extends StringIndexer {
+  /**
+   * Saves index data to disk.
+   *
+   * @return the size of the files written
+   */
+  long save() throws IOException;
+
+  /**
+   * Writes recently added mappings to disk, so that action cache data referring to them can be
+   * saved.
+   */
+  void flush();
+}
@@ -41,7 +41,8 @@ import java.util.concurrent.ConcurrentMap;
  */
 @ConditionallyThreadSafe // condition: each instance must instantiated with
                          // different dataFile.
-final class PersistentStringIndexer extends CanonicalStringIndexer {
+final class PersistentStringIndexer extends CanonicalStringIndexer
+    implements PersistentIndexer {
 
   /**
    * Persistent metadata map. Used as a backing map to provide a persistent
@@ -143,14 +144,16 @@ final class PersistentStringIndexer extends CanonicalStringIndexer {
   /**
    * Saves index data to the file.
    */
-  synchronized long save() throws IOException {
+  @Override
+  public synchronized long save() throws IOException {
     return persistentIndexMap.save();
   }
 
   /**
    * Flushes the journal.
    */
-  synchronized void flush() {
+  @Override
+  public synchronized void flush() {
     persistentIndexMap.flush();
   }
 
@@ -49,7 +49,8 @@ public final class BazelMain {
           com.google.devtools.build.lib.remote.RemoteModule.class,
           com.google.devtools.build.lib.standalone.StandaloneModule.class,
           com.google.devtools.build.lib.sandbox.SandboxModule.class,
-          com.google.devtools.build.lib.runtime.BuildSummaryStatsModule.class);
+          com.google.devtools.build.lib.runtime.BuildSummaryStatsModule.class,
+          com.google.devtools.build.lib.runtime.SkyframeSnapshotModule.class);
 
   public static void main(String[] args) {
     BlazeVersionInfo.setBuildInfo(tryGetBuildInfo());
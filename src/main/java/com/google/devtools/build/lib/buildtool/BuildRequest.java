@@ -253,6 +253,14 @@ public class BuildRequest implements OptionsClassProvider {
                 + "is enabled.")
     public boolean finalizeActions;
 
+    @Option(name = "experimental_prioritize_critical_path",
+            defaultValue = "false",
+            category = "undocumented",
+            help = "If set, the build starts with the actions that were on the longest chains of "
+                + "actions in previous builds of this server, so that long chains don't wait "
+                + "behind short ones when there are more actions to run than jobs.")
+    public boolean prioritizeCriticalPath;
+
     @Option(
       name = "aspects",
       converter = Converters.CommaSeparatedOptionListConverter.class,
@@ -45,12 +45,14 @@ import com.google.devtools.build.lib.actions.Executor;
 import com.google.devtools.build.lib.actions.Executor.ActionContext;
 import com.google.devtools.build.lib.actions.ExecutorInitException;
 import com.google.devtools.build.lib.actions.LocalHostCapacity;
+import com.google.devtools.build.lib.actions.LocalHostResourceSampler;
 import com.google.devtools.build.lib.actions.ResourceManager;
 import com.google.devtools.build.lib.actions.ResourceSet;
 import com.google.devtools.build.lib.actions.SimpleActionContextProvider;
 import com.google.devtools.build.lib.actions.SpawnActionContext;
 import com.google.devtools.build.lib.actions.TestExecException;
 import com.google.devtools.build.lib.actions.cache.ActionCache;
+import com.google.devtools.build.lib.actions.cache.PersistentDigestCache;
 import com.google.devtools.build.lib.analysis.BuildView.AnalysisResult;
 import com.google.devtools.build.lib.analysis.ConfiguredTarget;
 import com.google.devtools.build.lib.analysis.SymlinkTreeActionContext;
@@ -407,6 +409,7 @@ public class ExecutionTool {
       request.getOutErr().printErrLn("blaze: Entering directory `" + getExecRoot() + "/'");
     }
     boolean buildCompleted = false;
+    LocalHostResourceSampler localResourceSampler = null;
     try {
       for (ActionContextProvider actionContextProvider : actionContextProviders) {
         actionContextProvider.executionPhaseStarting(
@@ -425,7 +428,12 @@ public class ExecutionTool {
         actionGraph = null;
       }
 
-      configureResourceManager(request);
+      localResourceSampler = configureResourceManager(request);
+      skyframeExecutor.setPrioritizeCriticalPath(request.getBuildOptions().prioritizeCriticalPath);
+      if (request.getBuildOptions().prioritizeCriticalPath) {
+        ResourceManager.instance()
+            .setActionPriority(skyframeExecutor.getCriticalPathSchedulingPolicy());
+      }
 
       Profiler.instance().markPhase(ProfilePhase.EXECUTE);
 
@@ -446,6 +454,11 @@ public class ExecutionTool {
       buildCompleted = true;
       throw e;
     } finally {
+      if (localResourceSampler != null) {
+        localResourceSampler.stop();
+      }
+      skyframeExecutor.executionPhaseFinished();
+      ResourceManager.instance().setActionPriority(ResourceManager.ActionPriority.NONE);
       env.recordLastExecutionTime();
       if (request.isRunningInEmacs()) {
         request.getOutErr().printErrLn("blaze: Leaving directory `" + getExecRoot() + "/'");
@@ -686,7 +699,11 @@ public class ExecutionTool {
         options.finalizeActions, fileCache, request.getBuildOptions().progressReportInterval);
   }
 
-  private void configureResourceManager(BuildRequest request) {
+  /**
+   * Sets the resources available to the resource manager. Returns the sampler that adjusts them to
+   * the free resources of the local host during the build, if there is one.
+   */
+  private LocalHostResourceSampler configureResourceManager(BuildRequest request) {
     ResourceManager resourceMgr = ResourceManager.instance();
     ExecutionOptions options = request.getOptions(ExecutionOptions.class);
     ResourceSet resources;
@@ -698,13 +715,20 @@ public class ExecutionTool {
       resourceMgr.setRamUtilizationPercentage(options.ramUtilizationPercentage);
     }
 
-    resourceMgr.setAvailableResources(ResourceSet.create(
+    ResourceSet capacity = ResourceSet.create(
         resources.getMemoryMb(),
         resources.getCpuUsage(),
         resources.getIoUsage(),
         request.getExecutionOptions().usingLocalTestJobs()
             ? request.getExecutionOptions().localTestJobs : Integer.MAX_VALUE
-    ));
+    );
+    resourceMgr.setAvailableResources(capacity);
+
+    if (options.availableResources == null && options.localResourcesSamplingIntervalSeconds > 0) {
+      return LocalHostResourceSampler.start(
+          resourceMgr, capacity, options.localResourcesSamplingIntervalSeconds * 1000L);
+    }
+    return null;
   }
 
   /**
@@ -718,6 +742,10 @@ public class ExecutionTool {
     AutoProfiler p = AutoProfiler.profiledAndLogged("Saving action cache", ProfilerTask.INFO, LOG);
     try {
       actionCacheSizeInBytes = actionCache.save();
+      PersistentDigestCache digestCache = env.getPersistentDigestCache();
+      if (digestCache != null) {
+        actionCacheSizeInBytes += digestCache.save();
+      }
     } catch (IOException e) {
       getReporter().handle(Event.error("I/O error while writing action log: " + e.getMessage()));
     } finally {
@@ -20,6 +20,7 @@ import com.google.common.util.concurrent.AtomicLongMap;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.devtools.build.lib.concurrent.ErrorClassifier.ErrorClassification;
 import com.google.devtools.build.lib.util.Preconditions;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.RejectedExecutionException;
@@ -236,6 +237,49 @@ public class AbstractQueueVisitor implements QuiescingExecutor {
       String poolName,
       Function<ExecutorParams, ? extends ExecutorService> executorFactory,
       ErrorClassifier errorClassifier) {
+    this(
+        concurrent,
+        parallelism,
+        keepAliveTime,
+        units,
+        failFastOnException,
+        poolName,
+        executorFactory,
+        errorClassifier,
+        new BlockingStack<Runnable>());
+  }
+
+  /**
+   * Create the {@link AbstractQueueVisitor}.
+   *
+   * @param concurrent {@code true} if concurrency should be enabled. Only set to {@code false} for
+   *     debugging.
+   * @param parallelism a measure of parallelism for the {@link ExecutorService}, such as {@code
+   *     parallelism} in {@link java.util.concurrent.ForkJoinPool}, or both {@code corePoolSize} and
+   *     {@code maximumPoolSize} in {@link ThreadPoolExecutor}.
+   * @param keepAliveTime the keep-alive time for the {@link ExecutorService}, if applicable.
+   * @param units the time units of keepAliveTime.
+   * @param failFastOnException if {@code true}, don't run new actions after an uncaught exception.
+   * @param poolName sets the name of threads spawned by the {@link ExecutorService}. If {@code
+   *     null}, default thread naming will be used.
+   * @param executorFactory the factory for constructing the executor service if {@code concurrent}
+   *     is {@code true}.
+   * @param errorClassifier an error classifier used to determine whether to log and/or stop jobs.
+   * @param workQueue the queue holding the tasks that wait for a thread, which decides the order
+   *     in which they run. Runnables given to {@link #execute} are wrapped, but the wrappers keep
+   *     the priority of {@link PrioritizedRunnable}s, so a {@link PriorityBlockingStack} can be
+   *     used to run them by priority.
+   */
+  public AbstractQueueVisitor(
+      boolean concurrent,
+      int parallelism,
+      long keepAliveTime,
+      TimeUnit units,
+      boolean failFastOnException,
+      String poolName,
+      Function<ExecutorParams, ? extends ExecutorService> executorFactory,
+      ErrorClassifier errorClassifier,
+      BlockingQueue<Runnable> workQueue) {
     Preconditions.checkNotNull(poolName);
     Preconditions.checkNotNull(executorFactory);
     Preconditions.checkNotNull(errorClassifier);
@@ -245,8 +289,7 @@ public class AbstractQueueVisitor implements QuiescingExecutor {
     this.executorService =
         concurrent
             ? executorFactory.apply(
-                new ExecutorParams(
-                    parallelism, keepAliveTime, units, poolName, new BlockingStack<Runnable>()))
+                new ExecutorParams(parallelism, keepAliveTime, units, poolName, workQueue))
             : null;
     this.errorClassifier = errorClassifier;
   }
@@ -469,8 +512,10 @@ public class AbstractQueueVisitor implements QuiescingExecutor {
    *   {@link #unhandled}, and sets {@link #jobsMustBeStopped} if necessary,
    *   <li>And, lastly, calls {@link #decrementRemainingTasks}.
    * </ul>
+   *
+   * <p>It has the priority of {@code r} if {@code r} is a {@link PrioritizedRunnable}.
    */
-  private final class WrappedRunnable implements Runnable {
+  private final class WrappedRunnable implements PrioritizedRunnable {
     private final Runnable originalRunnable;
     private volatile boolean ran;
 
@@ -478,6 +523,13 @@ public class AbstractQueueVisitor implements QuiescingExecutor {
       this.originalRunnable = originalRunnable;
     }
 
+    @Override
+    public int getPriority() {
+      return originalRunnable instanceof PrioritizedRunnable
+          ? ((PrioritizedRunnable) originalRunnable).getPriority()
+          : 0;
+    }
+
     @Override
     public void run() {
       ran = true;
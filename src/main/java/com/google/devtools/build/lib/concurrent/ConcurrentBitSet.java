@@ -0,0 +1,71 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.concurrent;
+
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+import com.google.devtools.build.lib.util.Preconditions;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed-size set of non-negative ints below a bound given at construction, that can be updated
+ * by many threads at once without locking. It takes one bit per possible member, which makes it
+ * much smaller and faster than a concurrent hash set when the members are dense ids.
+ */
+@ThreadSafe
+public final class ConcurrentBitSet {
+  private final AtomicLongArray words;
+  private final int size;
+
+  /** Creates an empty set that can hold the ints in {@code [0, size)}. */
+  public ConcurrentBitSet(int size) {
+    Preconditions.checkArgument(size >= 0, size);
+    this.words = new AtomicLongArray((size + 63) >>> 6);
+    this.size = size;
+  }
+
+  /**
+   * Adds {@code i} to the set. Returns true if it was not in the set before, so that exactly one of
+   * several threads adding the same int sees true.
+   */
+  public boolean add(int i) {
+    checkIndex(i);
+    int index = i >>> 6;
+    long mask = 1L << i;
+    long word;
+    do {
+      word = words.get(index);
+      if ((word & mask) != 0) {
+        return false;
+      }
+    } while (!words.compareAndSet(index, word, word | mask));
+    return true;
+  }
+
+  /** Returns whether {@code i} is in the set. */
+  public boolean contains(int i) {
+    checkIndex(i);
+    return (words.get(i >>> 6) & (1L << i)) != 0;
+  }
+
+  /** Returns the number of ints the set can hold. */
+  public int size() {
+    return size;
+  }
+
+  private void checkIndex(int i) {
+    if (i < 0 || i >= size) {
+      throw new IndexOutOfBoundsException(i + " is not in [0, " + size + ")");
+    }
+  }
+}
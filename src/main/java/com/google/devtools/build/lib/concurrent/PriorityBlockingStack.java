@@ -0,0 +1,150 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.concurrent;
+
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An unbounded {@link BlockingQueue} of runnables that returns the one with the highest
+ * {@link PrioritizedRunnable#getPriority} first, and among runnables of equal priority the one
+ * added last, like {@link BlockingStack}. Runnables that are not {@link PrioritizedRunnable}s have
+ * priority 0.
+ */
+public final class PriorityBlockingStack extends AbstractQueue<Runnable>
+    implements BlockingQueue<Runnable> {
+
+  private static final Comparator<Entry> ORDER =
+      new Comparator<Entry>() {
+        @Override
+        public int compare(Entry e1, Entry e2) {
+          int result = Integer.compare(e2.priority, e1.priority);
+          return result != 0 ? result : Long.compare(e2.sequenceNumber, e1.sequenceNumber);
+        }
+      };
+
+  private final PriorityBlockingQueue<Entry> queue = new PriorityBlockingQueue<>(64, ORDER);
+  private final AtomicLong nextSequenceNumber = new AtomicLong();
+
+  private static final class Entry {
+    private final Runnable runnable;
+    private final int priority;
+    private final long sequenceNumber;
+
+    private Entry(Runnable runnable, long sequenceNumber) {
+      this.runnable = runnable;
+      this.priority =
+          runnable instanceof PrioritizedRunnable
+              ? ((PrioritizedRunnable) runnable).getPriority()
+              : 0;
+      this.sequenceNumber = sequenceNumber;
+    }
+  }
+
+  private Entry newEntry(Runnable runnable) {
+    return new Entry(runnable, nextSequenceNumber.getAndIncrement());
+  }
+
+  private static Runnable unwrap(Entry entry) {
+    return entry == null ? null : entry.runnable;
+  }
+
+  @Override
+  public Iterator<Runnable> iterator() {
+    final Iterator<Entry> entries = queue.iterator();
+    return new Iterator<Runnable>() {
+      @Override
+      public boolean hasNext() {
+        return entries.hasNext();
+      }
+
+      @Override
+      public Runnable next() {
+        return entries.next().runnable;
+      }
+
+      @Override
+      public void remove() {
+        entries.remove();
+      }
+    };
+  }
+
+  @Override
+  public int size() {
+    return queue.size();
+  }
+
+  @Override
+  public void put(Runnable runnable) {
+    queue.put(newEntry(runnable));
+  }
+
+  @Override
+  public boolean offer(Runnable runnable, long timeout, TimeUnit unit) {
+    return queue.offer(newEntry(runnable), timeout, unit);
+  }
+
+  @Override
+  public boolean offer(Runnable runnable) {
+    return queue.offer(newEntry(runnable));
+  }
+
+  @Override
+  public Runnable take() throws InterruptedException {
+    return queue.take().runnable;
+  }
+
+  @Override
+  public Runnable poll(long timeout, TimeUnit unit) throws InterruptedException {
+    return unwrap(queue.poll(timeout, unit));
+  }
+
+  @Override
+  public Runnable poll() {
+    return unwrap(queue.poll());
+  }
+
+  @Override
+  public Runnable peek() {
+    return unwrap(queue.peek());
+  }
+
+  @Override
+  public int remainingCapacity() {
+    return Integer.MAX_VALUE;
+  }
+
+  @Override
+  public int drainTo(Collection<? super Runnable> c) {
+    return drainTo(c, Integer.MAX_VALUE);
+  }
+
+  @Override
+  public int drainTo(Collection<? super Runnable> c, int maxElements) {
+    Collection<Entry> entries = new ArrayList<>();
+    int drained = queue.drainTo(entries, maxElements);
+    for (Entry entry : entries) {
+      c.add(entry.runnable);
+    }
+    return drained;
+  }
+}
@@ -0,0 +1,215 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.lib.concurrent;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+import com.google.devtools.build.lib.util.Preconditions;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Server-wide thread pools, shared by all commands so that consecutive commands reuse their
+ * threads instead of creating and tearing down pools of their own.
+ *
+ * <p>The pools never shut down. Their threads exit once they have been idle for a while, so an
+ * idle server doesn't hold on to them. A caller that needs to wait for its jobs must not shut down
+ * the pool to do so; it should wait for the futures of its jobs, or use an {@link
+ * AbstractQueueVisitor} that doesn't shut down the pool on completion.
+ *
+ * <p>Each pool counts the jobs it ran and the time its threads were busy, see {@link
+ * #getUtilizationAndReset}.
+ */
+@ThreadSafe
+public final class SharedThreadPools {
+
+  /** The shared pools. */
+  public enum Pool {
+    /** For jobs that mostly wait for the file system, like statting files. */
+    IO("Shared I/O", 200, 5, TimeUnit.MINUTES),
+    /** For jobs that are CPU-bound. */
+    CPU("Shared CPU", Runtime.getRuntime().availableProcessors(), 1, TimeUnit.MINUTES),
+    /** For globs of the legacy package loading code path. */
+    LEGACY_GLOBBING("Legacy globber", 100, 15, TimeUnit.SECONDS);
+
+    private final String name;
+    private final int defaultThreads;
+    private final long keepAliveTime;
+    private final TimeUnit keepAliveUnit;
+
+    Pool(String name, int defaultThreads, long keepAliveTime, TimeUnit keepAliveUnit) {
+      this.name = name;
+      this.defaultThreads = defaultThreads;
+      this.keepAliveTime = keepAliveTime;
+      this.keepAliveUnit = keepAliveUnit;
+    }
+
+    public String getName() {
+      return name;
+    }
+  }
+
+  private static final Map<Pool, InstrumentedThreadPoolExecutor> POOLS = createPools();
+
+  private SharedThreadPools() {}
+
+  private static Map<Pool, InstrumentedThreadPoolExecutor> createPools() {
+    Map<Pool, InstrumentedThreadPoolExecutor> pools = new EnumMap<>(Pool.class);
+    for (Pool pool : Pool.values()) {
+      pools.put(pool, new InstrumentedThreadPoolExecutor(pool));
+    }
+    return pools;
+  }
+
+  /** Returns the given pool. It must not be shut down. */
+  public static ThreadPoolExecutor get(Pool pool) {
+    return POOLS.get(pool);
+  }
+
+  /** Sets the number of threads of the given pool. */
+  public static synchronized void resize(Pool pool, int threads) {
+    Preconditions.checkArgument(threads > 0, threads);
+    ThreadPoolExecutor executor = POOLS.get(pool);
+    // The core size must never exceed the maximum size, so the order depends on the direction.
+    if (threads > executor.getMaximumPoolSize()) {
+      executor.setMaximumPoolSize(threads);
+      executor.setCorePoolSize(threads);
+    } else {
+      executor.setCorePoolSize(threads);
+      executor.setMaximumPoolSize(threads);
+    }
+  }
+
+  /**
+   * Returns how the pools were used since the last call, omitting pools that ran no jobs.
+   */
+  public static ImmutableList<Utilization> getUtilizationAndReset() {
+    ImmutableList.Builder<Utilization> result = ImmutableList.builder();
+    for (Map.Entry<Pool, InstrumentedThreadPoolExecutor> entry : POOLS.entrySet()) {
+      Utilization utilization = entry.getValue().getUtilizationAndReset(entry.getKey());
+      if (utilization.getCompletedJobs() > 0) {
+        result.add(utilization);
+      }
+    }
+    return result.build();
+  }
+
+  /** How a pool was used during some period. */
+  public static final class Utilization {
+    private final Pool pool;
+    private final int threads;
+    private final long completedJobs;
+    private final long busyNanos;
+    private final int maxActiveThreads;
+
+    private Utilization(
+        Pool pool, int threads, long completedJobs, long busyNanos, int maxActiveThreads) {
+      this.pool = pool;
+      this.threads = threads;
+      this.completedJobs = completedJobs;
+      this.busyNanos = busyNanos;
+      this.maxActiveThreads = maxActiveThreads;
+    }
+
+    public Pool getPool() {
+      return pool;
+    }
+
+    /** The number of threads the pool may use. */
+    public int getThreads() {
+      return threads;
+    }
+
+    public long getCompletedJobs() {
+      return completedJobs;
+    }
+
+    /** The total time the threads of the pool spent running jobs. */
+    public long getBusyNanos() {
+      return busyNanos;
+    }
+
+    /** The most threads that ran jobs at the same time. */
+    public int getMaxActiveThreads() {
+      return maxActiveThreads;
+    }
+
+    @Override
+    public String toString() {
+      return String.format(
+          "%s: %d jobs, %d ms busy, at most %d of %d threads active",
+          pool.getName(),
+          completedJobs,
+          TimeUnit.NANOSECONDS.toMillis(busyNanos),
+          maxActiveThreads,
+          threads);
+    }
+  }
+
+  /** A thread pool that keeps track of how much it is used. */
+  private static final class InstrumentedThreadPoolExecutor extends ThreadPoolExecutor {
+    private final ThreadLocal<Long> jobStartNanos = new ThreadLocal<>();
+    private final AtomicLong completedJobs = new AtomicLong();
+    private final AtomicLong busyNanos = new AtomicLong();
+    private final AtomicInteger activeThreads = new AtomicInteger();
+    private final AtomicInteger maxActiveThreads = new AtomicInteger();
+
+    private InstrumentedThreadPoolExecutor(Pool pool) {
+      super(
+          pool.defaultThreads,
+          pool.defaultThreads,
+          pool.keepAliveTime,
+          pool.keepAliveUnit,
+          new LinkedBlockingQueue<Runnable>(),
+          new ThreadFactoryBuilder().setNameFormat(pool.name + " %d").setDaemon(true).build());
+      allowCoreThreadTimeOut(true);
+    }
+
+    @Override
+    protected void beforeExecute(Thread thread, Runnable runnable) {
+      super.beforeExecute(thread, runnable);
+      int active = activeThreads.incrementAndGet();
+      int max = maxActiveThreads.get();
+      while (active > max && !maxActiveThreads.compareAndSet(max, active)) {
+        max = maxActiveThreads.get();
+      }
+      jobStartNanos.set(System.nanoTime());
+    }
+
+    @Override
+    protected void afterExecute(Runnable runnable, Throwable throwable) {
+      busyNanos.addAndGet(System.nanoTime() - jobStartNanos.get());
+      completedJobs.incrementAndGet();
+      activeThreads.decrementAndGet();
+      super.afterExecute(runnable, throwable);
+    }
+
+    private Utilization getUtilizationAndReset(Pool pool) {
+      return new Utilization(
+          pool,
+          getMaximumPoolSize(),
+          completedJobs.getAndSet(0),
+          busyNanos.getAndSet(0),
+          maxActiveThreads.getAndSet(activeThreads.get()));
+    }
+  }
+}
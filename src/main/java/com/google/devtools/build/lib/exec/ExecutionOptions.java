@@ -187,6 +187,16 @@ public class ExecutionOptions extends OptionsBase {
       )
   public ResourceSet availableResources;
 
+  @Option(name = "local_resources_sampling_interval",
+      defaultValue = "0",
+      category = "strategy",
+      help = "If positive, the number of seconds between samples of the free RAM and CPU of the "
+      + "local host during the execution phase. Blaze will then not schedule more local work than "
+      + "what is sampled as free, e.g. when other processes in the same container take memory. "
+      + "Only supported on Linux, and ignored if --local_resources is set."
+      )
+  public int localResourcesSamplingIntervalSeconds;
+
   @Option(name = "local_test_jobs",
       defaultValue = "0",
       category = "testing",
@@ -90,6 +90,8 @@ public enum ProfilerTask {
   SKYLARK_USER_FN("Skylark user function call", -1, 0xCC0033, 0),
   SKYLARK_BUILTIN_FN("Skylark builtin function call", -1, 0x990033, 0),
   SKYLARK_USER_COMPILED_FN("Skylark compiled user function call", -1, 0xCC0033, 0),
+  SKYFRAME_INVALIDATION("skyframe invalidation", -1, 0xCC9933, 0),
+  THREAD_POOL_UTILIZATION("thread pool utilization", -1, 0x669999, 0),
   UNKNOWN("Unknown event", -1, 0x339966, 0);
 
   // Size of the ProfilerTask value space.
@@ -0,0 +1,246 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.query2;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+import com.google.common.collect.ImmutableList;
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+import com.google.devtools.build.lib.packages.Target;
+import com.google.devtools.build.lib.query2.engine.BinaryOperatorExpression;
+import com.google.devtools.build.lib.query2.engine.Callback;
+import com.google.devtools.build.lib.query2.engine.Lexer.TokenKind;
+import com.google.devtools.build.lib.query2.engine.QueryEvalResult;
+import com.google.devtools.build.lib.query2.engine.QueryException;
+import com.google.devtools.build.lib.query2.engine.QueryExpression;
+import com.google.devtools.build.lib.query2.engine.QueryExpressionMapper;
+import com.google.devtools.build.lib.util.Preconditions;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A server-wide cache of the results of queries, so that repeating a query doesn't evaluate it
+ * again as long as no package changed.
+ *
+ * <p>Results are keyed by the canonical form of the query expression and by a context that
+ * describes everything else the result depends on, e.g. the universe and the dependency filters.
+ * All results are dropped when the package generation changes, see {@link
+ * com.google.devtools.build.lib.skyframe.SkyframeExecutor#getPackageGeneration}.
+ *
+ * <p>The size of the cache is bounded by the number of cached targets, not by their memory: each
+ * cached target keeps its whole package alive, even if the package was evicted from Skyframe.
+ *
+ * <p>Only successful results are cached. Events that are reported while evaluating a query are
+ * not replayed when the result is taken from the cache.
+ */
+@ThreadSafe
+public final class QueryResultCache {
+  private static final Weigher<String, ImmutableList<Target>> WEIGHER =
+      new Weigher<String, ImmutableList<Target>>() {
+        @Override
+        public int weigh(String key, ImmutableList<Target> targets) {
+          return targets.size() + 1;
+        }
+      };
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+
+  // The fields below are guarded by this.
+  private long maxTargets = 0;
+  private long generation = -1;
+  private Cache<String, ImmutableList<Target>> results = createCache(0);
+
+  /**
+   * Evaluates {@code expr} in {@code env}, or takes its result from the cache. The result of the
+   * evaluation is cached unless it has more than {@code maxTargets} targets.
+   *
+   * <p>Only use this for queries whose results are streamed: the result doesn't come with the
+   * graph an ordered output needs.
+   *
+   * @param context everything other than the expression the result depends on
+   * @param generation the package generation the query is evaluated at
+   * @param maxTargets the most targets all cached results may have together; 0 disables the cache
+   */
+  public QueryEvalResult evaluateQuery(
+      AbstractBlazeQueryEnvironment<Target> env,
+      QueryExpression expr,
+      String context,
+      long generation,
+      long maxTargets,
+      Callback<Target> callback)
+      throws QueryException, InterruptedException {
+    if (!configure(generation, maxTargets)) {
+      return env.evaluateQuery(expr, callback);
+    }
+    String key = canonicalize(expr) + "\n" + context;
+    ImmutableList<Target> cached;
+    synchronized (this) {
+      cached = results.getIfPresent(key);
+    }
+    if (cached != null) {
+      hits.incrementAndGet();
+      callback.process(cached);
+      return new QueryEvalResult(/*success=*/ true, cached.isEmpty());
+    }
+    misses.incrementAndGet();
+
+    RecordingCallback recordingCallback = new RecordingCallback(callback, maxTargets);
+    QueryEvalResult result = env.evaluateQuery(expr, recordingCallback);
+    ImmutableList<Target> targets = recordingCallback.getRecordedTargets();
+    if (result.getSuccess() && targets != null) {
+      synchronized (this) {
+        // Don't cache a result that may be outdated by now.
+        if (this.generation == generation) {
+          results.put(key, targets);
+        }
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Drops the cached results if the generation or the size of the cache changed. Returns whether
+   * the cache is enabled.
+   */
+  private synchronized boolean configure(long generation, long maxTargets) {
+    Preconditions.checkArgument(maxTargets >= 0, maxTargets);
+    if (maxTargets != this.maxTargets) {
+      this.maxTargets = maxTargets;
+      results = createCache(maxTargets);
+    }
+    dropOutdated(generation);
+    return maxTargets > 0;
+  }
+
+  /**
+   * Drops the cached results if they were computed at a package generation other than {@code
+   * generation}. Called after every command, so that the packages outdated results refer to are
+   * not kept alive until the next query.
+   */
+  public synchronized void dropOutdated(long generation) {
+    if (generation != this.generation) {
+      results.invalidateAll();
+      this.generation = generation;
+    }
+  }
+
+  private static Cache<String, ImmutableList<Target>> createCache(long maxTargets) {
+    return CacheBuilder.newBuilder().maximumWeight(maxTargets).weigher(WEIGHER).build();
+  }
+
+  /** Returns a one-line summary of how the cache was used. */
+  public String getStatistics() {
+    long entries;
+    synchronized (this) {
+      entries = results.size();
+    }
+    return String.format("%d hits, %d misses, %d entries", hits.get(), misses.get(), entries);
+  }
+
+  /**
+   * Returns a form of {@code expr} that is the same for expressions that have the same result,
+   * e.g. regardless of the order of the operands of unions and intersections.
+   */
+  @VisibleForTesting
+  static String canonicalize(QueryExpression expr) {
+    return expr.getMapped(new CanonicalizingMapper()).toString();
+  }
+
+  /**
+   * Spells operators the same way and sorts the operands of operators whose result doesn't depend
+   * on their order.
+   */
+  private static class CanonicalizingMapper extends QueryExpressionMapper {
+    private static final Comparator<QueryExpression> BY_STRING =
+        new Comparator<QueryExpression>() {
+          @Override
+          public int compare(QueryExpression a, QueryExpression b) {
+            return a.toString().compareTo(b.toString());
+          }
+        };
+
+    @Override
+    public QueryExpression map(BinaryOperatorExpression binaryOperatorExpression) {
+      List<QueryExpression> operands = new ArrayList<>();
+      for (QueryExpression operand : binaryOperatorExpression.getOperands()) {
+        operands.add(operand.getMapped(this));
+      }
+      TokenKind operator = binaryOperatorExpression.getOperator();
+      switch (operator) {
+        case PLUS:
+        case UNION:
+          operator = TokenKind.UNION;
+          Collections.sort(operands, BY_STRING);
+          break;
+        case CARET:
+        case INTERSECT:
+          operator = TokenKind.INTERSECT;
+          Collections.sort(operands, BY_STRING);
+          break;
+        case MINUS:
+        case EXCEPT:
+          // The left-most operand is the one the others are subtracted from.
+          operator = TokenKind.EXCEPT;
+          Collections.sort(operands.subList(1, operands.size()), BY_STRING);
+          break;
+        default:
+          break;
+      }
+      return new BinaryOperatorExpression(operator, operands);
+    }
+  }
+
+  /**
+   * Passes on the results of a query and records them unless there are more than the given number
+   * of them.
+   */
+  private static class RecordingCallback implements Callback<Target> {
+    private final Callback<Target> delegate;
+    private final long maxTargets;
+    // Null once there were too many targets to record.
+    private List<Target> targets = new ArrayList<>();
+
+    private RecordingCallback(Callback<Target> delegate, long maxTargets) {
+      this.delegate = delegate;
+      this.maxTargets = maxTargets;
+    }
+
+    @Override
+    public void process(Iterable<Target> partialResult)
+        throws QueryException, InterruptedException {
+      synchronized (this) {
+        if (targets != null) {
+          for (Target target : partialResult) {
+            targets.add(target);
+          }
+          if (targets.size() > maxTargets) {
+            targets = null;
+          }
+        }
+      }
+      delegate.process(partialResult);
+    }
+
+    private synchronized ImmutableList<Target> getRecordedTargets() {
+      return targets == null ? null : ImmutableList.copyOf(targets);
+    }
+  }
+}
@@ -25,6 +25,7 @@ import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.ImmutableSet.Builder;
 import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Multimap;
 import com.google.common.collect.Sets;
@@ -59,6 +60,8 @@ import com.google.devtools.build.lib.query2.engine.QueryEvalResult;
 import com.google.devtools.build.lib.query2.engine.QueryException;
 import com.google.devtools.build.lib.query2.engine.QueryExpression;
 import com.google.devtools.build.lib.query2.engine.QueryExpressionMapper;
+import com.google.devtools.build.lib.query2.engine.QueryUtil;
+import com.google.devtools.build.lib.query2.engine.QueryUtil.QueryTask;
 import com.google.devtools.build.lib.query2.engine.RdepsFunction;
 import com.google.devtools.build.lib.query2.engine.StreamableQueryEnvironment;
 import com.google.devtools.build.lib.query2.engine.TargetLiteral;
@@ -72,6 +75,7 @@ import com.google.devtools.build.lib.skyframe.PackageLookupValue;
 import com.google.devtools.build.lib.skyframe.PackageValue;
 import com.google.devtools.build.lib.skyframe.PrepareDepsOfPatternsFunction;
 import com.google.devtools.build.lib.skyframe.RecursivePackageProviderBackedTargetPatternResolver;
+import com.google.devtools.build.lib.skyframe.ReverseDepsIndex;
 import com.google.devtools.build.lib.skyframe.SkyFunctions;
 import com.google.devtools.build.lib.skyframe.TargetPatternValue;
 import com.google.devtools.build.lib.skyframe.TargetPatternValue.TargetPatternKey;
@@ -94,14 +98,15 @@ import java.util.Deque;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashSet;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Queue;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Logger;
 import javax.annotation.Nullable;
@@ -117,6 +122,8 @@ public class SkyQueryEnvironment extends AbstractBlazeQueryEnvironment<Target>
   // 10k is likely a good balance between using batch efficiently and not blowing up memory.
   // TODO(janakr): Unify with RecursivePackageProviderBackedTargetPatternResolver's constant.
   private static final int BATCH_CALLBACK_SIZE = 10000;
+  // Deps of sets of targets at least this large are computed in shards of this size concurrently.
+  private static final int PARALLEL_DEPS_SHARD_SIZE = 1000;
   private static final int DEFAULT_THREAD_COUNT = Runtime.getRuntime().availableProcessors();
   private static final int MAX_QUERY_EXPRESSION_LOG_CHARS = 1000;
   private static final Logger LOG = Logger.getLogger(SkyQueryEnvironment.class.getName());
@@ -134,6 +141,8 @@ public class SkyQueryEnvironment extends AbstractBlazeQueryEnvironment<Target>
   private final List<String> universeScope;
   protected final String parserPrefix;
   private final PathPackageLocator pkgPath;
+  // If set, reverse deps are read from this index instead of the graph.
+  @Nullable private final ReverseDepsIndex reverseDepsIndex;
 
   // Note that the executor returned by Executors.newFixedThreadPool doesn't start any threads
   // unless work is submitted to it.
@@ -143,6 +152,12 @@ public class SkyQueryEnvironment extends AbstractBlazeQueryEnvironment<Target>
               DEFAULT_THREAD_COUNT,
               new ThreadFactoryBuilder().setNameFormat("QueryEnvironment-%d").build()));
 
+  // Evaluates independent subexpressions and the shards of a BFS frontier, or null unless
+  // Setting.PARALLEL_EVALUATION is enabled. It is separate from threadPool, which the target
+  // pattern resolver blocks on, so that evaluation tasks waiting for the resolver can't take all
+  // the threads the resolver needs.
+  @Nullable private final ListeningExecutorService evalPool;
+
   // The following fields are set in the #beforeEvaluateQuery method.
   protected WalkableGraph graph;
   private InterruptibleSupplier<ImmutableSet<PathFragment>> blacklistPatternsSupplier;
@@ -158,6 +173,35 @@ public class SkyQueryEnvironment extends AbstractBlazeQueryEnvironment<Target>
       WalkableGraphFactory graphFactory,
       List<String> universeScope,
       PathPackageLocator pkgPath) {
+    this(
+        keepGoing,
+        loadingPhaseThreads,
+        eventHandler,
+        settings,
+        extraFunctions,
+        parserPrefix,
+        graphFactory,
+        universeScope,
+        pkgPath,
+        /*reverseDepsIndex=*/ null);
+  }
+
+  /**
+   * Creates a query environment that reads reverse deps from {@code reverseDepsIndex}, if it isn't
+   * null, instead of the reverse edges of the graph. Reverse deps outside of the transitive closure
+   * of the universe are dropped, as they are with the reverse edges.
+   */
+  public SkyQueryEnvironment(
+      boolean keepGoing,
+      int loadingPhaseThreads,
+      EventHandler eventHandler,
+      Set<Setting> settings,
+      Iterable<QueryFunction> extraFunctions,
+      String parserPrefix,
+      WalkableGraphFactory graphFactory,
+      List<String> universeScope,
+      PathPackageLocator pkgPath,
+      @Nullable ReverseDepsIndex reverseDepsIndex) {
     super(
         keepGoing,
         /*strictScope=*/ true,
@@ -170,6 +214,11 @@ public class SkyQueryEnvironment extends AbstractBlazeQueryEnvironment<Target>
     this.pkgPath = pkgPath;
     this.universeScope = Preconditions.checkNotNull(universeScope);
     this.parserPrefix = parserPrefix;
+    this.reverseDepsIndex = reverseDepsIndex;
+    this.evalPool =
+        settings.contains(Setting.PARALLEL_EVALUATION)
+            ? MoreExecutors.listeningDecorator(new ForkJoinPool(DEFAULT_THREAD_COUNT))
+            : null;
     Preconditions.checkState(!universeScope.isEmpty(),
         "No queries can be performed with an empty universe");
   }
@@ -183,6 +232,11 @@ public class SkyQueryEnvironment extends AbstractBlazeQueryEnvironment<Target>
     }
     SkyKey universeKey = graphFactory.getUniverseKey(universeScope, parserPrefix);
     checkEvaluationResult(result, universeKey);
+    if (reverseDepsIndex != null) {
+      try (AutoProfiler p = AutoProfiler.logged("building reverse deps index", LOG)) {
+        reverseDepsIndex.ensureEnabled();
+      }
+    }
 
     graph = result.getWalkableGraph();
     blacklistPatternsSupplier = InterruptibleSupplier.Memoize.of(new BlacklistSupplier(graph));
@@ -262,6 +316,9 @@ public class SkyQueryEnvironment extends AbstractBlazeQueryEnvironment<Target>
   @Override
   public void close() {
     ExecutorUtil.interruptibleShutdown(threadPool);
+    if (evalPool != null) {
+      ExecutorUtil.interruptibleShutdown(evalPool);
+    }
   }
 
   @Override
@@ -317,9 +374,9 @@ public class SkyQueryEnvironment extends AbstractBlazeQueryEnvironment<Target>
         };
     try (final AutoProfiler p = AutoProfiler.logged("evaluating query", LOG)) {
       try {
-        if (expr.canEvalConcurrently()) {
+        if (evalPool != null && expr.canEvalConcurrently()) {
           expr.evalConcurrently(
-              this, VariableContext.<Target>empty(), callbackWithEmptyCheck, threadPool);
+              this, VariableContext.<Target>empty(), callbackWithEmptyCheck, evalPool);
         } else {
           expr.eval(this, VariableContext.<Target>empty(), callbackWithEmptyCheck);
         }
@@ -372,7 +429,43 @@ public class SkyQueryEnvironment extends AbstractBlazeQueryEnvironment<Target>
 
   private Map<Target, Collection<Target>> getRawReverseDeps(Iterable<Target> targets)
       throws InterruptedException {
-    return makeTargetsMap(graph.getReverseDeps(makeTransitiveTraversalKeys(targets)));
+    return makeTargetsMap(getReverseDepKeys(targets));
+  }
+
+  /**
+   * Returns the keys of the transitive traversal nodes of the reverse deps of {@code targets},
+   * keyed by those of {@code targets}.
+   */
+  private Map<SkyKey, Iterable<SkyKey>> getReverseDepKeys(Iterable<Target> targets)
+      throws InterruptedException {
+    if (reverseDepsIndex == null) {
+      return graph.getReverseDeps(makeTransitiveTraversalKeys(targets));
+    }
+    Map<Label, ImmutableList<Label>> reverseDeps =
+        reverseDepsIndex.getReverseDeps(Iterables.transform(targets, TARGET_LABEL_FUNCTION));
+    Set<SkyKey> reverseDepKeys = new HashSet<>();
+    for (ImmutableList<Label> labels : reverseDeps.values()) {
+      reverseDepKeys.addAll(Lists.transform(labels, LABEL_TO_TRANSITIVE_TRAVERSAL_KEY));
+    }
+    // The index covers all loaded packages. Like the reverse edges of the graph, only keep the
+    // reverse deps in the transitive closure of the universe, whose nodes are in the graph.
+    final Set<SkyKey> outsideUniverse = new HashSet<>();
+    for (Map.Entry<SkyKey, Exception> entry :
+        graph.getMissingAndExceptions(reverseDepKeys).entrySet()) {
+      if (entry.getValue() == null) {
+        outsideUniverse.add(entry.getKey());
+      }
+    }
+    Map<SkyKey, Iterable<SkyKey>> result = new HashMap<>();
+    for (Map.Entry<Label, ImmutableList<Label>> entry : reverseDeps.entrySet()) {
+      result.put(
+          TransitiveTraversalValue.key(entry.getKey()),
+          ImmutableList.copyOf(
+              Iterables.filter(
+                  Lists.transform(entry.getValue(), LABEL_TO_TRANSITIVE_TRAVERSAL_KEY),
+                  Predicates.not(Predicates.in(outsideUniverse)))));
+    }
+    return result;
   }
 
   private Set<Label> getAllowedDeps(Rule rule) throws InterruptedException {
@@ -407,23 +500,72 @@ public class SkyQueryEnvironment extends AbstractBlazeQueryEnvironment<Target>
     }
   }
 
-  @Override
-  public Collection<Target> getFwdDeps(Iterable<Target> targets) throws InterruptedException {
-    Set<Target> result = new HashSet<>();
-    Map<Target, Collection<Target>> rawFwdDeps = getRawFwdDeps(targets);
-    warnIfMissingTargets(targets, rawFwdDeps.keySet());
-    for (Map.Entry<Target, Collection<Target>> entry : rawFwdDeps.entrySet()) {
-      result.addAll(filterFwdDeps(entry.getKey(), entry.getValue()));
+  /** Computes the deps of a shard of targets and adds them to a set shared by all shards. */
+  private interface DepsShardProcessor {
+    void process(Iterable<Target> shard, Set<Target> result) throws InterruptedException;
+  }
+
+  /**
+   * Returns the union of the results of {@code processor} over shards of {@code targets}, which
+   * are processed concurrently if there are several and parallel evaluation is enabled.
+   */
+  private Set<Target> processDepsInShards(
+      Iterable<Target> targets, final DepsShardProcessor processor) throws InterruptedException {
+    if (evalPool == null || Iterables.size(targets) < 2 * PARALLEL_DEPS_SHARD_SIZE) {
+      Set<Target> result = CompactHashSet.create();
+      processor.process(targets, result);
+      return result;
+    }
+    final Set<Target> result =
+        Collections.newSetFromMap(new ConcurrentHashMap<Target, Boolean>());
+    List<QueryTask> tasks = new ArrayList<>();
+    for (final List<Target> shard : Iterables.partition(targets, PARALLEL_DEPS_SHARD_SIZE)) {
+      tasks.add(
+          new QueryTask() {
+            @Override
+            public void run() throws InterruptedException {
+              processor.process(shard, result);
+            }
+          });
+    }
+    try {
+      QueryUtil.runConcurrently(tasks, evalPool);
+    } catch (QueryException e) {
+      throw new IllegalStateException("Computing deps doesn't throw QueryException", e);
     }
     return result;
   }
 
   @Override
-  public Collection<Target> getReverseDeps(Iterable<Target> targets) throws InterruptedException {
-    Map<Target, Collection<Target>> rawReverseDeps = getRawReverseDeps(targets);
-    warnIfMissingTargets(targets, rawReverseDeps.keySet());
+  public Collection<Target> getFwdDeps(Iterable<Target> targets) throws InterruptedException {
+    return processDepsInShards(
+        targets,
+        new DepsShardProcessor() {
+          @Override
+          public void process(Iterable<Target> shard, Set<Target> result)
+              throws InterruptedException {
+            Map<Target, Collection<Target>> rawFwdDeps = getRawFwdDeps(shard);
+            warnIfMissingTargets(shard, rawFwdDeps.keySet());
+            for (Map.Entry<Target, Collection<Target>> entry : rawFwdDeps.entrySet()) {
+              result.addAll(filterFwdDeps(entry.getKey(), entry.getValue()));
+            }
+          }
+        });
+  }
 
-    return processRawReverseDeps(rawReverseDeps);
+  @Override
+  public Collection<Target> getReverseDeps(Iterable<Target> targets) throws InterruptedException {
+    return processDepsInShards(
+        targets,
+        new DepsShardProcessor() {
+          @Override
+          public void process(Iterable<Target> shard, Set<Target> result)
+              throws InterruptedException {
+            Map<Target, Collection<Target>> rawReverseDeps = getRawReverseDeps(shard);
+            warnIfMissingTargets(shard, rawReverseDeps.keySet());
+            result.addAll(processRawReverseDeps(rawReverseDeps));
+          }
+        });
   }
 
   private Collection<Target> processRawReverseDeps(Map<Target, Collection<Target>> rawReverseDeps)
@@ -736,6 +878,14 @@ public class SkyQueryEnvironment extends AbstractBlazeQueryEnvironment<Target>
         }
       };
 
+  private static final Function<Label, SkyKey> LABEL_TO_TRANSITIVE_TRAVERSAL_KEY =
+      new Function<Label, SkyKey>() {
+        @Override
+        public SkyKey apply(Label label) {
+          return TransitiveTraversalValue.key(label);
+        }
+      };
+
   private static Iterable<SkyKey> makeTransitiveTraversalKeys(Iterable<Target> targets) {
     return Iterables.transform(targets, TARGET_TO_SKY_KEY);
   }
@@ -1026,10 +1176,17 @@ public class SkyQueryEnvironment extends AbstractBlazeQueryEnvironment<Target>
         new BatchAllRdepsCallback(uniquifier, universe, callback, depth, batchSize));
   }
 
+  /**
+   * Processes the reverse deps of one level of the BFS in batches of at most {@code batchSize}
+   * targets. If parallel evaluation is enabled, up to {@link #DEFAULT_THREAD_COUNT} batches are
+   * processed concurrently.
+   */
   private class BatchAllRdepsCallback implements Callback<Target> {
     private final Uniquifier<Target> uniquifier;
     private final Predicate<Target> universe;
     private final Callback<Target> callback;
+    // The batches call the callback one at a time, as it needn't be thread-safe.
+    private final Object callbackLock = new Object();
     private final int depth;
     private final int batchSize;
 
@@ -1050,20 +1207,24 @@ public class SkyQueryEnvironment extends AbstractBlazeQueryEnvironment<Target>
     public void process(Iterable<Target> targets) throws QueryException, InterruptedException {
       Iterable<Target> currentInUniverse = Iterables.filter(targets, universe);
       ImmutableList<Target> uniqueTargets = uniquifier.unique(currentInUniverse);
-      callback.process(uniqueTargets);
+      synchronized (callbackLock) {
+        callback.process(uniqueTargets);
+      }
 
       // Maintain a queue to allow tracking rdep relationships in BFS order. Rdeps are stored
       // as 1:N SkyKey mappings instead of fully populated Targets to save memory. Targets
-      // have a reference to their entire Package, which is really memory expensive.
-      Queue<Map.Entry<SkyKey, Iterable<SkyKey>>> reverseDepsQueue = new LinkedList<>();
-      reverseDepsQueue.addAll(
-          graph.getReverseDeps(makeTransitiveTraversalKeys(uniqueTargets)).entrySet());
+      // have a reference to their entire Package, which is really memory expensive. Batches that
+      // are processed concurrently add the next level to the queue.
+      Queue<Map.Entry<SkyKey, Iterable<SkyKey>>> reverseDepsQueue =
+          new ConcurrentLinkedQueue<>();
+      reverseDepsQueue.addAll(getReverseDepKeys(uniqueTargets).entrySet());
 
       // In each iteration, we populate a size-limited (no more than batchSize) number of
       // SkyKey mappings to targets, and append the SkyKey rdeps mappings to the queue. Once
       // processed by callback, the targets are dequeued and not referenced any more, making
       // them available for garbage collection.
 
+      List<Map<SkyKey, Iterable<SkyKey>>> pendingBatches = new ArrayList<>();
       for (int i = 0; i < depth; i++) {
         // The mappings between nodes and their reverse deps must be preserved instead of the
         // reverse deps alone. Later when deserializing dependent nodes using SkyKeys, we need to
@@ -1102,7 +1263,7 @@ public class SkyQueryEnvironment extends AbstractBlazeQueryEnvironment<Target>
               // separately.
               for (Iterable<SkyKey> subList : Iterables.partition(entry.getValue(), batchSize)) {
                 reverseDepsMap.put(entry.getKey(), subList);
-                processReverseDepsMap(uniquifier, reverseDepsMap, callback, reverseDepsQueue);
+                addBatch(reverseDepsMap, pendingBatches, reverseDepsQueue);
               }
 
               reverseDepsQueue.poll();
@@ -1110,15 +1271,16 @@ public class SkyQueryEnvironment extends AbstractBlazeQueryEnvironment<Target>
             } else {
               // There are some nodes in the pending process list. Process them first and come
               // back to this node later (in next iteration).
-              processReverseDepsMap(uniquifier, reverseDepsMap, callback, reverseDepsQueue);
+              addBatch(reverseDepsMap, pendingBatches, reverseDepsQueue);
               batch = 0;
             }
           }
         }
 
         if (!reverseDepsMap.isEmpty()) {
-          processReverseDepsMap(uniquifier, reverseDepsMap, callback, reverseDepsQueue);
+          addBatch(reverseDepsMap, pendingBatches, reverseDepsQueue);
         }
+        processBatches(pendingBatches, reverseDepsQueue);
 
         // If the queue is empty after all nodes in the current level are processed, stop
         // processing as there are no more reverse deps.
@@ -1129,24 +1291,61 @@ public class SkyQueryEnvironment extends AbstractBlazeQueryEnvironment<Target>
     }
 
     /**
-     * Populates {@link Target}s from reverse dep mappings of {@link SkyKey}s, empties the pending
-     * list and add next level reverse dep mappings of {@link SkyKey}s to the queue.
+     * Moves the mappings of {@code reverseDepsMap} to a new pending batch, and processes the
+     * pending batches once there are enough of them to keep all threads busy. Without parallel
+     * evaluation, each batch is processed right away.
+     */
+    private void addBatch(
+        Map<SkyKey, Iterable<SkyKey>> reverseDepsMap,
+        List<Map<SkyKey, Iterable<SkyKey>>> pendingBatches,
+        Queue<Map.Entry<SkyKey, Iterable<SkyKey>>> reverseDepsQueue)
+        throws QueryException, InterruptedException {
+      pendingBatches.add(new HashMap<>(reverseDepsMap));
+      reverseDepsMap.clear();
+      if (evalPool == null || pendingBatches.size() >= DEFAULT_THREAD_COUNT) {
+        processBatches(pendingBatches, reverseDepsQueue);
+      }
+    }
+
+    /** Processes the pending batches concurrently and empties the list. */
+    private void processBatches(
+        List<Map<SkyKey, Iterable<SkyKey>>> pendingBatches,
+        final Queue<Map.Entry<SkyKey, Iterable<SkyKey>>> reverseDepsQueue)
+        throws QueryException, InterruptedException {
+      if (pendingBatches.isEmpty()) {
+        return;
+      }
+      List<QueryTask> tasks = new ArrayList<>(pendingBatches.size());
+      for (final Map<SkyKey, Iterable<SkyKey>> reverseDepsMap : pendingBatches) {
+        tasks.add(
+            new QueryTask() {
+              @Override
+              public void run() throws QueryException, InterruptedException {
+                processReverseDepsMap(reverseDepsMap, reverseDepsQueue);
+              }
+            });
+      }
+      pendingBatches.clear();
+      QueryUtil.runConcurrently(tasks, evalPool);
+    }
+
+    /**
+     * Populates {@link Target}s from reverse dep mappings of {@link SkyKey}s and adds next level
+     * reverse dep mappings of {@link SkyKey}s to the queue.
      */
     private void processReverseDepsMap(
-        Uniquifier<Target> uniquifier,
         Map<SkyKey, Iterable<SkyKey>> reverseDepsMap,
-        Callback<Target> callback,
         Queue<Map.Entry<SkyKey, Iterable<SkyKey>>> reverseDepsQueue)
         throws QueryException, InterruptedException {
       Collection<Target> children = processRawReverseDeps(makeTargetsMap(reverseDepsMap));
       Iterable<Target> currentInUniverse = Iterables.filter(children, universe);
       ImmutableList<Target> uniqueChildren = uniquifier.unique(currentInUniverse);
-      reverseDepsMap.clear();
 
       if (!uniqueChildren.isEmpty()) {
-        callback.process(uniqueChildren);
-        reverseDepsQueue.addAll(
-            graph.getReverseDeps(makeTransitiveTraversalKeys(uniqueChildren)).entrySet());
+        synchronized (callbackLock) {
+          callback.process(uniqueChildren);
+        }
+        reverseDepsQueue.addAll(getReverseDepKeys(uniqueChildren).entrySet());
       }
     }
   }
@@ -14,8 +14,15 @@
 package com.google.devtools.build.lib.query2.engine;
 
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.devtools.build.lib.collect.CompactHashSet;
 import com.google.devtools.build.lib.query2.engine.Lexer.TokenKind;
+import com.google.devtools.build.lib.query2.engine.QueryUtil.BitSetCallback;
+import com.google.devtools.build.lib.query2.engine.QueryUtil.QueryTask;
 import com.google.devtools.build.lib.util.Preconditions;
+import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.List;
 import java.util.Set;
@@ -67,34 +74,165 @@ public class BinaryOperatorExpression extends QueryExpression {
     // large compared to the right-hand side. Which is the case is hard to know before evaluating.
     // We could consider determining this dynamically, however, by evaluating both the left and
     // right hand side partially until one side finishes sooner.
-    final Set<T> lhsValue = QueryUtil.evalAll(env, context, operands.get(0));
     if (operator == TokenKind.EXCEPT || operator == TokenKind.MINUS) {
+      Set<T> lhsValue = QueryUtil.evalAll(env, context, operands.get(0));
       for (int i = 1; i < operands.size(); i++) {
-        env.eval(operands.get(i), context,
-            new Callback<T>() {
-              @Override
-              public void process(Iterable<T> partialResult)
-                  throws QueryException, InterruptedException {
-                for (T target : partialResult) {
-                  lhsValue.remove(target);
-                }
-              }
-            });
+        env.eval(operands.get(i), context, new RemovingCallback<>(lhsValue));
       }
       callback.process(lhsValue);
       return;
     }
 
-    // Intersection is not associative, so we are forced to pin both the left-hand and right-hand
-    // side of the operation at the same time.
-    // TODO(bazel-team): Consider keeping just the name / label of the right-hand side results
-    // instead of the potentially heavy-weight instances of type T.
+    // Intersections are computed on the ids of the targets. Once we have fully evaluated the
+    // left-hand side, only its targets need ids: targets of the other operands that have none
+    // can't be in the result, so the other operands are stream-processed and only pin a bit per
+    // target.
     Preconditions.checkState(operator == TokenKind.INTERSECT || operator == TokenKind.CARET,
         operator);
+    TargetIdSpace<T> idSpace = getIdSpace(callback);
+    BitSetCallback<T> lhsValue = new BitSetCallback<>(idSpace, /*assignIds=*/ true);
+    env.eval(operands.get(0), context, lhsValue);
     for (int i = 1; i < operands.size(); i++) {
-      lhsValue.retainAll(QueryUtil.evalAll(env, context, operands.get(i)));
+      BitSetCallback<T> operandValue = new BitSetCallback<>(idSpace, /*assignIds=*/ false);
+      env.eval(operands.get(i), context, operandValue);
+      lhsValue.getResult().and(operandValue.getResult());
     }
-    callback.process(lhsValue);
+    processIds(callback, idSpace, lhsValue.getResult());
+  }
+
+  /**
+   * Evaluates the operands concurrently. The results of a union are streamed to {@code callback}
+   * as the operands produce them. For a difference, the left-hand side is fully evaluated first,
+   * and then the other operands concurrently remove their targets from it. For an intersection,
+   * all operands are fully evaluated first.
+   */
+  @Override
+  public <T> void evalConcurrently(
+      final QueryEnvironment<T> env,
+      final VariableContext<T> context,
+      Callback<T> callback,
+      final ListeningExecutorService executorService)
+      throws QueryException, InterruptedException {
+    if (operator == TokenKind.PLUS || operator == TokenKind.UNION) {
+      List<QueryTask> tasks = new ArrayList<>(operands.size());
+      for (QueryExpression operand : operands) {
+        tasks.add(evalOperandTask(env, context, operand, callback, executorService));
+      }
+      QueryUtil.runConcurrently(tasks, executorService);
+      return;
+    }
+
+    if (operator == TokenKind.EXCEPT || operator == TokenKind.MINUS) {
+      Set<T> lhsValue = CompactHashSet.create();
+      evalOperandTask(
+              env, context, operands.get(0), new AddingCallback<>(lhsValue), executorService)
+          .run();
+      List<QueryTask> tasks = new ArrayList<>(operands.size() - 1);
+      for (QueryExpression operand : operands.subList(1, operands.size())) {
+        tasks.add(
+            evalOperandTask(
+                env, context, operand, new RemovingCallback<>(lhsValue), executorService));
+      }
+      QueryUtil.runConcurrently(tasks, executorService);
+      callback.process(lhsValue);
+      return;
+    }
+
+    // The operands are evaluated at the same time, so the targets of all of them need ids.
+    Preconditions.checkState(operator == TokenKind.INTERSECT || operator == TokenKind.CARET,
+        operator);
+    TargetIdSpace<T> idSpace = getIdSpace(callback);
+    List<QueryTask> tasks = new ArrayList<>(operands.size());
+    List<BitSetCallback<T>> operandValues = new ArrayList<>(operands.size());
+    for (QueryExpression operand : operands) {
+      BitSetCallback<T> operandValue = new BitSetCallback<>(idSpace, /*assignIds=*/ true);
+      operandValues.add(operandValue);
+      tasks.add(evalOperandTask(env, context, operand, operandValue, executorService));
+    }
+    QueryUtil.runConcurrently(tasks, executorService);
+
+    BitSet lhsValue = operandValues.get(0).getResult();
+    for (int i = 1; i < operands.size(); i++) {
+      lhsValue.and(operandValues.get(i).getResult());
+    }
+    processIds(callback, idSpace, lhsValue);
+  }
+
+  /**
+   * Returns the id space of {@code callback} if it aggregates ids, so that the result can be passed
+   * on without converting it to targets, or a new one.
+   */
+  private static <T> TargetIdSpace<T> getIdSpace(Callback<T> callback) {
+    return callback instanceof BitSetCallback
+        ? ((BitSetCallback<T>) callback).getIdSpace()
+        : new TargetIdSpace<T>();
+  }
+
+  /** Passes the targets with the given ids to {@code callback}, as ids if it takes them. */
+  private static <T> void processIds(Callback<T> callback, TargetIdSpace<T> idSpace, BitSet ids)
+      throws QueryException, InterruptedException {
+    if (callback instanceof BitSetCallback) {
+      ((BitSetCallback<T>) callback).processIds(ids);
+    } else {
+      callback.process(idSpace.getTargets(ids));
+    }
+  }
+
+  /** Adds the targets it is passed to a set, under the lock of the set. */
+  private static final class AddingCallback<T> implements Callback<T> {
+    private final Set<T> targets;
+
+    private AddingCallback(Set<T> targets) {
+      this.targets = targets;
+    }
+
+    @Override
+    public void process(Iterable<T> partialResult) {
+      synchronized (targets) {
+        Iterables.addAll(targets, partialResult);
+      }
+    }
+  }
+
+  /** Removes the targets it is passed from a set, under the lock of the set. */
+  private static final class RemovingCallback<T> implements Callback<T> {
+    private final Set<T> targets;
+
+    private RemovingCallback(Set<T> targets) {
+      this.targets = targets;
+    }
+
+    @Override
+    public void process(Iterable<T> partialResult) {
+      synchronized (targets) {
+        for (T target : partialResult) {
+          targets.remove(target);
+        }
+      }
+    }
+  }
+
+  private static <T> QueryTask evalOperandTask(
+      final QueryEnvironment<T> env,
+      final VariableContext<T> context,
+      final QueryExpression operand,
+      final Callback<T> callback,
+      final ListeningExecutorService executorService) {
+    return new QueryTask() {
+      @Override
+      public void run() throws QueryException, InterruptedException {
+        if (operand.canEvalConcurrently()) {
+          operand.evalConcurrently(env, context, callback, executorService);
+        } else {
+          env.eval(operand, context, callback);
+        }
+      }
+    };
+  }
+
+  @Override
+  public boolean canEvalConcurrently() {
+    return true;
   }
 
   @Override
@@ -251,7 +251,13 @@ public interface QueryEnvironment<T> {
     /**
      * Do not consider nodep attributes when traversing dependency edges.
      */
-    NO_NODEP_DEPS;
+    NO_NODEP_DEPS,
+
+    /**
+     * Evaluate independent subexpressions and large sets of targets concurrently, if the query
+     * environment supports it. The results are the same, but may be reported in another order.
+     */
+    PARALLEL_EVALUATION;
   }
 
   /**
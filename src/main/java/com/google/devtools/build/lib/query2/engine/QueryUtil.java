@@ -15,11 +15,21 @@ package com.google.devtools.build.lib.query2.engine;
 
 
 import com.google.common.base.Predicate;
+import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterables;
+import com.google.common.util.concurrent.SettableFuture;
 import com.google.devtools.build.lib.collect.CompactHashSet;
 
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.annotation.Nullable;
 
 /** Several query utilities to make easier to work with query callbacks and uniquifiers. */
 public final class QueryUtil {
@@ -46,6 +56,49 @@ public final class QueryUtil {
     }
   }
 
+  /**
+   * A callback that aggregates all the partial results as the ids of the targets in a {@link
+   * TargetIdSpace}. Expressions that compute their result as a set of ids in the same id space may
+   * pass it on with {@link #processIds}, instead of converting it back to targets.
+   */
+  public static final class BitSetCallback<T> implements Callback<T> {
+    private final TargetIdSpace<T> idSpace;
+    private final boolean assignIds;
+    private final BitSet result = new BitSet();
+
+    /**
+     * Creates a callback for {@code idSpace}. If {@code assignIds} is false, targets that don't
+     * have an id yet are dropped, which is fine for a result that is only intersected with sets
+     * that were aggregated in the same id space before.
+     */
+    public BitSetCallback(TargetIdSpace<T> idSpace, boolean assignIds) {
+      this.idSpace = idSpace;
+      this.assignIds = assignIds;
+    }
+
+    @Override
+    public synchronized void process(Iterable<T> partialResult) {
+      if (assignIds) {
+        idSpace.addAll(partialResult, result);
+      } else {
+        idSpace.addExisting(partialResult, result);
+      }
+    }
+
+    /** Adds the targets with the given ids in the id space of this callback. */
+    public synchronized void processIds(BitSet ids) {
+      result.or(ids);
+    }
+
+    public TargetIdSpace<T> getIdSpace() {
+      return idSpace;
+    }
+
+    public synchronized BitSet getResult() {
+      return result;
+    }
+  }
+
   /**
    * Fully evaluate a {@code QueryExpression} and return a set with all the results.
    *
@@ -112,4 +165,102 @@ public final class QueryUtil {
       return this.getClass().getName() + " uniquifier :" + alreadySeen;
     }
   }
+
+  /** A part of a query evaluation that may run on any thread. */
+  public interface QueryTask {
+    void run() throws QueryException, InterruptedException;
+  }
+
+  /**
+   * Runs {@code tasks} on the calling thread and the threads of {@code executor}, and returns once
+   * all of them finished. If a task fails, tasks that didn't start yet are skipped, and the first
+   * failure is rethrown once the tasks that did start finished. If the calling thread is
+   * interrupted, it stops waiting for the tasks right away, and the tasks that didn't start yet are
+   * skipped.
+   *
+   * <p>Tasks that no thread of {@code executor} started are run by the calling thread, so tasks may
+   * call this method with the same executor without all of its threads waiting for each other.
+   */
+  public static void runConcurrently(List<? extends QueryTask> tasks, Executor executor)
+      throws QueryException, InterruptedException {
+    if (tasks.size() == 1) {
+      tasks.get(0).run();
+      return;
+    }
+    AtomicBoolean failed = new AtomicBoolean();
+    List<ClaimableTask> claimableTasks = new ArrayList<>(tasks.size());
+    for (QueryTask task : tasks) {
+      claimableTasks.add(new ClaimableTask(task, failed));
+    }
+    try {
+      for (int i = 1; i < claimableTasks.size(); i++) {
+        executor.execute(claimableTasks.get(i));
+      }
+      for (ClaimableTask task : claimableTasks) {
+        task.run();
+      }
+      Throwable failure = null;
+      for (ClaimableTask task : claimableTasks) {
+        Throwable taskFailure = task.awaitDone();
+        if (failure == null) {
+          failure = taskFailure;
+        }
+      }
+      if (failure != null) {
+        Throwables.propagateIfPossible(failure, QueryException.class, InterruptedException.class);
+        throw new IllegalStateException(failure);
+      }
+    } finally {
+      // Keep the executor from starting the remaining tasks if this thread failed or was
+      // interrupted.
+      failed.set(true);
+    }
+  }
+
+  /** A task that is run by whichever thread claims it first. */
+  private static final class ClaimableTask implements Runnable {
+    private final QueryTask task;
+    private final AtomicBoolean groupFailed;
+    private final AtomicBoolean claimed = new AtomicBoolean();
+    private final SettableFuture<Void> done = SettableFuture.create();
+
+    private ClaimableTask(QueryTask task, AtomicBoolean groupFailed) {
+      this.task = task;
+      this.groupFailed = groupFailed;
+    }
+
+    @Override
+    public void run() {
+      if (!claimed.compareAndSet(false, true)) {
+        return;
+      }
+      if (groupFailed.get()) {
+        done.set(null);
+        return;
+      }
+      try {
+        task.run();
+        done.set(null);
+      } catch (Throwable e) {
+        groupFailed.set(true);
+        done.setException(e);
+      }
+    }
+
+    /**
+     * Waits until the task finished or was skipped, and returns why it failed, or null if it
+     * didn't.
+     *
+     * @throws InterruptedException if the calling thread is interrupted while waiting
+     */
+    @Nullable
+    private Throwable awaitDone() throws InterruptedException {
+      try {
+        done.get();
+        return null;
+      } catch (ExecutionException e) {
+        return e.getCause();
+      }
+    }
+  }
 }
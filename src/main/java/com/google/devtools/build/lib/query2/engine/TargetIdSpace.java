@@ -0,0 +1,119 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.query2.engine;
+
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Numbers the targets seen while evaluating a query expression, so that sets of them can be
+ * represented as {@link BitSet}s of their ids and combined with word-wide boolean operations.
+ *
+ * <p>Ids are dense: they are handed out in the order in which targets are first seen, starting at
+ * 0. A set of targets therefore takes one bit per target seen so far, however large the targets
+ * themselves are.
+ */
+@ThreadSafe
+public final class TargetIdSpace<T> {
+  private static final int INITIAL_CAPACITY = 16;
+
+  // The fields below are guarded by this.
+  // An open-addressing hash table from targets to their ids, with linear probing. Keeping the ids
+  // in a parallel int array avoids an entry object and a boxed id per target.
+  private Object[] keys = new Object[INITIAL_CAPACITY];
+  private int[] keyIds = new int[INITIAL_CAPACITY];
+  // The targets, indexed by id.
+  private Object[] targets = new Object[INITIAL_CAPACITY / 2];
+  private int size = 0;
+
+  /** Sets the bits of {@code targets} in {@code bits}, giving new targets an id. */
+  public synchronized void addAll(Iterable<T> targets, BitSet bits) {
+    for (T target : targets) {
+      int slot = findSlot(target);
+      int id;
+      if (keys[slot] == null) {
+        id = size++;
+        keys[slot] = target;
+        keyIds[slot] = id;
+        this.targets[id] = target;
+        if (size == this.targets.length) {
+          resize();
+        }
+      } else {
+        id = keyIds[slot];
+      }
+      bits.set(id);
+    }
+  }
+
+  /** Sets the bits of those of {@code targets} that already have an id in {@code bits}. */
+  public synchronized void addExisting(Iterable<T> targets, BitSet bits) {
+    for (T target : targets) {
+      int slot = findSlot(target);
+      if (keys[slot] != null) {
+        bits.set(keyIds[slot]);
+      }
+    }
+  }
+
+  /** Returns the targets whose ids are set in {@code bits}. */
+  @SuppressWarnings("unchecked")
+  public synchronized List<T> getTargets(BitSet bits) {
+    List<T> result = new ArrayList<>(bits.cardinality());
+    for (int id = bits.nextSetBit(0); id >= 0; id = bits.nextSetBit(id + 1)) {
+      result.add((T) targets[id]);
+    }
+    return result;
+  }
+
+  /** Returns how many targets have an id. */
+  public synchronized int size() {
+    return size;
+  }
+
+  /** Returns the slot of {@code target} in {@link #keys}, or the empty slot it belongs in. */
+  private int findSlot(Object target) {
+    int mask = keys.length - 1;
+    int slot = smear(target.hashCode()) & mask;
+    while (keys[slot] != null && !keys[slot].equals(target)) {
+      slot = (slot + 1) & mask;
+    }
+    return slot;
+  }
+
+  /** Doubles the capacity, keeping the table at most half full. */
+  private void resize() {
+    Object[] oldKeys = keys;
+    int[] oldKeyIds = keyIds;
+    keys = new Object[oldKeys.length * 2];
+    keyIds = new int[oldKeys.length * 2];
+    for (int i = 0; i < oldKeys.length; i++) {
+      if (oldKeys[i] != null) {
+        int slot = findSlot(oldKeys[i]);
+        keys[slot] = oldKeys[i];
+        keyIds[slot] = oldKeyIds[i];
+      }
+    }
+    targets = Arrays.copyOf(targets, targets.length * 2);
+  }
+
+  /** Spreads the bits of poor hash codes, as {@link java.util.HashMap} does. */
+  private static int smear(int hashCode) {
+    return hashCode ^ (hashCode >>> 16);
+  }
+}
@@ -43,9 +43,9 @@ import com.google.devtools.build.lib.query2.output.OutputFormatter.AbstractUnord
 import com.google.devtools.build.lib.query2.output.QueryOptions.OrderOutput;
 import com.google.devtools.build.lib.query2.proto.proto2api.Build;
 import com.google.devtools.build.lib.query2.proto.proto2api.Build.GeneratedFile;
-import com.google.devtools.build.lib.query2.proto.proto2api.Build.QueryResult.Builder;
 import com.google.devtools.build.lib.query2.proto.proto2api.Build.SourceFile;
 import com.google.devtools.build.lib.syntax.Environment;
+import com.google.protobuf.CodedOutputStream;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.util.Collection;
@@ -59,6 +59,9 @@ import java.util.Set;
  * of a query result and outputs the proto bytes to the output print stream.
  * By taking the bytes and calling {@code mergeFrom()} on a
  * {@code Build.QueryResult} object the full result can be reconstructed.
+ *
+ * <p>Each target is written as soon as it is processed, as an occurrence of the repeated
+ * {@code target} field of {@code Build.QueryResult}, so the result is never held in memory.
  */
 public class ProtoOutputFormatter extends AbstractUnorderedFormatter {
 
@@ -91,11 +94,11 @@ public class ProtoOutputFormatter extends AbstractUnorderedFormatter {
       final PrintStream out, final QueryOptions options) {
     return new OutputFormatterCallback<Target>() {
 
-      private Builder queryResult;
+      private CodedOutputStream codedOut;
 
       @Override
       public void start() {
-        queryResult = Build.QueryResult.newBuilder();
+        codedOut = CodedOutputStream.newInstance(out);
       }
 
       @Override
@@ -103,13 +106,18 @@ public class ProtoOutputFormatter extends AbstractUnorderedFormatter {
           throws IOException, InterruptedException {
 
         for (Target target : partialResult) {
-          queryResult.addTarget(toTargetProtoBuffer(target));
+          codedOut.writeMessage(
+              Build.QueryResult.TARGET_FIELD_NUMBER, toTargetProtoBuffer(target));
         }
+        // Only writes the buffer of codedOut to out, which may buffer it in turn.
+        codedOut.flush();
+        out.flush();
       }
 
       @Override
       public void close() throws IOException {
-        queryResult.build().writeTo(out);
+        codedOut.flush();
+        out.flush();
       }
     };
   }
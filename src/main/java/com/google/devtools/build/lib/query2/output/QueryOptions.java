@@ -207,6 +207,32 @@ public class QueryOptions extends OptionsBase {
           + "targets.")
   public List<String> universeScope;
 
+  @Option(name = "experimental_rdeps_index",
+      defaultValue = "false",
+      category = "query",
+      help = "If true and --universe_scope is set, rdeps() and allrdeps() look up reverse "
+          + "dependencies in an index of all packages loaded by the server, which is kept up to "
+          + "date as packages change, instead of walking the reverse edges of the transitive "
+          + "closure of the universe. Reverse dependencies outside of the universe are dropped. "
+          + "The index is built on first use.")
+  public boolean useRdepsIndex;
+
+  @Option(name = "experimental_parallel_query_evaluation",
+      defaultValue = "false",
+      category = "query",
+      help = "If true and --universe_scope is set, set operations, deps, rdeps and allrdeps "
+          + "evaluate independent subexpressions and large sets of targets on several threads.")
+  public boolean parallelEvaluation;
+
+  @Option(name = "experimental_query_result_cache_size",
+      defaultValue = "0",
+      category = "query",
+      help = "The most targets the server keeps in cached query results. A query whose results are "
+          + "streamed (see --order_output) is not evaluated again if the same query was evaluated "
+          + "before with the same options and no BUILD file changed since. Note that cached "
+          + "targets keep their packages in memory. 0 disables the cache.")
+  public int queryResultCacheSize;
+
   @Option(name = "relative_locations",
       defaultValue = "false",
       category = "query",
@@ -262,6 +288,9 @@ public class QueryOptions extends OptionsBase {
     if (!includeImplicitDeps) {
       settings.add(Setting.NO_IMPLICIT_DEPS);
     }
+    if (parallelEvaluation) {
+      settings.add(Setting.PARALLEL_EVALUATION);
+    }
     return settings;
   }
 }
@@ -52,6 +52,8 @@ import org.w3c.dom.Element;
 
 /**
  * An output formatter that prints the result as XML.
+ *
+ * <p>Each target is written as soon as it is processed, so the document is never held in memory.
  */
 class XmlOutputFormatter extends AbstractUnorderedFormatter {
   @Override
@@ -64,42 +66,49 @@ class XmlOutputFormatter extends AbstractUnorderedFormatter {
       final PrintStream out, final QueryOptions options) {
     return new OutputFormatterCallback<Target>() {
 
+      // Only creates the elements of the targets; they are never added to it.
       private Document doc;
-      private Element queryElem;
+      private Transformer transformer;
 
       @Override
       public void start() {
         try {
           DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
           doc = factory.newDocumentBuilder().newDocument();
-        } catch (ParserConfigurationException e) {
+          transformer = TransformerFactory.newInstance().newTransformer();
+        } catch (ParserConfigurationException
+            | TransformerFactoryConfigurationError
+            | TransformerException e) {
           // This shouldn't be possible: all the configuration is hard-coded.
           throw new IllegalStateException("XML output failed", e);
         }
         doc.setXmlVersion("1.1");
-        queryElem = doc.createElement("query");
-        queryElem.setAttribute("version", "2");
-        doc.appendChild(queryElem);
+        transformer.setOutputProperty(OutputKeys.INDENT, "yes");
+        transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
+        out.println("<?xml version=\"1.1\" encoding=\"UTF-8\" standalone=\"no\"?>");
+        out.println("<query version=\"2\">");
       }
 
       @Override
       protected void processOutput(Iterable<Target> partialResult)
           throws IOException, InterruptedException {
-        for (Target target : partialResult) {
-          queryElem.appendChild(createTargetElement(doc, target));
+        try {
+          for (Target target : partialResult) {
+            transformer.transform(
+                new DOMSource(createTargetElement(doc, target)), new StreamResult(out));
+            out.println();
+          }
+        } catch (TransformerException e) {
+          // This shouldn't be possible: all the configuration is hard-coded.
+          throw new IllegalStateException("XML output failed", e);
         }
+        out.flush();
       }
 
       @Override
       public void close() throws IOException {
-        try {
-          Transformer transformer = TransformerFactory.newInstance().newTransformer();
-          transformer.setOutputProperty(OutputKeys.INDENT, "yes");
-          transformer.transform(new DOMSource(doc), new StreamResult(out));
-        } catch (TransformerFactoryConfigurationError | TransformerException e) {
-          // This shouldn't be possible: all the configuration is hard-coded.
-          throw new IllegalStateException("XML output failed", e);
-        }
+        out.println("</query>");
+        out.flush();
       }
     };
   }
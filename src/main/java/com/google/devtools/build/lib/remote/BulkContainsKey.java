@@ -0,0 +1,28 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.lib.remote;
+
+import java.util.Collection;
+import java.util.Set;
+
+/**
+ * Implemented by cache maps that can check for the presence of many keys in a single round-trip.
+ * {@link ConcurrentMapActionCache} falls back to one {@code containsKey} call per key for maps
+ * that don't implement it.
+ */
+interface BulkContainsKey {
+  /** Returns the subset of {@code keys} that are not present in the map. */
+  Set<String> findMissingKeys(Collection<String> keys);
+}
@@ -14,26 +14,46 @@
 
 package com.google.devtools.build.lib.remote;
 
+import com.google.common.base.Throwables;
 import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.Uninterruptibles;
 import com.google.devtools.build.lib.actions.ActionInput;
 import com.google.devtools.build.lib.actions.ActionInputFileCache;
+import com.google.devtools.build.lib.concurrent.SharedThreadPools;
 import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
 import com.google.devtools.build.lib.remote.RemoteProtocol.CacheEntry;
 import com.google.devtools.build.lib.remote.RemoteProtocol.FileEntry;
-import com.google.devtools.build.lib.util.Preconditions;
 import com.google.devtools.build.lib.vfs.Path;
 import com.google.protobuf.ByteString;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * A RemoteActionCache implementation that uses a concurrent map as a distributed storage for files
  * and action output.
  *
+ * <p>Large files are split into fixed-size chunks that are transferred one at a time, so the memory
+ * needed for an upload or download does not depend on the size of the file.
+ *
  * <p>The thread safety is guaranteed by the underlying map.
  */
 @ThreadSafe
@@ -41,7 +61,19 @@ public final class ConcurrentMapActionCache implements RemoteActionCache {
   private final Path execRoot;
   private final ConcurrentMap<String, byte[]> cache;
   private static final int MAX_MEMORY_KBYTES = 512 * 1024;
+  /** Files larger than this are stored as a list of separately cached chunks. */
+  static final int CHUNK_SIZE_BYTES = 1024 * 1024;
+  private static final int CHUNK_SIZE_KBYTES = CHUNK_SIZE_BYTES / 1024;
   private final Semaphore uploadMemoryAvailable = new Semaphore(MAX_MEMORY_KBYTES, true);
+  private final AtomicLong uploadedBytes = new AtomicLong();
+  private final AtomicLong skippedBytes = new AtomicLong();
+
+  /**
+   * Transfers mostly wait for the network. Memory use is bounded by {@link
+   * #uploadMemoryAvailable}.
+   */
+  private static final ListeningExecutorService TRANSFER_POOL =
+      MoreExecutors.listeningDecorator(SharedThreadPools.get(SharedThreadPools.Pool.IO));
 
   public ConcurrentMapActionCache(
       Path execRoot, RemoteOptions options, ConcurrentMap<String, byte[]> cache) {
@@ -53,6 +85,7 @@ public final class ConcurrentMapActionCache implements RemoteActionCache {
   public String putFileIfNotExist(Path file) throws IOException {
     String contentKey = HashCode.fromBytes(file.getMD5Digest()).toString();
     if (containsFile(contentKey)) {
+      skippedBytes.addAndGet(file.getFileSize());
       return contentKey;
     }
     putFile(contentKey, file);
@@ -63,31 +96,142 @@ public final class ConcurrentMapActionCache implements RemoteActionCache {
   public String putFileIfNotExist(ActionInputFileCache cache, ActionInput file) throws IOException {
     String contentKey = HashCode.fromBytes(cache.getDigest(file)).toString();
     if (containsFile(contentKey)) {
+      skippedBytes.addAndGet(cache.getSizeInBytes(file));
       return contentKey;
     }
     putFile(contentKey, execRoot.getRelative(file.getExecPathString()));
     return contentKey;
   }
 
+  @Override
+  public List<String> putFilesIfNotExist(
+      ActionInputFileCache cache, List<? extends ActionInput> files) throws IOException {
+    List<String> contentKeys = new ArrayList<>(files.size());
+    Map<String, ActionInput> filesByKey = new LinkedHashMap<>();
+    for (ActionInput file : files) {
+      String contentKey = HashCode.fromBytes(cache.getDigest(file)).toString();
+      contentKeys.add(contentKey);
+      if (!filesByKey.containsKey(contentKey)) {
+        filesByKey.put(contentKey, file);
+      }
+    }
+    Set<String> missing = findMissing(filesByKey.keySet());
+    List<ListenableFuture<Void>> uploads = new ArrayList<>(missing.size());
+    for (Map.Entry<String, ActionInput> entry : filesByKey.entrySet()) {
+      final String contentKey = entry.getKey();
+      if (!missing.contains(contentKey)) {
+        skippedBytes.addAndGet(cache.getSizeInBytes(entry.getValue()));
+        continue;
+      }
+      final Path file = execRoot.getRelative(entry.getValue().getExecPathString());
+      uploads.add(
+          TRANSFER_POOL.submit(
+              new Callable<Void>() {
+                @Override
+                public Void call() throws IOException {
+                  putFile(contentKey, file);
+                  return null;
+                }
+              }));
+    }
+    getUninterruptibly(Futures.allAsList(uploads));
+    return contentKeys;
+  }
+
+  @Override
+  public Set<String> findMissing(Collection<String> keys) throws IOException {
+    if (cache instanceof BulkContainsKey) {
+      return ((BulkContainsKey) cache).findMissingKeys(keys);
+    }
+    // No bulk lookup available, so at least issue the lookups concurrently.
+    List<ListenableFuture<String>> lookups = new ArrayList<>(keys.size());
+    for (final String key : keys) {
+      lookups.add(
+          TRANSFER_POOL.submit(
+              new Callable<String>() {
+                @Override
+                public String call() {
+                  return containsFile(key) ? null : key;
+                }
+              }));
+    }
+    Set<String> missing = new HashSet<>();
+    for (String key : getUninterruptibly(Futures.allAsList(lookups))) {
+      if (key != null) {
+        missing.add(key);
+      }
+    }
+    return missing;
+  }
+
+  private static <T> T getUninterruptibly(ListenableFuture<T> future) throws IOException {
+    try {
+      return Uninterruptibles.getUninterruptibly(future);
+    } catch (ExecutionException e) {
+      Throwables.propagateIfPossible(e.getCause(), IOException.class);
+      throw new IOException("Failed to transfer files to memory cache.", e.getCause());
+    }
+  }
+
+  /**
+   * Returns the number of bytes of file contents sent to the cache since this instance was
+   * created.
+   */
+  public long getUploadedBytes() {
+    return uploadedBytes.get();
+  }
+
+  /** Returns the number of bytes that did not need to be sent because they were cached. */
+  public long getSkippedBytes() {
+    return skippedBytes.get();
+  }
+
   private void putFile(String key, Path file) throws IOException {
-    int fileSizeKBytes = (int) (file.getFileSize() / 1024);
-    Preconditions.checkArgument(fileSizeKBytes < MAX_MEMORY_KBYTES);
     try {
-      uploadMemoryAvailable.acquire(fileSizeKBytes);
-      // TODO(alpha): I should put the file content as chunks to avoid reading the entire
-      // file into memory.
-      try (InputStream stream = file.getInputStream()) {
+      uploadMemoryAvailable.acquire(CHUNK_SIZE_KBYTES);
+    } catch (InterruptedException e) {
+      throw new IOException("Failed to put file to memory cache.", e);
+    }
+    try (InputStream stream = file.getInputStream()) {
+      byte[] buffer = new byte[CHUNK_SIZE_BYTES];
+      // Whether a file is chunked only depends on its size. A chunk is never larger than
+      // CHUNK_SIZE_BYTES, so the key of a chunk may be the key of a single-entry file with the
+      // same contents, which is harmless, but never the key of a chunked file, whose entry only
+      // lists chunk keys.
+      boolean chunked = file.getFileSize() > CHUNK_SIZE_BYTES;
+      int length = ByteStreams.read(stream, buffer, 0, buffer.length);
+      if (!chunked) {
         cache.put(
             key,
             CacheEntry.newBuilder()
-                .setFileContent(ByteString.readFrom(stream))
+                .setFileContent(ByteString.copyFrom(buffer, 0, length))
                 .build()
                 .toByteArray());
+        uploadedBytes.addAndGet(length);
+        return;
       }
-    } catch (InterruptedException e) {
-      throw new IOException("Failed to put file to memory cache.", e);
+      // Chunks are content-addressed, so re-uploading a file after a failed attempt only
+      // transfers the chunks that did not make it the first time.
+      CacheEntry.Builder entry = CacheEntry.newBuilder();
+      while (length > 0) {
+        String chunkKey = Hashing.md5().hashBytes(buffer, 0, length).toString();
+        if (containsFile(chunkKey)) {
+          skippedBytes.addAndGet(length);
+        } else {
+          cache.put(
+              chunkKey,
+              CacheEntry.newBuilder()
+                  .setFileContent(ByteString.copyFrom(buffer, 0, length))
+                  .build()
+                  .toByteArray());
+          uploadedBytes.addAndGet(length);
+        }
+        entry.addFileChunkKeys(chunkKey);
+        length = ByteStreams.read(stream, buffer, 0, buffer.length);
+      }
+      cache.put(key, entry.build().toByteArray());
     } finally {
-      uploadMemoryAvailable.release(fileSizeKBytes);
+      uploadMemoryAvailable.release(CHUNK_SIZE_KBYTES);
     }
   }
 
@@ -98,10 +242,21 @@ public final class ConcurrentMapActionCache implements RemoteActionCache {
     if (data == null) {
       throw new CacheNotFoundException("File content cannot be found with key: " + key);
     }
+    CacheEntry entry = CacheEntry.parseFrom(data);
     try (OutputStream stream = dest.getOutputStream()) {
-      CacheEntry.parseFrom(data).getFileContent().writeTo(stream);
-      dest.setExecutable(executable);
+      if (entry.getFileChunkKeysCount() == 0) {
+        entry.getFileContent().writeTo(stream);
+      }
+      // Fetch one chunk at a time so that large files are never held in memory.
+      for (String chunkKey : entry.getFileChunkKeysList()) {
+        byte[] chunk = cache.get(chunkKey);
+        if (chunk == null) {
+          throw new CacheNotFoundException("File chunk cannot be found with key: " + chunkKey);
+        }
+        CacheEntry.parseFrom(chunk).getFileContent().writeTo(stream);
+      }
     }
+    dest.setExecutable(executable);
   }
 
   private boolean containsFile(String key) {
@@ -14,6 +14,7 @@
 
 package com.google.devtools.build.lib.remote;
 
+import com.google.common.collect.ForwardingConcurrentMap;
 import com.hazelcast.client.HazelcastClient;
 import com.hazelcast.client.config.ClientConfig;
 import com.hazelcast.client.config.ClientNetworkConfig;
@@ -21,8 +22,14 @@ import com.hazelcast.client.config.XmlClientConfigBuilder;
 import com.hazelcast.config.Config;
 import com.hazelcast.core.Hazelcast;
 import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.core.IMap;
+import com.hazelcast.query.Predicates;
+import com.hazelcast.query.QueryConstants;
 
 import java.io.IOException;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
 import java.util.concurrent.ConcurrentMap;
 
 /**
@@ -62,6 +69,35 @@ public final class HazelcastCacheFactory {
       // -Dhazelcast.config=some-hazelcast.xml for configuration.
       instance = Hazelcast.newHazelcastInstance();
     }
-    return instance.getMap(CACHE_NAME);
+    return new HazelcastMap(instance.<String, byte[]>getMap(CACHE_NAME));
+  }
+
+  /** Adds bulk key lookups on top of a Hazelcast {@link IMap}. */
+  private static final class HazelcastMap extends ForwardingConcurrentMap<String, byte[]>
+      implements BulkContainsKey {
+    private final IMap<String, byte[]> map;
+
+    HazelcastMap(IMap<String, byte[]> map) {
+      this.map = map;
+    }
+
+    @Override
+    protected ConcurrentMap<String, byte[]> delegate() {
+      return map;
+    }
+
+    @Override
+    public Set<String> findMissingKeys(Collection<String> keys) {
+      Set<String> missing = new HashSet<>(keys);
+      if (!missing.isEmpty()) {
+        // A key-only query: the values of the keys that are present are not transferred.
+        missing.removeAll(
+            map.keySet(
+                Predicates.in(
+                    QueryConstants.KEY_ATTRIBUTE_NAME.value(),
+                    missing.toArray(new String[missing.size()]))));
+      }
+      return missing;
+    }
   }
 }
@@ -18,7 +18,6 @@ import com.google.common.collect.ImmutableMap;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.devtools.build.lib.actions.ActionInput;
 import com.google.devtools.build.lib.actions.ActionInputFileCache;
-import com.google.devtools.build.lib.actions.Artifact;
 import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
 import com.google.devtools.build.lib.remote.RemoteProtocol.FileEntry;
 import com.google.devtools.build.lib.remote.RemoteProtocol.RemoteWorkRequest;
@@ -57,8 +56,6 @@ public class MemcacheWorkExecutor implements RemoteWorkExecutor {
   /** Channel over which to send work to run remotely. */
   private final ManagedChannel channel;
 
-  private static final int MAX_WORK_SIZE_BYTES = 1024 * 1024 * 512;
-
   /**
    * This constructor is used when this class is used in a client. It requires a host address and
    * port to connect to a remote service.
@@ -118,35 +115,25 @@ public class MemcacheWorkExecutor implements RemoteWorkExecutor {
     RemoteWorkRequest.Builder work = RemoteWorkRequest.newBuilder();
     work.setOutputKey(actionOutputKey);
 
-    long workSize = 0;
-    for (ActionInput input : inputs) {
-      if (!(input instanceof Artifact)) {
-        continue;
-      }
-      if (!actionCache.isFile((Artifact) input)) {
-        continue;
-      }
-      workSize += actionCache.getSizeInBytes(input);
-    }
-
-    if (workSize > MAX_WORK_SIZE_BYTES) {
-      throw new WorkTooLargeException("Work is too large: " + workSize + " bytes.");
-    }
-
-    // Save all input files to cache.
-    for (ActionInput input : inputs) {
+    // Save all input files to cache. Large files are uploaded in chunks, so there is no limit on
+    // the total size of the work.
+    List<ActionInput> inputList = new ArrayList<>(inputs);
+    for (ActionInput input : inputList) {
       Path file = execRoot.getRelative(input.getExecPathString());
-
       if (file.isDirectory()) {
         // TODO(alpha): Handle this case better.
         throw new UnsupportedOperationException(
             "Does not support directory artifacts: " + file + ".");
       }
-
-      String contentKey = cache.putFileIfNotExist(actionCache, input);
+    }
+    // Only the inputs that are not already in the cache are uploaded.
+    List<String> contentKeys = cache.putFilesIfNotExist(actionCache, inputList);
+    for (int i = 0; i < inputList.size(); i++) {
+      ActionInput input = inputList.get(i);
+      Path file = execRoot.getRelative(input.getExecPathString());
       work.addInputFilesBuilder()
           .setPath(input.getExecPathString())
-          .setContentKey(contentKey)
+          .setContentKey(contentKeys.get(i))
           .setExecutable(file.isExecutable());
     }
 
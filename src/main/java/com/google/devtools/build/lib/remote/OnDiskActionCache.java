@@ -0,0 +1,353 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.lib.remote;
+
+import com.google.common.hash.HashCode;
+import com.google.devtools.build.lib.actions.ActionInput;
+import com.google.devtools.build.lib.actions.ActionInputFileCache;
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+import com.google.devtools.build.lib.remote.RemoteProtocol.CacheEntry;
+import com.google.devtools.build.lib.remote.RemoteProtocol.FileEntry;
+import com.google.devtools.build.lib.vfs.FileStatus;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.PathFragment;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * A RemoteActionCache implementation that stores files and action outputs in a content-addressable
+ * store on the local disk.
+ *
+ * <p>File contents are stored under {@code <root>/cas} and action outputs under
+ * {@code <root>/ac}, both sharded by the first two characters of the key. Contents are streamed
+ * between the exec root and the store with {@link FileChannel#transferTo} so that large outputs
+ * never have to be held in memory. When the total size of the stored contents exceeds the limit,
+ * the least recently used contents are evicted. Cache hits are always copied into the exec root:
+ * a hard link would let an action that later writes its output in place corrupt the stored
+ * content.
+ *
+ * <p>The thread safety is guaranteed by synchronizing on the LRU index; file transfers happen
+ * outside of the lock and are published with an atomic rename.
+ */
+@ThreadSafe
+public final class OnDiskActionCache implements RemoteActionCache {
+  private static final String CAS_DIRECTORY = "cas";
+  private static final String AC_DIRECTORY = "ac";
+  private static final String TMP_DIRECTORY = "tmp";
+
+  private final Path execRoot;
+  private final Path casRoot;
+  private final Path acRoot;
+  private final Path tmpRoot;
+  private final long maxSizeBytes;
+
+  /** Size of every stored content keyed by content key, in least recently used order. */
+  private final LinkedHashMap<String, Long> contentSizes = new LinkedHashMap<>(16, 0.75f, true);
+  private long totalSizeBytes;
+
+  public OnDiskActionCache(Path execRoot, Path cacheRoot, long maxSizeBytes) throws IOException {
+    this.execRoot = execRoot;
+    this.casRoot = cacheRoot.getRelative(CAS_DIRECTORY);
+    this.acRoot = cacheRoot.getRelative(AC_DIRECTORY);
+    this.tmpRoot = cacheRoot.getRelative(TMP_DIRECTORY);
+    this.maxSizeBytes = maxSizeBytes;
+    FileSystemUtils.createDirectoryAndParents(casRoot);
+    FileSystemUtils.createDirectoryAndParents(acRoot);
+    FileSystemUtils.createDirectoryAndParents(tmpRoot);
+    loadIndex();
+  }
+
+  /**
+   * Creates an instance from the {@code --disk_cache_path} and {@code --disk_cache_max_size_mb}
+   * options.
+   */
+  public static OnDiskActionCache create(Path execRoot, RemoteOptions options)
+      throws IOException {
+    return new OnDiskActionCache(
+        execRoot,
+        execRoot.getFileSystem().getPath(options.diskCachePath),
+        options.diskCacheMaxSizeMb * 1024L * 1024L);
+  }
+
+  /** Rebuilds the LRU index from the contents on disk, oldest modification time first. */
+  private void loadIndex() throws IOException {
+    final Map<String, Long> lastModified = new LinkedHashMap<>();
+    final Map<String, Long> sizes = new LinkedHashMap<>();
+    for (Path shard : casRoot.getDirectoryEntries()) {
+      if (!shard.isDirectory()) {
+        continue;
+      }
+      for (Path content : shard.getDirectoryEntries()) {
+        FileStatus status = content.statIfFound();
+        if (status == null || !status.isFile()) {
+          continue;
+        }
+        lastModified.put(content.getBaseName(), status.getLastModifiedTime());
+        sizes.put(content.getBaseName(), status.getSize());
+      }
+    }
+    List<String> keys = new ArrayList<>(lastModified.keySet());
+    Collections.sort(
+        keys,
+        new Comparator<String>() {
+          @Override
+          public int compare(String a, String b) {
+            return Long.compare(lastModified.get(a), lastModified.get(b));
+          }
+        });
+    synchronized (contentSizes) {
+      for (String key : keys) {
+        contentSizes.put(key, sizes.get(key));
+        totalSizeBytes += sizes.get(key);
+      }
+    }
+    evictIfNecessary(null);
+  }
+
+  @Override
+  public String putFileIfNotExist(Path file) throws IOException {
+    String contentKey = HashCode.fromBytes(file.getMD5Digest()).toString();
+    if (!containsFile(contentKey)) {
+      putFile(contentKey, file);
+    }
+    return contentKey;
+  }
+
+  @Override
+  public String putFileIfNotExist(ActionInputFileCache cache, ActionInput file) throws IOException {
+    String contentKey = HashCode.fromBytes(cache.getDigest(file)).toString();
+    if (!containsFile(contentKey)) {
+      putFile(contentKey, execRoot.getRelative(file.getExecPathString()));
+    }
+    return contentKey;
+  }
+
+  @Override
+  public List<String> putFilesIfNotExist(
+      ActionInputFileCache cache, List<? extends ActionInput> files) throws IOException {
+    // Lookups are local, so there is nothing to gain from batching them.
+    List<String> contentKeys = new ArrayList<>(files.size());
+    for (ActionInput file : files) {
+      contentKeys.add(putFileIfNotExist(cache, file));
+    }
+    return contentKeys;
+  }
+
+  @Override
+  public Set<String> findMissing(Collection<String> keys) throws IOException {
+    Set<String> missing = new HashSet<>();
+    for (String key : keys) {
+      if (!containsFile(key)) {
+        missing.add(key);
+      }
+    }
+    return missing;
+  }
+
+  private boolean containsFile(String key) throws IOException {
+    synchronized (contentSizes) {
+      // Also refreshes the position of the key in the LRU order.
+      if (contentSizes.get(key) != null) {
+        return true;
+      }
+    }
+    // Another server sharing the same cache directory may have stored the content.
+    FileStatus status = getContentPath(key).statIfFound();
+    if (status == null) {
+      return false;
+    }
+    recordContent(key, status.getSize());
+    return true;
+  }
+
+  private void recordContent(String key, long size) throws IOException {
+    synchronized (contentSizes) {
+      Long previous = contentSizes.put(key, size);
+      totalSizeBytes += size - (previous == null ? 0 : previous);
+    }
+    evictIfNecessary(key);
+  }
+
+  private void putFile(String key, Path file) throws IOException {
+    Path tmp = tmpRoot.getChild(UUID.randomUUID().toString());
+    long size;
+    try {
+      size = transfer(file, tmp);
+      Path dest = getContentPath(key);
+      FileSystemUtils.createDirectoryAndParents(dest.getParentDirectory());
+      tmp.renameTo(dest);
+    } finally {
+      tmp.delete();
+    }
+    recordContent(key, size);
+  }
+
+  /** Removes the least recently used contents until the cache fits its size limit. */
+  private void evictIfNecessary(String keep) throws IOException {
+    List<String> evicted = new ArrayList<>();
+    synchronized (contentSizes) {
+      Iterator<Map.Entry<String, Long>> it = contentSizes.entrySet().iterator();
+      while (totalSizeBytes > maxSizeBytes && it.hasNext()) {
+        Map.Entry<String, Long> entry = it.next();
+        if (entry.getKey().equals(keep)) {
+          continue;
+        }
+        totalSizeBytes -= entry.getValue();
+        evicted.add(entry.getKey());
+        it.remove();
+      }
+    }
+    for (String key : evicted) {
+      getContentPath(key).delete();
+    }
+  }
+
+  @Override
+  public void writeFile(String key, Path dest, boolean executable)
+      throws IOException, CacheNotFoundException {
+    if (!containsFile(key)) {
+      throw new CacheNotFoundException("File content cannot be found with key: " + key);
+    }
+    Path content = getContentPath(key);
+    FileSystemUtils.createDirectoryAndParents(dest.getParentDirectory());
+    dest.delete();
+    try {
+      transfer(content, dest);
+    } catch (NoSuchFileException e) {
+      // Evicted concurrently, possibly by another server sharing the cache directory.
+      throw new CacheNotFoundException("File content cannot be found with key: " + key);
+    }
+    dest.setExecutable(executable);
+  }
+
+  /** Copies {@code from} to {@code to} without buffering the contents on the heap. */
+  private static long transfer(Path from, Path to) throws IOException {
+    try (FileChannel in = FileChannel.open(from.getPathFile().toPath(), StandardOpenOption.READ);
+        FileChannel out =
+            FileChannel.open(
+                to.getPathFile().toPath(),
+                StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+      long size = in.size();
+      long position = 0;
+      while (position < size) {
+        position += in.transferTo(position, size - position, out);
+      }
+      return size;
+    }
+  }
+
+  @Override
+  public void writeActionOutput(String key, Path execRoot)
+      throws IOException, CacheNotFoundException {
+    Path entryPath = getActionOutputPath(key);
+    if (!entryPath.exists()) {
+      throw new CacheNotFoundException("Action output cannot be found with key: " + key);
+    }
+    CacheEntry cacheEntry;
+    try (InputStream stream = entryPath.getInputStream()) {
+      cacheEntry = CacheEntry.parseFrom(stream);
+    }
+    // Check for evicted contents first so that a miss does not leave partial outputs behind.
+    for (FileEntry file : cacheEntry.getFilesList()) {
+      if (!containsFile(file.getContentKey())) {
+        throw new CacheNotFoundException(
+            "File content cannot be found with key: " + file.getContentKey());
+      }
+    }
+    for (FileEntry file : cacheEntry.getFilesList()) {
+      writeFile(file.getContentKey(), execRoot.getRelative(file.getPath()), file.getExecutable());
+    }
+  }
+
+  @Override
+  public void putActionOutput(String key, Collection<? extends ActionInput> outputs)
+      throws IOException {
+    List<Path> files = new ArrayList<>(outputs.size());
+    for (ActionInput output : outputs) {
+      files.add(execRoot.getRelative(output.getExecPathString()));
+    }
+    putActionOutput(key, execRoot, files);
+  }
+
+  @Override
+  public void putActionOutput(String key, Path execRoot, Collection<Path> files)
+      throws IOException {
+    for (Path file : files) {
+      if (file.isDirectory()) {
+        // Directory contents are not stored, so the action is not cached at all. Otherwise a
+        // later hit would restore the action without the directory.
+        return;
+      }
+    }
+    CacheEntry.Builder actionOutput = CacheEntry.newBuilder();
+    for (Path file : files) {
+      addToActionOutput(file, file.relativeTo(execRoot), actionOutput);
+    }
+    putActionOutput(key, actionOutput.build());
+  }
+
+  private void putActionOutput(String key, CacheEntry entry) throws IOException {
+    Path tmp = tmpRoot.getChild(UUID.randomUUID().toString());
+    try {
+      try (OutputStream stream = tmp.getOutputStream()) {
+        entry.writeTo(stream);
+      }
+      Path dest = getActionOutputPath(key);
+      FileSystemUtils.createDirectoryAndParents(dest.getParentDirectory());
+      tmp.renameTo(dest);
+    } finally {
+      tmp.delete();
+    }
+  }
+
+  /** Add the file to action output cache entry. Put the file to cache if necessary. */
+  private void addToActionOutput(
+      Path file, PathFragment execPath, CacheEntry.Builder actionOutput) throws IOException {
+    // First put the file content to cache.
+    String contentKey = putFileIfNotExist(file);
+    // Add to protobuf.
+    actionOutput
+        .addFilesBuilder()
+        .setPath(execPath.getPathString())
+        .setContentKey(contentKey)
+        .setExecutable(file.isExecutable());
+  }
+
+  private Path getContentPath(String key) {
+    return casRoot.getRelative(key.substring(0, 2)).getChild(key);
+  }
+
+  private Path getActionOutputPath(String key) {
+    return acRoot.getRelative(key.substring(0, 2)).getChild(key);
+  }
+}
@@ -21,6 +21,8 @@ import com.google.devtools.build.lib.vfs.Path;
 
 import java.io.IOException;
 import java.util.Collection;
+import java.util.List;
+import java.util.Set;
 
 /**
  * A cache for storing artifacts (input and output) as well as the output of running an action.
@@ -42,9 +44,25 @@ interface RemoteActionCache {
    */
   String putFileIfNotExist(ActionInputFileCache cache, ActionInput file) throws IOException;
 
+  /**
+   * Same as {@link putFileIfNotExist(ActionInputFileCache, ActionInput)} for many files at once.
+   * Implementations should check which files are already stored in a single batch and upload only
+   * the missing ones.
+   *
+   * @return The keys for fetching the files from cache, in the same order as {@code files}.
+   */
+  List<String> putFilesIfNotExist(ActionInputFileCache cache, List<? extends ActionInput> files)
+      throws IOException;
+
+  /** Returns the subset of the given content keys that are not stored in cache. */
+  Set<String> findMissing(Collection<String> keys) throws IOException;
+
   /**
    * Write the file in cache identified by key to the file system. The key must uniquely identify
    * the content of the file. Throws CacheNotFoundException if the file is not found in cache.
+   *
+   * <p>Implementations should stream the content to {@code dest} rather than reading the whole
+   * file into memory, since outputs can be arbitrarily large.
    */
   void writeFile(String key, Path dest, boolean executable)
       throws IOException, CacheNotFoundException;
@@ -24,13 +24,17 @@ import com.google.devtools.build.lib.runtime.BlazeModule;
 import com.google.devtools.build.lib.runtime.Command;
 import com.google.devtools.build.lib.runtime.CommandEnvironment;
 import com.google.devtools.common.options.OptionsBase;
+import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.logging.Logger;
 
 /**
  * RemoteModule provides distributed cache and remote execution for Bazel.
  */
 public final class RemoteModule extends BlazeModule {
+  private static final Logger LOG = Logger.getLogger(RemoteModule.class.getName());
+
   private CommandEnvironment env;
   private BuildRequest buildRequest;
   private RemoteActionCache actionCache;
@@ -52,6 +56,15 @@ public final class RemoteModule extends BlazeModule {
 
   @Override
   public void afterCommand() {
+    if (actionCache instanceof ConcurrentMapActionCache) {
+      ConcurrentMapActionCache cache = (ConcurrentMapActionCache) actionCache;
+      LOG.info(
+          "Remote cache transfers since server start: "
+              + cache.getUploadedBytes()
+              + " bytes uploaded, "
+              + cache.getSkippedBytes()
+              + " bytes already cached");
+    }
     this.env = null;
     this.buildRequest = null;
   }
@@ -79,6 +92,15 @@ public final class RemoteModule extends BlazeModule {
                 RestUrlCacheFactory.create(options));
       }
       actionCache = cache;
+      if (actionCache == null && options.diskCachePath != null) {
+        try {
+          actionCache =
+              OnDiskActionCache.create(this.env.getDirectories().getExecRoot(), options);
+        } catch (IOException e) {
+          env.getReporter()
+              .handle(Event.warn("Failed to initialize the disk cache (" + e + ")."));
+        }
+      }
     }
 
     if (cache != null) {
@@ -31,6 +31,27 @@ public final class RemoteOptions extends OptionsBase {
   )
   public String restCacheUrl;
 
+  @Option(
+    name = "disk_cache_path",
+    defaultValue = "null",
+    category = "remote",
+    help =
+        "A directory on the local disk for storing build artifacts. The directory can be shared "
+            + "by different output bases. Ignored if --hazelcast_node, --hazelcast_client_config "
+            + "or --rest_cache_url is set."
+  )
+  public String diskCachePath;
+
+  @Option(
+    name = "disk_cache_max_size_mb",
+    defaultValue = "10240",
+    category = "remote",
+    help =
+        "The maximum total size of the files stored in --disk_cache_path. The least recently "
+            + "used files are evicted when the limit is exceeded."
+  )
+  public long diskCacheMaxSizeMb;
+
   @Option(
     name = "hazelcast_node",
     defaultValue = "null",
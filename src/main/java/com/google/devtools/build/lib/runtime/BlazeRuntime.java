@@ -29,6 +29,7 @@ import com.google.devtools.build.lib.analysis.ServerDirectories;
 import com.google.devtools.build.lib.analysis.config.BinTools;
 import com.google.devtools.build.lib.analysis.config.BuildOptions;
 import com.google.devtools.build.lib.analysis.config.ConfigurationFactory;
+import com.google.devtools.build.lib.concurrent.SharedThreadPools;
 import com.google.devtools.build.lib.events.Event;
 import com.google.devtools.build.lib.events.OutputFilter;
 import com.google.devtools.build.lib.flags.CommandNameCache;
@@ -43,6 +44,7 @@ import com.google.devtools.build.lib.profiler.Profiler.ProfiledTaskKinds;
 import com.google.devtools.build.lib.profiler.ProfilerTask;
 import com.google.devtools.build.lib.query2.AbstractBlazeQueryEnvironment;
 import com.google.devtools.build.lib.query2.QueryEnvironmentFactory;
+import com.google.devtools.build.lib.query2.QueryResultCache;
 import com.google.devtools.build.lib.query2.output.OutputFormatter;
 import com.google.devtools.build.lib.rules.test.CoverageReportActionFactory;
 import com.google.devtools.build.lib.runtime.BlazeCommandDispatcher.LockingMode;
@@ -57,6 +59,7 @@ import com.google.devtools.build.lib.util.AbruptExitException;
 import com.google.devtools.build.lib.util.BlazeClock;
 import com.google.devtools.build.lib.util.Clock;
 import com.google.devtools.build.lib.util.ExitCode;
+import com.google.devtools.build.lib.util.Fingerprint;
 import com.google.devtools.build.lib.util.LoggingUtil;
 import com.google.devtools.build.lib.util.OS;
 import com.google.devtools.build.lib.util.OsUtils;
@@ -132,6 +135,7 @@ public final class BlazeRuntime {
   private final InvocationPolicy invocationPolicy;
   private final String defaultsPackageContent;
   private final QueryEnvironmentFactory queryEnvironmentFactory;
+  private final QueryResultCache queryResultCache = new QueryResultCache();
   private final SubscriberExceptionHandler eventBusExceptionHandler;
   private final String productName;
 
@@ -174,7 +178,10 @@ public final class BlazeRuntime {
     Preconditions.checkState(this.workspace == null);
     boolean watchFS = startupOptionsProvider != null
         && startupOptionsProvider.getOptions(BlazeServerStartupOptions.class).watchFS;
-    WorkspaceBuilder builder = new WorkspaceBuilder(directories, binTools, watchFS);
+    boolean compactSkyframeGraph = startupOptionsProvider != null
+        && startupOptionsProvider.getOptions(BlazeServerStartupOptions.class).compactSkyframeGraph;
+    WorkspaceBuilder builder =
+        new WorkspaceBuilder(directories, binTools, watchFS, compactSkyframeGraph);
     for (BlazeModule module : blazeModules) {
       module.workspaceInit(directories, builder);
     }
@@ -280,6 +287,13 @@ public final class BlazeRuntime {
     return queryEnvironmentFactory;
   }
 
+  /**
+   * Returns the cache of query results that is shared by all commands.
+   */
+  public QueryResultCache getQueryResultCache() {
+    return queryResultCache;
+  }
+
   /**
    * Returns the package factory.
    */
@@ -366,6 +380,9 @@ public final class BlazeRuntime {
       }
     }
 
+    // Only report the thread pool usage of this command in afterCommand.
+    SharedThreadPools.getUtilizationAndReset();
+
     // Initialize exit code to dummy value for afterCommand.
     storedExitCode.set(ExitCode.RESERVED.getNumericExitCode());
   }
@@ -399,8 +416,14 @@ public final class BlazeRuntime {
       module.afterCommand();
     }
 
+    queryResultCache.dropOutdated(env.getSkyframeExecutor().getPackageGeneration());
+
     env.getBlazeWorkspace().clearEventBus();
 
+    for (SharedThreadPools.Utilization utilization : SharedThreadPools.getUtilizationAndReset()) {
+      Profiler.instance().logEvent(ProfilerTask.THREAD_POOL_UTILIZATION, utilization.toString());
+    }
+
     try {
       Profiler.instance().stop();
       MemoryProfiler.instance().stop();
@@ -870,6 +893,7 @@ public final class BlazeRuntime {
     if (startupOptions.oomMoreEagerly) {
       new OomSignalHandler();
     }
+    Fingerprint.setDigestFunction(startupOptions.digestFunction);
     PathFragment workspaceDirectory = startupOptions.workspaceDirectory;
     PathFragment installBase = startupOptions.installBase;
     PathFragment outputBase = startupOptions.outputBase;
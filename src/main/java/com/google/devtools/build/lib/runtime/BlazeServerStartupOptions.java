@@ -14,6 +14,7 @@
 package com.google.devtools.build.lib.runtime;
 
 import com.google.common.collect.ImmutableMap;
+import com.google.devtools.build.lib.util.DigestFunction;
 import com.google.devtools.build.lib.util.OptionsUtils;
 import com.google.devtools.build.lib.vfs.PathFragment;
 import com.google.devtools.common.options.Converter;
@@ -241,6 +242,32 @@ public class BlazeServerStartupOptions extends OptionsBase {
   )
   public boolean watchFS;
 
+  @Option(name = "digest_function",
+      defaultValue = "md5",
+      category = "server startup",
+      converter = DigestFunction.Converter.class,
+      help = "The hash function used for action keys and other fingerprints computed by the "
+          + "server. Valid values are 'md5', 'sha1', 'sha256' and 'murmur3'. 'murmur3' is the "
+          + "fastest but is not collision resistant, so it should only be used when no caches are "
+          + "shared with other users. File contents are always digested with MD5.")
+  public DigestFunction digestFunction;
+
+  @Option(name = "experimental_mapped_action_cache_index",
+      defaultValue = "false",
+      category = "server startup",
+      help = "If true, the action cache keeps the file names it refers to in a memory-mapped "
+          + "file, so that they are only read into memory when used. This speeds up server "
+          + "startup and saves memory with large action caches. Only supported on Unix.")
+  public boolean mappedActionCacheIndex;
+
+  @Option(name = "experimental_compact_skyframe_graph",
+      defaultValue = "false",
+      category = "server startup",
+      help = "If true, the Skyframe graph identifies its nodes by dense integer ids and stores "
+          + "the dependencies of evaluated nodes as arrays of ids. This reduces the memory used "
+          + "by the graph of large builds.")
+  public boolean compactSkyframeGraph;
+
   @Option(name = "invocation_policy",
       defaultValue = "",
       category = "undocumented",
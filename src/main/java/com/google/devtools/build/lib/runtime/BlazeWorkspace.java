@@ -21,6 +21,8 @@ import com.google.common.eventbus.EventBus;
 import com.google.common.eventbus.SubscriberExceptionHandler;
 import com.google.devtools.build.lib.actions.cache.ActionCache;
 import com.google.devtools.build.lib.actions.cache.CompactPersistentActionCache;
+import com.google.devtools.build.lib.actions.cache.DigestUtils;
+import com.google.devtools.build.lib.actions.cache.PersistentDigestCache;
 
 import com.google.devtools.build.lib.analysis.BlazeDirectories;
 import com.google.devtools.build.lib.analysis.WorkspaceStatusAction;
@@ -63,7 +65,8 @@ public final class BlazeWorkspace {
   private final BlazeDirectories directories;
   private final SkyframeExecutor skyframeExecutor;
   /** The action cache is loaded lazily on the first build command. */
-  private ActionCache actionCache;
+  private CompactPersistentActionCache actionCache;
+  private PersistentDigestCache digestCache;
   /** The execution time range of the previous build command in this server, if any. */
   @Nullable private Range<Long> lastExecutionRange = null;
 
@@ -202,7 +205,13 @@ public final class BlazeWorkspace {
    */
   public void clearCaches() throws IOException {
     skyframeExecutor.resetEvaluator();
+    if (actionCache != null) {
+      // A background compaction would otherwise write the deleted files again.
+      actionCache.close();
+    }
     actionCache = null;
+    digestCache = null;
+    DigestUtils.configureCache(null);
     FileSystemUtils.deleteTree(getCacheDirectory());
   }
 
@@ -215,7 +224,7 @@ public final class BlazeWorkspace {
     if (actionCache == null) {
       try (AutoProfiler p = profiledAndLogged("Loading action cache", ProfilerTask.INFO, LOG)) {
         try {
-          actionCache = new CompactPersistentActionCache(getCacheDirectory(), runtime.getClock());
+          actionCache = newPersistentActionCache();
         } catch (IOException e) {
           LOG.log(Level.WARNING, "Failed to load action cache: " + e.getMessage(), e);
           LoggingUtil.logToRemote(
@@ -228,13 +237,42 @@ public final class BlazeWorkspace {
                       + getCacheDirectory()
                       + "/*.bad'. "
                       + "Blaze will now reset action cache data, causing a full rebuild"));
-          actionCache = new CompactPersistentActionCache(getCacheDirectory(), runtime.getClock());
+          actionCache = newPersistentActionCache();
         }
       }
     }
+    if (digestCache == null) {
+      try (AutoProfiler p = profiledAndLogged("Loading digest cache", ProfilerTask.INFO, LOG)) {
+        try {
+          digestCache = new PersistentDigestCache(getCacheDirectory(), runtime.getClock());
+        } catch (IOException e) {
+          // Only an optimization, so just start over.
+          LOG.log(Level.WARNING, "Failed to load digest cache: " + e.getMessage(), e);
+          PersistentDigestCache.cacheFile(getCacheDirectory()).delete();
+          PersistentDigestCache.journalFile(getCacheDirectory()).delete();
+          digestCache = new PersistentDigestCache(getCacheDirectory(), runtime.getClock());
+        }
+      }
+      DigestUtils.configureCache(digestCache);
+    }
     return actionCache;
   }
 
+  private CompactPersistentActionCache newPersistentActionCache() throws IOException {
+    boolean mappedIndex = runtime.getStartupOptionsProvider()
+        .getOptions(BlazeServerStartupOptions.class).mappedActionCacheIndex;
+    return new CompactPersistentActionCache(getCacheDirectory(), runtime.getClock(), mappedIndex);
+  }
+
+  /**
+   * Returns the persistent digest cache, or null if it was not loaded yet by {@link
+   * #getPersistentActionCache}.
+   */
+  @Nullable
+  public PersistentDigestCache getPersistentDigestCache() {
+    return digestCache;
+  }
+
   /**
    * Generates a README file in the output base directory. This README file
    * contains the name of the workspace directory, so that users can figure out
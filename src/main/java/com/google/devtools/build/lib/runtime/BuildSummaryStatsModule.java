@@ -16,16 +16,21 @@ package com.google.devtools.build.lib.runtime;
 import com.google.common.base.Joiner;
 import com.google.common.eventbus.EventBus;
 import com.google.common.eventbus.Subscribe;
+import com.google.devtools.build.lib.actions.Artifact;
 import com.google.devtools.build.lib.buildtool.buildevent.BuildCompleteEvent;
 import com.google.devtools.build.lib.buildtool.buildevent.ExecutionStartingEvent;
 import com.google.devtools.build.lib.events.Event;
 import com.google.devtools.build.lib.events.Reporter;
 import com.google.devtools.build.lib.profiler.Profiler;
 import com.google.devtools.build.lib.profiler.ProfilerTask;
+import com.google.devtools.build.lib.skyframe.CriticalPathSchedulingPolicy;
+import com.google.devtools.build.lib.skyframe.SkyframeExecutor;
 import com.google.devtools.build.lib.util.BlazeClock;
+import com.google.devtools.build.skyframe.SkyFunctionStatistics;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
@@ -39,11 +44,15 @@ public class BuildSummaryStatsModule extends BlazeModule {
   private SimpleCriticalPathComputer criticalPathComputer;
   private EventBus eventBus;
   private Reporter reporter;
+  private SkyframeExecutor skyframeExecutor;
+  private SkyFunctionStatistics skyFunctionStatistics;
 
   @Override
   public void beforeCommand(Command command, CommandEnvironment env) {
     this.reporter = env.getReporter();
     this.eventBus = env.getEventBus();
+    this.skyframeExecutor = env.getSkyframeExecutor();
+    this.skyFunctionStatistics = env.getSkyframeExecutor().getSkyFunctionStatistics();
     eventBus.register(this);
   }
 
@@ -52,6 +61,8 @@ public class BuildSummaryStatsModule extends BlazeModule {
     this.criticalPathComputer = null;
     this.eventBus = null;
     this.reporter = null;
+    this.skyframeExecutor = null;
+    this.skyFunctionStatistics = null;
   }
 
   @Subscribe
@@ -85,8 +96,18 @@ public class BuildSummaryStatsModule extends BlazeModule {
               ProfilerTask.CRITICAL_PATH_COMPONENT, stat.getAction());
         }
         Profiler.instance().completeTask(ProfilerTask.CRITICAL_PATH);
+        // Lets the next builds start with the actions on the longest chains of this one.
+        CriticalPathSchedulingPolicy criticalPathSchedulingPolicy =
+            skyframeExecutor.getCriticalPathSchedulingPolicy();
+        if (criticalPathSchedulingPolicy != null) {
+          for (Map.Entry<Artifact, Long> entry
+              : criticalPathComputer.computeLongestPathThroughMillis().entrySet()) {
+            criticalPathSchedulingPolicy.recordCriticalPath(entry.getKey(), entry.getValue());
+          }
+        }
       }
 
+      skyFunctionStatistics.logToProfiler();
       reporter.handle(Event.info(Joiner.on(", ").join(items)));
     } finally {
       criticalPathComputer = null;
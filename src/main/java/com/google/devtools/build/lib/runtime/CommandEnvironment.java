@@ -23,6 +23,7 @@ import com.google.common.eventbus.EventBus;
 import com.google.devtools.build.lib.actions.PackageRootResolver;
 import com.google.devtools.build.lib.actions.cache.ActionCache;
 import com.google.devtools.build.lib.actions.cache.CompactPersistentActionCache;
+import com.google.devtools.build.lib.actions.cache.PersistentDigestCache;
 import com.google.devtools.build.lib.analysis.BlazeDirectories;
 import com.google.devtools.build.lib.analysis.BuildView;
 import com.google.devtools.build.lib.analysis.SkyframePackageRootResolver;
@@ -65,6 +66,8 @@ import java.util.TreeMap;
 import java.util.UUID;
 import java.util.concurrent.atomic.AtomicReference;
 
+import javax.annotation.Nullable;
+
 /**
  * Encapsulates the state needed for a single command. The environment is dropped when the current
  * command is done and all corresponding objects are garbage collected.
@@ -312,6 +315,15 @@ public final class CommandEnvironment {
     return workspace.getPersistentActionCache(reporter);
   }
 
+  /**
+   * Returns the persistent digest cache, or null if it was not loaded yet by {@link
+   * #getPersistentActionCache}.
+   */
+  @Nullable
+  public PersistentDigestCache getPersistentDigestCache() {
+    return workspace.getPersistentDigestCache();
+  }
+
   /**
    * An array of String values useful if Blaze crashes.
    * For now, just returns the size of the action cache and the build id; the latter as
@@ -27,11 +27,18 @@ import com.google.devtools.build.lib.actions.CachedActionEvent;
 import com.google.devtools.build.lib.util.Clock;
 import com.google.devtools.build.lib.util.Preconditions;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.PriorityQueue;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
 
 import javax.annotation.concurrent.ThreadSafe;
 
@@ -185,6 +192,80 @@ public abstract class CriticalPathComputer<C extends AbstractCriticalPathCompone
     }
   }
 
+  /**
+   * Returns, for each output of the finished actions, the longest chain of finished actions
+   * through its action: the critical path up to the action, as given by {@link
+   * AbstractCriticalPathComponent#getAggregatedElapsedTimeMillis}, followed by the longest chain of
+   * actions that consumed the outputs of the action.
+   *
+   * <p>Among the actions that can run at the same time, the ones with the longest such chain are
+   * those to start first: the part from the action on is the time the build still needed once it
+   * started, had there been enough threads. The part up to the action lets the inputs of the
+   * actions on long chains be requested first too, as Skyframe discovers them from the actions
+   * consuming them. Only meant to be called once the build is done.
+   */
+  public Map<Artifact, Long> computeLongestPathThroughMillis() {
+    Map<C, RemainingPath<C>> paths = new IdentityHashMap<>();
+    for (C component : outputArtifactToComponent.values()) {
+      if (!component.isRunning && !paths.containsKey(component)) {
+        paths.put(component, new RemainingPath<>(component));
+      }
+    }
+    // Links each action to the actions generating its inputs, which it is a consumer of.
+    for (RemainingPath<C> path : paths.values()) {
+      for (Artifact input : path.component.getAction().getInputs()) {
+        RemainingPath<C> producer = paths.get(outputArtifactToComponent.get(input));
+        if (producer != null && producer != path) {
+          path.producers.add(producer);
+          producer.pendingConsumers++;
+        }
+      }
+    }
+    // Visits the actions from the last ones of each chain back, each after all of its consumers.
+    Deque<RemainingPath<C>> ready = new ArrayDeque<>();
+    for (RemainingPath<C> path : paths.values()) {
+      if (path.pendingConsumers == 0) {
+        ready.add(path);
+      }
+    }
+    while (!ready.isEmpty()) {
+      RemainingPath<C> path = ready.poll();
+      path.remainingNanos += path.component.getElapsedTimeNanos();
+      for (RemainingPath<C> producer : path.producers) {
+        producer.remainingNanos = Math.max(producer.remainingNanos, path.remainingNanos);
+        if (--producer.pendingConsumers == 0) {
+          ready.add(producer);
+        }
+      }
+    }
+
+    Map<Artifact, Long> result = new HashMap<>();
+    for (Map.Entry<Artifact, C> entry : outputArtifactToComponent.entrySet()) {
+      RemainingPath<C> path = paths.get(entry.getValue());
+      if (path != null) {
+        long throughNanos =
+            path.component.getAggregatedElapsedTimeNanos()
+                + path.remainingNanos
+                - path.component.getElapsedTimeNanos();
+        result.put(entry.getKey(), TimeUnit.NANOSECONDS.toMillis(throughNanos));
+      }
+    }
+    return result;
+  }
+
+  /** The chain of consumers of a component, while it is being computed. */
+  private static final class RemainingPath<C> {
+    private final C component;
+    private final List<RemainingPath<C>> producers = new ArrayList<>();
+    private int pendingConsumers;
+    /** The longest chain of the consumers visited so far, then of the component and them. */
+    private long remainingNanos;
+
+    private RemainingPath(C component) {
+      this.component = component;
+    }
+  }
+
   /**
    * The list of slowest individual components, ignoring the time to build dependencies.
    */
@@ -0,0 +1,101 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.runtime;
+
+import com.google.common.collect.ImmutableList;
+import com.google.devtools.build.lib.profiler.AutoProfiler;
+import com.google.devtools.build.lib.skyframe.SkyframeExecutor;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.common.options.Option;
+import com.google.devtools.common.options.OptionsBase;
+import com.google.devtools.common.options.OptionsProvider;
+
+import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Blaze module that saves the file system state known to Skyframe when the server shuts down, and
+ * restores it in the first build of the next server, so that it doesn't start from an empty graph.
+ */
+public final class SkyframeSnapshotModule extends BlazeModule {
+  private static final Logger LOG = Logger.getLogger(SkyframeSnapshotModule.class.getName());
+
+  /** Options of {@link SkyframeSnapshotModule}. */
+  public static final class Options extends OptionsBase {
+    @Option(
+      name = "experimental_skyframe_snapshot",
+      defaultValue = "false",
+      category = "undocumented",
+      help =
+          "If set, the state of the source files known to the server is saved in the output base "
+              + "when the server shuts down, and a new server starts from it instead of reading "
+              + "every file and directory again. The saved state is checked against the file "
+              + "system before use."
+    )
+    public boolean skyframeSnapshot;
+  }
+
+  private CommandEnvironment env;
+  /** Whether a snapshot was already offered to the Skyframe executor of this server. */
+  private boolean restoreRequested;
+  /** The executor and file to save the snapshot from and to at shutdown, if enabled. */
+  private SkyframeExecutor skyframeExecutorToSave;
+  private Path snapshotFileToSave;
+
+  @Override
+  public Iterable<Class<? extends OptionsBase>> getCommonCommandOptions() {
+    return ImmutableList.<Class<? extends OptionsBase>>of(Options.class);
+  }
+
+  @Override
+  public void beforeCommand(Command command, CommandEnvironment env) {
+    this.env = env;
+  }
+
+  @Override
+  public void handleOptions(OptionsProvider optionsProvider) {
+    if (!optionsProvider.getOptions(Options.class).skyframeSnapshot) {
+      skyframeExecutorToSave = null;
+      snapshotFileToSave = null;
+      return;
+    }
+    Path snapshotFile = env.getBlazeWorkspace().getCacheDirectory().getChild("skyframe_snapshot");
+    if (!restoreRequested) {
+      restoreRequested = true;
+      env.getSkyframeExecutor().restoreSnapshotOnNextSync(snapshotFile);
+    }
+    skyframeExecutorToSave = env.getSkyframeExecutor();
+    snapshotFileToSave = snapshotFile;
+  }
+
+  @Override
+  public void afterCommand() {
+    this.env = null;
+  }
+
+  @Override
+  public void blazeShutdown() {
+    if (skyframeExecutorToSave == null) {
+      return;
+    }
+    try (AutoProfiler p = AutoProfiler.logged("saving Skyframe snapshot", LOG)) {
+      snapshotFileToSave.getParentDirectory().createDirectory();
+      int saved = skyframeExecutorToSave.saveSnapshot(snapshotFileToSave);
+      LOG.info("Saved " + saved + " values to the Skyframe snapshot");
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "Failed to save Skyframe snapshot: " + e.getMessage(), e);
+    }
+  }
+}
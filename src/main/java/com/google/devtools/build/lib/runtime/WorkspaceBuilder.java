@@ -34,6 +34,7 @@ import com.google.devtools.build.lib.skyframe.SkyframeExecutorFactory;
 import com.google.devtools.build.lib.util.AbruptExitException;
 import com.google.devtools.build.lib.util.Preconditions;
 import com.google.devtools.build.lib.vfs.PathFragment;
+import com.google.devtools.build.skyframe.InMemoryMemoizingEvaluator;
 import com.google.devtools.build.skyframe.SkyFunction;
 import com.google.devtools.build.skyframe.SkyFunctionName;
 
@@ -47,6 +48,7 @@ public final class WorkspaceBuilder {
   private final BlazeDirectories directories;
   private final BinTools binTools;
   private final boolean watchFs;
+  private final boolean compactSkyframeGraph;
 
   private SkyframeExecutorFactory skyframeExecutorFactory;
   private WorkspaceStatusAction.Factory workspaceStatusActionFactory;
@@ -63,10 +65,12 @@ public final class WorkspaceBuilder {
   private final ImmutableList.Builder<SkyValueDirtinessChecker> customDirtinessCheckers =
       ImmutableList.builder();
 
-  WorkspaceBuilder(BlazeDirectories directories, BinTools binTools, boolean watchFs) {
+  WorkspaceBuilder(BlazeDirectories directories, BinTools binTools, boolean watchFs,
+      boolean compactSkyframeGraph) {
     this.directories = directories;
     this.binTools = binTools;
     this.watchFs = watchFs;
+    this.compactSkyframeGraph = compactSkyframeGraph;
   }
 
   BlazeWorkspace build(
@@ -77,7 +81,9 @@ public final class WorkspaceBuilder {
       SubscriberExceptionHandler eventBusExceptionHandler) throws AbruptExitException {
     // Set default values if none are set.
     if (skyframeExecutorFactory == null) {
-      skyframeExecutorFactory = new SequencedSkyframeExecutorFactory();
+      skyframeExecutorFactory = new SequencedSkyframeExecutorFactory(compactSkyframeGraph
+          ? InMemoryMemoizingEvaluator.COMPACT_GRAPH_SUPPLIER
+          : InMemoryMemoizingEvaluator.SUPPLIER);
     }
     if (allowedMissingInputs == null) {
       allowedMissingInputs = Predicates.alwaysFalse();
@@ -91,6 +91,14 @@ public class DumpCommand implements BlazeCommand {
         converter = SkyframeDumpEnumConverter.class,
         help = "Dump Skyframe graph: 'off', 'summary', or 'detailed'.")
     public SkyframeDumpOption dumpSkyframe;
+
+    @Option(name = "skyframe_stats",
+        defaultValue = "false",
+        category = "verbosity",
+        help = "Dump, for each SkyFunction, how many of its nodes the last build dirtied, found "
+            + "clean, re-evaluated to a new value or re-evaluated to an unchanged value, and the "
+            + "time spent on them.")
+    public boolean dumpSkyframeStats;
   }
 
   /**
@@ -124,7 +132,8 @@ public class DumpCommand implements BlazeCommand {
             || dumpOptions.dumpVfs
             || dumpOptions.dumpActionCache
             || dumpOptions.dumpRuleClasses
-            || (dumpOptions.dumpSkyframe != SkyframeDumpOption.OFF);
+            || (dumpOptions.dumpSkyframe != SkyframeDumpOption.OFF)
+            || dumpOptions.dumpSkyframeStats;
     if (!anyOutput) {
       Map<String, String> categories = new HashMap<>();
       categories.put("verbosity", "Options that control what internal state is dumped");
@@ -175,6 +184,11 @@ public class DumpCommand implements BlazeCommand {
         out.println();
       }
 
+      if (dumpOptions.dumpSkyframeStats) {
+        env.getSkyframeExecutor().getSkyFunctionStatistics().dump(out);
+        out.println();
+      }
+
       return success ? ExitCode.SUCCESS : ExitCode.ANALYSIS_FAILURE;
 
     } finally {
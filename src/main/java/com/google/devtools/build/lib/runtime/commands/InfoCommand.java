@@ -215,6 +215,7 @@ public class InfoCommand implements BlazeCommand {
         new InfoItem.MaxHeapSizeInfoItem(),
         new InfoItem.GcTimeInfoItem(),
         new InfoItem.GcCountInfoItem(),
+        new InfoItem.QueryResultCacheInfoItem(),
         new InfoItem.DefaultsPackageInfoItem(),
         new InfoItem.BuildLanguageInfoItem(),
         new InfoItem.DefaultPackagePathInfoItem(commandOptions));
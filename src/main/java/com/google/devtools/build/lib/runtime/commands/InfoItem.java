@@ -484,6 +484,23 @@ public abstract class InfoItem {
     }
   }
 
+  /**
+   * Info item for the query result cache statistics
+   */
+  public static final class QueryResultCacheInfoItem extends InfoItem {
+    public QueryResultCacheInfoItem() {
+      super("query-result-cache",
+          "Hits, misses and entries of the cache of query results.",
+          false);
+    }
+
+    @Override
+    public byte[] get(Supplier<BuildConfiguration> configurationSupplier, CommandEnvironment env)
+        throws AbruptExitException {
+      return print(env.getRuntime().getQueryResultCache().getStatistics());
+    }
+  }
+
   /**
    * Info item for the default package. It is deprecated, it still works, when
    * explicitly requested, but are not shown by default. It prints multi-line messages and thus
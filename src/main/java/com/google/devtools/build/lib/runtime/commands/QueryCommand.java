@@ -140,7 +140,8 @@ public final class QueryCommand implements BlazeCommand {
             !streamResults,
             queryOptions.universeScope,
             queryOptions.loadingPhaseThreads,
-            settings)) {
+            settings,
+            queryOptions.useRdepsIndex)) {
       // 1. Parse and transform query:
       QueryExpression expr;
       try {
@@ -169,7 +170,20 @@ public final class QueryCommand implements BlazeCommand {
       boolean catastrophe = true;
       try {
         callback.start();
-        result = queryEnv.evaluateQuery(expr, callback);
+        if (streamResults) {
+          result =
+              runtime
+                  .getQueryResultCache()
+                  .evaluateQuery(
+                      queryEnv,
+                      expr,
+                      getResultCacheContext(env, queryOptions, settings),
+                      env.getSkyframeExecutor().getPackageGeneration(),
+                      queryOptions.queryResultCacheSize,
+                      callback);
+        } else {
+          result = queryEnv.evaluateQuery(expr, callback);
+        }
         catastrophe = false;
       } catch (QueryException e) {
         catastrophe = false;
@@ -251,6 +265,20 @@ public final class QueryCommand implements BlazeCommand {
     return result.getSuccess() ? ExitCode.SUCCESS : ExitCode.PARTIAL_ANALYSIS_FAILURE;
   }
 
+  /**
+   * Returns what the result of a query depends on besides the query expression and the packages.
+   */
+  private static String getResultCacheContext(
+      CommandEnvironment env, QueryOptions queryOptions, Set<Setting> settings) {
+    return Joiner.on('\n')
+        .join(
+            env.getRelativeWorkingDirectory(),
+            queryOptions.universeScope,
+            settings,
+            queryOptions.keepGoing,
+            queryOptions.useRdepsIndex);
+  }
+
   /**
    * When Blaze is used with --color=no or not in a tty a ansi characters filter is set so that
    * we don't print fancy colors in non-supporting terminal outputs. But query output, specifically
@@ -272,6 +300,13 @@ public final class QueryCommand implements BlazeCommand {
   public static AbstractBlazeQueryEnvironment<Target> newQueryEnvironment(CommandEnvironment env,
       boolean keepGoing, boolean orderedResults, List<String> universeScope,
       int loadingPhaseThreads, Set<Setting> settings) {
+    return newQueryEnvironment(env, keepGoing, orderedResults, universeScope,
+        loadingPhaseThreads, settings, /*useRdepsIndex=*/ false);
+  }
+
+  public static AbstractBlazeQueryEnvironment<Target> newQueryEnvironment(CommandEnvironment env,
+      boolean keepGoing, boolean orderedResults, List<String> universeScope,
+      int loadingPhaseThreads, Set<Setting> settings, boolean useRdepsIndex) {
     ImmutableList.Builder<QueryFunction> functions = ImmutableList.builder();
     for (BlazeModule module : env.getRuntime().getBlazeModules()) {
       functions.addAll(module.getQueryFunctions());
@@ -290,7 +325,8 @@ public final class QueryCommand implements BlazeCommand {
         env.getReporter(),
         settings,
         functions.build(),
-        env.getPackageManager().getPackagePath());
+        env.getPackageManager().getPackagePath(),
+        useRdepsIndex ? env.getSkyframeExecutor().getReverseDepsIndex() : null);
   }
 
   private static class AggregateAllOutputFormatterCallback<T> extends OutputFormatterCallback<T> {
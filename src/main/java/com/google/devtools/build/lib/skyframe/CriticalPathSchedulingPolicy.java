@@ -0,0 +1,80 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.skyframe;
+
+import com.google.devtools.build.lib.actions.Action;
+import com.google.devtools.build.lib.actions.ActionExecutionMetadata;
+import com.google.devtools.build.lib.actions.Artifact;
+import com.google.devtools.build.lib.actions.ResourceManager;
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+import com.google.devtools.build.lib.vfs.PathFragment;
+import com.google.devtools.build.skyframe.SchedulingPolicy;
+import com.google.devtools.build.skyframe.SkyKey;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A {@link SchedulingPolicy} that evaluates first the actions, and the derived artifacts they
+ * generate, that were on the longest chains of actions in previous builds: the chain of actions
+ * they depend on, then them, then the longest chain of actions that consumed their outputs.
+ * Starting them early shortens the build when there are more runnable actions than threads. As an
+ * {@link ResourceManager.ActionPriority}, it also grants them local resources first.
+ *
+ * <p>Durations are recorded by output path, so they survive the re-analysis of the actions. Nodes
+ * that have no recorded duration get the lowest priority. The {@link SkyframeExecutor} clears
+ * them when the evaluator is reset and when prioritization is turned off.
+ */
+@ThreadSafe
+public final class CriticalPathSchedulingPolicy
+    implements SchedulingPolicy, ResourceManager.ActionPriority {
+  private final ConcurrentMap<PathFragment, Integer> criticalPathMillis =
+      new ConcurrentHashMap<>();
+
+  /**
+   * Records the longest chain of actions through the action generating {@code output}, replacing
+   * the one recorded by a previous build.
+   */
+  public void recordCriticalPath(Artifact output, long longestPathThroughMillis) {
+    criticalPathMillis.put(
+        output.getExecPath(), (int) Math.min(longestPathThroughMillis, Integer.MAX_VALUE));
+  }
+
+  /** Forgets all recorded critical paths. */
+  public void clear() {
+    criticalPathMillis.clear();
+  }
+
+  @Override
+  public int getPriority(SkyKey key) {
+    if (key.functionName().equals(SkyFunctions.ACTION_EXECUTION)) {
+      return getPriority(((Action) key.argument()).getPrimaryOutput());
+    } else if (key.functionName().equals(SkyFunctions.ARTIFACT)) {
+      Artifact artifact = ArtifactSkyKey.artifact(key);
+      return artifact.isSourceArtifact() ? 0 : getPriority(artifact);
+    } else {
+      return 0;
+    }
+  }
+
+  @Override
+  public int getPriority(ActionExecutionMetadata action) {
+    return getPriority(action.getPrimaryOutput());
+  }
+
+  private int getPriority(Artifact output) {
+    Integer millis = criticalPathMillis.get(output.getExecPath());
+    return millis == null ? 0 : millis;
+  }
+}
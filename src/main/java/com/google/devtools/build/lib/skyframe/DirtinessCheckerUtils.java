@@ -21,6 +21,7 @@ import com.google.common.collect.ImmutableList;
 import com.google.devtools.build.lib.skyframe.ExternalFilesHelper.FileType;
 import com.google.devtools.build.lib.util.Preconditions;
 import com.google.devtools.build.lib.util.io.TimestampGranularityMonitor;
+import com.google.devtools.build.lib.vfs.FileStatus;
 import com.google.devtools.build.lib.vfs.Path;
 import com.google.devtools.build.lib.vfs.RootedPath;
 import com.google.devtools.build.skyframe.SkyKey;
@@ -55,6 +56,23 @@ public class DirtinessCheckerUtils {
         return null;
       }
     }
+
+    @Override
+    public Path getPathToStat(SkyKey key) {
+      return ((RootedPath) key.argument()).asPath();
+    }
+
+    @Override
+    @Nullable
+    public SkyValue createNewValueWithStat(SkyKey key, @Nullable FileStatus statNoFollow,
+        @Nullable TimestampGranularityMonitor tsgm) {
+      RootedPath rootedPath = (RootedPath) key.argument();
+      try {
+        return FileStateValue.createWithStatNoFollowIfFound(rootedPath, statNoFollow, tsgm);
+      } catch (InconsistentFilesystemException | IOException e) {
+        return null;
+      }
+    }
   }
 
   static class DirectoryDirtinessChecker extends SkyValueDirtinessChecker {
@@ -91,6 +109,19 @@ public class DirtinessCheckerUtils {
     public SkyValue createNewValue(SkyKey key, @Nullable TimestampGranularityMonitor tsgm) {
       return checker.createNewValue(key, tsgm);
     }
+
+    @Override
+    @Nullable
+    public Path getPathToStat(SkyKey key) {
+      return checker.getPathToStat(key);
+    }
+
+    @Override
+    @Nullable
+    public SkyValue createNewValueWithStat(SkyKey key, @Nullable FileStatus statNoFollow,
+        @Nullable TimestampGranularityMonitor tsgm) {
+      return checker.createNewValueWithStat(key, statNoFollow, tsgm);
+    }
   }
 
   static final class MissingDiffDirtinessChecker extends BasicFilesystemDirtinessChecker {
@@ -136,7 +167,12 @@ public class DirtinessCheckerUtils {
     @Override
     public SkyValueDirtinessChecker.DirtyResult check(
         SkyKey skyKey, SkyValue oldValue, @Nullable TimestampGranularityMonitor tsgm) {
-      SkyValue newValue = super.createNewValue(skyKey, tsgm);
+      return createDirtyResult(skyKey, oldValue, super.createNewValue(skyKey, tsgm));
+    }
+
+    @Override
+    protected SkyValueDirtinessChecker.DirtyResult createDirtyResult(
+        SkyKey skyKey, SkyValue oldValue, @Nullable SkyValue newValue) {
       if (Objects.equal(newValue, oldValue)) {
         return SkyValueDirtinessChecker.DirtyResult.notDirty(oldValue);
       }
@@ -185,5 +221,26 @@ public class DirtinessCheckerUtils {
         @Nullable TimestampGranularityMonitor tsgm) {
       return Preconditions.checkNotNull(getChecker(key), key).check(key, oldValue, tsgm);
     }
+
+    @Override
+    @Nullable
+    public Path getPathToStat(SkyKey key) {
+      return Preconditions.checkNotNull(getChecker(key), key).getPathToStat(key);
+    }
+
+    @Override
+    @Nullable
+    public SkyValue createNewValueWithStat(SkyKey key, @Nullable FileStatus statNoFollow,
+        @Nullable TimestampGranularityMonitor tsgm) {
+      return Preconditions.checkNotNull(getChecker(key), key)
+          .createNewValueWithStat(key, statNoFollow, tsgm);
+    }
+
+    @Override
+    public DirtyResult checkWithStat(SkyKey key, @Nullable SkyValue oldValue,
+        @Nullable FileStatus statNoFollow, @Nullable TimestampGranularityMonitor tsgm) {
+      return Preconditions.checkNotNull(getChecker(key), key)
+          .checkWithStat(key, oldValue, statNoFollow, tsgm);
+    }
   }
 }
@@ -76,11 +76,21 @@ public abstract class FileStateValue implements SkyValue {
     Path path = rootedPath.asPath();
     // Stat, but don't throw an exception for the common case of a nonexistent file. This still
     // throws an IOException in case any other IO error is encountered.
-    FileStatus stat = path.statIfFound(Symlinks.NOFOLLOW);
-    if (stat == null) {
+    return createWithStatNoFollowIfFound(rootedPath, path.statIfFound(Symlinks.NOFOLLOW), tsgm);
+  }
+
+  /**
+   * Creates the value of {@code rootedPath} given its lstat, which is null if the path does not
+   * exist.
+   */
+  static FileStateValue createWithStatNoFollowIfFound(RootedPath rootedPath,
+      @Nullable FileStatus statNoFollow, @Nullable TimestampGranularityMonitor tsgm)
+          throws InconsistentFilesystemException, IOException {
+    if (statNoFollow == null) {
       return NONEXISTENT_FILE_STATE_NODE;
     }
-    return createWithStatNoFollow(rootedPath, FileStatusWithDigestAdapter.adapt(stat), tsgm);
+    return createWithStatNoFollow(
+        rootedPath, FileStatusWithDigestAdapter.adapt(statNoFollow), tsgm);
   }
 
   static FileStateValue createWithStatNoFollow(RootedPath rootedPath,
@@ -16,17 +16,16 @@ package com.google.devtools.build.lib.skyframe;
 import com.google.common.base.Predicate;
 import com.google.common.base.Supplier;
 import com.google.common.base.Suppliers;
-import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.ImmutableSortedSet;
 import com.google.common.collect.Range;
 import com.google.common.collect.Sets;
-import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.devtools.build.lib.actions.Artifact;
-import com.google.devtools.build.lib.concurrent.ExecutorUtil;
+import com.google.devtools.build.lib.concurrent.AbstractQueueVisitor;
+import com.google.devtools.build.lib.concurrent.QuiescingExecutor;
 import com.google.devtools.build.lib.concurrent.Sharder;
-import com.google.devtools.build.lib.concurrent.ThrowableRecordingRunnableWrapper;
+import com.google.devtools.build.lib.concurrent.SharedThreadPools;
 import com.google.devtools.build.lib.profiler.AutoProfiler;
 import com.google.devtools.build.lib.profiler.AutoProfiler.ElapsedTimeReceiver;
 import com.google.devtools.build.lib.skyframe.SkyValueDirtinessChecker.DirtyResult;
@@ -36,16 +35,19 @@ import com.google.devtools.build.lib.util.Pair;
 import com.google.devtools.build.lib.util.Preconditions;
 import com.google.devtools.build.lib.util.io.TimestampGranularityMonitor;
 import com.google.devtools.build.lib.vfs.BatchStat;
+import com.google.devtools.build.lib.vfs.FileStatus;
 import com.google.devtools.build.lib.vfs.FileStatusWithDigest;
 import com.google.devtools.build.lib.vfs.ModifiedFileSet;
 import com.google.devtools.build.lib.vfs.Path;
 import com.google.devtools.build.lib.vfs.PathFragment;
+import com.google.devtools.build.lib.vfs.Symlinks;
 import com.google.devtools.build.skyframe.Differencer;
 import com.google.devtools.build.skyframe.SkyFunctionName;
 import com.google.devtools.build.skyframe.SkyKey;
 import com.google.devtools.build.skyframe.SkyValue;
 import com.google.devtools.build.skyframe.WalkableGraph;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
@@ -55,8 +57,7 @@ import java.util.Map;
 import java.util.NavigableSet;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
@@ -69,9 +70,15 @@ import javax.annotation.Nullable;
  */
 public class FilesystemValueChecker {
 
-  private static final int DIRTINESS_CHECK_THREADS = 200;
   private static final Logger LOG = Logger.getLogger(FilesystemValueChecker.class.getName());
 
+  /** Maximum number of files of a directory that are statted by a single job. */
+  private static final int MAX_STAT_BATCH_SIZE = 100;
+
+  /** Runs the jobs of all the checks, which mostly wait for stats. */
+  private static final ThreadPoolExecutor CHECKER_POOL =
+      SharedThreadPools.get(SharedThreadPools.Pool.IO);
+
   private static final Predicate<SkyKey> ACTION_FILTER =
       SkyFunctionName.functionIs(SkyFunctions.ACTION_EXECUTION);
 
@@ -121,6 +128,12 @@ public class FilesystemValueChecker {
         dirtinessChecker, /*checkMissingValues=*/true);
   }
 
+  /** Returns an executor that runs jobs on the shared pool until it is quiescent. */
+  private static QuiescingExecutor newCheckerExecutor() {
+    return new AbstractQueueVisitor(
+        CHECKER_POOL, /*shutdownOnCompletion=*/ false, /*failFastOnException=*/ true);
+  }
+
   private interface ValueFetcher {
     @Nullable
     SkyValue get(SkyKey key) throws InterruptedException;
@@ -181,13 +194,8 @@ public class FilesystemValueChecker {
     }
     LOG.info("Sharded action values for batching");
 
-    ExecutorService executor = Executors.newFixedThreadPool(
-        numOutputJobs,
-        new ThreadFactoryBuilder().setNameFormat("FileSystem Output File Invalidator %d").build());
-
+    QuiescingExecutor executor = newCheckerExecutor();
     Collection<SkyKey> dirtyKeys = Sets.newConcurrentHashSet();
-    ThrowableRecordingRunnableWrapper wrapper =
-        new ThrowableRecordingRunnableWrapper("FileSystemValueChecker#getDirtyActionValues");
 
     modifiedOutputFilesCounter.set(0);
     modifiedOutputFilesIntraBuildCounter.set(0);
@@ -216,15 +224,11 @@ public class FilesystemValueChecker {
               sortedKnownModifiedOutputFiles)
           : batchStatJob(dirtyKeys, shard, batchStatter, knownModifiedOutputFiles,
               sortedKnownModifiedOutputFiles);
-      executor.submit(wrapper.wrap(job));
+      executor.execute(job);
     }
 
-    boolean interrupted = ExecutorUtil.interruptibleShutdown(executor);
-    Throwables.propagateIfPossible(wrapper.getFirstThrownError());
+    executor.awaitQuiescence(/*interruptWorkers=*/ true);
     LOG.info("Completed output file stat checks");
-    if (interrupted) {
-      throw new InterruptedException();
-    }
     return dirtyKeys;
   }
 
@@ -459,14 +463,8 @@ public class FilesystemValueChecker {
   private BatchDirtyResult getDirtyValues(ValueFetcher fetcher,
       Iterable<SkyKey> keys, final SkyValueDirtinessChecker checker,
       final boolean checkMissingValues) throws InterruptedException {
-    ExecutorService executor =
-        Executors.newFixedThreadPool(
-            DIRTINESS_CHECK_THREADS,
-            new ThreadFactoryBuilder().setNameFormat("FileSystem Value Invalidator %d").build());
-
+    QuiescingExecutor executor = newCheckerExecutor();
     final BatchDirtyResult batchResult = new BatchDirtyResult();
-    ThrowableRecordingRunnableWrapper wrapper =
-        new ThrowableRecordingRunnableWrapper("FilesystemValueChecker#getDirtyValues");
     final AtomicInteger numKeysScanned = new AtomicInteger(0);
     final AtomicInteger numKeysChecked = new AtomicInteger(0);
     ElapsedTimeReceiver elapsedTimeReceiver = new ElapsedTimeReceiver() {
@@ -481,6 +479,9 @@ public class FilesystemValueChecker {
         }
     };
     try (AutoProfiler prof = AutoProfiler.create(elapsedTimeReceiver)) {
+      // The keys whose new value only needs an lstat, grouped by the directory of the statted path
+      // so that the files of a directory are statted in batches.
+      Map<Path, List<KeyToCheck>> keysByDirectory = new HashMap<>();
       for (final SkyKey key : keys) {
         numKeysScanned.incrementAndGet();
         if (!checker.applies(key)) {
@@ -490,29 +491,89 @@ public class FilesystemValueChecker {
         if (!checkMissingValues && value == null) {
           continue;
         }
+        Path path = checker.getPathToStat(key);
+        Path dir = path == null ? null : path.getParentDirectory();
+        if (dir != null) {
+          List<KeyToCheck> batch = keysByDirectory.get(dir);
+          if (batch == null) {
+            batch = new ArrayList<>();
+            keysByDirectory.put(dir, batch);
+          }
+          batch.add(new KeyToCheck(key, value, path.getBaseName()));
+          if (batch.size() == MAX_STAT_BATCH_SIZE) {
+            executor.execute(
+                batchCheckJob(dir, batch, checker, batchResult, numKeysChecked));
+            keysByDirectory.remove(dir);
+          }
+          continue;
+        }
+        executor.execute(
+            new Runnable() {
+              @Override
+              public void run() {
+                numKeysChecked.incrementAndGet();
+                DirtyResult result = checker.check(key, value, tsgm);
+                if (result.isDirty()) {
+                  batchResult.add(key, value, result.getNewValue());
+                }
+              }
+            });
+      }
+      for (Map.Entry<Path, List<KeyToCheck>> entry : keysByDirectory.entrySet()) {
         executor.execute(
-            wrapper.wrap(
-                new Runnable() {
-                  @Override
-                  public void run() {
-                    numKeysChecked.incrementAndGet();
-                    DirtyResult result = checker.check(key, value, tsgm);
-                    if (result.isDirty()) {
-                      batchResult.add(key, value, result.getNewValue());
-                    }
-                  }
-                }));
+            batchCheckJob(entry.getKey(), entry.getValue(), checker, batchResult, numKeysChecked));
       }
 
-      boolean interrupted = ExecutorUtil.interruptibleShutdown(executor);
-      Throwables.propagateIfPossible(wrapper.getFirstThrownError());
-      if (interrupted) {
-        throw new InterruptedException();
-      }
+      executor.awaitQuiescence(/*interruptWorkers=*/ true);
     }
     return batchResult;
   }
 
+  /** A key to check, whose new value only needs an lstat of the given child of a directory. */
+  private static final class KeyToCheck {
+    private final SkyKey key;
+    @Nullable private final SkyValue value;
+    private final String baseName;
+
+    private KeyToCheck(SkyKey key, @Nullable SkyValue value, String baseName) {
+      this.key = key;
+      this.value = value;
+      this.baseName = baseName;
+    }
+  }
+
+  /** Returns a job that checks keys whose statted paths are all children of {@code dir}. */
+  private Runnable batchCheckJob(final Path dir, final List<KeyToCheck> batch,
+      final SkyValueDirtinessChecker checker, final BatchDirtyResult batchResult,
+      final AtomicInteger numKeysChecked) {
+    return new Runnable() {
+      @Override
+      public void run() {
+        List<String> names = new ArrayList<>(batch.size());
+        for (KeyToCheck keyToCheck : batch) {
+          names.add(keyToCheck.baseName);
+        }
+        List<FileStatus> stats;
+        try {
+          stats = dir.statChildrenIfFound(names, Symlinks.NOFOLLOW);
+        } catch (IOException e) {
+          // Check the keys one by one instead, so that each gets the result of its own stat.
+          stats = null;
+        }
+        for (int i = 0; i < batch.size(); i++) {
+          KeyToCheck keyToCheck = batch.get(i);
+          numKeysChecked.incrementAndGet();
+          DirtyResult result = stats == null
+              ? checker.check(keyToCheck.key, keyToCheck.value, tsgm)
+              : checker.checkWithStat(keyToCheck.key, keyToCheck.value, stats.get(i), tsgm);
+          if (result.isDirty()) {
+            batchResult.add(keyToCheck.key, keyToCheck.value, result.getNewValue());
+          }
+        }
+      }
+    };
+  }
+
   /**
    * Result of a batch call to {@link SkyValueDirtinessChecker#check}. Partitions the dirty
    * values based on whether we have a new value available for them or not.
@@ -0,0 +1,363 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.lib.skyframe;
+
+import com.google.common.collect.HashBiMap;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.devtools.build.lib.UnixJniLoader;
+import com.google.devtools.build.lib.util.Preconditions;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+
+/**
+ * A {@link DiffAwareness} that uses inotify directly, through JNI, to watch the file system on
+ * Linux.
+ *
+ * <p>Unlike {@link WatchServiceDiffAwareness}, the directories of the tree are registered on a
+ * background thread, so the first build does not wait for the whole tree to be walked. Until the
+ * tree is fully registered, views report unknown changes, which results in a full scan as for a
+ * build without a file system watcher. If the kernel event queue overflows, the events are lost
+ * but the watches are kept: the view reports unknown changes and the tree is walked again in the
+ * background to register the directories whose creation was missed.
+ */
+public final class LinuxInotifyDiffAwareness extends LocalDiffAwareness {
+  // From <sys/inotify.h>.
+  private static final int IN_MODIFY = 0x00000002;
+  private static final int IN_ATTRIB = 0x00000004;
+  private static final int IN_MOVED_FROM = 0x00000040;
+  private static final int IN_MOVED_TO = 0x00000080;
+  private static final int IN_CREATE = 0x00000100;
+  private static final int IN_DELETE = 0x00000200;
+  private static final int IN_DELETE_SELF = 0x00000400;
+  private static final int IN_MOVE_SELF = 0x00000800;
+  private static final int IN_Q_OVERFLOW = 0x00004000;
+  private static final int IN_IGNORED = 0x00008000;
+  private static final int IN_ISDIR = 0x40000000;
+
+  /** Size of the fixed part of a struct inotify_event: wd, mask, cookie and len. */
+  private static final int EVENT_HEADER_SIZE = 16;
+
+  /** Must be able to hold at least one event with a name of NAME_MAX bytes. */
+  private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+  /** The encoding used by java.nio.file to convert file names to bytes and back. */
+  private static final Charset FILE_NAME_CHARSET =
+      Charset.forName(
+          System.getProperty("sun.jnu.encoding", Charset.defaultCharset().name()));
+
+  static {
+    UnixJniLoader.loadJni();
+  }
+
+  /** The inotify file descriptor. */
+  private final int fd;
+
+  private final byte[] readBuffer = new byte[READ_BUFFER_SIZE];
+
+  /** Bijection from inotify watch descriptor to the (absolute) directory being watched. */
+  @GuardedBy("this")
+  private final HashBiMap<Integer, Path> watchDescriptorToDir = HashBiMap.create();
+
+  /** Walks the tree to register its directories, off the critical path of the build. */
+  private final ExecutorService registrationExecutor =
+      Executors.newSingleThreadExecutor(
+          new ThreadFactoryBuilder()
+              .setNameFormat("inotify-registration-%d")
+              .setDaemon(true)
+              .build());
+
+  /** Number of background walks of the whole tree that have not finished yet. */
+  private final AtomicInteger pendingRegistrations = new AtomicInteger();
+
+  /** The first error of a background walk, which makes this instance unusable. */
+  @Nullable private volatile IOException registrationFailure;
+
+  /** Whether all the directories of the tree were watched when the previous view was taken. */
+  @GuardedBy("this")
+  private boolean watchedEverythingAtLastView;
+
+  @GuardedBy("this")
+  private boolean closed;
+
+  LinuxInotifyDiffAwareness(String watchRoot) throws IOException {
+    super(watchRoot);
+    fd = inotifyInit();
+    registerInBackground();
+  }
+
+  private static native int inotifyInit() throws IOException;
+
+  /** Watches the directory at the given path, and returns the watch descriptor. */
+  private static native int inotifyAddWatch(int fd, byte[] path) throws IOException;
+
+  private static native void inotifyRemoveWatch(int fd, int wd) throws IOException;
+
+  /** Reads the pending events into the buffer, and returns the number of bytes read. */
+  private static native int inotifyRead(int fd, byte[] buffer) throws IOException;
+
+  private static native void inotifyClose(int fd) throws IOException;
+
+  @Override
+  public synchronized View getCurrentView() throws BrokenDiffAwarenessException {
+    Preconditions.checkState(!closed);
+    // Read before collecting the events, so that a walk that finishes concurrently is only taken
+    // into account by the next view.
+    boolean watchingEverything = pendingRegistrations.get() == 0;
+    IOException failure = registrationFailure;
+    if (failure != null) {
+      close();
+      throw new BrokenDiffAwarenessException(
+          "Error encountered with local file system watcher " + failure);
+    }
+    Set<Path> modifiedAbsolutePaths;
+    try {
+      modifiedAbsolutePaths = collectChanges();
+    } catch (BrokenDiffAwarenessException e) {
+      close();
+      throw e;
+    } catch (IOException e) {
+      close();
+      throw new BrokenDiffAwarenessException(
+          "Error encountered with local file system watcher " + e);
+    }
+    // Changes are only known if every directory was watched since the previous view.
+    boolean changesKnown = watchedEverythingAtLastView && modifiedAbsolutePaths != null;
+    watchedEverythingAtLastView = watchingEverything && modifiedAbsolutePaths != null;
+    return changesKnown ? newView(modifiedAbsolutePaths) : newUnknownChangesView();
+  }
+
+  @Override
+  public synchronized void close() {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    registrationExecutor.shutdownNow();
+    try {
+      inotifyClose(fd);
+    } catch (IOException ignored) {
+      // Nothing we can do here.
+    }
+  }
+
+  /**
+   * Returns the changed files reported by inotify, or null if some events were lost because the
+   * event queue overflowed.
+   */
+  @GuardedBy("this")
+  @Nullable
+  private Set<Path> collectChanges() throws BrokenDiffAwarenessException, IOException {
+    Set<Path> changedPaths = new HashSet<>();
+    Set<Path> createdDirectories = new HashSet<>();
+    boolean overflowed = false;
+    int length;
+    while ((length = inotifyRead(fd, readBuffer)) > 0) {
+      ByteBuffer events = ByteBuffer.wrap(readBuffer, 0, length).order(ByteOrder.nativeOrder());
+      while (events.remaining() >= EVENT_HEADER_SIZE) {
+        int wd = events.getInt();
+        int mask = events.getInt();
+        events.getInt(); // The cookie, which relates the two events of a rename.
+        int nameLength = events.getInt();
+        String name = readName(events, nameLength);
+        if ((mask & IN_Q_OVERFLOW) != 0) {
+          overflowed = true;
+          continue;
+        }
+        Path dir = watchDescriptorToDir.get(wd);
+        if (dir == null) {
+          // The watch was removed, and this event was queued before.
+          continue;
+        }
+        if ((mask & (IN_IGNORED | IN_DELETE_SELF | IN_MOVE_SELF)) != 0) {
+          if (dir.equals(watchRootPath)) {
+            throw new BrokenDiffAwarenessException(
+                "Root directory " + watchRootPath + " became inaccessible");
+          }
+          // Other directories are reported by the events of their parent.
+          if ((mask & IN_IGNORED) != 0) {
+            watchDescriptorToDir.remove(wd);
+          }
+          continue;
+        }
+        Path path = name.isEmpty() ? dir : dir.resolve(name);
+        boolean isDirectory = (mask & IN_ISDIR) != 0;
+        if ((mask & (IN_CREATE | IN_MOVED_TO)) != 0) {
+          if (isDirectory) {
+            // The contents of the directory were not watched yet, so they are walked below.
+            createdDirectories.add(path);
+          } else {
+            changedPaths.add(path);
+          }
+        } else if ((mask & (IN_DELETE | IN_MOVED_FROM)) != 0) {
+          changedPaths.add(path);
+          if (isDirectory) {
+            createdDirectories.remove(path);
+            removeWatchesUnder(path);
+          }
+        } else if ((mask & (IN_MODIFY | IN_ATTRIB)) != 0) {
+          changedPaths.add(path);
+        }
+      }
+    }
+
+    if (overflowed) {
+      // The events of directories created since the overflow may be lost, so walk the tree again
+      // to register them. The existing watches are still valid.
+      registerInBackground();
+      return null;
+    }
+    for (Path dir : createdDirectories) {
+      changedPaths.add(dir);
+      if (Files.isDirectory(dir, LinkOption.NOFOLLOW_LINKS)) {
+        registerSubDirectories(dir, changedPaths);
+      }
+    }
+    return changedPaths;
+  }
+
+  /** Reads the name of an event, which is padded with null bytes. */
+  private static String readName(ByteBuffer events, int nameLength) {
+    int start = events.position();
+    int end = start;
+    while (end < start + nameLength && events.get(end) != 0) {
+      end++;
+    }
+    events.position(start + nameLength);
+    return new String(events.array(), start, end - start, FILE_NAME_CHARSET);
+  }
+
+  /** Stops watching the given directory and all of its subdirectories. */
+  @GuardedBy("this")
+  private void removeWatchesUnder(Path removedDir) throws IOException {
+    List<Integer> removedWatchDescriptors = new ArrayList<>();
+    for (Map.Entry<Integer, Path> entry : watchDescriptorToDir.entrySet()) {
+      if (entry.getValue().startsWith(removedDir)) {
+        removedWatchDescriptors.add(entry.getKey());
+      }
+    }
+    for (int wd : removedWatchDescriptors) {
+      watchDescriptorToDir.remove(wd);
+      inotifyRemoveWatch(fd, wd);
+    }
+  }
+
+  /** Walks the whole tree on the registration thread to watch all of its directories. */
+  private void registerInBackground() {
+    pendingRegistrations.incrementAndGet();
+    registrationExecutor.execute(
+        new Runnable() {
+          @Override
+          public void run() {
+            try {
+              registerSubDirectories(watchRootPath, null);
+            } catch (IOException e) {
+              if (registrationFailure == null) {
+                registrationFailure = e;
+              }
+            } finally {
+              pendingRegistrations.decrementAndGet();
+            }
+          }
+        });
+  }
+
+  /**
+   * Walks the directory tree to watch its directories, and adds all the visited paths to the given
+   * set, if any.
+   */
+  private void registerSubDirectories(Path rootDir, @Nullable Set<Path> visitedAbsolutePaths)
+      throws IOException {
+    // Note that this does not follow symlinks.
+    Files.walkFileTree(rootDir, new WatcherFileVisitor(visitedAbsolutePaths));
+  }
+
+  /** Watches the given directory, unless this instance is closed. */
+  private synchronized FileVisitResult addWatch(Path dir) throws IOException {
+    if (closed) {
+      return FileVisitResult.TERMINATE;
+    }
+    int wd;
+    try {
+      wd = inotifyAddWatch(fd, dir.toString().getBytes(FILE_NAME_CHARSET));
+    } catch (FileNotFoundException e) {
+      // Deleted concurrently, which the watch of the parent reports.
+      return FileVisitResult.SKIP_SUBTREE;
+    }
+    // Watching a directory twice returns the same watch descriptor, but the directory may have
+    // been renamed since.
+    watchDescriptorToDir.forcePut(wd, dir);
+    return FileVisitResult.CONTINUE;
+  }
+
+  /** File visitor used by Files.walkFileTree() upon traversing subdirectories. */
+  private class WatcherFileVisitor extends SimpleFileVisitor<Path> {
+    @Nullable private final Set<Path> visitedAbsolutePaths;
+
+    private WatcherFileVisitor(@Nullable Set<Path> visitedAbsolutePaths) {
+      this.visitedAbsolutePaths = visitedAbsolutePaths;
+    }
+
+    @Override
+    public FileVisitResult visitFile(Path path, BasicFileAttributes attrs) {
+      if (visitedAbsolutePaths != null) {
+        visitedAbsolutePaths.add(path);
+      }
+      return FileVisitResult.CONTINUE;
+    }
+
+    @Override
+    public FileVisitResult visitFileFailed(Path path, IOException e) throws IOException {
+      if (e instanceof NoSuchFileException) {
+        // Deleted concurrently, which the watch of the parent reports.
+        return FileVisitResult.CONTINUE;
+      }
+      throw e;
+    }
+
+    @Override
+    public FileVisitResult preVisitDirectory(Path path, BasicFileAttributes attrs)
+        throws IOException {
+      // The directory is watched before its children are listed, so that a child created during
+      // the walk is either listed or reported by the watch.
+      Preconditions.checkState(path.isAbsolute(), path);
+      if (visitedAbsolutePaths != null) {
+        visitedAbsolutePaths.add(path);
+      }
+      return addWatch(path);
+    }
+  }
+}
@@ -28,14 +28,17 @@ import java.nio.file.Path;
 import java.nio.file.WatchService;
 import java.util.Set;
 
+import javax.annotation.Nullable;
+
 /**
  * File system watcher for local filesystems. It's able to provide a list of changed files between
- * two consecutive calls. On Linux, uses the standard Java WatchService, which uses 'inotify' and,
+ * two consecutive calls. On Linux, uses {@link LinuxInotifyDiffAwareness}, which uses 'inotify'
+ * directly and falls back to the standard Java WatchService if the JNI library is unavailable and,
  * on OS X, uses {@link MacOSXFsEventsDiffAwareness}, which use FSEvents.
  *
  * <p>
- * This is an abstract class, specialized by {@link MacOSXFsEventsDiffAwareness} and
- * {@link WatchServiceDiffAwareness}.
+ * This is an abstract class, specialized by {@link LinuxInotifyDiffAwareness},
+ * {@link MacOSXFsEventsDiffAwareness} and {@link WatchServiceDiffAwareness}.
  */
 public abstract class LocalDiffAwareness implements DiffAwareness {
 
@@ -72,6 +75,13 @@ public abstract class LocalDiffAwareness implements DiffAwareness {
       if (OS.getCurrent() == OS.DARWIN) {
         return new MacOSXFsEventsDiffAwareness(resolvedPathEntryFragment.toString());
       }
+      if (OS.getCurrent() == OS.LINUX) {
+        try {
+          return new LinuxInotifyDiffAwareness(resolvedPathEntryFragment.toString());
+        } catch (IOException | LinkageError e) {
+          // The JNI library is missing or inotify is unavailable, use the WatchService instead.
+        }
+      }
 
       WatchService watchService;
       try {
@@ -99,9 +109,14 @@ public abstract class LocalDiffAwareness implements DiffAwareness {
   private static class SequentialView implements DiffAwareness.View {
     private final LocalDiffAwareness owner;
     private final int position;
-    private final Set<Path> modifiedAbsolutePaths;
+    @Nullable private final Set<Path> modifiedAbsolutePaths;
 
-    public SequentialView(LocalDiffAwareness owner, int position, Set<Path> modifiedAbsolutePaths) {
+    /**
+     * Creates a view. A null set of modified paths means that the changes since the previous view
+     * are not known.
+     */
+    public SequentialView(
+        LocalDiffAwareness owner, int position, @Nullable Set<Path> modifiedAbsolutePaths) {
       this.owner = owner;
       this.position = position;
       this.modifiedAbsolutePaths = modifiedAbsolutePaths;
@@ -135,6 +150,15 @@ public abstract class LocalDiffAwareness implements DiffAwareness {
     return new SequentialView(this, numGetCurrentViewCalls, modifiedAbsolutePaths);
   }
 
+  /**
+   * Creates a new view for which the files modified since the previous view are not known, for
+   * instance because some events were lost. This will increase the view counter.
+   */
+  protected SequentialView newUnknownChangesView() {
+    numGetCurrentViewCalls++;
+    return new SequentialView(this, numGetCurrentViewCalls, null);
+  }
+
   @Override
   public ModifiedFileSet getDiff(View oldView, View newView)
       throws IncompatibleViewException, BrokenDiffAwarenessException {
@@ -146,7 +170,8 @@ public abstract class LocalDiffAwareness implements DiffAwareness {
     } catch (ClassCastException e) {
       throw new IncompatibleViewException("Given views are not from LocalDiffAwareness");
     }
-    if (!SequentialView.areInSequence(oldSequentialView, newSequentialView)) {
+    if (!SequentialView.areInSequence(oldSequentialView, newSequentialView)
+        || newSequentialView.modifiedAbsolutePaths == null) {
       return ModifiedFileSet.EVERYTHING_MODIFIED;
     }
     return ModifiedFileSet.builder()
@@ -0,0 +1,289 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.skyframe;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.devtools.build.lib.cmdline.Label;
+import com.google.devtools.build.lib.cmdline.PackageIdentifier;
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+import com.google.devtools.build.lib.packages.DependencyFilter;
+import com.google.devtools.build.lib.packages.Package;
+import com.google.devtools.build.lib.packages.Rule;
+import com.google.devtools.build.lib.packages.Target;
+import com.google.devtools.build.lib.util.Preconditions;
+import com.google.devtools.build.skyframe.InterruptibleSupplier;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * An index of the reverse dependencies of the targets of the packages in the Skyframe graph. It
+ * allows looking up the targets that depend on a label without reading the reverse edges of
+ * {@link TransitiveTraversalValue} nodes, which only exist for the transitive closure of targets
+ * that were traversed.
+ *
+ * <p>The index has the edges of the transitive traversal of each target, except that the aspect
+ * deps of rules are a superset. Once enabled, it is updated as {@link PackageValue}s are built,
+ * dirtied and deleted, see {@link SkyframeExecutor#getReverseDepsIndex}, and covers all up-to-date
+ * packages in the graph, whether or not they are in the transitive closure of a particular
+ * universe.
+ *
+ * <p>Labels are numbered as they are first seen, and the reverse deps of each label are kept as an
+ * array of such numbers, so that an edge costs an int. Numbers are not reused until the index is
+ * cleared.
+ */
+@ThreadSafe
+public final class ReverseDepsIndex {
+  private final InterruptibleSupplier<? extends Iterable<Package>> packagesInGraph;
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+  // The fields below are guarded by lock.
+  private final Map<Label, Integer> ids = new HashMap<>();
+  private final List<Label> labels = new ArrayList<>();
+  // The first rdepsSizes[id] elements of rdeps[id] are the targets that depend on label id.
+  private int[][] rdeps = new int[0][];
+  private int[] rdepsSizes = new int[0];
+  // The edges added for each package as consecutive (from, to) pairs, so they can be removed.
+  private final Map<PackageIdentifier, int[]> packageEdges = new HashMap<>();
+  private int edgeCount = 0;
+
+  private volatile boolean enabled = false;
+
+  /**
+   * Creates an index that isn't maintained until {@link #ensureEnabled} is called, at which point
+   * it is built from the packages supplied by {@code packagesInGraph}.
+   */
+  ReverseDepsIndex(InterruptibleSupplier<? extends Iterable<Package>> packagesInGraph) {
+    this.packagesInGraph = packagesInGraph;
+  }
+
+  /** Whether the index is being maintained. */
+  boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * Starts maintaining the index if it isn't maintained yet, building it from the packages that
+   * are currently in the graph. Must not be called while the graph is being evaluated.
+   */
+  public void ensureEnabled() throws InterruptedException {
+    if (enabled) {
+      return;
+    }
+    lock.writeLock().lock();
+    try {
+      if (enabled) {
+        return;
+      }
+      clearLocked();
+      for (Package pkg : packagesInGraph.get()) {
+        updateLocked(pkg.getPackageIdentifier(), getEdges(pkg));
+      }
+      enabled = true;
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /** Drops the contents of the index and stops maintaining it. */
+  void clear() {
+    lock.writeLock().lock();
+    try {
+      enabled = false;
+      clearLocked();
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /** Replaces the edges of the targets of the package with those of {@code pkg}. */
+  void update(Package pkg) throws InterruptedException {
+    // Computing the edges may be expensive, so do that before taking the lock.
+    List<Label> edges = getEdges(pkg);
+    lock.writeLock().lock();
+    try {
+      updateLocked(pkg.getPackageIdentifier(), edges);
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /** Whether the edges of the targets of the given package are in the index. */
+  boolean contains(PackageIdentifier packageId) {
+    lock.readLock().lock();
+    try {
+      return packageEdges.containsKey(packageId);
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /** Removes the edges of the targets of the given package. */
+  void remove(PackageIdentifier packageId) {
+    lock.writeLock().lock();
+    try {
+      removeLocked(packageId);
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Returns the labels of the targets that depend on each of {@code labels}. Labels that no target
+   * depends on are mapped to an empty list. The index must be enabled.
+   */
+  public ImmutableMap<Label, ImmutableList<Label>> getReverseDeps(Iterable<Label> labels) {
+    Preconditions.checkState(enabled);
+    Map<Label, ImmutableList<Label>> result = new HashMap<>();
+    lock.readLock().lock();
+    try {
+      for (Label label : labels) {
+        Integer id = ids.get(label);
+        if (id == null) {
+          result.put(label, ImmutableList.<Label>of());
+          continue;
+        }
+        int[] rdepIds = rdeps[id];
+        ImmutableList.Builder<Label> rdepLabels = ImmutableList.builder();
+        for (int i = 0; i < rdepsSizes[id]; i++) {
+          rdepLabels.add(this.labels.get(rdepIds[i]));
+        }
+        result.put(label, rdepLabels.build());
+      }
+    } finally {
+      lock.readLock().unlock();
+    }
+    return ImmutableMap.copyOf(result);
+  }
+
+  @VisibleForTesting
+  int getEdgeCount() {
+    lock.readLock().lock();
+    try {
+      return edgeCount;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Returns the edges of the targets of {@code pkg} as consecutive (from, to) pairs.
+   */
+  private static List<Label> getEdges(Package pkg) throws InterruptedException {
+    List<Label> edges = new ArrayList<>();
+    for (Target target : pkg.getTargets()) {
+      Set<Label> deps = new LinkedHashSet<>();
+      for (Label dep : TransitiveBaseTraversalFunction.getLabelDeps(target)) {
+        deps.add(dep);
+      }
+      if (target instanceof Rule) {
+        deps.addAll(
+            ((Rule) target).getAspectLabelsSuperset(DependencyFilter.NO_NODEP_ATTRIBUTES));
+      }
+      for (Label dep : deps) {
+        edges.add(target.getLabel());
+        edges.add(dep);
+      }
+    }
+    return edges;
+  }
+
+  private void clearLocked() {
+    ids.clear();
+    labels.clear();
+    rdeps = new int[0][];
+    rdepsSizes = new int[0];
+    packageEdges.clear();
+    edgeCount = 0;
+  }
+
+  private void updateLocked(PackageIdentifier packageId, List<Label> edges) {
+    removeLocked(packageId);
+    int[] edgeIds = new int[edges.size()];
+    for (int i = 0; i < edgeIds.length; i += 2) {
+      int from = getOrCreateId(edges.get(i));
+      int to = getOrCreateId(edges.get(i + 1));
+      addRdep(to, from);
+      edgeIds[i] = from;
+      edgeIds[i + 1] = to;
+    }
+    packageEdges.put(packageId, edgeIds);
+    edgeCount += edgeIds.length / 2;
+  }
+
+  private void removeLocked(PackageIdentifier packageId) {
+    int[] edgeIds = packageEdges.remove(packageId);
+    if (edgeIds == null) {
+      return;
+    }
+    for (int i = 0; i < edgeIds.length; i += 2) {
+      removeRdep(edgeIds[i + 1], edgeIds[i]);
+    }
+    edgeCount -= edgeIds.length / 2;
+  }
+
+  private int getOrCreateId(Label label) {
+    Integer id = ids.get(label);
+    if (id != null) {
+      return id;
+    }
+    int newId = labels.size();
+    ids.put(label, newId);
+    labels.add(label);
+    if (newId == rdeps.length) {
+      int capacity = Math.max(16, rdeps.length * 2);
+      rdeps = Arrays.copyOf(rdeps, capacity);
+      rdepsSizes = Arrays.copyOf(rdepsSizes, capacity);
+    }
+    return newId;
+  }
+
+  private void addRdep(int id, int rdep) {
+    int[] rdepIds = rdeps[id];
+    int size = rdepsSizes[id];
+    if (rdepIds == null) {
+      rdepIds = new int[2];
+    } else if (size == rdepIds.length) {
+      rdepIds = Arrays.copyOf(rdepIds, size * 2);
+    }
+    rdepIds[size] = rdep;
+    rdeps[id] = rdepIds;
+    rdepsSizes[id] = size + 1;
+  }
+
+  private void removeRdep(int id, int rdep) {
+    int[] rdepIds = rdeps[id];
+    int size = rdepsSizes[id];
+    for (int i = 0; i < size; i++) {
+      if (rdepIds[i] == rdep) {
+        // The order of the reverse deps doesn't matter, so move the last one into the gap.
+        rdepIds[i] = rdepIds[size - 1];
+        rdepsSizes[id] = size - 1;
+        if (size == 1) {
+          rdeps[id] = null;
+        }
+        return;
+      }
+    }
+  }
+}
@@ -147,6 +147,37 @@ public final class SequencedSkyframeExecutor extends SkyframeExecutor {
       Iterable<SkyValueDirtinessChecker> customDirtinessCheckers,
       String productName) {
     return create(
+        InMemoryMemoizingEvaluator.SUPPLIER,
+        pkgFactory,
+        directories,
+        binTools,
+        workspaceStatusActionFactory,
+        buildInfoFactories,
+        diffAwarenessFactories,
+        allowedMissingInputs,
+        preprocessorFactorySupplier,
+        extraSkyFunctions,
+        extraPrecomputedValues,
+        customDirtinessCheckers,
+        productName);
+  }
+
+  public static SequencedSkyframeExecutor create(
+      EvaluatorSupplier evaluatorSupplier,
+      PackageFactory pkgFactory,
+      BlazeDirectories directories,
+      BinTools binTools,
+      Factory workspaceStatusActionFactory,
+      ImmutableList<BuildInfoFactory> buildInfoFactories,
+      Iterable<? extends DiffAwareness.Factory> diffAwarenessFactories,
+      Predicate<PathFragment> allowedMissingInputs,
+      Preprocessor.Factory.Supplier preprocessorFactorySupplier,
+      ImmutableMap<SkyFunctionName, SkyFunction> extraSkyFunctions,
+      ImmutableList<PrecomputedValue.Injected> extraPrecomputedValues,
+      Iterable<SkyValueDirtinessChecker> customDirtinessCheckers,
+      String productName) {
+    return create(
+        evaluatorSupplier,
         pkgFactory,
         directories,
         binTools,
@@ -163,6 +194,7 @@ public final class SequencedSkyframeExecutor extends SkyframeExecutor {
   }
 
   private static SequencedSkyframeExecutor create(
+      EvaluatorSupplier evaluatorSupplier,
       PackageFactory pkgFactory,
       BlazeDirectories directories,
       BinTools binTools,
@@ -178,7 +210,7 @@ public final class SequencedSkyframeExecutor extends SkyframeExecutor {
       String productName) {
     SequencedSkyframeExecutor skyframeExecutor =
         new SequencedSkyframeExecutor(
-            InMemoryMemoizingEvaluator.SUPPLIER,
+            evaluatorSupplier,
             pkgFactory,
             directories,
             binTools,
@@ -205,6 +237,7 @@ public final class SequencedSkyframeExecutor extends SkyframeExecutor {
       PathFragment blacklistedPackagePrefixesFile,
       String productName) {
     return create(
+        InMemoryMemoizingEvaluator.SUPPLIER,
         pkgFactory,
         directories,
         binTools,
@@ -262,6 +295,7 @@ public final class SequencedSkyframeExecutor extends SkyframeExecutor {
     this.valueCacheEvictionLimit = packageCacheOptions.minLoadedPkgCountForCtNodeEviction;
     super.sync(eventHandler, packageCacheOptions, outputBase, workingDirectory,
         defaultsPackageContents, commandId, tsgm);
+    restorePendingSnapshot();
     handleDiffs(eventHandler, packageCacheOptions.checkOutputFiles);
   }
 
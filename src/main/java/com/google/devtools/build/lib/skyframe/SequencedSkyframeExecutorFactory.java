@@ -23,6 +23,8 @@ import com.google.devtools.build.lib.analysis.config.BinTools;
 import com.google.devtools.build.lib.packages.PackageFactory;
 import com.google.devtools.build.lib.packages.Preprocessor;
 import com.google.devtools.build.lib.vfs.PathFragment;
+import com.google.devtools.build.skyframe.InMemoryMemoizingEvaluator;
+import com.google.devtools.build.skyframe.MemoizingEvaluator.EvaluatorSupplier;
 import com.google.devtools.build.skyframe.SkyFunction;
 import com.google.devtools.build.skyframe.SkyFunctionName;
 
@@ -30,6 +32,15 @@ import com.google.devtools.build.skyframe.SkyFunctionName;
  * A factory of SkyframeExecutors that returns SequencedSkyframeExecutor.
  */
 public class SequencedSkyframeExecutorFactory implements SkyframeExecutorFactory {
+  private final EvaluatorSupplier evaluatorSupplier;
+
+  public SequencedSkyframeExecutorFactory() {
+    this(InMemoryMemoizingEvaluator.SUPPLIER);
+  }
+
+  public SequencedSkyframeExecutorFactory(EvaluatorSupplier evaluatorSupplier) {
+    this.evaluatorSupplier = evaluatorSupplier;
+  }
 
   @Override
   public SkyframeExecutor create(
@@ -46,6 +57,7 @@ public class SequencedSkyframeExecutorFactory implements SkyframeExecutorFactory
       Iterable<SkyValueDirtinessChecker> customDirtinessCheckers,
       String productName) {
     return SequencedSkyframeExecutor.create(
+        evaluatorSupplier,
         pkgFactory,
         directories,
         binTools,
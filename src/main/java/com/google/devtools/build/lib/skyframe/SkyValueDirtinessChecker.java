@@ -15,6 +15,8 @@ package com.google.devtools.build.lib.skyframe;
 
 import com.google.devtools.build.lib.util.Preconditions;
 import com.google.devtools.build.lib.util.io.TimestampGranularityMonitor;
+import com.google.devtools.build.lib.vfs.FileStatus;
+import com.google.devtools.build.lib.vfs.Path;
 import com.google.devtools.build.skyframe.SkyKey;
 import com.google.devtools.build.skyframe.SkyValue;
 
@@ -36,12 +38,55 @@ public abstract class SkyValueDirtinessChecker {
   @Nullable
   public abstract SkyValue createNewValue(SkyKey key, @Nullable TimestampGranularityMonitor tsgm);
 
+  /**
+   * If {@code applies(key)}, returns the path whose lstat is all that
+   * {@link #createNewValueWithStat} needs to create the new value for {@code key}, or {@code null}
+   * if the new value is not created from such a stat. This lets callers stat the paths of many
+   * keys in batches.
+   */
+  @Nullable
+  public Path getPathToStat(SkyKey key) {
+    return null;
+  }
+
+  /**
+   * If {@code getPathToStat(key)} is not null, returns the new value for {@code key} given the
+   * lstat of that path, or {@code null} if the checker was unable to create a new value.
+   *
+   * <p>The default ignores the lstat and calls {@link #createNewValue}, so checkers that override
+   * {@link #getPathToStat} should override this too to benefit from the batched stats.
+   *
+   * @param statNoFollow the lstat of the path, or {@code null} if it does not exist
+   */
+  @Nullable
+  public SkyValue createNewValueWithStat(SkyKey key, @Nullable FileStatus statNoFollow,
+      @Nullable TimestampGranularityMonitor tsgm) {
+    return createNewValue(key, tsgm);
+  }
+
   /**
    * If {@code applies(key)}, returns the result of checking whether this key's value is up to date.
    */
   public DirtyResult check(SkyKey key, @Nullable SkyValue oldValue,
       @Nullable TimestampGranularityMonitor tsgm) {
-    SkyValue newValue = createNewValue(key, tsgm);
+    return createDirtyResult(key, oldValue, createNewValue(key, tsgm));
+  }
+
+  /**
+   * Like {@link #check}, but given the lstat of {@code getPathToStat(key)}, which must not be
+   * null.
+   */
+  public DirtyResult checkWithStat(SkyKey key, @Nullable SkyValue oldValue,
+      @Nullable FileStatus statNoFollow, @Nullable TimestampGranularityMonitor tsgm) {
+    return createDirtyResult(key, oldValue, createNewValueWithStat(key, statNoFollow, tsgm));
+  }
+
+  /**
+   * Returns the result of comparing the value of {@code key} in the graph with its new value, or
+   * with an unknown value if {@code newValue} is null.
+   */
+  protected DirtyResult createDirtyResult(SkyKey key, @Nullable SkyValue oldValue,
+      @Nullable SkyValue newValue) {
     if (newValue == null) {
       return DirtyResult.dirty(oldValue);
     }
@@ -19,7 +19,6 @@ import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Maps;
 import com.google.common.eventbus.EventBus;
-import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.devtools.build.lib.actions.Action;
 import com.google.devtools.build.lib.actions.ActionAnalysisMetadata;
 import com.google.devtools.build.lib.actions.ActionCacheChecker;
@@ -57,8 +56,10 @@ import com.google.devtools.build.lib.actions.ResourceSet;
 import com.google.devtools.build.lib.actions.TargetOutOfDateException;
 import com.google.devtools.build.lib.actions.cache.MetadataHandler;
 import com.google.devtools.build.lib.cmdline.Label;
-import com.google.devtools.build.lib.concurrent.ExecutorUtil;
+import com.google.devtools.build.lib.concurrent.AbstractQueueVisitor;
+import com.google.devtools.build.lib.concurrent.QuiescingExecutor;
 import com.google.devtools.build.lib.concurrent.Sharder;
+import com.google.devtools.build.lib.concurrent.SharedThreadPools;
 import com.google.devtools.build.lib.concurrent.ThrowableRecordingRunnableWrapper;
 import com.google.devtools.build.lib.events.Event;
 import com.google.devtools.build.lib.events.Reporter;
@@ -87,8 +88,6 @@ import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ConcurrentNavigableMap;
 import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.FutureTask;
 import java.util.concurrent.atomic.AtomicReference;
 import javax.annotation.Nullable;
@@ -256,14 +255,20 @@ public final class SkyframeActionExecutor implements ActionExecutionContextFacto
     ThrowableRecordingRunnableWrapper wrapper = new ThrowableRecordingRunnableWrapper(
         "SkyframeActionExecutor#constructActionGraphAndPathMap");
 
-    ExecutorService executor = Executors.newFixedThreadPool(
-        numJobs,
-        new ThreadFactoryBuilder().setNameFormat("ActionLookupValue Processor %d").build());
+    QuiescingExecutor executor = new AbstractQueueVisitor(
+        SharedThreadPools.get(SharedThreadPools.Pool.CPU),
+        /*shutdownOnCompletion=*/ false,
+        /*failFastOnException=*/ false);
     for (List<ActionLookupValue> shard : actionShards) {
       executor.execute(
           wrapper.wrap(actionRegistration(shard, actionGraph, artifactPathMap, badActionMap)));
     }
-    boolean interrupted = ExecutorUtil.interruptibleShutdown(executor);
+    boolean interrupted = false;
+    try {
+      executor.awaitQuiescence(/*interruptWorkers=*/ true);
+    } catch (InterruptedException e) {
+      interrupted = true;
+    }
     Throwables.propagateIfPossible(wrapper.getFirstThrownError());
     if (interrupted) {
       throw new InterruptedException();
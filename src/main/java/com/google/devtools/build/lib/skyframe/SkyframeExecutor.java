@@ -113,6 +113,7 @@ import com.google.devtools.build.lib.util.Preconditions;
 import com.google.devtools.build.lib.util.ResourceUsage;
 import com.google.devtools.build.lib.util.io.TimestampGranularityMonitor;
 import com.google.devtools.build.lib.vfs.BatchStat;
+import com.google.devtools.build.lib.vfs.DirectoryBatchStat;
 import com.google.devtools.build.lib.vfs.Dirent;
 import com.google.devtools.build.lib.vfs.ModifiedFileSet;
 import com.google.devtools.build.lib.vfs.Path;
@@ -129,10 +130,13 @@ import com.google.devtools.build.skyframe.EvaluationProgressReceiver;
 import com.google.devtools.build.skyframe.EvaluationResult;
 import com.google.devtools.build.skyframe.ImmutableDiff;
 import com.google.devtools.build.skyframe.Injectable;
+import com.google.devtools.build.skyframe.InterruptibleSupplier;
 import com.google.devtools.build.skyframe.MemoizingEvaluator;
 import com.google.devtools.build.skyframe.MemoizingEvaluator.EvaluatorSupplier;
+import com.google.devtools.build.skyframe.SchedulingPolicy;
 import com.google.devtools.build.skyframe.SkyFunction;
 import com.google.devtools.build.skyframe.SkyFunctionName;
+import com.google.devtools.build.skyframe.SkyFunctionStatistics;
 import com.google.devtools.build.skyframe.SkyKey;
 import com.google.devtools.build.skyframe.SkyValue;
 import com.google.devtools.build.skyframe.WalkableGraph.WalkableGraphFactory;
@@ -152,7 +156,9 @@ import java.util.concurrent.Callable;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.annotation.Nullable;
 
@@ -244,6 +250,30 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
   private CompletionReceiver actionExecutionFunction;
   protected SkyframeProgressReceiver progressReceiver;
   private final AtomicReference<CyclesReporter> cyclesReporter = new AtomicReference<>();
+  private final CriticalPathSchedulingPolicy criticalPathSchedulingPolicy =
+      new CriticalPathSchedulingPolicy();
+  private volatile boolean prioritizeCriticalPath;
+  private final SkyFunctionStatistics skyFunctionStatistics = new SkyFunctionStatistics();
+  // Incremented whenever a node in PACKAGE_LOADING_FUNCTIONS is invalidated.
+  private final AtomicLong packageGeneration = new AtomicLong();
+  private final ReverseDepsIndex reverseDepsIndex =
+      new ReverseDepsIndex(
+          new InterruptibleSupplier<List<Package>>() {
+            @Override
+            public List<Package> get() {
+              List<Package> packages = new ArrayList<>();
+              for (Map.Entry<SkyKey, SkyValue> entry :
+                  memoizingEvaluator.getDoneValues().entrySet()) {
+                if (entry.getKey().functionName().equals(SkyFunctions.PACKAGE)
+                    && entry.getValue() instanceof PackageValue) {
+                  packages.add(((PackageValue) entry.getValue()).getPackage());
+                }
+              }
+              return packages;
+            }
+          });
+  /** The snapshot to restore on the next {@link #sync}, if any. */
+  @Nullable private Path snapshotToRestore;
 
   private final BinTools binTools;
   private boolean needToInjectEmbeddedArtifacts = true;
@@ -272,6 +302,15 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
 
   private static final Logger LOG = Logger.getLogger(SkyframeExecutor.class.getName());
 
+  /**
+   * The functions of the nodes whose invalidation means that packages may have changed. Changes to
+   * files that packages read dirty packages or package lookups, and new packages dirty directory
+   * listings.
+   */
+  private static final ImmutableSet<SkyFunctionName> PACKAGE_LOADING_FUNCTIONS =
+      ImmutableSet.of(
+          SkyFunctions.PACKAGE, SkyFunctions.PACKAGE_LOOKUP, SkyFunctions.DIRECTORY_LISTING);
+
   protected SkyframeExecutor(
       EvaluatorSupplier evaluatorSupplier,
       PackageFactory pkgFactory,
@@ -463,6 +502,14 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
     memoizingEvaluator.dump(summarize, out);
   }
 
+  /**
+   * Returns how the nodes of each SkyFunction were invalidated and re-evaluated since the start of
+   * the last command that synced the package cache.
+   */
+  public SkyFunctionStatistics getSkyFunctionStatistics() {
+    return skyFunctionStatistics;
+  }
+
   public abstract void dumpPackages(PrintStream out);
 
   public void setOutputService(OutputService outputService) {
@@ -537,6 +584,8 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
    * factory methods and as an implementation detail of {@link #resetEvaluator}).
    */
   protected void init() {
+    reverseDepsIndex.clear();
+    packageGeneration.incrementAndGet();
     progressReceiver = newSkyframeProgressReceiver();
     ImmutableMap<SkyFunctionName, SkyFunction> skyFunctions =
         skyFunctions(directories.getBuildDataDirectory(), pkgFactory, allowedMissingInputs);
@@ -560,6 +609,7 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
   public void resetEvaluator() {
     init();
     emittedEventState.clear();
+    criticalPathSchedulingPolicy.clear();
     skyframeBuildView.clearLegacyData();
     reinjectConstantValuesLazily();
   }
@@ -1057,6 +1107,37 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
     return skyframeActionExecutor.badActions();
   }
 
+  /**
+   * Returns the critical paths of the actions of previous builds, which the build should update
+   * once it has computed them, or null if the current build does not prioritize them.
+   */
+  @Nullable
+  public CriticalPathSchedulingPolicy getCriticalPathSchedulingPolicy() {
+    return prioritizeCriticalPath ? criticalPathSchedulingPolicy : null;
+  }
+
+  /**
+   * Sets whether subsequent evaluations start with the actions that had the longest critical path
+   * in previous builds, as recorded in {@link #getCriticalPathSchedulingPolicy}. Turning it off
+   * forgets the recorded critical paths.
+   */
+  public void setPrioritizeCriticalPath(boolean prioritizeCriticalPath) {
+    this.prioritizeCriticalPath = prioritizeCriticalPath;
+    if (!prioritizeCriticalPath) {
+      criticalPathSchedulingPolicy.clear();
+    }
+    memoizingEvaluator.setSchedulingPolicy(
+        prioritizeCriticalPath ? criticalPathSchedulingPolicy : SchedulingPolicy.NONE);
+  }
+
+  /**
+   * Lets the evaluations after the execution phase run in the default order. The critical paths
+   * of the build are still recorded once it is complete, if it prioritized them.
+   */
+  public void executionPhaseFinished() {
+    memoizingEvaluator.setSchedulingPolicy(SchedulingPolicy.NONE);
+  }
+
   /**
    * Asks the Skyframe evaluator to build the given artifacts and targets, and to test the
    * given test targets.
@@ -1662,9 +1743,55 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
     setDeletedPackages(packageCacheOptions.getDeletedPackages());
 
     incrementalBuildMonitor = new SkyframeIncrementalBuildMonitor();
+    skyFunctionStatistics.reset();
     invalidateTransientErrors();
   }
 
+  /**
+   * Makes the next {@link #sync} start from the file system values that {@link #saveSnapshot}
+   * wrote to {@code snapshotFile}, if it exists and nothing was evaluated yet. Like the values of a
+   * server without diff information, they are checked against the file system before the next
+   * evaluation uses them.
+   */
+  public void restoreSnapshotOnNextSync(Path snapshotFile) {
+    this.snapshotToRestore = snapshotFile;
+  }
+
+  /**
+   * Writes the file system values under the current package path to {@code snapshotFile}, so that
+   * a later server can restore them with {@link #restoreSnapshotOnNextSync}. Returns the number of
+   * values written.
+   */
+  public int saveSnapshot(Path snapshotFile) throws IOException {
+    PathPackageLocator locator = pkgLocator.get();
+    if (locator == null) {
+      // Nothing was loaded, so there is nothing worth saving.
+      return 0;
+    }
+    return SkyframeSnapshot.write(
+        memoizingEvaluator.getDoneValues(), locator.getPathEntries(), snapshotFile);
+  }
+
+  /**
+   * Injects the values of the snapshot given to {@link #restoreSnapshotOnNextSync}, if any. Must
+   * be called after the package locator of the command is set, and before the values are checked
+   * for changes.
+   */
+  protected void restorePendingSnapshot() {
+    Path snapshotFile = snapshotToRestore;
+    snapshotToRestore = null;
+    if (snapshotFile == null || !snapshotFile.exists()
+        || !memoizingEvaluator.getValues().isEmpty()) {
+      return;
+    }
+    try (AutoProfiler p = AutoProfiler.logged("restoring Skyframe snapshot", LOG)) {
+      injectable().inject(SkyframeSnapshot.read(snapshotFile, pkgLocator.get().getPathEntries()));
+    } catch (IOException e) {
+      // Only an optimization, so just start over.
+      LOG.log(Level.WARNING, "Failed to restore Skyframe snapshot: " + e.getMessage(), e);
+    }
+  }
+
   protected PathPackageLocator createPackageLocator(EventHandler eventHandler,
       PackageCacheOptions packageCacheOptions, Path outputBase, Path workspace,
       Path workingDirectory) throws AbruptExitException {
@@ -1708,6 +1835,9 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
     FilesystemValueChecker fsvc =
         new FilesystemValueChecker(Preconditions.checkNotNull(tsgm.get()), lastExecutionTimeRange);
     BatchStat batchStatter = outputService == null ? null : outputService.getBatchStatter();
+    if (batchStatter == null) {
+      batchStatter = new DirectoryBatchStat(directories.getExecRoot());
+    }
     invalidateDirtyActions(fsvc.getDirtyActionValues(memoizingEvaluator.getValues(),
         batchStatter, modifiedOutputFiles));
     modifiedFiles += fsvc.getNumberOfModifiedOutputFiles();
@@ -1842,10 +1972,17 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
 
     @Override
     public void invalidated(SkyKey skyKey, InvalidationState state) {
+      if (PACKAGE_LOADING_FUNCTIONS.contains(skyKey.functionName())) {
+        packageGeneration.incrementAndGet();
+      }
+      // A dirty package may still turn out to be unchanged, in which case evaluated() adds it
+      // back, but until then its edges may be stale.
+      updateReverseDepsIndex(skyKey, null, /*onlyIfMissing=*/ false);
       if (ignoreInvalidations) {
         return;
       }
       skyframeBuildView.getInvalidationReceiver().invalidated(skyKey, state);
+      skyFunctionStatistics.invalidated(skyKey, state);
     }
 
     @Override
@@ -1860,20 +1997,78 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
     }
 
     @Override
-    public void computed(SkyKey skyKey, long elapsedTimeNanos) {}
+    public void computed(SkyKey skyKey, long elapsedTimeNanos) {
+      skyFunctionStatistics.computed(skyKey, elapsedTimeNanos);
+    }
 
     @Override
     public void evaluated(SkyKey skyKey, Supplier<SkyValue> valueSupplier, EvaluationState state) {
+      if (skyKey.functionName().equals(SkyFunctions.PACKAGE)) {
+        // A clean package is usually in the index already, unless it was dirtied and found to be
+        // unchanged.
+        updateReverseDepsIndex(
+            skyKey, valueSupplier.get(), /*onlyIfMissing=*/ state == EvaluationState.CLEAN);
+      }
       if (ignoreInvalidations) {
         return;
       }
       skyframeBuildView.getInvalidationReceiver().evaluated(skyKey, valueSupplier, state);
+      skyFunctionStatistics.evaluated(skyKey, valueSupplier, state);
       if (executionProgressReceiver != null) {
         executionProgressReceiver.evaluated(skyKey, valueSupplier, state);
       }
     }
   }
 
+  /**
+   * Updates the reverse deps index for a package node that was evaluated or invalidated. A null
+   * value means that the package is missing, in error or possibly out of date. If {@code
+   * onlyIfMissing} is true, a package that is already in the index is left as it is.
+   */
+  private void updateReverseDepsIndex(
+      SkyKey skyKey, @Nullable SkyValue value, boolean onlyIfMissing) {
+    if (!reverseDepsIndex.isEnabled() || !skyKey.functionName().equals(SkyFunctions.PACKAGE)) {
+      return;
+    }
+    PackageIdentifier packageId = (PackageIdentifier) skyKey.argument();
+    if (onlyIfMissing && reverseDepsIndex.contains(packageId)) {
+      return;
+    }
+    if (value instanceof PackageValue) {
+      try {
+        reverseDepsIndex.update(((PackageValue) value).getPackage());
+      } catch (InterruptedException e) {
+        // The index would miss the package, so rebuild it from scratch when it is next needed.
+        reverseDepsIndex.clear();
+        Thread.currentThread().interrupt();
+      }
+    } else {
+      reverseDepsIndex.remove(packageId);
+    }
+  }
+
+  /**
+   * Returns a number that changes whenever a package, the lookup of a package or a directory
+   * listing may have changed, so that results computed from the packages in the graph can be
+   * reused as long as the number stays the same.
+   *
+   * <p>Invalidation is conservative: nodes that are dirtied and later found to be unchanged
+   * change the number too.
+   */
+  public long getPackageGeneration() {
+    return packageGeneration.get();
+  }
+
+  /**
+   * Returns the index of the reverse deps of the targets of all packages in the graph.
+   *
+   * <p>The index is only maintained once it was enabled by {@link ReverseDepsIndex#ensureEnabled},
+   * and is dropped when the evaluator is reset.
+   */
+  public ReverseDepsIndex getReverseDepsIndex() {
+    return reverseDepsIndex;
+  }
+
   public int getOutputDirtyFilesAndClear() {
     int result = outputDirtyFiles;
     outputDirtyFiles = 0;
@@ -0,0 +1,256 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.skyframe;
+
+import com.google.common.collect.ImmutableList;
+import com.google.devtools.build.lib.skyframe.FileStateValue.RegularFileStateValue;
+import com.google.devtools.build.lib.skyframe.FileStateValue.SpecialFileStateValue;
+import com.google.devtools.build.lib.skyframe.FileStateValue.SymlinkFileStateValue;
+import com.google.devtools.build.lib.vfs.Dirent;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.PathFragment;
+import com.google.devtools.build.lib.vfs.RootedPath;
+import com.google.devtools.build.skyframe.SkyFunctionName;
+import com.google.devtools.build.skyframe.SkyKey;
+import com.google.devtools.build.skyframe.SkyValue;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes the file system state known to Skyframe to a file, and reads it back, so that a new
+ * server can start with the {@link FileStateValue}s and {@link DirectoryListingStateValue}s of the
+ * previous one instead of an empty graph.
+ *
+ * <p>Only the nodes of files under the package path entries are kept: they have no Skyframe deps,
+ * so injecting them loses nothing. The restored values may be stale, and must be checked against
+ * the file system before they are used, like the values of a server that has no diff information.
+ */
+public final class SkyframeSnapshot {
+  private static final int MAGIC = 0x536b7953; // "SkyS"
+  private static final int VERSION = 1;
+
+  private static final byte FILE_STATE = 0;
+  private static final byte DIRECTORY_LISTING_STATE = 1;
+
+  private SkyframeSnapshot() {}
+
+  /**
+   * Writes the file system values among {@code values} that are under one of {@code pathEntries}
+   * to {@code file}, replacing it. Returns the number of values written.
+   */
+  public static int write(Map<SkyKey, SkyValue> values, List<Path> pathEntries, Path file)
+      throws IOException {
+    Map<Path, Integer> rootIndices = new HashMap<>();
+    for (Path pathEntry : pathEntries) {
+      if (!rootIndices.containsKey(pathEntry)) {
+        rootIndices.put(pathEntry, rootIndices.size());
+      }
+    }
+    Path tmpFile = file.getParentDirectory().getChild(file.getBaseName() + ".tmp");
+    int written = 0;
+    try (DataOutputStream out =
+        new DataOutputStream(new BufferedOutputStream(tmpFile.getOutputStream()))) {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeInt(rootIndices.size());
+      for (Path root : rootIndices.keySet()) {
+        out.writeInt(rootIndices.get(root));
+        out.writeUTF(root.getPathString());
+      }
+      for (Map.Entry<SkyKey, SkyValue> entry : values.entrySet()) {
+        SkyFunctionName functionName = entry.getKey().functionName();
+        byte kind;
+        if (functionName.equals(SkyFunctions.FILE_STATE)) {
+          kind = FILE_STATE;
+        } else if (functionName.equals(SkyFunctions.DIRECTORY_LISTING_STATE)) {
+          kind = DIRECTORY_LISTING_STATE;
+        } else {
+          continue;
+        }
+        RootedPath rootedPath = (RootedPath) entry.getKey().argument();
+        Integer rootIndex = rootIndices.get(rootedPath.getRoot());
+        if (rootIndex == null) {
+          continue;
+        }
+        out.writeByte(kind);
+        out.writeInt(rootIndex);
+        out.writeUTF(rootedPath.getRelativePath().getPathString());
+        if (kind == FILE_STATE) {
+          writeFileState((FileStateValue) entry.getValue(), out);
+        } else {
+          writeDirectoryListingState((DirectoryListingStateValue) entry.getValue(), out);
+        }
+        written++;
+      }
+    }
+    tmpFile.renameTo(file);
+    return written;
+  }
+
+  /**
+   * Reads the values written to {@code file} by {@link #write}. Values of files under roots that
+   * are not among {@code pathEntries} any more are dropped.
+   *
+   * @throws IOException if the file can't be read or was not written by {@link #write}
+   */
+  public static Map<SkyKey, SkyValue> read(Path file, List<Path> pathEntries) throws IOException {
+    Map<SkyKey, SkyValue> values = new HashMap<>();
+    try (DataInputStream in =
+        new DataInputStream(new BufferedInputStream(file.getInputStream()))) {
+      if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+        throw new IOException("Unexpected format of " + file);
+      }
+      Map<Integer, Path> roots = new HashMap<>();
+      int rootCount = in.readInt();
+      for (int i = 0; i < rootCount; i++) {
+        int index = in.readInt();
+        String rootString = in.readUTF();
+        for (Path pathEntry : pathEntries) {
+          if (pathEntry.getPathString().equals(rootString)) {
+            roots.put(index, pathEntry);
+          }
+        }
+      }
+      int kind;
+      while ((kind = in.read()) != -1) {
+        Path root = roots.get(in.readInt());
+        PathFragment relativePath = new PathFragment(in.readUTF());
+        SkyValue value;
+        switch (kind) {
+          case FILE_STATE:
+            value = readFileState(in);
+            break;
+          case DIRECTORY_LISTING_STATE:
+            value = readDirectoryListingState(in);
+            break;
+          default:
+            throw new IOException("Unexpected entry of kind " + kind + " in " + file);
+        }
+        if (root == null) {
+          continue;
+        }
+        RootedPath rootedPath = RootedPath.toRootedPath(root, relativePath);
+        values.put(
+            kind == FILE_STATE
+                ? FileStateValue.key(rootedPath)
+                : DirectoryListingStateValue.key(rootedPath),
+            value);
+      }
+    }
+    return values;
+  }
+
+  private static void writeFileState(FileStateValue value, DataOutputStream out)
+      throws IOException {
+    out.writeByte(value.getType().ordinal());
+    switch (value.getType()) {
+      case REGULAR_FILE:
+        RegularFileStateValue regularFile = (RegularFileStateValue) value;
+        out.writeLong(regularFile.getSize());
+        out.writeLong(regularFile.getMtime());
+        byte[] digest = regularFile.getDigest();
+        out.writeBoolean(digest != null);
+        if (digest != null) {
+          out.writeInt(digest.length);
+          out.write(digest);
+        } else {
+          writeContentsProxy(regularFile.getContentsProxy(), out);
+        }
+        break;
+      case SPECIAL_FILE:
+        writeContentsProxy(((SpecialFileStateValue) value).getContentsProxy(), out);
+        break;
+      case SYMLINK:
+        out.writeUTF(((SymlinkFileStateValue) value).getSymlinkTarget().getPathString());
+        break;
+      case DIRECTORY:
+      case NONEXISTENT:
+        break;
+      default:
+        throw new IllegalStateException(value.toString());
+    }
+  }
+
+  private static FileStateValue readFileState(DataInputStream in) throws IOException {
+    int type = in.readUnsignedByte();
+    if (type >= FileStateValue.Type.values().length) {
+      throw new IOException("Unexpected file type " + type);
+    }
+    switch (FileStateValue.Type.values()[type]) {
+      case REGULAR_FILE:
+        long size = in.readLong();
+        long mtime = in.readLong();
+        if (in.readBoolean()) {
+          byte[] digest = new byte[in.readInt()];
+          in.readFully(digest);
+          return new RegularFileStateValue(size, mtime, digest, null);
+        }
+        return new RegularFileStateValue(size, mtime, null, readContentsProxy(in));
+      case SPECIAL_FILE:
+        return new SpecialFileStateValue(readContentsProxy(in));
+      case SYMLINK:
+        return new SymlinkFileStateValue(new PathFragment(in.readUTF()));
+      case DIRECTORY:
+        return FileStateValue.DIRECTORY_FILE_STATE_NODE;
+      case NONEXISTENT:
+        return FileStateValue.NONEXISTENT_FILE_STATE_NODE;
+      default:
+        throw new IOException("Unexpected file type " + type);
+    }
+  }
+
+  private static void writeContentsProxy(FileContentsProxy proxy, DataOutputStream out)
+      throws IOException {
+    out.writeLong(proxy.getMtime());
+    out.writeLong(proxy.getValueId());
+  }
+
+  private static FileContentsProxy readContentsProxy(DataInputStream in) throws IOException {
+    long mtime = in.readLong();
+    return FileContentsProxy.create(mtime, in.readLong());
+  }
+
+  private static void writeDirectoryListingState(
+      DirectoryListingStateValue value, DataOutputStream out) throws IOException {
+    List<Dirent> dirents = ImmutableList.copyOf(value.getDirents());
+    out.writeInt(dirents.size());
+    for (Dirent dirent : dirents) {
+      out.writeUTF(dirent.getName());
+      out.writeByte(dirent.getType().ordinal());
+    }
+  }
+
+  private static DirectoryListingStateValue readDirectoryListingState(DataInputStream in)
+      throws IOException {
+    int size = in.readInt();
+    List<Dirent> dirents = new ArrayList<>(size);
+    for (int i = 0; i < size; i++) {
+      String name = in.readUTF();
+      int type = in.readUnsignedByte();
+      if (type >= Dirent.Type.values().length) {
+        throw new IOException("Unexpected dirent type " + type);
+      }
+      dirents.add(new Dirent(name, Dirent.Type.values()[type]));
+    }
+    return DirectoryListingStateValue.create(dirents);
+  }
+}
@@ -34,6 +34,8 @@ public final class SsdModule extends BlazeModule {
     SsdOptions options = optionsProvider.getOptions(SsdOptions.class);
     if (options.experimentalMultiThreadedDigest) {
       DigestUtils.setMultiThreadedDigest(options.experimentalMultiThreadedDigest);
+    } else {
+      DigestUtils.setDigestParallelism(options.experimentalDigestParallelism);
     }
   }
 }
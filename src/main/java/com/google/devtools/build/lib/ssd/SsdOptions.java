@@ -29,4 +29,14 @@ public class SsdOptions extends OptionsBase {
             + "performance when using an SSD."
   )
   public boolean experimentalMultiThreadedDigest;
+
+  @Option(
+    name = "experimental_digest_parallelism",
+    defaultValue = "1",
+    help =
+        "The maximum number of files larger than 4KB that are read concurrently in order to "
+            + "compute their MD5 digests. 0 means unbounded. Ignored if "
+            + "--experimental_multi_threaded_digest is set."
+  )
+  public int experimentalDigestParallelism;
 }
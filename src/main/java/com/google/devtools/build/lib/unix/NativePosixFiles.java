@@ -213,6 +213,22 @@ public final class NativePosixFiles {
    */
   public static native ErrnoFileStatus errnoLstat(String path);
 
+  /**
+   * Native wrapper around POSIX fstatat(2) syscall, to stat several children of a directory with
+   * a single JNI call and without resolving the path of the directory for each of them.
+   *
+   * @param path the directory whose children to stat.
+   * @param names the names of the children.
+   * @param followSymlinks whether to follow the children that are symbolic links.
+   * @return an ErrnoFileStatus instance for each child, in the order of {@code names}, as
+   *   returned by {@link #errnoStat} or {@link #errnoLstat}. If the directory does not exist,
+   *   all of them have an ENOENT or ENOTDIR error. Children of a directory that cannot be opened
+   *   for lack of permission are stat'ed by their full path.
+   * @throws IOException if the directory exists but could not be opened.
+   */
+  public static native ErrnoFileStatus[] errnoStatChildren(
+      String path, String[] names, boolean followSymlinks) throws IOException;
+
   /**
    * Native wrapper around POSIX utime(2) syscall.
    *
@@ -0,0 +1,50 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.util;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import com.google.devtools.common.options.EnumConverter;
+
+/**
+ * The hash functions that can be selected for {@link Fingerprint}. All of them produce at least
+ * 128 bits, which callers such as the action cache rely on.
+ */
+public enum DigestFunction {
+  MD5(Hashing.md5()),
+  SHA1(Hashing.sha1()),
+  SHA256(Hashing.sha256()),
+  /**
+   * A fast, non-cryptographic hash. Suitable for keys that never leave the local machine, but
+   * not for keys shared with other users, e.g. through a remote cache.
+   */
+  MURMUR3(Hashing.murmur3_128());
+
+  private final HashFunction hashFunction;
+
+  DigestFunction(HashFunction hashFunction) {
+    this.hashFunction = hashFunction;
+  }
+
+  public HashFunction getHashFunction() {
+    return hashFunction;
+  }
+
+  /** Converts to {@link DigestFunction}. */
+  public static class Converter extends EnumConverter<DigestFunction> {
+    public Converter() {
+      super(DigestFunction.class, "digest function");
+    }
+  }
+}
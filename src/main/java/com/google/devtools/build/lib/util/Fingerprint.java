@@ -29,7 +29,8 @@ import java.util.UUID;
 import javax.annotation.Nullable;
 
 /**
- * Simplified wrapper for MD5 message digests.
+ * Simplified wrapper for message digests. The hash function defaults to MD5 and can be changed
+ * for the whole server with {@link #setDigestFunction}.
  *
  * @see java.security.MessageDigest
  */
@@ -37,6 +38,16 @@ public final class Fingerprint {
 
   private Hasher hasher;
   private static final HashFunction MD5_HASH_FUNCTION = Hashing.md5();
+  private static volatile HashFunction hashFunction = DigestFunction.MD5.getHashFunction();
+
+  /**
+   * Selects the hash function used by all Fingerprints created afterwards. This must be called
+   * before any fingerprint is computed, since digests computed with different functions are not
+   * comparable.
+   */
+  public static void setDigestFunction(DigestFunction digestFunction) {
+    hashFunction = digestFunction.getHashFunction();
+  }
 
   /**
    * Creates and initializes a new Hasher.
@@ -50,7 +61,7 @@ public final class Fingerprint {
    *
    * <p>This method has the side-effect of resetting the underlying digest computer.
    *
-   * @return the MD5 digest as a 16-byte array
+   * @return the digest as a byte array of at least 16 bytes
    * @see java.security.MessageDigest#digest()
    */
   public byte[] digestAndReset() {
@@ -64,7 +75,7 @@ public final class Fingerprint {
    *
    * <p>This method has the side-effect of resetting the underlying digest computer.
    *
-   * @return the MD5 digest as a 32-character string of hexadecimal digits
+   * @return the digest as a string of at least 32 hexadecimal digits
    */
   public String hexDigestAndReset() {
     String hexDigest = hasher.hash().toString();
@@ -291,7 +302,7 @@ public final class Fingerprint {
    * Reset the Fingerprint for additional use as though previous digesting had not been done.
    */
   public void reset() {
-    hasher = MD5_HASH_FUNCTION.newHasher();
+    hasher = hashFunction.newHasher();
   }
 
   // -------- Convenience methods ----------------------------
@@ -0,0 +1,85 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.lib.vfs;
+
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A {@link BatchStat} that stats the files of each directory with a single call to
+ * {@link Path#statChildrenIfFound}, which is a single JNI call on a {@link UnixFileSystem}.
+ *
+ * <p>The returned statuses have no digest.
+ */
+@ThreadSafe
+public final class DirectoryBatchStat implements BatchStat {
+  private final Path execRoot;
+
+  public DirectoryBatchStat(Path execRoot) {
+    this.execRoot = execRoot;
+  }
+
+  @Override
+  public List<FileStatusWithDigest> batchStat(boolean includeDigest, boolean includeLinks,
+      Iterable<PathFragment> paths) throws IOException, InterruptedException {
+    // The indices of the paths in each directory, in the order of the directories.
+    Map<Path, List<Integer>> indicesByDirectory = new LinkedHashMap<>();
+    List<Path> files = new ArrayList<>();
+    for (PathFragment pathFragment : paths) {
+      Path file = execRoot.getRelative(pathFragment);
+      Path dir = file.getParentDirectory();
+      List<Integer> indices = indicesByDirectory.get(dir);
+      if (indices == null) {
+        indices = new ArrayList<>();
+        indicesByDirectory.put(dir, indices);
+      }
+      indices.add(files.size());
+      files.add(file);
+    }
+
+    FileStatusWithDigest[] result = new FileStatusWithDigest[files.size()];
+    Symlinks symlinks = includeLinks ? Symlinks.NOFOLLOW : Symlinks.FOLLOW;
+    for (Map.Entry<Path, List<Integer>> entry : indicesByDirectory.entrySet()) {
+      if (Thread.interrupted()) {
+        throw new InterruptedException();
+      }
+      Path dir = entry.getKey();
+      List<Integer> indices = entry.getValue();
+      if (dir == null) {
+        // The root directory has no parent to batch its stat with.
+        for (int index : indices) {
+          result[index] =
+              FileStatusWithDigestAdapter.adapt(files.get(index).statIfFound(symlinks));
+        }
+        continue;
+      }
+      List<String> names = new ArrayList<>(indices.size());
+      for (int index : indices) {
+        names.add(files.get(index).getBaseName());
+      }
+      List<FileStatus> stats = dir.statChildrenIfFound(names, symlinks);
+      for (int i = 0; i < indices.size(); i++) {
+        result[indices.get(i)] = FileStatusWithDigestAdapter.adapt(stats.get(i));
+      }
+    }
+    return Arrays.asList(result);
+  }
+}
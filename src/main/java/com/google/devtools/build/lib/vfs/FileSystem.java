@@ -28,6 +28,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
 
@@ -455,6 +456,20 @@ public abstract class FileSystem {
     }
   }
 
+  /**
+   * Like {@link #statIfFound}, for the children of the directory {@code path} with the given names.
+   * Returns their statuses in the order of {@code names}. File systems that can stat the children
+   * of a directory faster than one by one should override this.
+   */
+  protected List<FileStatus> statChildrenIfFound(
+      Path path, List<String> names, boolean followSymlinks) throws IOException {
+    List<FileStatus> result = new ArrayList<>(names.size());
+    for (String name : names) {
+      result.add(statIfFound(path.getChild(name), followSymlinks));
+    }
+    return result;
+  }
+
   /**
    * Returns true iff {@code path} denotes an existing directory. See
    * {@link Path#isDirectory(Symlinks)} for specification.
@@ -35,6 +35,7 @@ import java.lang.ref.WeakReference;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.IdentityHashMap;
+import java.util.List;
 import java.util.Objects;
 
 /**
@@ -505,6 +506,18 @@ public class Path implements Comparable<Path>, Serializable {
     return fileSystem.statIfFound(this, followSymlinks.toBoolean());
   }
 
+  /**
+   * Like {@link #statIfFound(Symlinks)}, for the children of this directory with the given names.
+   * This may be much faster than statting the children one by one.
+   *
+   * @return the statuses of the children in the order of {@code names}, with null for the children
+   *         that are not found
+   */
+  public List<FileStatus> statChildrenIfFound(List<String> names, Symlinks followSymlinks)
+      throws IOException {
+    return fileSystem.statChildrenIfFound(this, names, followSymlinks.toBoolean());
+  }
+
 
   /**
    * Returns true iff this path denotes an existing directory. Follows symbolic
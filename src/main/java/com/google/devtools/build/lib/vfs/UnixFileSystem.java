@@ -225,6 +225,34 @@ public class UnixFileSystem extends AbstractFileSystemWithCustomStat {
     }
   }
 
+  @Override
+  protected List<FileStatus> statChildrenIfFound(
+      Path path, List<String> names, boolean followSymlinks) throws IOException {
+    String name = path.getPathString();
+    ErrnoFileStatus[] stats;
+    long startTime = Profiler.nanoTimeMaybe();
+    try {
+      stats = NativePosixFiles.errnoStatChildren(
+          name, names.toArray(new String[names.size()]), followSymlinks);
+    } finally {
+      profiler.logSimpleTask(startTime, ProfilerTask.VFS_STAT, name);
+    }
+    List<FileStatus> result = new ArrayList<>(stats.length);
+    for (int i = 0; i < stats.length; i++) {
+      ErrnoFileStatus stat = stats[i];
+      if (!stat.hasError()) {
+        result.add(new UnixFileStatus(stat));
+      } else if (stat.getErrno() == ErrnoFileStatus.ENOENT
+          || stat.getErrno() == ErrnoFileStatus.ENOTDIR) {
+        result.add(null);
+      } else {
+        // As in statIfFound, stat again to throw the proper exception.
+        result.add(stat(path.getChild(names.get(i)), followSymlinks));
+      }
+    }
+    return result;
+  }
+
   @Override
   protected boolean isReadable(Path path) throws IOException {
     return (statInternal(path, true).getPermissions() & 0400) != 0;
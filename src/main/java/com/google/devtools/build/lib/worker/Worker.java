@@ -13,9 +13,12 @@
 // limitations under the License.
 package com.google.devtools.build.lib.worker;
 
+import static java.nio.charset.StandardCharsets.US_ASCII;
+
 import com.google.common.hash.HashCode;
 import com.google.devtools.build.lib.events.Event;
 import com.google.devtools.build.lib.events.Reporter;
+import com.google.devtools.build.lib.util.OS;
 import com.google.devtools.build.lib.util.Preconditions;
 import com.google.devtools.build.lib.vfs.Path;
 
@@ -24,6 +27,9 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.lang.ProcessBuilder.Redirect;
+import java.lang.reflect.Field;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
@@ -41,11 +47,13 @@ final class Worker {
   private static final AtomicInteger pidCounter = new AtomicInteger();
   private final int workerId;
   private final Process process;
+  private final int processId;
   private final Thread shutdownHook;
   private final HashCode workerFilesHash;
 
   private Worker(Process process, Thread shutdownHook, int pid, HashCode workerFilesHash) {
     this.process = process;
+    this.processId = getProcessId(process);
     this.shutdownHook = shutdownHook;
     this.workerId = pid;
     this.workerFilesHash = workerFilesHash;
@@ -141,6 +149,48 @@ final class Worker {
     return workerFilesHash;
   }
 
+  /**
+   * Returns the resident memory of the worker process in kilobytes, or -1 if it is not known. It is
+   * only known on Linux.
+   */
+  long getResidentMemoryKb() {
+    if (OS.getCurrent() != OS.LINUX) {
+      return -1;
+    }
+    if (processId < 0) {
+      return -1;
+    }
+    try {
+      for (String line :
+          Files.readAllLines(Paths.get("/proc/" + processId + "/status"), US_ASCII)) {
+        if (line.startsWith("VmRSS:")) {
+          // The line looks like "VmRSS:     12345 kB".
+          return Long.parseLong(line.substring("VmRSS:".length(), line.length() - 2).trim());
+        }
+      }
+    } catch (IOException | NumberFormatException e) {
+      // The process exited, or /proc looks different than expected.
+    }
+    return -1;
+  }
+
+  /** Returns the id of the process, or -1 if it can't be determined. */
+  private static int getProcessId(Process process) {
+    try {
+      // Process.pid() is only available from Java 9 on.
+      return ((Long) Process.class.getMethod("pid").invoke(process)).intValue();
+    } catch (ReflectiveOperationException | RuntimeException e) {
+      // Fall back to the field of the UNIX implementation of Java 8.
+    }
+    try {
+      Field pid = process.getClass().getDeclaredField("pid");
+      pid.setAccessible(true);
+      return pid.getInt(process);
+    } catch (ReflectiveOperationException | RuntimeException e) {
+      return -1;
+    }
+  }
+
   boolean isAlive() {
     // This is horrible, but Process.isAlive() is only available from Java 8 on and this is the
     // best we can do prior to that.
@@ -27,7 +27,10 @@ final class WorkerActionContextProvider extends ActionContextProvider {
   private final ImmutableList<ActionContext> strategies;
 
   public WorkerActionContextProvider(
-      CommandEnvironment env, BuildRequest buildRequest, WorkerPool workers) {
+      CommandEnvironment env,
+      BuildRequest buildRequest,
+      WorkerPool workers,
+      WorkerStats workerStats) {
     boolean verboseFailures = buildRequest.getOptions(ExecutionOptions.class).verboseFailures;
     int maxRetries = buildRequest.getOptions(WorkerOptions.class).workerMaxRetries;
 
@@ -37,6 +40,7 @@ final class WorkerActionContextProvider extends ActionContextProvider {
                 env.getDirectories(),
                 buildRequest,
                 workers,
+                workerStats,
                 verboseFailures,
                 maxRetries));
   }
@@ -28,6 +28,7 @@ final class WorkerFactory extends BaseKeyedPooledObjectFactory<WorkerKey, Worker
   private final Path logDir;
   private Reporter reporter;
   private boolean verbose;
+  private long maxMemoryKb;
 
   public WorkerFactory(Path logDir) {
     super();
@@ -42,6 +43,14 @@ final class WorkerFactory extends BaseKeyedPooledObjectFactory<WorkerKey, Worker
     this.verbose = verbose;
   }
 
+  /**
+   * Sets the resident memory above which worker processes are retired, or 0 to keep them regardless
+   * of their memory.
+   */
+  public void setMaxMemoryKb(long maxMemoryKb) {
+    this.maxMemoryKb = maxMemoryKb;
+  }
+
   @Override
   public Worker create(WorkerKey key) throws Exception {
     return Worker.create(key, logDir, reporter, verbose);
@@ -60,26 +69,36 @@ final class WorkerFactory extends BaseKeyedPooledObjectFactory<WorkerKey, Worker
    */
   @Override
   public void destroyObject(WorkerKey key, PooledObject<Worker> p) throws Exception {
+    destroyWorker(key, p.getObject());
+  }
+
+  void destroyWorker(WorkerKey key, Worker worker) {
     if (verbose) {
       reporter.handle(
           Event.info(
               "Destroying "
                   + key.getMnemonic()
                   + " worker (id "
-                  + p.getObject().getWorkerId()
+                  + worker.getWorkerId()
                   + ")."));
     }
-    p.getObject().destroy();
+    worker.destroy();
   }
 
   /**
-   * The worker is considered to be valid when its files have not changed on disk and its process is
-   * still alive.
+   * The worker is considered to be valid when its files have not changed on disk, its process is
+   * still alive and does not use more memory than allowed.
    */
   @Override
   public boolean validateObject(WorkerKey key, PooledObject<Worker> p) {
-    Worker worker = p.getObject();
+    return validateWorker(key, p.getObject(), /*checkMemory=*/ true);
+  }
 
+  /**
+   * Returns whether the worker is still valid. Its memory is only taken into account if {@code
+   * checkMemory} is true.
+   */
+  boolean validateWorker(WorkerKey key, Worker worker, boolean checkMemory) {
     boolean hashMatches = key.getWorkerFilesHash().equals(worker.getWorkerFilesHash());
     boolean workerIsAlive = worker.isAlive();
     boolean workerIsStillValid = hashMatches && workerIsAlive;
@@ -88,7 +107,7 @@ final class WorkerFactory extends BaseKeyedPooledObjectFactory<WorkerKey, Worker
       StringBuilder msg = new StringBuilder();
       msg.append(key.getMnemonic());
       msg.append(" worker (id ");
-      msg.append(p.getObject().getWorkerId());
+      msg.append(worker.getWorkerId());
       msg.append(") can no longer be used, because");
 
       if (!workerIsAlive) {
@@ -109,6 +128,22 @@ final class WorkerFactory extends BaseKeyedPooledObjectFactory<WorkerKey, Worker
       reporter.handle(Event.warn(msg.toString()));
     }
 
+    if (workerIsStillValid && checkMemory && maxMemoryKb > 0) {
+      long memoryKb = worker.getResidentMemoryKb();
+      if (memoryKb > maxMemoryKb) {
+        if (verbose) {
+          reporter.handle(
+              Event.info(
+                  String.format(
+                      "Retiring %s worker (id %d), because it uses %d MB of memory",
+                      key.getMnemonic(),
+                      worker.getWorkerId(),
+                      memoryKb / 1024)));
+        }
+        return false;
+      }
+    }
+
     return workerIsStillValid;
   }
 }
@@ -32,6 +32,7 @@ final class WorkerKey {
   private final ImmutableMap<String, String> env;
   private final Path workDir;
   private final String mnemonic;
+  private final boolean multiplex;
 
   /**
    * This is used during validation whether a worker is still usable. It is not used to uniquely
@@ -44,12 +45,14 @@ final class WorkerKey {
       Map<String, String> env,
       Path workDir,
       String mnemonic,
-      HashCode workerFilesHash) {
+      HashCode workerFilesHash,
+      boolean multiplex) {
     this.args = ImmutableList.copyOf(Preconditions.checkNotNull(args));
     this.env = ImmutableMap.copyOf(Preconditions.checkNotNull(env));
     this.workDir = Preconditions.checkNotNull(workDir);
     this.mnemonic = Preconditions.checkNotNull(mnemonic);
     this.workerFilesHash = Preconditions.checkNotNull(workerFilesHash);
+    this.multiplex = multiplex;
   }
 
   public ImmutableList<String> getArgs() {
@@ -72,6 +75,14 @@ final class WorkerKey {
     return workerFilesHash;
   }
 
+  /**
+   * Returns whether the worker process can work on several requests at once, in which case a single
+   * process is shared by all requests for this key.
+   */
+  public boolean isMultiplex() {
+    return multiplex;
+  }
+
   @Override
   public boolean equals(Object o) {
     if (this == o) {
@@ -92,6 +103,9 @@ final class WorkerKey {
     if (!workDir.equals(workerKey.workDir)) {
       return false;
     }
+    if (multiplex != workerKey.multiplex) {
+      return false;
+    }
     return mnemonic.equals(workerKey.mnemonic);
 
   }
@@ -102,6 +116,7 @@ final class WorkerKey {
     result = 31 * result + env.hashCode();
     result = 31 * result + workDir.hashCode();
     result = 31 * result + mnemonic.hashCode();
+    result = 31 * result + (multiplex ? 1 : 0);
     return result;
   }
 
@@ -21,6 +21,7 @@ import com.google.devtools.build.lib.buildtool.BuildRequest;
 import com.google.devtools.build.lib.buildtool.buildevent.BuildCompleteEvent;
 import com.google.devtools.build.lib.buildtool.buildevent.BuildInterruptedEvent;
 import com.google.devtools.build.lib.buildtool.buildevent.BuildStartingEvent;
+import com.google.devtools.build.lib.concurrent.SharedThreadPools;
 import com.google.devtools.build.lib.events.Event;
 import com.google.devtools.build.lib.runtime.BlazeModule;
 import com.google.devtools.build.lib.runtime.Command;
@@ -30,11 +31,16 @@ import com.google.devtools.build.lib.vfs.Path;
 import com.google.devtools.common.options.OptionsBase;
 
 import java.io.IOException;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  * A module that adds the WorkerActionContextProvider to the available action context providers.
  */
 public class WorkerModule extends BlazeModule {
+  private static final Logger LOG = Logger.getLogger(WorkerModule.class.getName());
+
   private CommandEnvironment env;
   private BuildRequest buildRequest;
   private boolean verbose;
@@ -43,6 +49,12 @@ public class WorkerModule extends BlazeModule {
   private WorkerPool workerPool;
   private WorkerPoolConfig workerPoolConfig;
 
+  private final WorkerStats workerStats = new WorkerStats();
+  /** Whether the kinds of workers used by previous servers were loaded into workerStats. */
+  private volatile boolean workerKeysLoaded;
+  /** Starts the worker processes in the background, or null if it never ran. */
+  private Future<?> prespawning;
+
   @Override
   public Iterable<Class<? extends OptionsBase>> getCommandOptions(Command command) {
     return "build".equals(command.name())
@@ -86,6 +98,7 @@ public class WorkerModule extends BlazeModule {
 
     workerFactory.setReporter(env.getReporter());
     workerFactory.setVerbose(options.workerVerbose);
+    workerFactory.setMaxMemoryKb(options.workerMaxMemoryMb * 1024L);
 
     WorkerPoolConfig newConfig = createWorkerPoolConfig(options);
 
@@ -98,6 +111,55 @@ public class WorkerModule extends BlazeModule {
       workerPoolConfig = newConfig;
       workerPool = new WorkerPool(workerFactory, workerPoolConfig);
     }
+
+    if (options.workerPrespawn && (prespawning == null || prespawning.isDone())) {
+      final WorkerPool pool = workerPool;
+      final Path keysFile = getWorkerKeysFile();
+      prespawning =
+          SharedThreadPools.get(SharedThreadPools.Pool.IO)
+              .submit(
+                  new Runnable() {
+                    @Override
+                    public void run() {
+                      prespawnWorkers(pool, keysFile);
+                    }
+                  });
+    }
+  }
+
+  private Path getWorkerKeysFile() {
+    return env.getOutputBase().getRelative("worker-keys");
+  }
+
+  /**
+   * Starts the worker processes of the kinds of workers used by previous builds, including those of
+   * previous servers, so that they can warm up while the build is loading and analyzing. This runs
+   * in the background, as loading the kinds of workers and starting many processes may take a
+   * while.
+   */
+  private void prespawnWorkers(WorkerPool pool, Path keysFile) {
+    if (!workerKeysLoaded) {
+      workerKeysLoaded = true;
+      if (keysFile.exists()) {
+        try {
+          workerStats.load(keysFile);
+        } catch (IOException e) {
+          LOG.log(Level.WARNING, "Failed to load the kinds of workers from " + keysFile, e);
+        }
+      }
+    }
+    for (WorkerKey key : workerStats.getKeys()) {
+      if (pool.isClosed()) {
+        // The build was interrupted or the worker configuration changed meanwhile.
+        return;
+      }
+      try {
+        pool.prespawn(key);
+      } catch (IOException e) {
+        // The worker may no longer exist, or may be started differently by now.
+        LOG.log(Level.WARNING, "Failed to start " + key.getMnemonic() + " worker", e);
+      }
+    }
   }
 
   private WorkerPoolConfig createWorkerPoolConfig(WorkerOptions options) {
@@ -112,6 +174,10 @@ public class WorkerModule extends BlazeModule {
     config.setMaxTotalPerKey(options.workerMaxInstances);
     config.setMinIdlePerKey(options.workerMaxInstances);
 
+    // Workers that support multiplexing use a single process per key instead, which gets up to
+    // this many requests at once.
+    config.setMaxMultiplexRequestsPerKey(options.workerMaxMultiplexRequests);
+
     // Don't limit the total number of worker processes, as otherwise the pool might be full of
     // e.g. Java workers and could never accommodate another request for a different kind of
     // worker.
@@ -138,7 +204,7 @@ public class WorkerModule extends BlazeModule {
     Preconditions.checkNotNull(workerPool);
 
     return ImmutableList.<ActionContextProvider>of(
-        new WorkerActionContextProvider(env, buildRequest, workerPool));
+        new WorkerActionContextProvider(env, buildRequest, workerPool, workerStats));
   }
 
   @Override
@@ -148,6 +214,24 @@ public class WorkerModule extends BlazeModule {
 
   @Subscribe
   public void buildComplete(BuildCompleteEvent event) {
+    for (String stats : workerStats.finishBuild()) {
+      LOG.info(stats);
+      if (verbose) {
+        env.getReporter().handle(Event.info(stats));
+      }
+    }
+
+    if (buildRequest != null
+        && buildRequest.getOptions(WorkerOptions.class) != null
+        && buildRequest.getOptions(WorkerOptions.class).workerPrespawn) {
+      Path keysFile = getWorkerKeysFile();
+      try {
+        workerStats.save(keysFile);
+      } catch (IOException e) {
+        LOG.log(Level.WARNING, "Failed to save the kinds of workers to " + keysFile, e);
+      }
+    }
+
     if (buildRequest != null
         && buildRequest.getOptions(WorkerOptions.class) != null
         && buildRequest.getOptions(WorkerOptions.class).workerQuitAfterBuild) {
@@ -0,0 +1,135 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.worker;
+
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.devtools.build.lib.worker.WorkerProtocol.WorkRequest;
+import com.google.devtools.build.lib.worker.WorkerProtocol.WorkResponse;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Sends requests from several threads to a single worker process that supports multiplexing, and
+ * hands each of them the response with its request id.
+ *
+ * <p>A reader thread reads the responses from the worker process, so that they can arrive in any
+ * order. When the worker process closes its stdout or sends something that is not a response to a
+ * sent request, all pending and later requests fail with an {@link IOException}.
+ */
+@ThreadSafe
+final class WorkerMultiplexer {
+  private final OutputStream requests;
+
+  @GuardedBy("this")
+  private final Map<Integer, SettableFuture<WorkResponse>> pendingResponses = new HashMap<>();
+
+  @GuardedBy("this")
+  private int nextRequestId = 1;
+
+  /** Why the worker process can no longer be used, or null while it can. */
+  @GuardedBy("this")
+  private IOException failure;
+
+  WorkerMultiplexer(InputStream responses, OutputStream requests, String name) {
+    this.requests = requests;
+    Thread reader = new Thread(new ResponseReader(responses), name + " response reader");
+    reader.setDaemon(true);
+    reader.start();
+  }
+
+  /**
+   * Sends the request to the worker process with a new request id and waits for the response to it.
+   */
+  WorkResponse exec(WorkRequest request) throws IOException, InterruptedException {
+    SettableFuture<WorkResponse> response = SettableFuture.create();
+    int requestId;
+    synchronized (this) {
+      if (failure != null) {
+        throw new IOException(failure.getMessage(), failure);
+      }
+      requestId = nextRequestId++;
+      pendingResponses.put(requestId, response);
+    }
+    try {
+      WorkRequest requestWithId = request.toBuilder().setRequestId(requestId).build();
+      synchronized (requests) {
+        requestWithId.writeDelimitedTo(requests);
+        requests.flush();
+      }
+      return response.get();
+    } catch (ExecutionException e) {
+      IOException cause = (IOException) e.getCause();
+      throw new IOException(cause.getMessage(), cause);
+    } finally {
+      synchronized (this) {
+        pendingResponses.remove(requestId);
+      }
+    }
+  }
+
+  private synchronized void fail(IOException e) {
+    failure = e;
+    for (SettableFuture<WorkResponse> response : pendingResponses.values()) {
+      response.setException(e);
+    }
+    pendingResponses.clear();
+  }
+
+  /** Reads the responses of the worker process until its stdout is closed. */
+  private final class ResponseReader implements Runnable {
+    private final InputStream responses;
+
+    private ResponseReader(InputStream responses) {
+      this.responses = responses;
+    }
+
+    @Override
+    public void run() {
+      try {
+        while (true) {
+          WorkResponse response = WorkResponse.parseDelimitedFrom(responses);
+          if (response == null) {
+            fail(new IOException("Worker process closed its output"));
+            return;
+          }
+          int requestId = response.getRequestId();
+          SettableFuture<WorkResponse> pendingResponse;
+          synchronized (WorkerMultiplexer.this) {
+            if (requestId <= 0 || requestId >= nextRequestId) {
+              fail(
+                  new IOException(
+                      "Worker process sent a response to unknown request " + requestId));
+              return;
+            }
+            // There is no pending response if the request was interrupted.
+            pendingResponse = pendingResponses.remove(requestId);
+          }
+          if (pendingResponse != null) {
+            pendingResponse.set(response);
+          }
+        }
+      } catch (IOException e) {
+        fail(e);
+      }
+    }
+  }
+}
@@ -48,6 +48,41 @@ public class WorkerOptions extends OptionsBase {
   )
   public int workerMaxInstances;
 
+  @Option(
+    name = "worker_max_multiplex_requests",
+    defaultValue = "8",
+    category = "strategy",
+    help =
+        "How many requests may be sent at once to a worker process that supports multiplexing, "
+            + "i.e. whose actions have 'supports-multiplex-workers=1' in their execution info. "
+            + "Such actions share a single worker process per kind of worker, instead of using up "
+            + "to --worker_max_instances processes."
+  )
+  public int workerMaxMultiplexRequests;
+
+  @Option(
+    name = "worker_max_memory_mb",
+    defaultValue = "0",
+    category = "strategy",
+    help =
+        "If set to a positive value, a worker process whose resident memory exceeds this many "
+            + "megabytes is shut down once it finishes its current request, and replaced when "
+            + "needed. Only supported on Linux, and not for workers that support multiplexing."
+  )
+  public int workerMaxMemoryMb;
+
+  @Option(
+    name = "worker_prespawn",
+    defaultValue = "false",
+    category = "strategy",
+    help =
+        "If enabled, the worker processes of the kinds of workers used by previous builds in this "
+            + "output base are started when a build starts, instead of when the first action "
+            + "needs them, so that they can warm up during loading and analysis. They are started "
+            + "in the background. Kinds of workers unused for 10 builds are no longer started."
+  )
+  public boolean workerPrespawn;
+
   @Option(
     name = "worker_max_retries",
     defaultValue = "3",
@@ -16,10 +16,13 @@ package com.google.devtools.build.lib.worker;
 import com.google.common.base.Throwables;
 
 import org.apache.commons.pool2.impl.GenericKeyedObjectPool;
-import org.apache.commons.pool2.impl.GenericKeyedObjectPoolConfig;
 
 import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
 
+import javax.annotation.concurrent.GuardedBy;
 import javax.annotation.concurrent.ThreadSafe;
 
 /**
@@ -27,12 +30,28 @@ import javax.annotation.concurrent.ThreadSafe;
  *
  * <p>This is useful when the worker cannot handle multiple parallel requests on its own and we need
  * to pre-fork a couple of them instead.
+ *
+ * <p>Workers that can handle multiple parallel requests ({@link WorkerKey#isMultiplex}) are not
+ * pooled: there is one worker process per key, which is shared through a {@link WorkerMultiplexer},
+ * and the pool only limits how many requests are in flight on it.
  */
 @ThreadSafe
 final class WorkerPool extends GenericKeyedObjectPool<WorkerKey, Worker> {
+  private final WorkerFactory factory;
+  private final int maxMultiplexRequestsPerKey;
+  private final Object multiplexLock = new Object();
+
+  /** Only holds the keys with requests in flight or waiting, so that it does not grow forever. */
+  @GuardedBy("multiplexLock")
+  private final Map<WorkerKey, MultiplexCapacity> multiplexCapacity = new HashMap<>();
+
+  @GuardedBy("multiplexLock")
+  private final Map<WorkerKey, MultiplexedWorker> multiplexedWorkers = new HashMap<>();
 
-  public WorkerPool(WorkerFactory factory, GenericKeyedObjectPoolConfig config) {
+  public WorkerPool(WorkerFactory factory, WorkerPoolConfig config) {
     super(factory, config);
+    this.factory = factory;
+    this.maxMultiplexRequestsPerKey = config.getMaxMultiplexRequestsPerKey();
   }
 
   @Override
@@ -54,4 +73,168 @@ final class WorkerPool extends GenericKeyedObjectPool<WorkerKey, Worker> {
       throw new RuntimeException("unexpected", t);
     }
   }
+
+  /**
+   * Starts the worker processes that are kept running for the given key, unless they are already
+   * running, so that they are warm by the time the first request for the key comes.
+   *
+   * <p>May be called from a background thread. It does nothing once the pool is closed.
+   */
+  void prespawn(WorkerKey key) throws IOException {
+    if (key.isMultiplex()) {
+      synchronized (multiplexLock) {
+        if (!isClosed()) {
+          getMultiplexedWorker(key);
+        }
+      }
+      return;
+    }
+    try {
+      preparePool(key);
+    } catch (IllegalStateException e) {
+      // Thrown if the pool was closed meanwhile.
+      if (!isClosed()) {
+        throw e;
+      }
+    } catch (Exception e) {
+      Throwables.propagateIfPossible(e, IOException.class);
+      throw new RuntimeException("unexpected", e);
+    }
+  }
+
+  /**
+   * Waits until another request may be sent to the worker process of the given multiplexing key,
+   * and returns the multiplexer of that process. The process is started if there is none yet, or if
+   * the previous one is no longer valid.
+   *
+   * <p>Every multiplexer returned by this method must be given back with {@link
+   * #returnMultiplexer} or {@link #invalidateMultiplexer} once the request is done.
+   */
+  WorkerMultiplexer borrowMultiplexer(WorkerKey key) throws IOException, InterruptedException {
+    MultiplexCapacity capacity;
+    synchronized (multiplexLock) {
+      capacity = multiplexCapacity.get(key);
+      if (capacity == null) {
+        capacity = new MultiplexCapacity(maxMultiplexRequestsPerKey);
+        multiplexCapacity.put(key, capacity);
+      }
+      capacity.users++;
+    }
+    try {
+      capacity.permits.acquire();
+    } catch (InterruptedException e) {
+      removeUser(key, capacity);
+      throw e;
+    }
+    try {
+      return getMultiplexedWorker(key).multiplexer;
+    } catch (IOException | RuntimeException e) {
+      releaseCapacity(key);
+      throw e;
+    }
+  }
+
+  private MultiplexedWorker getMultiplexedWorker(WorkerKey key) throws IOException {
+    synchronized (multiplexLock) {
+      MultiplexedWorker multiplexedWorker = multiplexedWorkers.get(key);
+      // The memory of a shared worker is not checked, as retiring it would fail the requests in
+      // flight on it.
+      if (multiplexedWorker != null
+          && !factory.validateWorker(key, multiplexedWorker.worker, /*checkMemory=*/ false)) {
+        factory.destroyWorker(key, multiplexedWorker.worker);
+        multiplexedWorker = null;
+      }
+      if (multiplexedWorker == null) {
+        Worker worker;
+        try {
+          worker = factory.create(key);
+        } catch (Exception e) {
+          Throwables.propagateIfPossible(e, IOException.class);
+          throw new RuntimeException("unexpected", e);
+        }
+        multiplexedWorker = new MultiplexedWorker(worker);
+        multiplexedWorkers.put(key, multiplexedWorker);
+      }
+      return multiplexedWorker;
+    }
+  }
+
+  /** Gives back a multiplexer after its request is done. */
+  void returnMultiplexer(WorkerKey key, WorkerMultiplexer multiplexer) {
+    releaseCapacity(key);
+  }
+
+  /**
+   * Gives back a multiplexer after its request failed, and destroys its worker process. Any other
+   * requests in flight on that process fail, too.
+   *
+   * <p>Not to be used for interrupted requests: the response to those is simply dropped when it
+   * arrives, so the process can go on serving the other requests.
+   */
+  void invalidateMultiplexer(WorkerKey key, WorkerMultiplexer multiplexer) {
+    synchronized (multiplexLock) {
+      MultiplexedWorker multiplexedWorker = multiplexedWorkers.get(key);
+      if (multiplexedWorker != null && multiplexedWorker.multiplexer == multiplexer) {
+        multiplexedWorkers.remove(key);
+        factory.destroyWorker(key, multiplexedWorker.worker);
+      }
+    }
+    releaseCapacity(key);
+  }
+
+  private void releaseCapacity(WorkerKey key) {
+    MultiplexCapacity capacity;
+    synchronized (multiplexLock) {
+      capacity = multiplexCapacity.get(key);
+    }
+    capacity.permits.release();
+    removeUser(key, capacity);
+  }
+
+  private void removeUser(WorkerKey key, MultiplexCapacity capacity) {
+    synchronized (multiplexLock) {
+      if (--capacity.users == 0) {
+        multiplexCapacity.remove(key);
+      }
+    }
+  }
+
+  /** Closes the pool and destroys all worker processes, including the multiplexed ones. */
+  @Override
+  public void close() {
+    super.close();
+    synchronized (multiplexLock) {
+      for (Map.Entry<WorkerKey, MultiplexedWorker> entry : multiplexedWorkers.entrySet()) {
+        factory.destroyWorker(entry.getKey(), entry.getValue().worker);
+      }
+      multiplexedWorkers.clear();
+    }
+  }
+
+  /** Limits the requests in flight on the worker process of a multiplexing key. */
+  private static final class MultiplexCapacity {
+    private final Semaphore permits;
+
+    /** The requests that hold or wait for a permit. Guarded by the pool's multiplexLock. */
+    private int users;
+
+    private MultiplexCapacity(int maxRequests) {
+      this.permits = new Semaphore(maxRequests);
+    }
+  }
+
+  /** A worker process that is shared by several requests, and its multiplexer. */
+  private static final class MultiplexedWorker {
+    private final Worker worker;
+    private final WorkerMultiplexer multiplexer;
+
+    private MultiplexedWorker(Worker worker) {
+      this.worker = worker;
+      this.multiplexer =
+          new WorkerMultiplexer(
+              worker.getInputStream(),
+              worker.getOutputStream(),
+              "Worker " + worker.getWorkerId());
+    }
+  }
 }
@@ -22,6 +22,20 @@ import java.util.Objects;
  * and {@code hashCode()}.
  */
 final class WorkerPoolConfig extends GenericKeyedObjectPoolConfig {
+  private int maxMultiplexRequestsPerKey = 8;
+
+  /**
+   * Returns how many requests may be in flight at once on the worker process of a key whose workers
+   * support multiplexing.
+   */
+  public int getMaxMultiplexRequestsPerKey() {
+    return maxMultiplexRequestsPerKey;
+  }
+
+  public void setMaxMultiplexRequestsPerKey(int maxMultiplexRequestsPerKey) {
+    this.maxMultiplexRequestsPerKey = maxMultiplexRequestsPerKey;
+  }
+
   @Override
   public boolean equals(Object o) {
     if (this == o) {
@@ -48,6 +62,7 @@ final class WorkerPoolConfig extends GenericKeyedObjectPoolConfig {
         && getMaxTotal() == that.getMaxTotal()
         && getMaxTotalPerKey() == that.getMaxTotalPerKey()
         && getMinIdlePerKey() == that.getMinIdlePerKey()
+        && getMaxMultiplexRequestsPerKey() == that.getMaxMultiplexRequestsPerKey()
         && Objects.equals(getEvictionPolicyClassName(), that.getEvictionPolicyClassName())
         && Objects.equals(getJmxNameBase(), that.getJmxNameBase())
         && Objects.equals(getJmxNamePrefix(), that.getJmxNamePrefix());
@@ -73,6 +88,7 @@ final class WorkerPoolConfig extends GenericKeyedObjectPoolConfig {
         getMaxTotal(),
         getMaxTotalPerKey(),
         getMinIdlePerKey(),
+        getMaxMultiplexRequestsPerKey(),
         getEvictionPolicyClassName(),
         getJmxNameBase(),
         getJmxNamePrefix());
@@ -37,6 +37,7 @@ import com.google.devtools.build.lib.cmdline.Label;
 import com.google.devtools.build.lib.events.Event;
 import com.google.devtools.build.lib.events.EventHandler;
 import com.google.devtools.build.lib.standalone.StandaloneSpawnStrategy;
+import com.google.devtools.build.lib.util.BlazeClock;
 import com.google.devtools.build.lib.util.CommandFailureUtils;
 import com.google.devtools.build.lib.util.Preconditions;
 import com.google.devtools.build.lib.util.io.FileOutErr;
@@ -68,8 +69,15 @@ public final class WorkerSpawnStrategy implements SpawnActionContext {
   public static final String REASON_NO_EXECUTION_INFO =
       "because the action's execution info does not contain 'supports-workers=1'";
 
+  /**
+   * The execution info key with which an action declares that its worker process can work on
+   * several requests at once, so that a single worker process can be shared by all its requests.
+   */
+  public static final String SUPPORTS_MULTIPLEX_WORKERS = "supports-multiplex-workers";
+
   private final Path execRoot;
   private final WorkerPool workers;
+  private final WorkerStats workerStats;
   private final boolean verboseFailures;
   private final int maxRetries;
 
@@ -77,10 +85,12 @@ public final class WorkerSpawnStrategy implements SpawnActionContext {
       BlazeDirectories blazeDirs,
       OptionsClassProvider optionsProvider,
       WorkerPool workers,
+      WorkerStats workerStats,
       boolean verboseFailures,
       int maxRetries) {
     Preconditions.checkNotNull(optionsProvider);
     this.workers = Preconditions.checkNotNull(workers);
+    this.workerStats = Preconditions.checkNotNull(workerStats);
     this.execRoot = blazeDirs.getExecRoot();
     this.verboseFailures = verboseFailures;
     this.maxRetries = maxRetries;
@@ -142,7 +152,9 @@ public final class WorkerSpawnStrategy implements SpawnActionContext {
       ActionInputFileCache inputFileCache = actionExecutionContext.getActionInputFileCache();
 
       HashCode workerFilesHash = combineActionInputHashes(spawn.getToolFiles(), inputFileCache);
-      WorkerKey key = new WorkerKey(args, env, execRoot, spawn.getMnemonic(), workerFilesHash);
+      boolean multiplex = "1".equals(spawn.getExecutionInfo().get(SUPPORTS_MULTIPLEX_WORKERS));
+      WorkerKey key =
+          new WorkerKey(args, env, execRoot, spawn.getMnemonic(), workerFilesHash, multiplex);
 
       WorkRequest.Builder requestBuilder = WorkRequest.newBuilder();
       expandArgument(requestBuilder, Iterables.getLast(spawn.getArguments()));
@@ -167,7 +179,9 @@ public final class WorkerSpawnStrategy implements SpawnActionContext {
             .build();
       }
 
+      long startNanos = BlazeClock.nanoTime();
       WorkResponse response = execInWorker(eventHandler, key, requestBuilder.build(), maxRetries);
+      workerStats.recordRequest(key, BlazeClock.nanoTime() - startNanos);
 
       outErr.getErrorStream().write(response.getOutputBytes().toByteArray());
 
@@ -219,6 +233,10 @@ public final class WorkerSpawnStrategy implements SpawnActionContext {
   private WorkResponse execInWorker(
       EventHandler eventHandler, WorkerKey key, WorkRequest request, int retriesLeft)
       throws IOException, InterruptedException, UserExecException {
+    if (key.isMultiplex()) {
+      return execInMultiplexedWorker(eventHandler, key, request, retriesLeft);
+    }
+
     Worker worker = null;
     WorkResponse response = null;
 
@@ -266,6 +284,36 @@ public final class WorkerSpawnStrategy implements SpawnActionContext {
     return response;
   }
 
+  private WorkResponse execInMultiplexedWorker(
+      EventHandler eventHandler, WorkerKey key, WorkRequest request, int retriesLeft)
+      throws IOException, InterruptedException {
+    WorkerMultiplexer multiplexer = workers.borrowMultiplexer(key);
+    try {
+      WorkResponse response = multiplexer.exec(request);
+      workers.returnMultiplexer(key, multiplexer);
+      return response;
+    } catch (InterruptedException e) {
+      // Only this request is given up. The worker process keeps serving the others, and its
+      // response to this one is dropped.
+      workers.returnMultiplexer(key, multiplexer);
+      throw e;
+    } catch (IOException e) {
+      workers.invalidateMultiplexer(key, multiplexer);
+      if (retriesLeft == 0) {
+        throw e;
+      }
+      // The worker process failed, but we still have some retries left. Let's retry with a fresh
+      // worker.
+      eventHandler.handle(
+          Event.warn(
+              key.getMnemonic()
+                  + " worker failed ("
+                  + e
+                  + "), invalidating and retrying with new worker..."));
+    }
+    return execInMultiplexedWorker(eventHandler, key, request, retriesLeft - 1);
+  }
+
   @Override
   public String toString() {
     return "worker";
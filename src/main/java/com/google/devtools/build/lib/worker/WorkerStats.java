@@ -0,0 +1,236 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.worker;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableList;
+import com.google.common.hash.HashCode;
+import com.google.devtools.build.lib.vfs.FileSystem;
+import com.google.devtools.build.lib.vfs.Path;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * The kinds of workers used by the builds of this server, and how many requests they served in the
+ * current build and how long these took.
+ *
+ * <p>The kinds of workers can be saved to a file and loaded by the next server, so that it can
+ * start their worker processes before they are needed. Kinds of workers that were not used for
+ * {@link #MAX_UNUSED_BUILDS} builds are forgotten, and at most {@link #MAX_KEYS} of them are kept,
+ * so that workers that are no longer needed aren't started forever.
+ */
+@ThreadSafe
+final class WorkerStats {
+  private static final int MAGIC = 0x576b4b73; // "WkKs"
+  private static final int VERSION = 2;
+
+  /** The number of builds after which a kind of worker that served no requests is forgotten. */
+  @VisibleForTesting static final int MAX_UNUSED_BUILDS = 10;
+
+  /** The most kinds of workers that are kept. The one unused for longest is forgotten first. */
+  @VisibleForTesting static final int MAX_KEYS = 20;
+
+  /** The stats of each kind of worker, in the order in which they were first used. */
+  @GuardedBy("this")
+  private final Map<WorkerKey, KeyStats> statsByKey = new LinkedHashMap<>();
+
+  /** Whether kinds of workers were added or forgotten since the last {@link #save}. */
+  @GuardedBy("this")
+  private boolean changedSinceSave;
+
+  /** Records that a worker for the given key served a request, which took the given time. */
+  synchronized void recordRequest(WorkerKey key, long latencyNanos) {
+    KeyStats stats = getOrCreate(key);
+    stats.requests++;
+    stats.totalLatencyNanos += latencyNanos;
+  }
+
+  @GuardedBy("this")
+  private KeyStats getOrCreate(WorkerKey key) {
+    KeyStats stats = statsByKey.get(key);
+    if (stats == null) {
+      if (statsByKey.size() >= MAX_KEYS) {
+        removeLongestUnused();
+      }
+      stats = new KeyStats();
+      statsByKey.put(key, stats);
+      changedSinceSave = true;
+    } else if (!stats.key.getWorkerFilesHash().equals(key.getWorkerFilesHash())) {
+      changedSinceSave = true;
+    }
+    // Keep the latest key, whose worker files hash is up to date.
+    stats.key = key;
+    return stats;
+  }
+
+  /** Returns the kinds of workers used so far. */
+  synchronized ImmutableList<WorkerKey> getKeys() {
+    ImmutableList.Builder<WorkerKey> keys = ImmutableList.builder();
+    for (KeyStats stats : statsByKey.values()) {
+      keys.add(stats.key);
+    }
+    return keys.build();
+  }
+
+  @GuardedBy("this")
+  private void removeLongestUnused() {
+    KeyStats longestUnused = null;
+    for (KeyStats stats : statsByKey.values()) {
+      if (longestUnused == null || stats.unusedBuilds > longestUnused.unusedBuilds) {
+        longestUnused = stats;
+      }
+    }
+    statsByKey.remove(longestUnused.key);
+  }
+
+  /**
+   * Ends a build: returns a description of the requests served by each kind of worker since the
+   * last call, one line per kind of worker that served any, and forgets the kinds of workers that
+   * have now been unused for {@link #MAX_UNUSED_BUILDS} builds.
+   */
+  synchronized ImmutableList<String> finishBuild() {
+    ImmutableList.Builder<String> lines = ImmutableList.builder();
+    Iterator<KeyStats> iterator = statsByKey.values().iterator();
+    while (iterator.hasNext()) {
+      KeyStats stats = iterator.next();
+      if (stats.requests == 0) {
+        if (++stats.unusedBuilds >= MAX_UNUSED_BUILDS) {
+          iterator.remove();
+          changedSinceSave = true;
+        }
+        continue;
+      }
+      stats.unusedBuilds = 0;
+      lines.add(
+          String.format(
+              "%s workers served %d requests in %d ms on average",
+              stats.key.getMnemonic(),
+              stats.requests,
+              TimeUnit.NANOSECONDS.toMillis(stats.totalLatencyNanos / stats.requests)));
+      stats.requests = 0;
+      stats.totalLatencyNanos = 0;
+    }
+    return lines.build();
+  }
+
+  /**
+   * Writes the kinds of workers and for how many builds they have been unused to {@code file},
+   * replacing it, unless the kinds of workers haven't changed since the last call.
+   */
+  synchronized void save(Path file) throws IOException {
+    if (!changedSinceSave) {
+      return;
+    }
+    Path tmpFile = file.getParentDirectory().getChild(file.getBaseName() + ".tmp");
+    try (DataOutputStream out =
+        new DataOutputStream(new BufferedOutputStream(tmpFile.getOutputStream()))) {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeInt(statsByKey.size());
+      for (KeyStats stats : statsByKey.values()) {
+        writeKey(stats.key, out);
+        out.writeInt(stats.unusedBuilds);
+      }
+    }
+    tmpFile.renameTo(file);
+    changedSinceSave = false;
+  }
+
+  /**
+   * Adds the kinds of workers written to {@code file} by {@link #save}, unless they are already
+   * known.
+   *
+   * @throws IOException if the file can't be read or was not written by {@link #save}
+   */
+  synchronized void load(Path file) throws IOException {
+    List<KeyStats> loaded = new ArrayList<>();
+    try (DataInputStream in =
+        new DataInputStream(new BufferedInputStream(file.getInputStream()))) {
+      if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+        throw new IOException("Unexpected format of " + file);
+      }
+      int keyCount = in.readInt();
+      for (int i = 0; i < keyCount; i++) {
+        KeyStats stats = new KeyStats();
+        stats.key = readKey(in, file.getFileSystem());
+        stats.unusedBuilds = in.readInt();
+        loaded.add(stats);
+      }
+    }
+    for (KeyStats stats : loaded) {
+      if (statsByKey.size() < MAX_KEYS && !statsByKey.containsKey(stats.key)) {
+        statsByKey.put(stats.key, stats);
+      }
+    }
+  }
+
+  private static void writeKey(WorkerKey key, DataOutputStream out) throws IOException {
+    out.writeInt(key.getArgs().size());
+    for (String arg : key.getArgs()) {
+      out.writeUTF(arg);
+    }
+    out.writeInt(key.getEnv().size());
+    for (Map.Entry<String, String> entry : key.getEnv().entrySet()) {
+      out.writeUTF(entry.getKey());
+      out.writeUTF(entry.getValue());
+    }
+    out.writeUTF(key.getWorkDir().getPathString());
+    out.writeUTF(key.getMnemonic());
+    byte[] hash = key.getWorkerFilesHash().asBytes();
+    out.writeInt(hash.length);
+    out.write(hash);
+    out.writeBoolean(key.isMultiplex());
+  }
+
+  private static WorkerKey readKey(DataInputStream in, FileSystem fileSystem) throws IOException {
+    int argCount = in.readInt();
+    List<String> args = new ArrayList<>(argCount);
+    for (int i = 0; i < argCount; i++) {
+      args.add(in.readUTF());
+    }
+    int envCount = in.readInt();
+    Map<String, String> env = new LinkedHashMap<>();
+    for (int i = 0; i < envCount; i++) {
+      String name = in.readUTF();
+      env.put(name, in.readUTF());
+    }
+    Path workDir = fileSystem.getPath(in.readUTF());
+    String mnemonic = in.readUTF();
+    byte[] hash = new byte[in.readInt()];
+    in.readFully(hash);
+    boolean multiplex = in.readBoolean();
+    return new WorkerKey(args, env, workDir, mnemonic, HashCode.fromBytes(hash), multiplex);
+  }
+
+  private static final class KeyStats {
+    private WorkerKey key;
+    private long requests;
+    private long totalLatencyNanos;
+    /** The number of finished builds since a worker of this kind last served a request. */
+    private int unusedBuilds;
+  }
+}
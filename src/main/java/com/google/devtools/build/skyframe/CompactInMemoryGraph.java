@@ -0,0 +1,159 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.skyframe;
+
+import com.google.devtools.build.lib.util.Preconditions;
+
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.concurrent.GuardedBy;
+
+/**
+ * An in-memory graph that assigns a dense int id to every node it creates, so that the edges of
+ * done nodes can be stored as encoded ids rather than {@link SkyKey} references. See
+ * {@link CompactInMemoryNodeEntry} for the encoding. Values are stored as in
+ * {@link InMemoryGraphImpl}.
+ *
+ * <p>Ids are not reused: a node created again for the same key after it was removed gets a new id.
+ * The key of a removed node stays in the id table until {@link #compact} is called, since the
+ * nodes that depend on it are removed concurrently and may still look it up. Once the removal is
+ * over, no remaining node refers to its id.
+ *
+ * <p>The graph always keeps edges, since without edges there is nothing to encode.
+ */
+public class CompactInMemoryGraph extends InMemoryGraphImpl {
+  private static final int CHUNK_BITS = 14;
+  private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+  private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+  private final AtomicInteger nextId = new AtomicInteger();
+
+  private final Object chunksLock = new Object();
+
+  /**
+   * The key of each id, in chunks of {@link #CHUNK_SIZE} ids. The outer array is copied whenever a
+   * chunk is added, so that readers never see a partially initialized chunk. Slots are written
+   * before the node is published in the node map, which makes them visible to anyone who obtained
+   * the id from the node.
+   */
+  @GuardedBy("chunksLock") // For writes of the field only.
+  private volatile SkyKey[][] chunks = new SkyKey[0][];
+
+  /** Nodes that finished or whose reverse deps were decoded since the last {@link #compact}. */
+  private final Queue<CompactInMemoryNodeEntry> unpacked = new ConcurrentLinkedQueue<>();
+
+  /** Ids of the nodes removed since the last {@link #compact}. */
+  private final Queue<Integer> removedIds = new ConcurrentLinkedQueue<>();
+
+  public CompactInMemoryGraph() {
+    super(/*keepEdges=*/ true);
+  }
+
+  @Override
+  public void remove(SkyKey skyKey) {
+    InMemoryNodeEntry entry = nodeMap.remove(skyKey);
+    if (entry != null) {
+      removedIds.add(((CompactInMemoryNodeEntry) entry).getId());
+    }
+  }
+
+  @Override
+  protected InMemoryNodeEntry createIfAbsent(SkyKey key) {
+    // Most calls are for existing nodes; checking first avoids spending ids on them.
+    InMemoryNodeEntry entry = nodeMap.get(key);
+    if (entry != null) {
+      return entry;
+    }
+    int id = nextId.getAndIncrement();
+    Preconditions.checkState(id >= 0, "Ran out of node ids creating %s", key);
+    setKey(id, key);
+    InMemoryNodeEntry newEntry = new CompactInMemoryNodeEntry(this, id);
+    InMemoryNodeEntry oldEntry = nodeMap.putIfAbsent(key, newEntry);
+    if (oldEntry != null) {
+      setKey(id, null);
+      return oldEntry;
+    }
+    return newEntry;
+  }
+
+  /** Returns the id of the node for {@code key}, which must be in the graph. */
+  int getId(SkyKey key) {
+    int id = getIdIfPresent(key);
+    Preconditions.checkState(id >= 0, "No node for %s", key);
+    return id;
+  }
+
+  /** Returns the id of the node for {@code key}, or -1 if it is not in the graph. */
+  int getIdIfPresent(SkyKey key) {
+    InMemoryNodeEntry entry = nodeMap.get(key);
+    return entry == null ? -1 : ((CompactInMemoryNodeEntry) entry).getId();
+  }
+
+  /** Returns the key of the node with the given id, which must be in the graph. */
+  SkyKey getKey(int id) {
+    SkyKey[][] current = chunks;
+    int chunk = id >>> CHUNK_BITS;
+    SkyKey key = chunk < current.length ? current[chunk][id & CHUNK_MASK] : null;
+    Preconditions.checkState(key != null, "No node with id %s", id);
+    return key;
+  }
+
+  /** Called by a node when it finishes or when its reverse deps were decoded for use. */
+  void needsPacking(CompactInMemoryNodeEntry entry) {
+    unpacked.add(entry);
+  }
+
+  /**
+   * Encodes the edges of the nodes that finished since the last call, encodes again the reverse
+   * deps that were decoded since then, and drops the keys of the nodes removed since then from the
+   * id table. Must only be called when no evaluation or invalidation is in progress.
+   */
+  public void compact() {
+    Integer id;
+    while ((id = removedIds.poll()) != null) {
+      setKey(id, null);
+    }
+    CompactInMemoryNodeEntry entry;
+    while ((entry = unpacked.poll()) != null) {
+      entry.pack();
+    }
+  }
+
+  /** Returns the number of ids handed out so far, including those of removed nodes. */
+  int getIdCount() {
+    return nextId.get();
+  }
+
+  private void setKey(int id, SkyKey key) {
+    int chunk = id >>> CHUNK_BITS;
+    SkyKey[][] current = chunks;
+    if (chunk >= current.length) {
+      synchronized (chunksLock) {
+        current = chunks;
+        if (chunk >= current.length) {
+          int oldLength = current.length;
+          current = Arrays.copyOf(current, chunk + 1);
+          for (int i = oldLength; i < current.length; i++) {
+            current[i] = new SkyKey[CHUNK_SIZE];
+          }
+          chunks = current;
+        }
+      }
+    }
+    current[chunk][id & CHUNK_MASK] = key;
+  }
+}
@@ -0,0 +1,153 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.skyframe;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
+import com.google.devtools.build.lib.util.GroupedList;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * NodeEntry of a {@link CompactInMemoryGraph}. Once the node is done and the evaluation is over,
+ * its edges are stored as {@link DeltaEncodedIds} of the node ids assigned by the graph instead of
+ * {@link SkyKey} references.
+ *
+ * <p>The direct deps are encoded as the size of each group followed by the ids of its deps. A node
+ * with a single dep keeps the bare {@link SkyKey}, which is smaller than an array.
+ *
+ * <p>The reverse deps are encoded as their sorted ids. They are decoded back into a list as soon
+ * as they are used, since {@link ReverseDepsUtilImpl} modifies them in place.
+ *
+ * <p>Encoding looks up the id of every edge, so it is left to {@link #pack}, which
+ * {@link CompactInMemoryGraph#compact} calls once the evaluation is over. Until then, a node that
+ * finished keeps its edges in the form of {@link InMemoryNodeEntry}, and finishing it costs the
+ * same as in the default graph.
+ */
+class CompactInMemoryNodeEntry extends InMemoryNodeEntry {
+  private static final byte[] NO_DEPS = new byte[0];
+
+  private final CompactInMemoryGraph graph;
+  private final int id;
+
+  CompactInMemoryNodeEntry(CompactInMemoryGraph graph, int id) {
+    this.graph = graph;
+    this.id = id;
+  }
+
+  /** Returns the id of this node in its graph. */
+  int getId() {
+    return id;
+  }
+
+  /** Encodes the direct deps as described in the class comment. */
+  private Object encodeDirectDeps(GroupedList<SkyKey> directDeps) {
+    switch (directDeps.numElements()) {
+      case 0:
+        return NO_DEPS;
+      case 1:
+        return Iterables.getOnlyElement(directDeps.get(0));
+      default:
+        break;
+    }
+    DeltaEncodedIds.Writer writer =
+        new DeltaEncodedIds.Writer(directDeps.numElements() + directDeps.listSize());
+    for (Collection<SkyKey> group : directDeps) {
+      writer.writeCount(group.size());
+      for (SkyKey dep : group) {
+        writer.writeId(graph.getId(dep));
+      }
+    }
+    return writer.toByteArray();
+  }
+
+  @Override
+  protected GroupedList<SkyKey> uncompressDirectDeps(Object compressedDirectDeps) {
+    if (!(compressedDirectDeps instanceof byte[])) {
+      return super.uncompressDirectDeps(compressedDirectDeps);
+    }
+    DeltaEncodedIds.Reader reader = new DeltaEncodedIds.Reader((byte[]) compressedDirectDeps);
+    GroupedList<SkyKey> directDeps = new GroupedList<>();
+    while (reader.hasNext()) {
+      int size = reader.readCount();
+      if (size == 1) {
+        directDeps.appendGroup(ImmutableList.of(graph.getKey(reader.readId())));
+        continue;
+      }
+      ImmutableList.Builder<SkyKey> group = ImmutableList.builder();
+      for (int i = 0; i < size; i++) {
+        group.add(graph.getKey(reader.readId()));
+      }
+      directDeps.appendGroup(group.build());
+    }
+    return directDeps;
+  }
+
+  @Override
+  protected synchronized Set<SkyKey> setStateFinishedAndReturnReverseDepsToSignal() {
+    Set<SkyKey> reverseDepsToSignal = super.setStateFinishedAndReturnReverseDepsToSignal();
+    graph.needsPacking(this);
+    return reverseDepsToSignal;
+  }
+
+  @Override
+  protected Object getReverseDepsObject() {
+    if (reverseDeps instanceof byte[]) {
+      byte[] packed = (byte[]) reverseDeps;
+      List<SkyKey> unpacked = new ArrayList<>(packed.length);
+      DeltaEncodedIds.Reader reader = new DeltaEncodedIds.Reader(packed);
+      while (reader.hasNext()) {
+        unpacked.add(graph.getKey(reader.readId()));
+      }
+      reverseDeps = unpacked;
+      graph.needsPacking(this);
+    }
+    return reverseDeps;
+  }
+
+  /**
+   * Encodes the edges of this node if it is done and they are not encoded yet. The reverse deps are
+   * only encoded if there are more than one, and left alone if one of them is no longer in the
+   * graph, which can only happen while nodes are being deleted.
+   */
+  synchronized void pack() {
+    if (!isDone()) {
+      return;
+    }
+    if (!(directDeps instanceof byte[]) && !(directDeps instanceof SkyKey)) {
+      directDeps = encodeDirectDeps(super.uncompressDirectDeps(directDeps));
+    }
+    if (!(reverseDeps instanceof List) || ((List<?>) reverseDeps).size() < 2) {
+      return;
+    }
+    List<?> unpacked = (List<?>) reverseDeps;
+    int[] ids = new int[unpacked.size()];
+    for (int i = 0; i < ids.length; i++) {
+      ids[i] = graph.getIdIfPresent((SkyKey) unpacked.get(i));
+      if (ids[i] < 0) {
+        return;
+      }
+    }
+    Arrays.sort(ids);
+    DeltaEncodedIds.Writer writer = new DeltaEncodedIds.Writer(ids.length);
+    for (int parentId : ids) {
+      writer.writeId(parentId);
+    }
+    reverseDeps = writer.toByteArray();
+  }
+}
@@ -0,0 +1,92 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.skyframe;
+
+import com.google.devtools.build.lib.util.VarInt;
+
+import java.util.Arrays;
+
+/**
+ * Encodes sequences of node ids of a {@link CompactInMemoryGraph} into a {@code byte[]}. Each id
+ * is stored as a varint of its difference to the previous id. Nodes that are requested together
+ * tend to be created together and get close ids, so most ids take one or two bytes instead of the
+ * four of an int or a reference.
+ *
+ * <p>Plain counts can be interleaved with the ids; the reader must know where to expect them.
+ */
+final class DeltaEncodedIds {
+  private DeltaEncodedIds() {}
+
+  /** Builds an encoded sequence. */
+  static final class Writer {
+    private byte[] bytes;
+    private int length;
+    private int previousId;
+
+    Writer(int expectedIds) {
+      bytes = new byte[expectedIds * 2 + VarInt.MAX_VARINT_SIZE];
+    }
+
+    void writeCount(int count) {
+      ensureCapacity();
+      length = VarInt.putVarInt(count, bytes, length);
+    }
+
+    void writeId(int id) {
+      ensureCapacity();
+      int delta = id - previousId;
+      // Zigzag encoding, so that small negative deltas are short too.
+      length = VarInt.putVarInt((delta << 1) ^ (delta >> 31), bytes, length);
+      previousId = id;
+    }
+
+    byte[] toByteArray() {
+      return Arrays.copyOf(bytes, length);
+    }
+
+    private void ensureCapacity() {
+      if (length + VarInt.MAX_VARINT_SIZE > bytes.length) {
+        bytes = Arrays.copyOf(bytes, bytes.length * 2);
+      }
+    }
+  }
+
+  /** Reads a sequence built by a {@link Writer}, in the same order. */
+  static final class Reader {
+    private final byte[] bytes;
+    private final int[] holder = new int[1];
+    private int offset;
+    private int previousId;
+
+    Reader(byte[] bytes) {
+      this.bytes = bytes;
+    }
+
+    boolean hasNext() {
+      return offset < bytes.length;
+    }
+
+    int readCount() {
+      offset = VarInt.getVarInt(bytes, offset, holder);
+      return holder[0];
+    }
+
+    int readId() {
+      offset = VarInt.getVarInt(bytes, offset, holder);
+      int zigzag = holder[0];
+      previousId += (zigzag >>> 1) ^ -(zigzag & 1);
+      return previousId;
+    }
+  }
+}
@@ -17,6 +17,7 @@ import com.google.common.base.Function;
 import com.google.devtools.build.lib.concurrent.AbstractQueueVisitor;
 import com.google.devtools.build.lib.concurrent.ErrorHandler;
 import com.google.devtools.build.lib.concurrent.ExecutorParams;
+import com.google.devtools.build.skyframe.InvalidatingNodeVisitor.BatchedDirtyingNodeVisitor;
 import com.google.devtools.build.skyframe.InvalidatingNodeVisitor.DeletingNodeVisitor;
 import com.google.devtools.build.skyframe.InvalidatingNodeVisitor.DirtyingNodeVisitor;
 import com.google.devtools.build.skyframe.InvalidatingNodeVisitor.InvalidationState;
@@ -107,6 +108,19 @@ public final class EagerInvalidator {
             supportInterruptions);
   }
 
+  @Nullable
+  static BatchedDirtyingNodeVisitor createBatchedInvalidatingVisitorIfNeeded(
+      CompactInMemoryGraph graph,
+      Iterable<SkyKey> diff,
+      EvaluationProgressReceiver invalidationReceiver,
+      InvalidationState state,
+      DirtyKeyTracker dirtyKeyTracker) {
+    state.update(diff);
+    return state.isEmpty()
+        ? null
+        : new BatchedDirtyingNodeVisitor(graph, invalidationReceiver, state, dirtyKeyTracker);
+  }
+
   /**
    * Invalidates given values and their upward transitive closure in the graph if necessary, using
    * an executor constructed with the provided factory.
@@ -155,6 +169,25 @@ public final class EagerInvalidator {
     }
   }
 
+  /**
+   * Invalidates given values and their upward transitive closure in the graph if necessary,
+   * dirtying nodes in batches. This is faster than the other variants when many nodes are dirtied.
+   */
+  public static void invalidateInBatches(
+      CompactInMemoryGraph graph,
+      Iterable<SkyKey> diff,
+      EvaluationProgressReceiver invalidationReceiver,
+      InvalidationState state,
+      DirtyKeyTracker dirtyKeyTracker)
+      throws InterruptedException {
+    BatchedDirtyingNodeVisitor visitor =
+        createBatchedInvalidatingVisitorIfNeeded(
+            graph, diff, invalidationReceiver, state, dirtyKeyTracker);
+    if (visitor != null) {
+      visitor.run();
+    }
+  }
+
   /** Invalidates given values and their upward transitive closure in the graph. */
   public static void invalidate(
       QueryableGraph graph,
@@ -78,6 +78,8 @@ public final class InMemoryMemoizingEvaluator implements MemoizingEvaluator {
 
   private final AtomicBoolean evaluating = new AtomicBoolean(false);
 
+  private SchedulingPolicy schedulingPolicy = SchedulingPolicy.NONE;
+
   public InMemoryMemoizingEvaluator(
       Map<SkyFunctionName, ? extends SkyFunction> skyFunctions, Differencer differencer) {
     this(skyFunctions, differencer, null);
@@ -96,12 +98,26 @@ public final class InMemoryMemoizingEvaluator implements MemoizingEvaluator {
       @Nullable EvaluationProgressReceiver invalidationReceiver,
       EmittedEventState emittedEventState,
       boolean keepEdges) {
+    this(
+        skyFunctions,
+        differencer,
+        invalidationReceiver,
+        emittedEventState,
+        new InMemoryGraphImpl(keepEdges));
+  }
+
+  private InMemoryMemoizingEvaluator(
+      Map<SkyFunctionName, ? extends SkyFunction> skyFunctions,
+      Differencer differencer,
+      @Nullable EvaluationProgressReceiver invalidationReceiver,
+      EmittedEventState emittedEventState,
+      InMemoryGraphImpl graph) {
     this.skyFunctions = ImmutableMap.copyOf(skyFunctions);
     this.differencer = Preconditions.checkNotNull(differencer);
     this.progressReceiver = invalidationReceiver;
-    this.graph = new InMemoryGraphImpl(keepEdges);
+    this.graph = graph;
     this.emittedEventState = emittedEventState;
-    this.keepEdges = keepEdges;
+    this.keepEdges = graph.keepsEdges();
   }
 
   private void invalidate(Iterable<SkyKey> diff) {
@@ -187,13 +203,18 @@ public final class InMemoryMemoizingEvaluator implements MemoizingEvaluator {
               numThreads,
               progressReceiver,
               dirtyKeyTracker,
-              lazyDeletingReceiver);
+              lazyDeletingReceiver,
+              schedulingPolicy);
       EvaluationResult<T> result = evaluator.eval(roots);
       return EvaluationResult.<T>builder()
           .mergeFrom(result)
           .setWalkableGraph(new DelegatingWalkableGraph(graph))
           .build();
     } finally {
+      if (graph instanceof CompactInMemoryGraph) {
+        // Also after a failed or interrupted evaluation, which leaves nodes to pack behind too.
+        ((CompactInMemoryGraph) graph).compact();
+      }
       lastGraphVersion = intVersion;
       setAndCheckEvaluateState(false, roots);
     }
@@ -252,8 +273,13 @@ public final class InMemoryMemoizingEvaluator implements MemoizingEvaluator {
     // Instead, just start afresh with a new LinkedHashSet.
     valuesToDelete = new LinkedHashSet<>();
 
-    EagerInvalidator.invalidate(graph, valuesToDirty, progressReceiver, invalidatorState,
-        dirtyKeyTracker);
+    if (graph instanceof CompactInMemoryGraph) {
+      EagerInvalidator.invalidateInBatches((CompactInMemoryGraph) graph, valuesToDirty,
+          progressReceiver, invalidatorState, dirtyKeyTracker);
+    } else {
+      EagerInvalidator.invalidate(graph, valuesToDirty, progressReceiver, invalidatorState,
+          dirtyKeyTracker);
+    }
     // Ditto.
     valuesToDirty = new LinkedHashSet<>();
   }
@@ -303,6 +329,11 @@ public final class InMemoryMemoizingEvaluator implements MemoizingEvaluator {
     return graph.get(null, Reason.OTHER, key);
   }
 
+  @Override
+  public void setSchedulingPolicy(SchedulingPolicy schedulingPolicy) {
+    this.schedulingPolicy = Preconditions.checkNotNull(schedulingPolicy);
+  }
+
   @Override
   public void injectGraphTransformerForTesting(GraphTransformerForTesting transformer) {
     this.graph = transformer.transform(this.graph);
@@ -396,4 +427,26 @@ public final class InMemoryMemoizingEvaluator implements MemoizingEvaluator {
               skyFunctions, differencer, invalidationReceiver, emittedEventState, keepEdges);
         }
       };
+
+  /**
+   * Like {@link #SUPPLIER}, but the evaluators use a {@link CompactInMemoryGraph} when they keep
+   * edges.
+   */
+  public static final EvaluatorSupplier COMPACT_GRAPH_SUPPLIER =
+      new EvaluatorSupplier() {
+        @Override
+        public MemoizingEvaluator create(
+            ImmutableMap<SkyFunctionName, ? extends SkyFunction> skyFunctions,
+            Differencer differencer,
+            @Nullable EvaluationProgressReceiver invalidationReceiver,
+            EmittedEventState emittedEventState,
+            boolean keepEdges) {
+          return new InMemoryMemoizingEvaluator(
+              skyFunctions,
+              differencer,
+              invalidationReceiver,
+              emittedEventState,
+              keepEdges ? new CompactInMemoryGraph() : new InMemoryGraphImpl(/*keepEdges=*/ false));
+        }
+      };
 }
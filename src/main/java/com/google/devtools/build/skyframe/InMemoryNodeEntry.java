@@ -73,17 +73,20 @@ public class InMemoryNodeEntry implements NodeEntry {
    * This object represents the direct deps of the node, in groups if the {@code SkyFunction}
    * requested them that way. It contains either the in-progress direct deps, stored as a
    * {@code GroupedList<SkyKey>} before the node is finished building, or the full direct deps,
-   * compressed in a memory-efficient way (via {@link GroupedList#compress}, after the node is done.
+   * compressed in a memory-efficient way (via {@link #compressDirectDeps}), after the node is done.
+   * Subclasses may replace the compressed form of a done node with another one that
+   * {@link #uncompressDirectDeps} understands.
    *
    * <p>It is initialized lazily in getTemporaryDirectDeps() to save a little bit more memory.
    */
-  private Object directDeps = null;
+  protected Object directDeps = null;
 
   /**
    * This list stores the reverse dependencies of this node that have been declared so far.
    *
    * <p>In case of a single object we store the object unwrapped, without the list, for
-   * memory-efficiency.
+   * memory-efficiency. Subclasses may store it in another form, see
+   * {@link #getReverseDepsObject}.
    */
   protected Object reverseDeps = ImmutableList.of();
 
@@ -113,7 +116,7 @@ public class InMemoryNodeEntry implements NodeEntry {
 
         @Override
         Object getReverseDepsObject(InMemoryNodeEntry container) {
-          return container.reverseDeps;
+          return container.getReverseDepsObject();
         }
 
         @Override
@@ -139,6 +142,15 @@ public class InMemoryNodeEntry implements NodeEntry {
     return true;
   }
 
+  /**
+   * Returns {@link #reverseDeps} as {@link ReverseDepsUtilImpl} expects it: a bare {@link SkyKey}
+   * or a list that may be modified in place. Subclasses that store reverse deps in another form
+   * convert them here and store the result back.
+   */
+  protected Object getReverseDepsObject() {
+    return reverseDeps;
+  }
+
   @Override
   public synchronized boolean isDone() {
     return buildingState == null;
@@ -186,7 +198,20 @@ public class InMemoryNodeEntry implements NodeEntry {
   public synchronized GroupedList<SkyKey> getGroupedDirectDeps() {
     assertKeepEdges();
     Preconditions.checkState(isDone(), "no deps until done. NodeEntry: %s", this);
-    return GroupedList.create(directDeps);
+    return uncompressDirectDeps(directDeps);
+  }
+
+  /**
+   * Returns the representation in which the direct deps of a done node are kept. Subclasses that
+   * override this must also override {@link #uncompressDirectDeps}.
+   */
+  protected Object compressDirectDeps(GroupedList<SkyKey> directDeps) {
+    return directDeps.compress();
+  }
+
+  /** Inverse of {@link #compressDirectDeps}. */
+  protected GroupedList<SkyKey> uncompressDirectDeps(Object compressedDirectDeps) {
+    return GroupedList.create(compressedDirectDeps);
   }
 
   @Override
@@ -214,7 +239,7 @@ public class InMemoryNodeEntry implements NodeEntry {
     getReverseDepsUtil().addReverseDeps(this, reverseDepsToSignal);
     // Force consistency check and consolidate rdeps changes.
     getReverseDepsUtil().consolidateReverseDeps(this);
-    this.directDeps = getTemporaryDirectDeps().compress();
+    this.directDeps = compressDirectDeps(getTemporaryDirectDeps());
 
     markDone();
 
@@ -352,7 +377,7 @@ public class InMemoryNodeEntry implements NodeEntry {
     assertKeepEdges();
     if (isDone()) {
       buildingState =
-          DirtyBuildingState.create(isChanged, GroupedList.<SkyKey>create(directDeps), value);
+          DirtyBuildingState.create(isChanged, uncompressDirectDeps(directDeps), value);
       value = null;
       directDeps = null;
       return new MarkedDirtyResult(getReverseDepsUtil().getReverseDeps(this));
@@ -497,7 +522,7 @@ public class InMemoryNodeEntry implements NodeEntry {
         .add("value", value)
         .add("lastChangedVersion", lastChangedVersion)
         .add("lastEvaluatedVersion", lastEvaluatedVersion)
-        .add("directDeps", isDone() ? GroupedList.create(directDeps) : directDeps)
+        .add("directDeps", isDone() ? uncompressDirectDeps(directDeps) : directDeps)
         .add("reverseDeps", getReverseDepsUtil().toString(this))
         .add("buildingState", buildingState)
         .toString();
@@ -516,7 +541,7 @@ public class InMemoryNodeEntry implements NodeEntry {
     nodeEntry.lastChangedVersion = this.lastChangedVersion;
     nodeEntry.lastEvaluatedVersion = this.lastEvaluatedVersion;
     getReverseDepsUtil().addReverseDeps(nodeEntry, getReverseDepsUtil().getReverseDeps(this));
-    nodeEntry.directDeps = directDeps;
+    nodeEntry.directDeps = directDeps == null ? null : uncompressDirectDeps(directDeps).compress();
     nodeEntry.buildingState = null;
     return nodeEntry;
   }
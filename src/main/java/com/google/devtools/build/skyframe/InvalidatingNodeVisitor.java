@@ -21,11 +21,14 @@ import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Sets;
 import com.google.devtools.build.lib.concurrent.AbstractQueueVisitor;
+import com.google.devtools.build.lib.concurrent.ConcurrentBitSet;
 import com.google.devtools.build.lib.concurrent.ErrorClassifier;
 import com.google.devtools.build.lib.concurrent.ExecutorParams;
 import com.google.devtools.build.lib.concurrent.ForkJoinQuiescingExecutor;
 import com.google.devtools.build.lib.concurrent.QuiescingExecutor;
 import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+import com.google.devtools.build.lib.profiler.Profiler;
+import com.google.devtools.build.lib.profiler.ProfilerTask;
 import com.google.devtools.build.lib.util.Pair;
 import com.google.devtools.build.lib.util.Preconditions;
 import com.google.devtools.build.skyframe.QueryableGraph.Reason;
@@ -39,6 +42,7 @@ import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import javax.annotation.Nullable;
 
 /**
@@ -515,4 +519,186 @@ public abstract class InvalidatingNodeVisitor<TGraph extends QueryableGraph> {
       }
     }
   }
+
+  /**
+   * A node-dirtying implementation for {@link CompactInMemoryGraph} that is meant for invalidations
+   * that dirty many nodes, such as a change to a file that most of the build depends on.
+   *
+   * <p>Instead of one task per node, each task dirties a batch of up to {@link #BATCH_SIZE} nodes
+   * and collects the reverse deps of the nodes it dirtied into new batches, which it then
+   * enqueues. Whether a node was already enqueued is tracked with a {@link ConcurrentBitSet} over
+   * the node ids of the graph rather than with a concurrent hash set of keys. The tasks run on a
+   * dedicated {@link ForkJoinPool} with one thread per core, which is shut down when the visitation
+   * is over.
+   *
+   * <p>To keep the cost per node low, {@link #pendingVisitations} is not updated for every node.
+   * The batches that were not processed to the end are added to it only when the visitation is
+   * interrupted, which is the only time anyone looks at it. This keeps the invariant documented on
+   * {@link InvalidatingNodeVisitor}, since the nodes of such a batch that were already dirtied are
+   * skipped on the next visitation and their reverse deps are in batches of their own.
+   */
+  static class BatchedDirtyingNodeVisitor extends InvalidatingNodeVisitor<CompactInMemoryGraph> {
+    @VisibleForTesting static final int BATCH_SIZE = 512;
+
+    private final ConcurrentBitSet changed;
+    private final ConcurrentBitSet dirtied;
+    /** Batches that were enqueued, but not processed to the end yet. */
+    private final Set<Batch> unfinishedBatches = Sets.newConcurrentHashSet();
+    private final AtomicInteger dirtiedCount = new AtomicInteger();
+
+    BatchedDirtyingNodeVisitor(
+        CompactInMemoryGraph graph,
+        EvaluationProgressReceiver invalidationReceiver,
+        InvalidationState state,
+        DirtyKeyTracker dirtyKeyTracker) {
+      super(
+          graph,
+          invalidationReceiver,
+          state,
+          dirtyKeyTracker,
+          new ForkJoinPool(DEFAULT_THREAD_COUNT));
+      // No nodes are created while the graph is invalidated, so all ids are below this.
+      int idCount = graph.getIdCount();
+      this.changed = new ConcurrentBitSet(idCount);
+      this.dirtied = new ConcurrentBitSet(idCount);
+    }
+
+    @Override
+    protected boolean getSupportInterruptions() {
+      return true;
+    }
+
+    @Override
+    void run() throws InterruptedException {
+      long startTime = Profiler.nanoTimeMaybe();
+      ImmutableList<Pair<SkyKey, InvalidationType>> initialVisitations =
+          ImmutableList.copyOf(pendingVisitations);
+      ArrayList<SkyKey> changedKeys = new ArrayList<>();
+      ArrayList<SkyKey> dirtiedKeys = new ArrayList<>();
+      for (Pair<SkyKey, InvalidationType> visitData : initialVisitations) {
+        (visitData.second == InvalidationType.CHANGED ? changedKeys : dirtiedKeys)
+            .add(visitData.first);
+      }
+      visit(changedKeys, InvalidationType.CHANGED);
+      visit(dirtiedKeys, InvalidationType.DIRTIED);
+      try {
+        executor.awaitQuiescence(/*interruptWorkers=*/ true);
+      } catch (InterruptedException e) {
+        for (Batch batch : unfinishedBatches) {
+          for (int i = 0; i < batch.size; i++) {
+            pendingVisitations.add(Pair.of(batch.keys[i], batch.invalidationType));
+          }
+        }
+        throw e;
+      }
+      Preconditions.checkState(
+          unfinishedBatches.isEmpty(), "All batches should have been processed");
+      pendingVisitations.removeAll(initialVisitations);
+      Preconditions.checkState(
+          pendingVisitations.isEmpty(),
+          "All dirty nodes should have been processed: %s",
+          pendingVisitations);
+      Profiler.instance()
+          .logSimpleTask(
+              startTime,
+              ProfilerTask.SKYFRAME_INVALIDATION,
+              "dirtied " + dirtiedCount.get() + " nodes");
+    }
+
+    @Override
+    void visit(Iterable<SkyKey> keys, InvalidationType invalidationType) {
+      Preconditions.checkState(invalidationType != InvalidationType.DELETED, keys);
+      ConcurrentBitSet setToCheck =
+          invalidationType == InvalidationType.CHANGED ? changed : dirtied;
+      Batch batch = new Batch(invalidationType);
+      for (SkyKey key : keys) {
+        InMemoryNodeEntry entry = graph.get(null, Reason.INVALIDATION, key);
+        if (entry != null && setToCheck.add(((CompactInMemoryNodeEntry) entry).getId())) {
+          batch = batch.add(key, entry);
+        }
+      }
+      batch.enqueue();
+    }
+
+    /** Nodes to be marked with the same invalidation type by a single task. */
+    private final class Batch implements Runnable {
+      private final InvalidationType invalidationType;
+      private final SkyKey[] keys = new SkyKey[BATCH_SIZE];
+      private final InMemoryNodeEntry[] entries = new InMemoryNodeEntry[BATCH_SIZE];
+      private int size;
+
+      private Batch(InvalidationType invalidationType) {
+        this.invalidationType = invalidationType;
+      }
+
+      /**
+       * Adds a node to this batch. If that fills the batch, enqueues it and returns a new, empty
+       * one, otherwise returns this batch.
+       */
+      private Batch add(SkyKey key, InMemoryNodeEntry entry) {
+        keys[size] = key;
+        entries[size] = entry;
+        size++;
+        if (size < BATCH_SIZE) {
+          return this;
+        }
+        enqueue();
+        return new Batch(invalidationType);
+      }
+
+      /** Enqueues this batch unless it is empty. */
+      private void enqueue() {
+        if (size > 0) {
+          // Registered before it is handed to the executor, which drops it once interrupted.
+          unfinishedBatches.add(this);
+          executor.execute(this);
+        }
+      }
+
+      @Override
+      public void run() {
+        boolean isChanged = (invalidationType == InvalidationType.CHANGED);
+        Batch reverseDeps = new Batch(InvalidationType.DIRTIED);
+        int count = 0;
+        for (int i = 0; i < size; i++) {
+          if (Thread.currentThread().isInterrupted()) {
+            // Leave this batch unfinished, but make sure the reverse deps of the nodes that were
+            // already dirtied are accounted for.
+            reverseDeps.enqueue();
+            return;
+          }
+          SkyKey key = keys[i];
+          InMemoryNodeEntry entry = entries[i];
+          if (entry.isChanged() || (!isChanged && entry.isDirty())) {
+            // If this node is already marked changed, or we are only marking this node dirty, and
+            // it already is, move along.
+            continue;
+          }
+          MarkedDirtyResult markedDirtyResult = entry.markDirty(isChanged);
+          if (markedDirtyResult == null) {
+            // Another thread has already dirtied this node.
+            continue;
+          }
+          // Reverse deps are only marked dirty, because only a dependency of theirs has changed.
+          for (SkyKey reverseDep : markedDirtyResult.getReverseDepsUnsafe()) {
+            InMemoryNodeEntry reverseDepEntry = graph.get(key, Reason.INVALIDATION, reverseDep);
+            Preconditions.checkState(
+                reverseDepEntry != null,
+                "key %s not in the graph, but enqueued for dirtying by %s",
+                reverseDep,
+                key);
+            if (dirtied.add(((CompactInMemoryNodeEntry) reverseDepEntry).getId())) {
+              reverseDeps = reverseDeps.add(reverseDep, reverseDepEntry);
+            }
+          }
+          informInvalidationReceiver(key, EvaluationProgressReceiver.InvalidationState.DIRTY);
+          dirtyKeyTracker.dirty(key);
+          count++;
+        }
+        reverseDeps.enqueue();
+        dirtiedCount.addAndGet(count);
+        unfinishedBatches.remove(this);
+      }
+    }
+  }
 }
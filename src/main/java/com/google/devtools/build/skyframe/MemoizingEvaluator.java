@@ -121,6 +121,12 @@ public interface MemoizingEvaluator {
   @Nullable
   NodeEntry getExistingEntryForTesting(SkyKey key);
 
+  /**
+   * Sets the policy deciding the order in which pending nodes are evaluated by subsequent calls to
+   * {@link #evaluate}. Defaults to {@link SchedulingPolicy#NONE}.
+   */
+  void setSchedulingPolicy(SchedulingPolicy schedulingPolicy);
+
   /**
    * Tests that want finer control over the graph being used may provide a {@code transformer} here.
    * This {@code transformer} will be applied to the graph for each invalidation/evaluation.
@@ -32,6 +32,8 @@ import com.google.devtools.build.lib.collect.nestedset.NestedSetVisitor;
 import com.google.devtools.build.lib.concurrent.AbstractQueueVisitor;
 import com.google.devtools.build.lib.concurrent.ErrorClassifier;
 import com.google.devtools.build.lib.concurrent.ForkJoinQuiescingExecutor;
+import com.google.devtools.build.lib.concurrent.PrioritizedRunnable;
+import com.google.devtools.build.lib.concurrent.PriorityBlockingStack;
 import com.google.devtools.build.lib.concurrent.QuiescingExecutor;
 import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadCompatible;
 import com.google.devtools.build.lib.events.Event;
@@ -165,6 +167,7 @@ public final class ParallelEvaluator implements Evaluator {
   private final DirtyKeyTracker dirtyKeyTracker;
   private final Receiver<Collection<SkyKey>> inflightKeysReceiver;
   private final EventFilter storedEventFilter;
+  private final SchedulingPolicy schedulingPolicy;
 
   public ParallelEvaluator(
       ProcessableGraph graph,
@@ -178,6 +181,38 @@ public final class ParallelEvaluator implements Evaluator {
       @Nullable EvaluationProgressReceiver progressReceiver,
       DirtyKeyTracker dirtyKeyTracker,
       Receiver<Collection<SkyKey>> inflightKeysReceiver) {
+    this(
+        graph,
+        graphVersion,
+        skyFunctions,
+        reporter,
+        emittedEventState,
+        storedEventFilter,
+        keepGoing,
+        threadCount,
+        progressReceiver,
+        dirtyKeyTracker,
+        inflightKeysReceiver,
+        SchedulingPolicy.NONE);
+  }
+
+  /**
+   * Creates an evaluator that runs on its own pool of {@code threadCount} threads, which evaluate
+   * pending nodes in the order given by {@code schedulingPolicy}.
+   */
+  public ParallelEvaluator(
+      ProcessableGraph graph,
+      Version graphVersion,
+      ImmutableMap<SkyFunctionName, ? extends SkyFunction> skyFunctions,
+      final EventHandler reporter,
+      EmittedEventState emittedEventState,
+      EventFilter storedEventFilter,
+      boolean keepGoing,
+      int threadCount,
+      @Nullable EvaluationProgressReceiver progressReceiver,
+      DirtyKeyTracker dirtyKeyTracker,
+      Receiver<Collection<SkyKey>> inflightKeysReceiver,
+      SchedulingPolicy schedulingPolicy) {
     this.graph = graph;
     this.skyFunctions = skyFunctions;
     this.graphVersion = graphVersion;
@@ -192,6 +227,7 @@ public final class ParallelEvaluator implements Evaluator {
         new NestedSetVisitor<>(new NestedSetEventReceiver(reporter), emittedEventState);
     this.storedEventFilter = storedEventFilter;
     this.forkJoinPool = null;
+    this.schedulingPolicy = Preconditions.checkNotNull(schedulingPolicy);
   }
 
   public ParallelEvaluator(
@@ -222,6 +258,8 @@ public final class ParallelEvaluator implements Evaluator {
         new NestedSetVisitor<>(new NestedSetEventReceiver(reporter), emittedEventState);
     this.storedEventFilter = storedEventFilter;
     this.forkJoinPool = Preconditions.checkNotNull(forkJoinPool);
+    // The pool belongs to the caller, so its order can't be changed.
+    this.schedulingPolicy = SchedulingPolicy.NONE;
   }
 
   private Map<SkyKey, ? extends NodeEntry> getBatchValues(
@@ -775,14 +813,25 @@ public final class ParallelEvaluator implements Evaluator {
 
     private ValueVisitor(int threadCount) {
       quiescingExecutor =
-          new AbstractQueueVisitor(
-              /*concurrent*/ true,
-              threadCount,
-              /*keepAliveTime=*/ 1,
-              TimeUnit.SECONDS,
-              /*failFastOnException*/ true,
-              "skyframe-evaluator",
-              VALUE_VISITOR_ERROR_CLASSIFIER);
+          schedulingPolicy == SchedulingPolicy.NONE
+              ? new AbstractQueueVisitor(
+                  /*concurrent*/ true,
+                  threadCount,
+                  /*keepAliveTime=*/ 1,
+                  TimeUnit.SECONDS,
+                  /*failFastOnException*/ true,
+                  "skyframe-evaluator",
+                  VALUE_VISITOR_ERROR_CLASSIFIER)
+              : new AbstractQueueVisitor(
+                  /*concurrent*/ true,
+                  threadCount,
+                  /*keepAliveTime=*/ 1,
+                  TimeUnit.SECONDS,
+                  /*failFastOnException*/ true,
+                  "skyframe-evaluator",
+                  AbstractQueueVisitor.EXECUTOR_FACTORY,
+                  VALUE_VISITOR_ERROR_CLASSIFIER,
+                  new PriorityBlockingStack());
     }
 
     private void waitForCompletion() throws InterruptedException {
@@ -807,7 +856,7 @@ public final class ParallelEvaluator implements Evaluator {
       if (newlyEnqueued && progressReceiver != null) {
         progressReceiver.enqueueing(key);
       }
-      quiescingExecutor.execute(new Evaluate(this, key));
+      quiescingExecutor.execute(new Evaluate(this, key, schedulingPolicy.getPriority(key)));
     }
 
     /**
@@ -859,14 +908,21 @@ public final class ParallelEvaluator implements Evaluator {
   /**
    * An action that evaluates a value.
    */
-  private class Evaluate implements Runnable {
+  private class Evaluate implements PrioritizedRunnable {
     private final ValueVisitor visitor;
     /** The name of the value to be evaluated. */
     private final SkyKey skyKey;
+    private final int priority;
 
-    private Evaluate(ValueVisitor visitor, SkyKey skyKey) {
+    private Evaluate(ValueVisitor visitor, SkyKey skyKey, int priority) {
       this.visitor = visitor;
       this.skyKey = skyKey;
+      this.priority = priority;
+    }
+
+    @Override
+    public int getPriority() {
+      return priority;
     }
 
     private void enqueueChild(
@@ -0,0 +1,40 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.skyframe;
+
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+
+/**
+ * Decides which pending node evaluations a {@link ParallelEvaluator} runs first when there are
+ * more of them than threads. Nodes with a higher priority are evaluated first; nodes of equal
+ * priority are evaluated most recently enqueued first, as without a policy.
+ *
+ * <p>A useful priority estimates how much work remains below a node, so that the start of long
+ * chains of work is not delayed behind short ones.
+ */
+@ThreadSafe
+public interface SchedulingPolicy {
+
+  /** Gives all nodes the same priority. Evaluations then run in the default order. */
+  SchedulingPolicy NONE =
+      new SchedulingPolicy() {
+        @Override
+        public int getPriority(SkyKey key) {
+          return 0;
+        }
+      };
+
+  /** Returns the priority of evaluating {@code key}. Called once per enqueued evaluation. */
+  int getPriority(SkyKey key);
+}
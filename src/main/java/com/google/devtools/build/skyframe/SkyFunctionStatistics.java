@@ -0,0 +1,317 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.skyframe;
+
+import com.google.common.base.Supplier;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Ordering;
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+import com.google.devtools.build.lib.profiler.Profiler;
+import com.google.devtools.build.lib.profiler.ProfilerTask;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.concurrent.GuardedBy;
+
+/**
+ * An {@link EvaluationProgressReceiver} that counts, per {@link SkyFunctionName}, what happened to
+ * the nodes that were dirtied: whether they were found clean without running their function,
+ * re-evaluated to a new value, or re-evaluated to a value equal to the old one, in which case
+ * change pruning stopped the invalidation but the time spent evaluating them was wasted. Functions
+ * with many such pruned re-evaluations usually have deps that change too often, or values whose
+ * equality is too weak.
+ *
+ * <p>It also keeps the slowest pruned re-evaluations, to find the nodes responsible.
+ */
+@ThreadSafe
+public final class SkyFunctionStatistics implements EvaluationProgressReceiver {
+  private static final int HOTTEST_NODES_COUNT = 20;
+
+  private static final Comparator<HotNode> BY_NANOS =
+      new Comparator<HotNode>() {
+        @Override
+        public int compare(HotNode n1, HotNode n2) {
+          return Long.compare(n1.nanos, n2.nanos);
+        }
+      };
+
+  private static final Ordering<Map.Entry<SkyFunctionName, FunctionStats>> MOST_WASTEFUL_FIRST =
+      new Ordering<Map.Entry<SkyFunctionName, FunctionStats>>() {
+        @Override
+        public int compare(
+            Map.Entry<SkyFunctionName, FunctionStats> e1,
+            Map.Entry<SkyFunctionName, FunctionStats> e2) {
+          int result = Long.compare(e2.getValue().getPrunedNanos(), e1.getValue().getPrunedNanos());
+          if (result == 0) {
+            result = Long.compare(e2.getValue().getComputeNanos(), e1.getValue().getComputeNanos());
+          }
+          return result != 0 ? result : e1.getKey().getName().compareTo(e2.getKey().getName());
+        }
+      };
+
+  private final ConcurrentMap<SkyFunctionName, FunctionStats> stats = new ConcurrentHashMap<>();
+
+  /**
+   * Time spent computing each dirtied node that was not evaluated yet. Only dirtied nodes are
+   * tracked, since only they can be pruned.
+   */
+  private final ConcurrentMap<SkyKey, AtomicLong> dirtyNodeNanos = new ConcurrentHashMap<>();
+
+  @GuardedBy("hottestNodes")
+  private final PriorityQueue<HotNode> hottestNodes =
+      new PriorityQueue<>(HOTTEST_NODES_COUNT + 1, BY_NANOS);
+
+  /** Counters for the nodes of one {@link SkyFunctionName}. */
+  @ThreadSafe
+  public static final class FunctionStats {
+    private final AtomicLong dirtied = new AtomicLong();
+    private final AtomicLong verifiedClean = new AtomicLong();
+    private final AtomicLong changed = new AtomicLong();
+    private final AtomicLong pruned = new AtomicLong();
+    private final AtomicLong computeCalls = new AtomicLong();
+    private final AtomicLong computeNanos = new AtomicLong();
+    private final AtomicLong prunedNanos = new AtomicLong();
+
+    /** Number of nodes that were dirtied. */
+    public long getDirtied() {
+      return dirtied.get();
+    }
+
+    /** Number of dirty nodes found clean without running their function, as no dep changed. */
+    public long getVerifiedClean() {
+      return verifiedClean.get();
+    }
+
+    /** Number of dirty nodes that were re-evaluated to a different value. */
+    public long getChanged() {
+      return changed.get();
+    }
+
+    /** Number of dirty nodes that were re-evaluated to a value equal to their old one. */
+    public long getPruned() {
+      return pruned.get();
+    }
+
+    /** Number of calls to the function, including restarts and calls for new nodes. */
+    public long getComputeCalls() {
+      return computeCalls.get();
+    }
+
+    /** Time spent in all calls to the function. */
+    public long getComputeNanos() {
+      return computeNanos.get();
+    }
+
+    /** Time spent in the calls to the function for the nodes counted by {@link #getPruned}. */
+    public long getPrunedNanos() {
+      return prunedNanos.get();
+    }
+  }
+
+  private static final class HotNode {
+    private final SkyKey key;
+    private final long nanos;
+
+    private HotNode(SkyKey key, long nanos) {
+      this.key = key;
+      this.nanos = nanos;
+    }
+  }
+
+  @Override
+  public void invalidated(SkyKey skyKey, InvalidationState state) {
+    switch (state) {
+      case DIRTY:
+        if (dirtyNodeNanos.putIfAbsent(skyKey, new AtomicLong()) == null) {
+          getStats(skyKey).dirtied.incrementAndGet();
+        }
+        break;
+      case DELETED:
+        dirtyNodeNanos.remove(skyKey);
+        break;
+      default:
+        throw new IllegalStateException(state.toString());
+    }
+  }
+
+  @Override
+  public void enqueueing(SkyKey skyKey) {}
+
+  @Override
+  public void computed(SkyKey skyKey, long elapsedTimeNanos) {
+    FunctionStats functionStats = getStats(skyKey);
+    functionStats.computeCalls.incrementAndGet();
+    functionStats.computeNanos.addAndGet(elapsedTimeNanos);
+    AtomicLong nanos = dirtyNodeNanos.get(skyKey);
+    if (nanos != null) {
+      nanos.addAndGet(elapsedTimeNanos);
+    }
+  }
+
+  @Override
+  public void evaluated(SkyKey skyKey, Supplier<SkyValue> valueSupplier, EvaluationState state) {
+    AtomicLong nanos = dirtyNodeNanos.remove(skyKey);
+    if (nanos == null) {
+      // Not dirtied since the last reset, so it is new or was injected.
+      return;
+    }
+    FunctionStats functionStats = getStats(skyKey);
+    switch (state) {
+      case BUILT:
+        functionStats.changed.incrementAndGet();
+        break;
+      case CLEAN:
+        // Only the nodes that were actually re-evaluated spent time computing.
+        long computeNanos = nanos.get();
+        if (computeNanos == 0) {
+          functionStats.verifiedClean.incrementAndGet();
+        } else {
+          functionStats.pruned.incrementAndGet();
+          functionStats.prunedNanos.addAndGet(computeNanos);
+          recordHotNode(skyKey, computeNanos);
+        }
+        break;
+      default:
+        throw new IllegalStateException(state.toString());
+    }
+  }
+
+  /**
+   * Clears all counters. Dirty nodes that were not evaluated since they were dirtied are forgotten,
+   * so that nodes that are never requested again do not accumulate.
+   */
+  public void reset() {
+    stats.clear();
+    dirtyNodeNanos.clear();
+    synchronized (hottestNodes) {
+      hottestNodes.clear();
+    }
+  }
+
+  /** Returns the counters of each function that had nodes computed or dirtied since the reset. */
+  public ImmutableMap<SkyFunctionName, FunctionStats> getStats() {
+    return ImmutableMap.copyOf(stats);
+  }
+
+  /** Returns the slowest pruned re-evaluations since the reset, slowest first. */
+  public ImmutableList<SkyKey> getHottestPrunedNodes() {
+    ImmutableList.Builder<SkyKey> builder = ImmutableList.builder();
+    for (HotNode node : getHottestNodes()) {
+      builder.add(node.key);
+    }
+    return builder.build();
+  }
+
+  /** Prints the counters of each function, most wasteful first, and the hottest nodes. */
+  public void dump(PrintStream out) {
+    out.println("Skyframe statistics per function (times in ms):");
+    out.printf(
+        "%-40s %10s %10s %10s %10s %10s %10s %10s%n",
+        "function",
+        "dirtied",
+        "clean",
+        "changed",
+        "pruned",
+        "computes",
+        "time",
+        "wasted");
+    for (Map.Entry<SkyFunctionName, FunctionStats> entry :
+        MOST_WASTEFUL_FIRST.sortedCopy(stats.entrySet())) {
+      FunctionStats functionStats = entry.getValue();
+      out.printf(
+          "%-40s %10d %10d %10d %10d %10d %10d %10d%n",
+          entry.getKey(),
+          functionStats.getDirtied(),
+          functionStats.getVerifiedClean(),
+          functionStats.getChanged(),
+          functionStats.getPruned(),
+          functionStats.getComputeCalls(),
+          TimeUnit.NANOSECONDS.toMillis(functionStats.getComputeNanos()),
+          TimeUnit.NANOSECONDS.toMillis(functionStats.getPrunedNanos()));
+    }
+    List<HotNode> hotNodes = getHottestNodes();
+    if (!hotNodes.isEmpty()) {
+      out.println();
+      out.println("Slowest re-evaluations to an unchanged value (times in ms):");
+      for (HotNode node : hotNodes) {
+        out.printf("%10d %s%n", TimeUnit.NANOSECONDS.toMillis(node.nanos), node.key);
+      }
+    }
+  }
+
+  /** Logs the counters of the functions that had pruned re-evaluations to the profile. */
+  public void logToProfiler() {
+    Profiler profiler = Profiler.instance();
+    if (!profiler.isActive()) {
+      return;
+    }
+    for (Map.Entry<SkyFunctionName, FunctionStats> entry :
+        MOST_WASTEFUL_FIRST.sortedCopy(stats.entrySet())) {
+      FunctionStats functionStats = entry.getValue();
+      if (functionStats.getPruned() == 0) {
+        break;
+      }
+      profiler.logEvent(
+          ProfilerTask.INFO,
+          String.format(
+              "%s: %d of %d dirtied nodes re-evaluated to an unchanged value in %d ms",
+              entry.getKey(),
+              functionStats.getPruned(),
+              functionStats.getDirtied(),
+              TimeUnit.NANOSECONDS.toMillis(functionStats.getPrunedNanos())));
+    }
+  }
+
+  private FunctionStats getStats(SkyKey key) {
+    SkyFunctionName name = key.functionName();
+    FunctionStats functionStats = stats.get(name);
+    if (functionStats == null) {
+      functionStats = new FunctionStats();
+      FunctionStats existing = stats.putIfAbsent(name, functionStats);
+      if (existing != null) {
+        functionStats = existing;
+      }
+    }
+    return functionStats;
+  }
+
+  private void recordHotNode(SkyKey key, long nanos) {
+    synchronized (hottestNodes) {
+      if (hottestNodes.size() < HOTTEST_NODES_COUNT || hottestNodes.peek().nanos < nanos) {
+        hottestNodes.add(new HotNode(key, nanos));
+        if (hottestNodes.size() > HOTTEST_NODES_COUNT) {
+          hottestNodes.poll();
+        }
+      }
+    }
+  }
+
+  private List<HotNode> getHottestNodes() {
+    List<HotNode> nodes;
+    synchronized (hottestNodes) {
+      nodes = new ArrayList<>(hottestNodes);
+    }
+    return Ordering.from(BY_NANOS).reverse().sortedCopy(nodes);
+  }
+}
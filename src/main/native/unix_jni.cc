@@ -348,7 +348,7 @@ static jobject NewErrnoFileStatus(JNIEnv *env,
   }
 
   if (saved_errno != 0) {
-    return env->NewObject(errno_file_status_class, errorno_ctor, errno);
+    return env->NewObject(errno_file_status_class, errorno_ctor, saved_errno);
   }
   return env->NewObject(
       errno_file_status_class, no_error_ctor, stat_ref.st_mode,
@@ -462,6 +462,93 @@ Java_com_google_devtools_build_lib_unix_NativePosixFiles_errnoLstat(JNIEnv *env,
   return ::StatCommon(env, path, portable_lstat, false);
 }
 
+/*
+ * Class:     com.google.devtools.build.lib.unix.NativePosixFiles
+ * Method:    errnoStatChildren
+ * Signature: (Ljava/lang/String;[Ljava/lang/String;Z)[Lcom/google/devtools/build/lib/unix/ErrnoFileStatus;
+ * Throws:    java.io.IOException
+ */
+extern "C" JNIEXPORT jobjectArray JNICALL
+Java_com_google_devtools_build_lib_unix_NativePosixFiles_errnoStatChildren(
+    JNIEnv *env, jclass clazz, jstring path, jobjectArray names,
+    jboolean follow_symlinks) {
+  const char *path_chars = GetStringLatin1Chars(env, path);
+  std::string dir_path(path_chars);
+#ifdef O_PATH
+  // Only needs search permission on the directory, like stat-ing its children.
+  const int dir_flags = O_PATH | O_DIRECTORY | O_CLOEXEC;
+#else
+  const int dir_flags = O_RDONLY | O_DIRECTORY | O_CLOEXEC;
+#endif
+  int dir_fd;
+  do {
+    dir_fd = ::open(path_chars, dir_flags);
+  } while (dir_fd == -1 && errno == EINTR);
+  int open_errno = 0;
+  // Stat the children by their full path if the directory cannot be opened
+  // for lack of read permission.
+  bool stat_by_path = false;
+  if (dir_fd == -1) {
+    if (errno == ENOENT || errno == ENOTDIR) {
+      // None of the children exist: report the error for each of them.
+      open_errno = errno;
+    } else if (errno == EACCES) {
+      stat_by_path = true;
+    } else {
+      // EMFILE ENFILE -> IOException
+      // ENOMEM        -> OutOfMemoryError
+      ::PostFileException(env, errno, path_chars);
+      ReleaseStringLatin1Chars(path_chars);
+      return NULL;
+    }
+  }
+  ReleaseStringLatin1Chars(path_chars);
+
+  jsize len = env->GetArrayLength(names);
+  jclass errno_file_status_class =
+      env->FindClass("com/google/devtools/build/lib/unix/ErrnoFileStatus");
+  CHECK(errno_file_status_class != NULL);
+  jobjectArray result =
+      env->NewObjectArray(len, errno_file_status_class, NULL);
+  int flags = follow_symlinks ? 0 : AT_SYMLINK_NOFOLLOW;
+  for (jsize ii = 0; ii < len && result != NULL; ++ii) {
+    portable_stat_struct statbuf;
+    int saved_errno = open_errno;
+    if (dir_fd != -1 || stat_by_path) {
+      jstring name =
+          static_cast<jstring>(env->GetObjectArrayElement(names, ii));
+      const char *name_chars = GetStringLatin1Chars(env, name);
+      int r;
+      do {
+        if (stat_by_path) {
+          std::string child_path = dir_path + "/" + name_chars;
+          r = follow_symlinks ? portable_stat(child_path.c_str(), &statbuf)
+                              : portable_lstat(child_path.c_str(), &statbuf);
+        } else {
+          r = portable_fstatat(dir_fd, const_cast<char *>(name_chars),
+                               &statbuf, flags);
+        }
+      } while (r == -1 && errno == EINTR);
+      saved_errno = r == -1 ? errno : 0;
+      ReleaseStringLatin1Chars(name_chars);
+      env->DeleteLocalRef(name);
+    }
+    jobject status = NewErrnoFileStatus(env, saved_errno, statbuf);
+    if (status == NULL) {
+      result = NULL;  // async exception!
+    } else {
+      env->SetObjectArrayElement(result, ii, status);
+      // Many statuses may be created by a single call.
+      env->DeleteLocalRef(status);
+    }
+  }
+
+  if (dir_fd != -1) {
+    ::close(dir_fd);
+  }
+  return result;
+}
+
 /*
  * Class:     com.google.devtools.build.lib.unix.NativePosixFiles
  * Method:    utime
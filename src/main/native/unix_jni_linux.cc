@@ -17,8 +17,10 @@
 #include <errno.h>
 #include <stdlib.h>
 #include <string.h>
+#include <sys/inotify.h>
 #include <sys/stat.h>
 #include <sys/xattr.h>
+#include <unistd.h>
 
 #include <string>
 
@@ -79,3 +81,84 @@ int portable_sysctlbyname(const char *name_chars, long *mibp, size_t *sizep) {
   errno = ENOSYS;
   return -1;
 }
+
+// Native support for LinuxInotifyDiffAwareness. Paths are passed as byte
+// arrays so that their encoding is left to the Java code.
+
+// The events watched on every directory. Symlinks to directories are not
+// followed, as for any other file system traversal of the watched tree.
+static const uint32_t kInotifyWatchMask =
+    IN_ATTRIB | IN_CREATE | IN_DELETE | IN_DELETE_SELF | IN_MODIFY |
+    IN_MOVE_SELF | IN_MOVED_FROM | IN_MOVED_TO | IN_DONT_FOLLOW |
+    IN_EXCL_UNLINK | IN_ONLYDIR;
+
+extern "C" JNIEXPORT jint JNICALL
+Java_com_google_devtools_build_lib_skyframe_LinuxInotifyDiffAwareness_inotifyInit(
+    JNIEnv *env, jclass clazz) {
+  int fd = inotify_init1(IN_NONBLOCK | IN_CLOEXEC);
+  if (fd == -1) {
+    ::PostException(env, errno, "inotify_init1 (" + ErrorMessage(errno) + ")");
+  }
+  return fd;
+}
+
+extern "C" JNIEXPORT jint JNICALL
+Java_com_google_devtools_build_lib_skyframe_LinuxInotifyDiffAwareness_inotifyAddWatch(
+    JNIEnv *env, jclass clazz, jint fd, jbyteArray path) {
+  jsize length = env->GetArrayLength(path);
+  std::string path_chars(length, '\0');
+  env->GetByteArrayRegion(path, 0, length,
+                          reinterpret_cast<jbyte *>(&path_chars[0]));
+  int wd = inotify_add_watch(fd, path_chars.c_str(), kInotifyWatchMask);
+  if (wd == -1) {
+    ::PostFileException(env, errno, path_chars.c_str());
+  }
+  return wd;
+}
+
+extern "C" JNIEXPORT void JNICALL
+Java_com_google_devtools_build_lib_skyframe_LinuxInotifyDiffAwareness_inotifyRemoveWatch(
+    JNIEnv *env, jclass clazz, jint fd, jint wd) {
+  // EINVAL means that the kernel already removed the watch, for example
+  // because the directory was deleted.
+  if (inotify_rm_watch(fd, wd) == -1 && errno != EINVAL) {
+    ::PostException(env, errno,
+                    "inotify_rm_watch (" + ErrorMessage(errno) + ")");
+  }
+}
+
+extern "C" JNIEXPORT jint JNICALL
+Java_com_google_devtools_build_lib_skyframe_LinuxInotifyDiffAwareness_inotifyRead(
+    JNIEnv *env, jclass clazz, jint fd, jbyteArray buffer) {
+  jsize length = env->GetArrayLength(buffer);
+  char *buf = static_cast<char *>(malloc(length));
+  if (buf == NULL) {
+    ::PostException(env, ENOMEM, "Out of memory in inotifyRead");
+    return -1;
+  }
+  ssize_t result;
+  do {
+    result = read(fd, buf, length);
+  } while (result == -1 && errno == EINTR);
+  if (result == -1) {
+    if (errno == EAGAIN) {
+      // No events are pending.
+      result = 0;
+    } else {
+      ::PostException(env, errno, "read (" + ErrorMessage(errno) + ")");
+    }
+  } else {
+    env->SetByteArrayRegion(buffer, 0, result,
+                            reinterpret_cast<const jbyte *>(buf));
+  }
+  free(buf);
+  return result;
+}
+
+extern "C" JNIEXPORT void JNICALL
+Java_com_google_devtools_build_lib_skyframe_LinuxInotifyDiffAwareness_inotifyClose(
+    JNIEnv *env, jclass clazz, jint fd) {
+  if (close(fd) == -1) {
+    ::PostException(env, errno, "close (" + ErrorMessage(errno) + ")");
+  }
+}
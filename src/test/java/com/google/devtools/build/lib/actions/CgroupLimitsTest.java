@@ -0,0 +1,97 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.actions;
+
+import static org.junit.Assert.assertEquals;
+
+import com.google.devtools.build.lib.vfs.util.FsApparatus;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Test for {@link CgroupLimits}.
+ */
+@RunWith(JUnit4.class)
+public class CgroupLimitsTest {
+
+  private final FsApparatus scratch = FsApparatus.newNative();
+
+  private CgroupLimits createLimits(String root, String... procCgroupLines) throws Exception {
+    String procCgroupFile = scratch.file(root + "/proc_cgroup", procCgroupLines).getPathString();
+    return CgroupLimits.create(procCgroupFile, scratch.path(root + "/sys").getPathString());
+  }
+
+  @Test
+  public void testNoCgroups() throws Exception {
+    CgroupLimits limits =
+        CgroupLimits.create(
+            scratch.path("none/proc_cgroup").getPathString(),
+            scratch.path("none/sys").getPathString());
+    assertEquals(Double.POSITIVE_INFINITY, limits.getCpuLimit(), 0);
+    assertEquals(Double.POSITIVE_INFINITY, limits.getMemoryLimitMb(), 0);
+    assertEquals(Double.POSITIVE_INFINITY, limits.getFreeMemoryMb(), 0);
+  }
+
+  @Test
+  public void testCgroupV1() throws Exception {
+    scratch.file("v1/sys/cpu/docker/abc/cpu.cfs_quota_us", "200000");
+    scratch.file("v1/sys/cpu/docker/abc/cpu.cfs_period_us", "100000");
+    scratch.file("v1/sys/memory/docker/abc/memory.limit_in_bytes", "4000000000");
+    scratch.file("v1/sys/memory/docker/abc/memory.usage_in_bytes", "1500000000");
+    scratch.file(
+        "v1/sys/memory/docker/abc/memory.stat", "cache 0", "total_inactive_file 500000000");
+    // The root group says that there are no limits.
+    scratch.file("v1/sys/cpu/cpu.cfs_quota_us", "-1");
+    scratch.file("v1/sys/cpu/cpu.cfs_period_us", "100000");
+    scratch.file("v1/sys/memory/memory.limit_in_bytes", "9223372036854771712");
+    CgroupLimits limits =
+        createLimits(
+            "v1",
+            "11:memory:/docker/abc",
+            "4:cpu,cpuacct:/docker/abc",
+            "1:name=systemd:/docker/abc");
+    assertEquals(2.0, limits.getCpuLimit(), 0.001);
+    assertEquals(4000.0, limits.getMemoryLimitMb(), 0.001);
+    assertEquals(3000.0, limits.getFreeMemoryMb(), 0.001);
+  }
+
+  @Test
+  public void testCgroupV2() throws Exception {
+    scratch.file("v2/sys/build/cpu.max", "max 100000");
+    scratch.file("v2/sys/build/memory.max", "8000000000");
+    scratch.file("v2/sys/build/job/cpu.max", "150000 100000");
+    scratch.file("v2/sys/build/job/memory.max", "max");
+    scratch.file("v2/sys/build/job/memory.current", "1000000000");
+    scratch.file("v2/sys/build/job/memory.stat", "anon 1000000000", "inactive_file 0");
+    CgroupLimits limits = createLimits("v2", "0::/build/job");
+    assertEquals(1.5, limits.getCpuLimit(), 0.001);
+    // The limit of the parent group applies.
+    assertEquals(8000.0, limits.getMemoryLimitMb(), 0.001);
+  }
+
+  @Test
+  public void testContainerWithHierarchyMountedAtItsGroup() throws Exception {
+    // Inside the container, only the root of the hierarchy, which is the group of the container,
+    // exists.
+    scratch.file("mounted/sys/memory.max", "2000000000");
+    scratch.file("mounted/sys/memory.current", "500000000");
+    scratch.file("mounted/sys/memory.stat", "inactive_file 100000000");
+    CgroupLimits limits = createLimits("mounted", "0::/kubepods/pod1/container");
+    assertEquals(2000.0, limits.getMemoryLimitMb(), 0.001);
+    assertEquals(1600.0, limits.getFreeMemoryMb(), 0.001);
+    assertEquals(Double.POSITIVE_INFINITY, limits.getCpuLimit(), 0);
+  }
+}
@@ -120,6 +120,16 @@ public class DigestUtilsTest {
     assertMd5CalculationConcurrency(true, false, 1024, 1024);
   }
 
+  @Test
+  public void testMd5CalculationParallelism() throws Exception {
+    DigestUtils.setDigestParallelism(2);
+    try {
+      assertMd5CalculationConcurrency(true, false, 4097, 4097);
+    } finally {
+      DigestUtils.setDigestParallelism(1);
+    }
+  }
+
   @Test
   public void testRecoverFromMalformedDigest() throws Exception {
     final byte[] malformed = {0, 0, 0};
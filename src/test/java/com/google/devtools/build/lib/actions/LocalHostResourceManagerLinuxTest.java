@@ -337,4 +337,44 @@ public class LocalHostResourceManagerLinuxTest {
     // +/- 0.1MB
     assertEquals(8223.956, LocalHostResourceManagerLinux.getMemoryInMbHelper(meminfoFile), 0.1);
   }
+
+  @Test
+  public void testFreeMemory() throws Exception {
+    String meminfoFile =
+        scratch
+            .file(
+                "test_meminfo_available",
+                "MemTotal:      8000000 kB",
+                "MemFree:        500000 kB",
+                "MemAvailable:  3000000 kB",
+                "Active:        4000000 kB",
+                "Inactive:      2000000 kB",
+                "Slab:           500000 kB")
+            .getPathString();
+    assertEquals(3000.0, LocalHostResourceManagerLinux.getFreeMemoryInMbHelper(meminfoFile), 0.1);
+  }
+
+  @Test
+  public void testFreeMemoryWithoutMemAvailable() throws Exception {
+    String meminfoFile =
+        scratch
+            .file(
+                "test_meminfo_old_kernel",
+                "MemTotal:      8000000 kB",
+                "MemFree:        500000 kB",
+                "Active:        4000000 kB",
+                "Inactive:      2000000 kB",
+                "Slab:           500000 kB")
+            .getPathString();
+    // MemTotal - (Active + 0.3 * Inactive + 0.8 * Slab)
+    assertEquals(3000.0, LocalHostResourceManagerLinux.getFreeMemoryInMbHelper(meminfoFile), 0.1);
+  }
+
+  @Test
+  public void testLoadAverage() throws Exception {
+    assertEquals(
+        2.75,
+        LocalHostResourceManagerLinux.getLoadAverageHelper("2.75 1.50 0.80 3/612 12345\n"),
+        0.001);
+  }
 }
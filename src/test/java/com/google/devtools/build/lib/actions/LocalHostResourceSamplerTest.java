@@ -0,0 +1,62 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.actions;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Test for {@link LocalHostResourceSampler}.
+ */
+@RunWith(JUnit4.class)
+public class LocalHostResourceSamplerTest {
+
+  private static final ResourceSet CAPACITY = ResourceSet.create(16000, 8, 1.0, 4);
+
+  @Test
+  public void testIdleHostKeepsCapacity() {
+    ResourceSet available =
+        LocalHostResourceSampler.computeAvailableResources(
+            CAPACITY,
+            ResourceSet.ZERO,
+            ResourceSet.create(30000, Double.POSITIVE_INFINITY, 1.0, Integer.MAX_VALUE));
+    assertEquals(16000, available.getMemoryMb(), 0);
+    assertEquals(8, available.getCpuUsage(), 0);
+    assertEquals(1.0, available.getIoUsage(), 0);
+    assertEquals(4, available.getLocalTestCount());
+  }
+
+  @Test
+  public void testOtherProcessesLowerAvailableResources() {
+    ResourceSet available =
+        LocalHostResourceSampler.computeAvailableResources(
+            CAPACITY,
+            ResourceSet.create(2000, 2, 0, 0),
+            ResourceSet.create(3000, 1, 1.0, Integer.MAX_VALUE));
+    // What actions acquired is taken from what is free, so it counts as available.
+    assertEquals(5000, available.getMemoryMb(), 0);
+    assertEquals(3, available.getCpuUsage(), 0);
+  }
+
+  @Test
+  public void testFullyLoadedHostLeavesOneCpu() {
+    ResourceSet available =
+        LocalHostResourceSampler.computeAvailableResources(
+            CAPACITY, ResourceSet.ZERO, ResourceSet.create(1000, 0, 1.0, Integer.MAX_VALUE));
+    assertEquals(LocalHostResourceSampler.MIN_AVAILABLE_CPU, available.getCpuUsage(), 0);
+  }
+}
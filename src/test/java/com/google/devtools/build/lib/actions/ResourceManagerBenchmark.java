@@ -0,0 +1,127 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.actions;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Measures how the {@link ResourceManager} copes with many threads acquiring and releasing
+ * resources at once, like the action execution threads of a build with a high {@code --jobs}.
+ *
+ * <p>Usage: {@code ResourceManagerBenchmark [number of threads] [requests per thread] [hold
+ * microseconds]}. Every thread repeatedly acquires a small resource set, holds it for the given
+ * time and releases it again, and every {@value #LARGE_EVERY}th thread requests all of the machine
+ * instead. Prints the median throughput of all requests, and the mean and maximum time the large
+ * requests waited, which shows whether the small requests starve them.
+ */
+public class ResourceManagerBenchmark {
+  private static final int LARGE_EVERY = 50;
+  private static final int RUNS = 5;
+  private static final ResourceSet MACHINE = ResourceSet.create(1000, 8, 1, 8);
+  private static final ResourceSet SMALL = ResourceSet.create(10, 0.1, 0.01, 0);
+
+  public static void main(String[] args) throws InterruptedException {
+    int threads = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+    int requests = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+    long holdNanos = TimeUnit.MICROSECONDS.toNanos(args.length > 2 ? Long.parseLong(args[2]) : 100);
+    ResourceManager resourceManager = ResourceManager.instanceForTestingOnly();
+    resourceManager.setAvailableResources(MACHINE);
+
+    System.out.printf(
+        "%d threads, %d requests each held for %d us, every %dth requesting the whole machine, "
+            + "median of %d runs%n",
+        threads, requests, TimeUnit.NANOSECONDS.toMicros(holdNanos), LARGE_EVERY, RUNS);
+    long[] throughput = new long[RUNS];
+    long[] meanLargeWaitMicros = new long[RUNS];
+    long[] maxLargeWaitMicros = new long[RUNS];
+    for (int run = 0; run < RUNS; run++) {
+      resourceManager.resetResourceUsage();
+      System.gc();
+      AtomicLong largeWaitNanos = new AtomicLong();
+      AtomicLong maxLargeWait = new AtomicLong();
+      long start = System.nanoTime();
+      runThreads(resourceManager, threads, requests, holdNanos, largeWaitNanos, maxLargeWait);
+      long nanos = System.nanoTime() - start;
+      if (resourceManager.inUse()) {
+        throw new IllegalStateException("resources were not released");
+      }
+      int largeRequests = (threads + LARGE_EVERY - 1) / LARGE_EVERY * requests;
+      throughput[run] = (long) threads * requests * 1000000000L / nanos;
+      meanLargeWaitMicros[run] = largeWaitNanos.get() / largeRequests / 1000;
+      maxLargeWaitMicros[run] = maxLargeWait.get() / 1000;
+    }
+    System.out.printf(
+        "%8d requests/s, large requests waited %6d us on average, %8d us at most%n",
+        median(throughput), median(meanLargeWaitMicros), median(maxLargeWaitMicros));
+  }
+
+  private static void runThreads(
+      final ResourceManager resourceManager,
+      int threads,
+      final int requests,
+      final long holdNanos,
+      final AtomicLong largeWaitNanos,
+      final AtomicLong maxLargeWait)
+      throws InterruptedException {
+    final CountDownLatch startSignal = new CountDownLatch(1);
+    Thread[] workers = new Thread[threads];
+    for (int i = 0; i < threads; i++) {
+      final boolean large = i % LARGE_EVERY == 0;
+      workers[i] =
+          new Thread() {
+            @Override
+            public void run() {
+              ResourceSet resources = large ? MACHINE : SMALL;
+              try {
+                startSignal.await();
+                for (int j = 0; j < requests; j++) {
+                  long start = System.nanoTime();
+                  // The resource manager only uses the owner to profile and to post events,
+                  // which are both off here.
+                  resourceManager.acquireResources(null, resources);
+                  long waited = System.nanoTime() - start;
+                  if (holdNanos > 0) {
+                    LockSupport.parkNanos(holdNanos);
+                  }
+                  resourceManager.releaseResources(null, resources);
+                  if (large) {
+                    largeWaitNanos.addAndGet(waited);
+                    long max = maxLargeWait.get();
+                    while (waited > max && !maxLargeWait.compareAndSet(max, waited)) {
+                      max = maxLargeWait.get();
+                    }
+                  }
+                }
+              } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+              }
+            }
+          };
+      workers[i].start();
+    }
+    startSignal.countDown();
+    for (Thread worker : workers) {
+      worker.join();
+    }
+  }
+
+  private static long median(long[] values) {
+    Arrays.sort(values);
+    return values[values.length / 2];
+  }
+}
@@ -324,6 +324,155 @@ public class ResourceManagerTest {
     assertFalse(rm.inUse());
   }
 
+  @Test
+  public void testLargeRequestIsNotStarved() throws Exception {
+    assertFalse(rm.inUse());
+    acquire(500, 0.5, 0, 0);
+    TestThread thread1 = new TestThread() {
+      @Override public void runTest() throws Exception {
+        acquire(1000, 1.0, 0, 0); // Will be blocked by the main thread.
+        validate(2);
+        release(1000, 1.0, 0, 0);
+      }
+    };
+    thread1.start();
+    while (rm.getWaitCount() == 0) {
+      Thread.yield();
+    }
+
+    // Small requests may overtake the large one for a while.
+    for (int i = 0; i < ResourceManager.MAX_GRANTS_WHILE_WAITING; i++) {
+      assertTrue(acquireNonblocking(100, 0.1, 0, 0));
+      release(100, 0.1, 0, 0);
+    }
+    // But then they have to wait until the large one was granted.
+    assertFalse(acquireNonblocking(100, 0.1, 0, 0));
+    validate(1);
+    release(500, 0.5, 0, 0);
+    thread1.joinAndAssertState(1000);
+    validate(3);
+    assertTrue(acquireNonblocking(100, 0.1, 0, 0));
+    release(100, 0.1, 0, 0);
+    assertFalse(rm.inUse());
+  }
+
+  @Test
+  public void testWaitingRequestsAreGrantedByPriority() throws Exception {
+    final ActionExecutionMetadata urgentOwner = new ResourceOwnerStub();
+    rm.setActionPriority(
+        new ResourceManager.ActionPriority() {
+          @Override
+          public int getPriority(ActionExecutionMetadata action) {
+            return action == urgentOwner ? 1 : 0;
+          }
+        });
+    assertFalse(rm.inUse());
+    acquire(1000, 1.0, 0, 0);
+    TestThread thread1 = new TestThread() {
+      @Override public void runTest() throws Exception {
+        acquire(1000, 1.0, 0, 0); // Waits first, with the default priority.
+        validate(3);
+        release(1000, 1.0, 0, 0);
+      }
+    };
+    thread1.start();
+    while (rm.getWaitCount() < 1) {
+      Thread.yield();
+    }
+    TestThread thread2 = new TestThread() {
+      @Override public void runTest() throws Exception {
+        rm.acquireResources(urgentOwner, ResourceSet.create(1000, 1.0, 0, 0));
+        validate(2);
+        rm.releaseResources(urgentOwner, ResourceSet.create(1000, 1.0, 0, 0));
+      }
+    };
+    thread2.start();
+    while (rm.getWaitCount() < 2) {
+      Thread.yield();
+    }
+    validate(1);
+    release(1000, 1.0, 0, 0); // Thread2 goes first, then thread1.
+    thread1.joinAndAssertState(1000);
+    thread2.joinAndAssertState(1000);
+    assertFalse(rm.inUse());
+  }
+
+  @Test
+  public void testStarvingRequestIsGrantedBeforeUrgentRequests() throws Exception {
+    final ActionExecutionMetadata urgentOwner = new ResourceOwnerStub();
+    rm.setActionPriority(
+        new ResourceManager.ActionPriority() {
+          @Override
+          public int getPriority(ActionExecutionMetadata action) {
+            return action == urgentOwner ? 1 : 0;
+          }
+        });
+    assertFalse(rm.inUse());
+    acquire(500, 0.5, 0, 0);
+    TestThread thread1 = new TestThread() {
+      @Override public void runTest() throws Exception {
+        acquire(1000, 1.0, 0, 0); // Will be blocked by the main thread.
+        validate(2);
+        release(1000, 1.0, 0, 0);
+      }
+    };
+    thread1.start();
+    while (rm.getWaitCount() == 0) {
+      Thread.yield();
+    }
+    for (int i = 0; i < ResourceManager.MAX_GRANTS_WHILE_WAITING; i++) {
+      assertTrue(acquireNonblocking(100, 0.1, 0, 0));
+      release(100, 0.1, 0, 0);
+    }
+    // Thread1 is starving now, so even an urgent request that fits has to wait.
+    TestThread thread2 = new TestThread() {
+      @Override public void runTest() throws Exception {
+        rm.acquireResources(urgentOwner, ResourceSet.create(100, 0.1, 0, 0));
+        validate(3);
+        rm.releaseResources(urgentOwner, ResourceSet.create(100, 0.1, 0, 0));
+      }
+    };
+    thread2.start();
+    while (rm.getWaitCount() < 2) {
+      Thread.yield();
+    }
+    validate(1);
+    release(500, 0.5, 0, 0);
+    thread1.joinAndAssertState(1000);
+    thread2.joinAndAssertState(1000);
+    assertFalse(rm.inUse());
+  }
+
+  @Test
+  public void testManyConcurrentRequests() throws Exception {
+    assertFalse(rm.inUse());
+    TestThread[] threads = new TestThread[500];
+    for (int i = 0; i < threads.length; i++) {
+      final boolean large = i % 50 == 0;
+      threads[i] = new TestThread() {
+        @Override public void runTest() throws Exception {
+          for (int j = 0; j < 10; j++) {
+            if (large) {
+              acquire(1000, 1.0, 0, 1);
+              release(1000, 1.0, 0, 1);
+            } else {
+              acquire(100, 0.1, 0, 0);
+              release(100, 0.1, 0, 0);
+            }
+          }
+        }
+      };
+    }
+    for (TestThread thread : threads) {
+      thread.start();
+    }
+    for (TestThread thread : threads) {
+      thread.joinAndAssertState(60000);
+    }
+    assertEquals(0, rm.getWaitCount());
+    assertFalse(rm.inUse());
+  }
+
   private static class ResourceOwnerStub implements ActionExecutionMetadata {
 
     @Override
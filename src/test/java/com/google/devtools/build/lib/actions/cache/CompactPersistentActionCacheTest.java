@@ -24,6 +24,7 @@ import static org.junit.Assert.assertTrue;
 
 import com.google.devtools.build.lib.testutil.Scratch;
 import com.google.devtools.build.lib.util.Clock;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
 import com.google.devtools.build.lib.vfs.Path;
 import com.google.devtools.build.lib.vfs.PathFragment;
 
@@ -33,6 +34,7 @@ import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 
 import java.io.IOException;
+import java.util.Arrays;
 
 /**
  * Test for the CompactPersistentActionCache class.
@@ -57,7 +59,6 @@ public class CompactPersistentActionCacheTest {
   private Scratch scratch = new Scratch();
   private Path dataRoot;
   private Path mapFile;
-  private Path journalFile;
   private ManualClock clock = new ManualClock();
   private CompactPersistentActionCache cache;
 
@@ -66,7 +67,6 @@ public class CompactPersistentActionCacheTest {
     dataRoot = scratch.resolve("/cache/test.dat");
     cache = new CompactPersistentActionCache(dataRoot, clock);
     mapFile = CompactPersistentActionCache.cacheFile(dataRoot);
-    journalFile = CompactPersistentActionCache.journalFile(dataRoot);
   }
 
   @Test
@@ -108,7 +108,6 @@ public class CompactPersistentActionCacheTest {
     putKey(key, discoverInputs);
     cache.save();
     assertTrue(mapFile.exists());
-    assertFalse(journalFile.exists());
 
     CompactPersistentActionCache newcache =
         new CompactPersistentActionCache(dataRoot, clock);
@@ -122,41 +121,142 @@ public class CompactPersistentActionCacheTest {
     for (int i = 0; i < 300; i++) {
       putKey(Integer.toString(i));
     }
-    assertFullSave();
+    cache.save();
+    long fullSize = mapFile.getFileSize();
 
-    // Add 2 entries to 300. Might as well just leave them in the journal.
+    // Saving again only appends the 2 new entries.
     putKey("abc");
     putKey("123");
-    assertIncrementalSave(cache);
+    cache.save();
+    assertThat(mapFile.getFileSize() - fullSize).isLessThan(fullSize / 10);
 
-    // Make sure we have all the entries, including those in the journal,
+    // Make sure we have all the entries, including the appended ones,
     // after deserializing into a new cache.
     CompactPersistentActionCache newcache =
         new CompactPersistentActionCache(dataRoot, clock);
-    for (int i = 0; i < 100; i++) {
+    for (int i = 0; i < 300; i++) {
       assertKeyEquals(cache, newcache, Integer.toString(i));
     }
     assertKeyEquals(cache, newcache, "abc");
     assertKeyEquals(cache, newcache, "123");
     putKey("xyz", newcache, true);
-    assertIncrementalSave(newcache);
+    newcache.remove("abc");
+    newcache.save();
 
-    // Make sure we can see previous journal values after a second incremental save.
+    // Make sure we can see previously appended values after a second incremental save.
     CompactPersistentActionCache newerCache =
         new CompactPersistentActionCache(dataRoot, clock);
-    for (int i = 0; i < 100; i++) {
+    for (int i = 0; i < 300; i++) {
       assertKeyEquals(cache, newerCache, Integer.toString(i));
     }
-    assertKeyEquals(cache, newerCache, "abc");
+    assertNull(newerCache.get("abc"));
     assertKeyEquals(cache, newerCache, "123");
     assertNotNull(newerCache.get("xyz"));
     assertNull(newerCache.get("not_a_key"));
+  }
 
-    // Add another 10 entries. This should not be incremental.
-    for (int i = 300; i < 310; i++) {
-      putKey(Integer.toString(i));
+  @Test
+  public void testCompaction() throws Exception {
+    long compactSize = 0;
+    for (int round = 0; round < 5; round++) {
+      for (int i = 0; i < 300; i++) {
+        putKey(Integer.toString(i));
+      }
+      cache.save();
+      if (round == 0) {
+        compactSize = mapFile.getFileSize();
+      }
+    }
+
+    // Saving may already have started a compaction in the background.
+    cache.compact();
+    assertEquals(compactSize, mapFile.getFileSize());
+
+    CompactPersistentActionCache newcache =
+        new CompactPersistentActionCache(dataRoot, clock);
+    for (int i = 0; i < 300; i++) {
+      assertKeyEquals(cache, newcache, Integer.toString(i));
     }
-    assertFullSave();
+  }
+
+  @Test
+  public void testPartiallyWrittenEntryIsIgnored() throws Exception {
+    putKey("abc");
+    cache.save();
+    putKey("xyz");
+    cache.save();
+    // Append the start of another entry, as if the server died while writing it.
+    byte[] content = FileSystemUtils.readContent(mapFile);
+    byte[] damaged = Arrays.copyOf(content, content.length + 6);
+    damaged[content.length + 3] = 1;
+    FileSystemUtils.writeContent(mapFile, damaged);
+
+    CompactPersistentActionCache newcache =
+        new CompactPersistentActionCache(dataRoot, clock);
+    assertKeyEquals(cache, newcache, "abc");
+    assertKeyEquals(cache, newcache, "xyz");
+
+    // The damaged file is rewritten rather than appended to.
+    putKey("123", newcache, false);
+    newcache.save();
+    CompactPersistentActionCache newerCache =
+        new CompactPersistentActionCache(dataRoot, clock);
+    assertKeyEquals(cache, newerCache, "abc");
+    assertNotNull(newerCache.get("123"));
+  }
+
+  @Test
+  public void testLogSizeCountsLiveEntries() throws Exception {
+    ActionCacheLog log = new ActionCacheLog(mapFile, 1);
+    byte[] large = new byte[(1 << 20) + 1];
+    large[large.length - 1] = 7;
+    log.put(1, new byte[] {1});
+    log.put(1, new byte[] {2});
+    log.put(2, large);
+    log.put(-1, new byte[] {3});
+    log.remove(1);
+    log.remove(3);
+    assertEquals(2, log.size());
+    log.flush();
+
+    ActionCacheLog loaded = new ActionCacheLog(mapFile, 1);
+    assertEquals(2, loaded.size());
+    assertNull(loaded.get(1));
+    assertThat(loaded.get(2)).isEqualTo(large);
+    assertThat(loaded.get(-1)).isEqualTo(new byte[] {3});
+    loaded.put(1, new byte[] {4});
+    loaded.remove(2);
+    loaded.remove(2);
+    assertEquals(2, loaded.size());
+  }
+
+  @Test
+  public void testClosedLogIsNotWritten() throws Exception {
+    ActionCacheLog log = new ActionCacheLog(mapFile, 1);
+    log.put(1, new byte[] {1});
+    log.flush();
+    log.close();
+    // As if the cache directory was deleted by "blaze clean" during a compaction.
+    FileSystemUtils.deleteTree(dataRoot);
+    log.put(2, new byte[] {2});
+    log.flush();
+    log.compact();
+    assertFalse(dataRoot.exists());
+  }
+
+  @Test
+  public void testMappedIndex() throws Exception {
+    CompactPersistentActionCache mappedCache =
+        new CompactPersistentActionCache(dataRoot, clock, /*mappedIndex=*/true);
+    putKey("abc", mappedCache, true);
+    mappedCache.save();
+    // The mapped index does not share files with the heap index.
+    assertFalse(mapFile.exists());
+
+    CompactPersistentActionCache newcache =
+        new CompactPersistentActionCache(dataRoot, clock, /*mappedIndex=*/true);
+    assertKeyEquals(mappedCache, newcache, "abc");
+    assertNull(cache.get("abc"));
   }
 
   // Regression test to check that CompactActionCacheEntry.toString does not mutate the object.
@@ -196,18 +296,6 @@ public class CompactPersistentActionCacheTest {
     assertEquals(entry.toString(), cache2.get(key).toString());
   }
 
-  private void assertFullSave() throws IOException {
-    cache.save();
-    assertTrue(mapFile.exists());
-    assertFalse(journalFile.exists());
-  }
-
-  private void assertIncrementalSave(ActionCache ac) throws IOException {
-    ac.save();
-    assertTrue(mapFile.exists());
-    assertTrue(journalFile.exists());
-  }
-
   private void putKey(String key) {
     putKey(key, cache, false);
   }
@@ -0,0 +1,240 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.actions.cache;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.fail;
+
+import com.google.devtools.build.lib.testutil.ManualClock;
+import com.google.devtools.build.lib.testutil.Scratch;
+import com.google.devtools.build.lib.testutil.TestUtils;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.util.FileSystems;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Tests for {@link MappedStringIndexer}.
+ */
+@RunWith(JUnit4.class)
+public class MappedStringIndexerTest {
+  private final ManualClock clock = new ManualClock();
+  private final Scratch scratch = new Scratch();
+  private Path indexPath;
+  private Path journalPath;
+  private MappedStringIndexer indexer;
+
+  @Before
+  public final void createIndexer() throws Exception {
+    indexPath = scratch.resolve("/cache/test.dat");
+    journalPath = scratch.resolve("/cache/test.journal");
+    indexer = MappedStringIndexer.newMappedStringIndexer(indexPath, clock);
+  }
+
+  private void addStrings(int from, int to) {
+    for (int i = from; i < to; i++) {
+      assertThat(indexer.getOrCreateIndex("string" + i)).isEqualTo(i);
+    }
+  }
+
+  private void assertStrings(MappedStringIndexer indexer, int count) {
+    assertThat(indexer.size()).isEqualTo(count);
+    for (int i = 0; i < count; i++) {
+      assertThat(indexer.getIndex("string" + i)).isEqualTo(i);
+      assertThat(indexer.getStringForIndex(i)).isEqualTo("string" + i);
+    }
+    assertThat(indexer.getIndex("string" + count)).isEqualTo(-1);
+    assertThat(indexer.getStringForIndex(count)).isNull();
+  }
+
+  @Test
+  public void testGetOrCreateIndex() throws Exception {
+    addStrings(0, 10);
+    assertThat(indexer.getOrCreateIndex("string3")).isEqualTo(3);
+    assertThat(indexer.addString("string3")).isFalse();
+    assertThat(indexer.addString("")).isTrue();
+    assertThat(indexer.getIndex("")).isEqualTo(10);
+    assertThat(indexer.getIndex("unknown")).isEqualTo(-1);
+  }
+
+  @Test
+  public void testSaveAndLoad() throws Exception {
+    addStrings(0, 100);
+    indexer.save();
+    assertThat(indexPath.exists()).isTrue();
+    assertThat(journalPath.exists()).isFalse();
+
+    MappedStringIndexer loaded = MappedStringIndexer.newMappedStringIndexer(indexPath, clock);
+    assertStrings(loaded, 100);
+    assertThat(loaded.getOrCreateIndex("string100")).isEqualTo(100);
+  }
+
+  @Test
+  public void testSmallAdditionsOnlyGoToJournal() throws Exception {
+    addStrings(0, 100);
+    indexer.save();
+    long indexSize = indexPath.getFileSize();
+
+    addStrings(100, 105);
+    indexer.save();
+    assertThat(indexPath.getFileSize()).isEqualTo(indexSize);
+    assertThat(journalPath.exists()).isTrue();
+
+    MappedStringIndexer loaded = MappedStringIndexer.newMappedStringIndexer(indexPath, clock);
+    assertStrings(loaded, 105);
+
+    // Adding many strings rewrites the index file and removes the journal.
+    for (int i = 105; i < 200; i++) {
+      assertThat(loaded.getOrCreateIndex("string" + i)).isEqualTo(i);
+    }
+    loaded.save();
+    assertThat(indexPath.getFileSize()).isGreaterThan(indexSize);
+    assertThat(journalPath.exists()).isFalse();
+    assertStrings(MappedStringIndexer.newMappedStringIndexer(indexPath, clock), 200);
+  }
+
+  @Test
+  public void testClear() throws Exception {
+    addStrings(0, 100);
+    indexer.save();
+    addStrings(100, 105);
+    indexer.save();
+    assertThat(journalPath.exists()).isTrue();
+    indexer = MappedStringIndexer.newMappedStringIndexer(indexPath, clock);
+
+    indexer.clear();
+    assertThat(indexPath.exists()).isFalse();
+    assertThat(journalPath.exists()).isFalse();
+    assertThat(indexer.getIndex("string1")).isEqualTo(-1);
+    assertThat(indexer.getIndex("string101")).isEqualTo(-1);
+    assertThat(indexer.getStringForIndex(0)).isNull();
+
+    // Indices are handed out from 0 again.
+    addStrings(0, 10);
+    assertStrings(indexer, 10);
+    indexer.save();
+    assertStrings(MappedStringIndexer.newMappedStringIndexer(indexPath, clock), 10);
+  }
+
+  @Test
+  public void testPeriodicFlush() throws Exception {
+    addStrings(0, 10);
+    assertThat(journalPath.exists()).isFalse();
+    clock.advanceMillis(4000);
+    addStrings(10, 11);
+    assertThat(journalPath.exists()).isTrue();
+    assertStrings(MappedStringIndexer.newMappedStringIndexer(indexPath, clock), 11);
+  }
+
+  @Test
+  public void testPartialJournalEntryIsIgnored() throws Exception {
+    addStrings(0, 100);
+    indexer.save();
+    addStrings(100, 102);
+    indexer.save();
+    byte[] journal = FileSystemUtils.readContent(journalPath);
+    FileSystemUtils.writeContent(journalPath, Arrays.copyOf(journal, journal.length - 3));
+
+    MappedStringIndexer loaded = MappedStringIndexer.newMappedStringIndexer(indexPath, clock);
+    assertStrings(loaded, 101);
+
+    // The journal is rewritten rather than appended to.
+    assertThat(loaded.getOrCreateIndex("string101")).isEqualTo(101);
+    loaded.save();
+    assertStrings(MappedStringIndexer.newMappedStringIndexer(indexPath, clock), 102);
+  }
+
+  @Test
+  public void testJournalLeftBehindByIndexRewriteIsReplayed() throws Exception {
+    addStrings(0, 100);
+    indexer.save();
+    addStrings(100, 105);
+    indexer.save();
+    byte[] journal = FileSystemUtils.readContent(journalPath);
+    addStrings(105, 200);
+    indexer.save();
+    // As if the server died between rewriting the index file and deleting the journal.
+    FileSystemUtils.writeContent(journalPath, journal);
+
+    MappedStringIndexer loaded = MappedStringIndexer.newMappedStringIndexer(indexPath, clock);
+    assertStrings(loaded, 200);
+    assertThat(loaded.getOrCreateIndex("string200")).isEqualTo(200);
+    loaded.save();
+    assertStrings(MappedStringIndexer.newMappedStringIndexer(indexPath, clock), 201);
+  }
+
+  @Test
+  public void testJournalForOtherIndexFileIsRejected() throws Exception {
+    addStrings(0, 100);
+    indexer.save();
+    addStrings(100, 102);
+    indexer.save();
+    indexPath.delete();
+    try {
+      MappedStringIndexer.newMappedStringIndexer(indexPath, clock);
+      fail();
+    } catch (IOException e) {
+      assertThat(e.getMessage()).contains("Unexpected format");
+    }
+  }
+
+  @Test
+  public void testCorruptedIndexFile() throws Exception {
+    addStrings(0, 100);
+    indexer.save();
+    byte[] content = FileSystemUtils.readContent(indexPath);
+    FileSystemUtils.writeContent(indexPath, Arrays.copyOf(content, content.length - 1));
+    try {
+      MappedStringIndexer.newMappedStringIndexer(indexPath, clock);
+      fail();
+    } catch (IOException e) {
+      assertThat(e.getMessage()).contains("is corrupted");
+    }
+  }
+
+  @Test
+  public void testMappedFile() throws Exception {
+    Path root = FileSystems.getJavaIoFileSystem().getPath(TestUtils.tmpDir())
+        .getRelative("mapped_string_indexer");
+    FileSystemUtils.deleteTree(root);
+    indexPath = root.getRelative("index.dat");
+    indexer = MappedStringIndexer.newMappedStringIndexer(indexPath, clock);
+    addStrings(0, 1000);
+    indexer.save();
+
+    MappedStringIndexer loaded = MappedStringIndexer.newMappedStringIndexer(indexPath, clock);
+    assertStrings(loaded, 1000);
+    for (int i = 1000; i < 1200; i++) {
+      assertThat(loaded.getOrCreateIndex("string" + i)).isEqualTo(i);
+    }
+    // Rewrites the index file while it is mapped.
+    loaded.save();
+    assertStrings(loaded, 1200);
+    assertStrings(MappedStringIndexer.newMappedStringIndexer(indexPath, clock), 1200);
+
+    // Clears an indexer whose index file is mapped.
+    indexer = MappedStringIndexer.newMappedStringIndexer(indexPath, clock);
+    indexer.clear();
+    addStrings(0, 10);
+    indexer.save();
+    assertStrings(MappedStringIndexer.newMappedStringIndexer(indexPath, clock), 10);
+  }
+}
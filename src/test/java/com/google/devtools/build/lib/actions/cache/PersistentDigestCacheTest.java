@@ -0,0 +1,121 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.actions.cache;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.devtools.build.lib.testutil.ManualClock;
+import com.google.devtools.build.lib.testutil.Scratch;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.inmemoryfs.InMemoryFileSystem;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Tests for {@link PersistentDigestCache}.
+ */
+@RunWith(JUnit4.class)
+public class PersistentDigestCacheTest {
+  private static final byte[] DIGEST = new byte[] {1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14,
+      15, 16};
+
+  private final ManualClock clock = new ManualClock();
+  private final Scratch scratch = new Scratch(new InMemoryFileSystem(clock));
+  private Path cacheRoot;
+  private Path file;
+  private PersistentDigestCache cache;
+
+  @Before
+  public final void createCache() throws Exception {
+    cacheRoot = scratch.dir("/cache");
+    file = scratch.file("/file", "content");
+    clock.advanceMillis(10000);
+    cache = new PersistentDigestCache(cacheRoot, clock);
+  }
+
+  @After
+  public final void resetDigestUtils() {
+    DigestUtils.configureCache(null);
+  }
+
+  @Test
+  public void testPutAndGet() throws Exception {
+    assertThat(cache.get(file, file.stat())).isNull();
+    cache.put(file, file.stat(), DIGEST);
+    assertThat(cache.get(file, file.stat())).isEqualTo(DIGEST);
+  }
+
+  @Test
+  public void testModifiedFileIsNotReturned() throws Exception {
+    cache.put(file, file.stat(), DIGEST);
+    clock.advanceMillis(1000);
+    FileSystemUtils.writeContentAsLatin1(file, "other");
+    assertThat(cache.get(file, file.stat())).isNull();
+  }
+
+  @Test
+  public void testRecentlyChangedFileIsNotRecorded() throws Exception {
+    FileSystemUtils.writeContentAsLatin1(file, "other");
+    cache.put(file, file.stat(), DIGEST);
+    assertThat(cache.get(file, file.stat())).isNull();
+  }
+
+  @Test
+  public void testSaveAndLoad() throws Exception {
+    cache.put(file, file.stat(), DIGEST);
+    cache.save();
+    assertThat(PersistentDigestCache.cacheFile(cacheRoot).exists()).isTrue();
+
+    PersistentDigestCache loaded = new PersistentDigestCache(cacheRoot, clock);
+    assertThat(loaded.size()).isEqualTo(1);
+    assertThat(loaded.get(file, file.stat())).isEqualTo(DIGEST);
+  }
+
+  @Test
+  public void testDigestUtilsUsesCache() throws Exception {
+    Path large = scratch.file("/large", new String(new char[5000]));
+    clock.advanceMillis(10000);
+    DigestUtils.configureCache(cache);
+
+    byte[] digest = DigestUtils.getDigestOrFail(large, large.getFileSize());
+    assertThat(digest).isEqualTo(large.getMD5Digest());
+    assertThat(cache.get(large, large.stat())).isEqualTo(digest);
+
+    // The cached digest is returned as long as the file is unchanged.
+    cache.put(large, large.stat(), DIGEST);
+    assertThat(DigestUtils.getDigestOrFail(large, large.getFileSize())).isEqualTo(DIGEST);
+  }
+
+  @Test
+  public void testLeastRecentlyUsedEntryIsEvicted() throws Exception {
+    Path other = scratch.file("/other", "other");
+    Path third = scratch.file("/third", "third");
+    clock.advanceMillis(10000);
+    cache = new PersistentDigestCache(cacheRoot, clock, 2);
+    cache.put(file, file.stat(), DIGEST);
+    cache.put(other, other.stat(), DIGEST);
+    assertThat(cache.get(file, file.stat())).isEqualTo(DIGEST);
+
+    cache.put(third, third.stat(), DIGEST);
+    assertThat(cache.size()).isEqualTo(2);
+    assertThat(cache.get(file, file.stat())).isEqualTo(DIGEST);
+    assertThat(cache.get(other, other.stat())).isNull();
+    assertThat(cache.get(third, third.stat())).isEqualTo(DIGEST);
+  }
+}
@@ -0,0 +1,123 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.actions.cache;
+
+import com.google.devtools.build.lib.util.BlazeClock;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.util.FileSystems;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Compares loading the action cache's file name index with {@link PersistentStringIndexer}, which
+ * reads all strings into the heap, and with {@link MappedStringIndexer}, which maps the index file.
+ *
+ * <p>Usage: {@code StringIndexerBenchmark [number of strings] [directory]}. Prints the median time
+ * of loading an existing index, of looking up every string in it, and the heap the loaded indexer
+ * retains.
+ */
+public class StringIndexerBenchmark {
+  private static final int RUNS = 5;
+
+  private interface Loader {
+    PersistentIndexer load(Path indexFile) throws IOException;
+  }
+
+  private static final Loader HEAP =
+      new Loader() {
+        @Override
+        public PersistentIndexer load(Path indexFile) throws IOException {
+          return PersistentStringIndexer.newPersistentStringIndexer(
+              indexFile, BlazeClock.instance());
+        }
+      };
+
+  private static final Loader MAPPED =
+      new Loader() {
+        @Override
+        public PersistentIndexer load(Path indexFile) throws IOException {
+          return MappedStringIndexer.newMappedStringIndexer(indexFile, BlazeClock.instance());
+        }
+      };
+
+  public static void main(String[] args) throws IOException {
+    int size = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+    Path root =
+        FileSystems.getJavaIoFileSystem()
+            .getPath(args.length > 1 ? args[1] : System.getProperty("java.io.tmpdir"))
+            .getRelative("string_indexer_benchmark");
+    FileSystemUtils.deleteTree(root);
+    FileSystemUtils.createDirectoryAndParents(root);
+    try {
+      System.out.printf("%d strings, median of %d runs%n", size, RUNS);
+      run("heap", HEAP, root.getRelative("heap.dat"), size);
+      run("mapped", MAPPED, root.getRelative("mapped.dat"), size);
+    } finally {
+      FileSystemUtils.deleteTree(root);
+    }
+  }
+
+  /** Returns a string like the exec paths of the action cache, the i-th of which is distinct. */
+  private static String path(int i) {
+    return "bazel-out/local-fastbuild/bin/some/package" + (i / 100) + "/file" + i + ".o";
+  }
+
+  private static void run(String name, Loader loader, Path indexFile, int size)
+      throws IOException {
+    PersistentIndexer indexer = loader.load(indexFile);
+    for (int i = 0; i < size; i++) {
+      indexer.getOrCreateIndex(path(i));
+    }
+    indexer.save();
+    indexer = null;
+
+    long[] loadMillis = new long[RUNS];
+    long[] lookupMillis = new long[RUNS];
+    long retained = 0;
+    for (int run = 0; run < RUNS; run++) {
+      long heapBefore = usedHeap();
+      long start = System.nanoTime();
+      indexer = loader.load(indexFile);
+      loadMillis[run] = (System.nanoTime() - start) / 1000000;
+      retained = usedHeap() - heapBefore;
+
+      start = System.nanoTime();
+      for (int i = 0; i < size; i++) {
+        if (indexer.getIndex(path(i)) != i) {
+          throw new IllegalStateException(name + ": wrong index for " + path(i));
+        }
+      }
+      lookupMillis[run] = (System.nanoTime() - start) / 1000000;
+      indexer = null;
+    }
+    System.out.printf(
+        "%-8s load %6d ms, look up all %6d ms, %5d MB retained after load%n",
+        name, median(loadMillis), median(lookupMillis), retained / (1024 * 1024));
+  }
+
+  private static long median(long[] values) {
+    Arrays.sort(values);
+    return values[values.length / 2];
+  }
+
+  private static long usedHeap() {
+    Runtime runtime = Runtime.getRuntime();
+    for (int i = 0; i < 3; i++) {
+      System.gc();
+    }
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+}
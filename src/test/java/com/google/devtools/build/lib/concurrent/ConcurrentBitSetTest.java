@@ -0,0 +1,97 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.concurrent;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Tests for {@link ConcurrentBitSet}. */
+@RunWith(JUnit4.class)
+public class ConcurrentBitSetTest {
+
+  @Test
+  public void addAndContains() {
+    ConcurrentBitSet set = new ConcurrentBitSet(130);
+    assertThat(set.size()).isEqualTo(130);
+    assertThat(set.add(0)).isTrue();
+    assertThat(set.add(63)).isTrue();
+    assertThat(set.add(64)).isTrue();
+    assertThat(set.add(129)).isTrue();
+    assertThat(set.add(64)).isFalse();
+    for (int i = 0; i < 130; i++) {
+      assertThat(set.contains(i)).named(Integer.toString(i))
+          .isEqualTo(i == 0 || i == 63 || i == 64 || i == 129);
+    }
+  }
+
+  @Test
+  public void outOfBounds() {
+    ConcurrentBitSet set = new ConcurrentBitSet(64);
+    try {
+      set.add(64);
+      fail();
+    } catch (IndexOutOfBoundsException e) {
+      // Expected.
+    }
+    try {
+      set.contains(-1);
+      fail();
+    } catch (IndexOutOfBoundsException e) {
+      // Expected.
+    }
+  }
+
+  @Test
+  public void concurrentAddsSucceedOnce() throws Exception {
+    final int size = 10000;
+    final ConcurrentBitSet set = new ConcurrentBitSet(size);
+    final AtomicInteger added = new AtomicInteger();
+    final CountDownLatch start = new CountDownLatch(1);
+    List<Thread> threads = new ArrayList<>();
+    for (int t = 0; t < 4; t++) {
+      Thread thread =
+          new Thread() {
+            @Override
+            public void run() {
+              try {
+                start.await();
+              } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+              }
+              for (int i = 0; i < size; i++) {
+                if (set.add(i)) {
+                  added.incrementAndGet();
+                }
+              }
+            }
+          };
+      thread.start();
+      threads.add(thread);
+    }
+    start.countDown();
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    assertThat(added.get()).isEqualTo(size);
+  }
+}
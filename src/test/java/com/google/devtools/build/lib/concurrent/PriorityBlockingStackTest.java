@@ -0,0 +1,97 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.concurrent;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/** Tests for {@link PriorityBlockingStack}. */
+@RunWith(JUnit4.class)
+public class PriorityBlockingStackTest {
+
+  private static final class Task implements PrioritizedRunnable {
+    private final String name;
+    private final int priority;
+
+    private Task(String name, int priority) {
+      this.name = name;
+      this.priority = priority;
+    }
+
+    @Override
+    public int getPriority() {
+      return priority;
+    }
+
+    @Override
+    public void run() {}
+
+    @Override
+    public String toString() {
+      return name;
+    }
+  }
+
+  private static final Runnable PLAIN =
+      new Runnable() {
+        @Override
+        public void run() {}
+
+        @Override
+        public String toString() {
+          return "plain";
+        }
+      };
+
+  @Test
+  public void highestPriorityFirstThenMostRecent() throws Exception {
+    PriorityBlockingStack stack = new PriorityBlockingStack();
+    stack.put(new Task("low1", 1));
+    stack.put(new Task("high1", 5));
+    stack.put(PLAIN);
+    stack.put(new Task("low2", 1));
+    stack.put(new Task("high2", 5));
+    stack.put(new Task("negative", -1));
+    assertThat(stack).hasSize(6);
+    assertThat(stack.peek().toString()).isEqualTo("high2");
+
+    List<String> order = new ArrayList<>();
+    while (!stack.isEmpty()) {
+      order.add(stack.take().toString());
+    }
+    assertThat(order)
+        .containsExactly("high2", "high1", "low2", "low1", "plain", "negative")
+        .inOrder();
+    assertThat(stack.poll()).isNull();
+  }
+
+  @Test
+  public void drainToKeepsOrder() {
+    PriorityBlockingStack stack = new PriorityBlockingStack();
+    stack.offer(new Task("a", 0));
+    stack.offer(new Task("b", 2));
+    stack.offer(new Task("c", 1));
+    List<Runnable> drained = new ArrayList<>();
+    assertThat(stack.drainTo(drained, 2)).isEqualTo(2);
+    assertThat(drained.toString()).isEqualTo("[b, c]");
+    assertThat(stack.drainTo(drained)).isEqualTo(1);
+    assertThat(drained.toString()).isEqualTo("[b, c, a]");
+  }
+}
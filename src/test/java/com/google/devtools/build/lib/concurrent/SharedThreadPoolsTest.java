@@ -0,0 +1,88 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.concurrent;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.devtools.build.lib.concurrent.SharedThreadPools.Pool;
+import com.google.devtools.build.lib.concurrent.SharedThreadPools.Utilization;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Tests for {@link SharedThreadPools}. */
+@RunWith(JUnit4.class)
+public class SharedThreadPoolsTest {
+
+  @Test
+  public void poolsAreShared() {
+    assertThat(SharedThreadPools.get(Pool.IO)).isSameAs(SharedThreadPools.get(Pool.IO));
+    assertThat(SharedThreadPools.get(Pool.IO)).isNotSameAs(SharedThreadPools.get(Pool.CPU));
+  }
+
+  @Test
+  public void resize() {
+    ThreadPoolExecutor pool = SharedThreadPools.get(Pool.LEGACY_GLOBBING);
+    int threads = pool.getMaximumPoolSize();
+    try {
+      SharedThreadPools.resize(Pool.LEGACY_GLOBBING, threads + 10);
+      assertThat(pool.getCorePoolSize()).isEqualTo(threads + 10);
+      assertThat(pool.getMaximumPoolSize()).isEqualTo(threads + 10);
+      SharedThreadPools.resize(Pool.LEGACY_GLOBBING, 1);
+      assertThat(pool.getCorePoolSize()).isEqualTo(1);
+      assertThat(pool.getMaximumPoolSize()).isEqualTo(1);
+    } finally {
+      SharedThreadPools.resize(Pool.LEGACY_GLOBBING, threads);
+    }
+  }
+
+  @Test
+  public void utilizationCountsJobs() throws Exception {
+    final AtomicInteger runs = new AtomicInteger();
+    QuiescingExecutor executor =
+        new AbstractQueueVisitor(
+            SharedThreadPools.get(Pool.CPU),
+            /*shutdownOnCompletion=*/ false,
+            /*failFastOnException=*/ true);
+    for (int i = 0; i < 10; i++) {
+      executor.execute(
+          new Runnable() {
+            @Override
+            public void run() {
+              runs.incrementAndGet();
+            }
+          });
+    }
+    executor.awaitQuiescence(/*interruptWorkers=*/ false);
+    assertThat(runs.get()).isEqualTo(10);
+
+    // The pool counts a job only after the visitor saw it complete, so wait for the counts.
+    long completedJobs = 0;
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+    while (completedJobs < 10 && System.nanoTime() < deadline) {
+      for (Utilization utilization : SharedThreadPools.getUtilizationAndReset()) {
+        if (utilization.getPool() == Pool.CPU) {
+          assertThat(utilization.getMaxActiveThreads()).isAtMost(utilization.getThreads());
+          completedJobs += utilization.getCompletedJobs();
+        }
+      }
+    }
+    assertThat(completedJobs).isAtLeast(10L);
+  }
+}
@@ -0,0 +1,155 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.query2;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.google.common.collect.ImmutableList;
+import com.google.devtools.build.lib.packages.Target;
+import com.google.devtools.build.lib.query2.engine.Callback;
+import com.google.devtools.build.lib.query2.engine.QueryEnvironment.QueryFunction;
+import com.google.devtools.build.lib.query2.engine.QueryEvalResult;
+import com.google.devtools.build.lib.query2.engine.QueryException;
+import com.google.devtools.build.lib.query2.engine.QueryExpression;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/** Tests for {@link QueryResultCache}. */
+@RunWith(JUnit4.class)
+public class QueryResultCacheTest {
+  private final QueryResultCache cache = new QueryResultCache();
+  private AbstractBlazeQueryEnvironment<Target> env;
+  private ImmutableList<Target> targets;
+  private int evaluations;
+
+  @Before
+  @SuppressWarnings("unchecked")
+  public final void createEnvironment() throws Exception {
+    targets = ImmutableList.of(mock(Target.class), mock(Target.class));
+    env = mock(AbstractBlazeQueryEnvironment.class);
+    when(env.getFunctions()).thenReturn(ImmutableList.<QueryFunction>of());
+    when(env.evaluateQuery(any(QueryExpression.class), any(Callback.class)))
+        .thenAnswer(
+            new Answer<QueryEvalResult>() {
+              @Override
+              public QueryEvalResult answer(InvocationOnMock invocation) throws Throwable {
+                evaluations++;
+                ((Callback<Target>) invocation.getArguments()[1]).process(targets);
+                return new QueryEvalResult(/*success=*/ true, targets.isEmpty());
+              }
+            });
+  }
+
+  private QueryExpression parse(String query) throws QueryException {
+    return QueryExpression.parse(query, env);
+  }
+
+  private String canonicalize(String query) throws QueryException {
+    return QueryResultCache.canonicalize(parse(query));
+  }
+
+  /** Evaluates {@code query} through the cache and returns the targets it reported. */
+  private List<Target> evaluate(String query, long generation, long maxTargets)
+      throws Exception {
+    final List<Target> result = new ArrayList<>();
+    cache.evaluateQuery(
+        env,
+        parse(query),
+        "context",
+        generation,
+        maxTargets,
+        new Callback<Target>() {
+          @Override
+          public void process(Iterable<Target> partialResult) {
+            for (Target target : partialResult) {
+              result.add(target);
+            }
+          }
+        });
+    return result;
+  }
+
+  @Test
+  public void unionsAndIntersectionsIgnoreOperandOrderAndSpelling() throws Exception {
+    assertThat(canonicalize("a + b")).isEqualTo(canonicalize("b union a"));
+    assertThat(canonicalize("a ^ b ^ c")).isEqualTo(canonicalize("c intersect b intersect a"));
+    assertThat(canonicalize("a - (b + c)")).isEqualTo(canonicalize("a - (c union b)"));
+    assertThat(canonicalize("a + b")).isNotEqualTo(canonicalize("a ^ b"));
+  }
+
+  @Test
+  public void exceptKeepsItsFirstOperand() throws Exception {
+    assertThat(canonicalize("a - b")).isEqualTo(canonicalize("a except b"));
+    assertThat(canonicalize("a - b - c")).isEqualTo(canonicalize("a except c except b"));
+    assertThat(canonicalize("a - b")).isNotEqualTo(canonicalize("b - a"));
+  }
+
+  @Test
+  public void repeatedQueryIsAHit() throws Exception {
+    assertThat(evaluate("a + b", 1, 100)).isEqualTo(targets);
+    assertThat(evaluate("b union a", 1, 100)).isEqualTo(targets);
+    assertThat(evaluations).isEqualTo(1);
+    assertThat(cache.getStatistics()).isEqualTo("1 hits, 1 misses, 1 entries");
+
+    evaluate("a - b", 1, 100);
+    assertThat(evaluations).isEqualTo(2);
+  }
+
+  @Test
+  public void newGenerationIsAMiss() throws Exception {
+    evaluate("a", 1, 100);
+    evaluate("a", 2, 100);
+    assertThat(evaluations).isEqualTo(2);
+    evaluate("a", 2, 100);
+    assertThat(evaluations).isEqualTo(2);
+  }
+
+  @Test
+  public void dropOutdatedDropsResultsOfOtherGenerations() throws Exception {
+    evaluate("a", 1, 100);
+    cache.dropOutdated(1);
+    assertThat(cache.getStatistics()).endsWith("1 entries");
+    cache.dropOutdated(2);
+    assertThat(cache.getStatistics()).endsWith("0 entries");
+    evaluate("a", 2, 100);
+    assertThat(evaluations).isEqualTo(2);
+  }
+
+  @Test
+  public void resultsWithTooManyTargetsAreNotCached() throws Exception {
+    evaluate("a", 1, targets.size() - 1);
+    evaluate("a", 1, targets.size() - 1);
+    assertThat(evaluations).isEqualTo(2);
+    assertThat(cache.getStatistics()).endsWith("0 entries");
+  }
+
+  @Test
+  public void zeroSizeDisablesTheCache() throws Exception {
+    assertThat(evaluate("a", 1, 0)).isEqualTo(targets);
+    evaluate("a", 1, 0);
+    assertThat(evaluations).isEqualTo(2);
+    assertThat(cache.getStatistics()).isEqualTo("0 hits, 0 misses, 0 entries");
+  }
+}
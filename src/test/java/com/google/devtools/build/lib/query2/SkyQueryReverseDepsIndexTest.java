@@ -0,0 +1,139 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.query2;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Sets;
+import com.google.devtools.build.lib.analysis.util.BuildViewTestCase;
+import com.google.devtools.build.lib.cmdline.Label;
+import com.google.devtools.build.lib.packages.Target;
+import com.google.devtools.build.lib.query2.engine.Callback;
+import com.google.devtools.build.lib.query2.engine.QueryEnvironment.QueryFunction;
+import com.google.devtools.build.lib.query2.engine.QueryEnvironment.Setting;
+import com.google.devtools.build.lib.skyframe.ReverseDepsIndex;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.Set;
+
+/**
+ * Tests that rdeps() and allrdeps() in {@link SkyQueryEnvironment} give the same results whether
+ * they read reverse deps from the graph or from the {@link ReverseDepsIndex}.
+ */
+@RunWith(JUnit4.class)
+public class SkyQueryReverseDepsIndexTest extends BuildViewTestCase {
+  private static final ImmutableList<String> UNIVERSE = ImmutableList.of("//u/...");
+
+  @Before
+  public final void createPackages() throws Exception {
+    scratch.file("a/BUILD", "sh_library(name = 'a', srcs = ['a.sh'])");
+    scratch.file(
+        "u/BUILD",
+        "sh_library(name = 'u1', deps = ['//a'])",
+        "sh_library(name = 'u2', deps = [':u1'])",
+        "sh_library(name = 'u3')");
+    // A reverse dep of //a in a loaded package outside of the universe.
+    scratch.file("outside/BUILD", "sh_library(name = 'o', deps = ['//a', '//u:u2'])");
+    getTarget("//outside:o");
+  }
+
+  /** Evaluates {@code query} over the universe, with or without the reverse deps index. */
+  private Set<Label> evaluate(String query, boolean useIndex) throws Exception {
+    SkyQueryEnvironment env =
+        new SkyQueryEnvironment(
+            /*keepGoing=*/ false,
+            /*loadingPhaseThreads=*/ 1,
+            reporter,
+            ImmutableSet.<Setting>of(),
+            ImmutableList.<QueryFunction>of(),
+            /*parserPrefix=*/ "",
+            getSkyframeExecutor(),
+            UNIVERSE,
+            getPackageManager().getPackagePath(),
+            useIndex ? getSkyframeExecutor().getReverseDepsIndex() : null);
+    final Set<Label> result = Sets.newConcurrentHashSet();
+    try {
+      env.evaluateQuery(
+          query,
+          new Callback<Target>() {
+            @Override
+            public void process(Iterable<Target> partialResult) {
+              for (Target target : partialResult) {
+                result.add(target.getLabel());
+              }
+            }
+          });
+    } finally {
+      env.close();
+    }
+    return result;
+  }
+
+  private void assertSameResultsWithIndex(String query, String... expected) throws Exception {
+    ImmutableSet.Builder<Label> expectedLabels = ImmutableSet.builder();
+    for (String label : expected) {
+      expectedLabels.add(Label.parseAbsolute(label));
+    }
+    Set<Label> withoutIndex = evaluate(query, /*useIndex=*/ false);
+    assertThat(withoutIndex).containsExactlyElementsIn(expectedLabels.build());
+    assertThat(evaluate(query, /*useIndex=*/ true)).containsExactlyElementsIn(withoutIndex);
+  }
+
+  @Test
+  public void testRdepsMatchWithAndWithoutIndex() throws Exception {
+    assertSameResultsWithIndex("rdeps(//u/..., //a)", "//a:a", "//u:u1", "//u:u2");
+    assertSameResultsWithIndex("rdeps(//u/..., //a, 1)", "//a:a", "//u:u1");
+    assertSameResultsWithIndex(
+        "rdeps(//u/..., //a:a.sh)", "//a:a.sh", "//a:a", "//u:u1", "//u:u2");
+    assertSameResultsWithIndex("rdeps(//u:u2, //a)", "//a:a", "//u:u1", "//u:u2");
+  }
+
+  @Test
+  public void testAllRdepsMatchWithAndWithoutIndex() throws Exception {
+    assertSameResultsWithIndex("allrdeps(//a)", "//a:a", "//u:u1", "//u:u2");
+    assertSameResultsWithIndex("allrdeps(//a, 1)", "//a:a", "//u:u1");
+    assertSameResultsWithIndex("allrdeps(//u:u2)", "//u:u2");
+    assertSameResultsWithIndex("allrdeps(//u:u3)", "//u:u3");
+  }
+
+  @Test
+  public void testIndexHasReverseDepsOutsideOfTheUniverse() throws Exception {
+    evaluate("allrdeps(//a)", /*useIndex=*/ true);
+    ReverseDepsIndex index = getSkyframeExecutor().getReverseDepsIndex();
+    Label a = Label.parseAbsolute("//a:a");
+    // The index knows about the reverse dep outside of the universe, which the queries drop.
+    assertThat(index.getReverseDeps(ImmutableList.of(a)).get(a))
+        .containsExactly(Label.parseAbsolute("//u:u1"), Label.parseAbsolute("//outside:o"));
+  }
+
+  @Test
+  public void testResultsMatchAfterPackageChange() throws Exception {
+    assertSameResultsWithIndex("allrdeps(//a)", "//a:a", "//u:u1", "//u:u2");
+
+    scratch.overwriteFile(
+        "u/BUILD",
+        "sh_library(name = 'u1')",
+        "sh_library(name = 'u2', deps = [':u1'])",
+        "sh_library(name = 'u3', deps = ['//a'])");
+    invalidatePackages();
+    assertSameResultsWithIndex("allrdeps(//a)", "//a:a", "//u:u3");
+    assertSameResultsWithIndex("rdeps(//u/..., //a)", "//a:a", "//u:u3");
+  }
+}
@@ -0,0 +1,230 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.query2.engine;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.fail;
+
+import com.google.common.util.concurrent.Uninterruptibles;
+import com.google.devtools.build.lib.query2.engine.QueryUtil.QueryTask;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Tests for {@link QueryUtil#runConcurrently}. */
+@RunWith(JUnit4.class)
+public class QueryUtilTest {
+  private final ExecutorService pool = Executors.newFixedThreadPool(2);
+  private final ExecutorService caller = Executors.newSingleThreadExecutor();
+
+  @After
+  public final void shutdownPools() {
+    pool.shutdownNow();
+    caller.shutdownNow();
+  }
+
+  /** Keeps the tasks given to it, so that the test decides when they run. */
+  private static final class ManualExecutor implements Executor {
+    private final List<Runnable> runnables = new ArrayList<>();
+
+    @Override
+    public void execute(Runnable runnable) {
+      runnables.add(runnable);
+    }
+
+    private void runAll() {
+      for (Runnable runnable : runnables) {
+        runnable.run();
+      }
+    }
+  }
+
+  private static QueryTask countingTask(final AtomicInteger count) {
+    return new QueryTask() {
+      @Override
+      public void run() {
+        count.incrementAndGet();
+      }
+    };
+  }
+
+  private static QueryTask failingTask(final QueryException e) {
+    return new QueryTask() {
+      @Override
+      public void run() throws QueryException {
+        throw e;
+      }
+    };
+  }
+
+  /** Runs the tasks on another thread, so that the test can wait for it with a timeout. */
+  private Future<Void> runConcurrentlyInBackground(
+      final List<QueryTask> tasks, final Executor executor) {
+    return caller.submit(
+        new Callable<Void>() {
+          @Override
+          public Void call() throws Exception {
+            QueryUtil.runConcurrently(tasks, executor);
+            return null;
+          }
+        });
+  }
+
+  @Test
+  public void runsAllTasks() throws Exception {
+    AtomicInteger count = new AtomicInteger();
+    List<QueryTask> tasks = new ArrayList<>();
+    for (int i = 0; i < 100; i++) {
+      tasks.add(countingTask(count));
+    }
+    QueryUtil.runConcurrently(tasks, pool);
+    assertThat(count.get()).isEqualTo(100);
+  }
+
+  @Test
+  public void failureSkipsTasksThatDidNotStart() throws Exception {
+    AtomicInteger count = new AtomicInteger();
+    QueryException failure = new QueryException("failed");
+    List<QueryTask> tasks = new ArrayList<>();
+    tasks.add(failingTask(failure));
+    tasks.add(countingTask(count));
+    tasks.add(countingTask(count));
+    ManualExecutor executor = new ManualExecutor();
+    try {
+      QueryUtil.runConcurrently(tasks, executor);
+      fail();
+    } catch (QueryException e) {
+      assertThat(e).isSameAs(failure);
+    }
+    executor.runAll();
+    assertThat(count.get()).isEqualTo(0);
+  }
+
+  @Test
+  public void failureIsRethrownOnceStartedTasksFinished() throws Exception {
+    final CountDownLatch started = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    final QueryException failure = new QueryException("failed");
+    List<QueryTask> tasks = new ArrayList<>();
+    tasks.add(
+        new QueryTask() {
+          @Override
+          public void run() throws QueryException, InterruptedException {
+            started.await();
+            throw failure;
+          }
+        });
+    // Started by the pool, as the calling thread is busy with the first task until then.
+    tasks.add(
+        new QueryTask() {
+          @Override
+          public void run() throws InterruptedException {
+            started.countDown();
+            release.await();
+          }
+        });
+
+    Future<Void> result = runConcurrentlyInBackground(tasks, pool);
+    try {
+      result.get(100, TimeUnit.MILLISECONDS);
+      fail();
+    } catch (TimeoutException expected) {
+      // Still waits for the second task.
+    }
+    release.countDown();
+    try {
+      result.get(10, TimeUnit.SECONDS);
+      fail();
+    } catch (ExecutionException e) {
+      assertThat(e.getCause()).isSameAs(failure);
+    }
+  }
+
+  @Test
+  public void interruptedCallerStopsWaiting() throws Exception {
+    final CountDownLatch started = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    List<QueryTask> tasks = new ArrayList<>();
+    tasks.add(
+        new QueryTask() {
+          @Override
+          public void run() {
+            // Leaves the interrupt to the wait for the second task.
+            Uninterruptibles.awaitUninterruptibly(started);
+          }
+        });
+    tasks.add(
+        new QueryTask() {
+          @Override
+          public void run() throws InterruptedException {
+            started.countDown();
+            release.await();
+          }
+        });
+
+    Future<Void> result = runConcurrentlyInBackground(tasks, pool);
+    started.await();
+    // Interrupts the calling thread.
+    caller.shutdownNow();
+    try {
+      result.get(10, TimeUnit.SECONDS);
+      fail();
+    } catch (ExecutionException e) {
+      assertThat(e.getCause()).isInstanceOf(InterruptedException.class);
+    } finally {
+      release.countDown();
+    }
+  }
+
+  @Test
+  public void nestedCallsOnSingleThreadDoNotDeadlock() throws Exception {
+    final ExecutorService singleThread = Executors.newSingleThreadExecutor();
+    final AtomicInteger count = new AtomicInteger();
+    try {
+      List<QueryTask> tasks = new ArrayList<>();
+      for (int i = 0; i < 4; i++) {
+        tasks.add(
+            new QueryTask() {
+              @Override
+              public void run() throws QueryException, InterruptedException {
+                List<QueryTask> nestedTasks = new ArrayList<>();
+                for (int j = 0; j < 4; j++) {
+                  nestedTasks.add(countingTask(count));
+                }
+                QueryUtil.runConcurrently(nestedTasks, singleThread);
+              }
+            });
+      }
+      runConcurrentlyInBackground(tasks, singleThread).get(10, TimeUnit.SECONDS);
+      assertThat(count.get()).isEqualTo(16);
+    } finally {
+      singleThread.shutdownNow();
+    }
+  }
+}
@@ -0,0 +1,165 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.query2.engine;
+
+import com.google.common.collect.ImmutableList;
+import com.google.devtools.build.lib.collect.CompactHashSet;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Compares evaluating {@code intersect} and {@code except} on hash sets of targets with evaluating
+ * them on bitsets of target ids. The query engine intersects bitsets, and removes the targets of
+ * the right-hand side of {@code except} from a hash set of the left-hand side as they stream in.
+ *
+ * <p>Usage: {@code SetOperationsBenchmark [universe size]}. Prints the median time of each
+ * operation, including the time it takes to turn the operands into sets and the result back into
+ * targets.
+ */
+public class SetOperationsBenchmark {
+  private static final int WARMUP_RUNS = 3;
+  private static final int RUNS = 7;
+
+  /** Stands in for a target: hashed by identity, like packages.Target. */
+  private static final class FakeTarget {
+    private final String label;
+
+    private FakeTarget(String label) {
+      this.label = label;
+    }
+
+    @Override
+    public String toString() {
+      return label;
+    }
+  }
+
+  private interface Operation {
+    int run(List<FakeTarget> lhs, List<FakeTarget> rhs);
+  }
+
+  private static final Operation HASH_SET_INTERSECT =
+      new Operation() {
+        @Override
+        public int run(List<FakeTarget> lhs, List<FakeTarget> rhs) {
+          Set<FakeTarget> result = CompactHashSet.create(lhs);
+          result.retainAll(CompactHashSet.create(rhs));
+          return ImmutableList.copyOf(result).size();
+        }
+      };
+
+  private static final Operation HASH_SET_EXCEPT =
+      new Operation() {
+        @Override
+        public int run(List<FakeTarget> lhs, List<FakeTarget> rhs) {
+          // Like the query engine, streams the removals instead of aggregating the right-hand side.
+          Set<FakeTarget> result = CompactHashSet.create(lhs);
+          for (FakeTarget target : rhs) {
+            result.remove(target);
+          }
+          return ImmutableList.copyOf(result).size();
+        }
+      };
+
+  private static final Operation BITSET_INTERSECT =
+      new Operation() {
+        @Override
+        public int run(List<FakeTarget> lhs, List<FakeTarget> rhs) {
+          TargetIdSpace<FakeTarget> idSpace = new TargetIdSpace<>();
+          BitSet result = new BitSet();
+          idSpace.addAll(lhs, result);
+          BitSet other = new BitSet();
+          idSpace.addExisting(rhs, other);
+          result.and(other);
+          return idSpace.getTargets(result).size();
+        }
+      };
+
+  private static final Operation BITSET_EXCEPT =
+      new Operation() {
+        @Override
+        public int run(List<FakeTarget> lhs, List<FakeTarget> rhs) {
+          TargetIdSpace<FakeTarget> idSpace = new TargetIdSpace<>();
+          BitSet result = new BitSet();
+          idSpace.addAll(lhs, result);
+          BitSet other = new BitSet();
+          idSpace.addExisting(rhs, other);
+          result.andNot(other);
+          return idSpace.getTargets(result).size();
+        }
+      };
+
+  public static void main(String[] args) {
+    int size = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+    List<FakeTarget> universe = new ArrayList<>(size);
+    for (int i = 0; i < size; i++) {
+      universe.add(new FakeTarget("//pkg" + (i / 100) + ":t" + i));
+    }
+
+    // Like //... except //third_party/...: a contiguous fifth of the universe.
+    List<FakeTarget> fifth = universe.subList(0, size / 5);
+    // Like intersecting two unrelated closures: random halves of the universe.
+    Random random = new Random(0);
+    List<FakeTarget> shuffled = new ArrayList<>(universe);
+    Collections.shuffle(shuffled, random);
+    List<FakeTarget> half = shuffled.subList(0, size / 2);
+    Collections.shuffle(shuffled, random);
+    List<FakeTarget> otherHalf = shuffled.subList(0, size / 2);
+
+    System.out.printf("Universe of %d targets, median of %d runs%n", size, RUNS);
+    compare("except, fifth", universe, fifth, HASH_SET_EXCEPT, BITSET_EXCEPT);
+    compare("intersect, random halves", half, otherHalf, HASH_SET_INTERSECT, BITSET_INTERSECT);
+    compare("intersect, fifth", universe, fifth, HASH_SET_INTERSECT, BITSET_INTERSECT);
+  }
+
+  private static void compare(
+      String name,
+      List<FakeTarget> lhs,
+      List<FakeTarget> rhs,
+      Operation hashSetOperation,
+      Operation bitSetOperation) {
+    int expected = hashSetOperation.run(lhs, rhs);
+    int actual = bitSetOperation.run(lhs, rhs);
+    if (expected != actual) {
+      throw new IllegalStateException(name + ": " + expected + " != " + actual);
+    }
+    System.out.printf(
+        "%-28s hash sets %6d ms, bitsets %6d ms, %d targets%n",
+        name,
+        time(hashSetOperation, lhs, rhs),
+        time(bitSetOperation, lhs, rhs),
+        actual);
+  }
+
+  private static long time(Operation operation, List<FakeTarget> lhs, List<FakeTarget> rhs) {
+    for (int i = 0; i < WARMUP_RUNS; i++) {
+      operation.run(lhs, rhs);
+    }
+    long[] millis = new long[RUNS];
+    for (int i = 0; i < RUNS; i++) {
+      System.gc();
+      long start = System.nanoTime();
+      operation.run(lhs, rhs);
+      millis[i] = (System.nanoTime() - start) / 1000000;
+    }
+    Arrays.sort(millis);
+    return millis[RUNS / 2];
+  }
+}
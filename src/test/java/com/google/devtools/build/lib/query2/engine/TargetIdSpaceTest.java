@@ -0,0 +1,74 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.query2.engine;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableList;
+import com.google.devtools.build.lib.query2.engine.QueryUtil.BitSetCallback;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.BitSet;
+
+/** Tests for {@link TargetIdSpace} and {@link BitSetCallback}. */
+@RunWith(JUnit4.class)
+public class TargetIdSpaceTest {
+
+  @Test
+  public void idsAreDenseAndStable() {
+    TargetIdSpace<String> idSpace = new TargetIdSpace<>();
+    BitSet first = new BitSet();
+    idSpace.addAll(ImmutableList.of("a", "b", "a"), first);
+    BitSet second = new BitSet();
+    idSpace.addAll(ImmutableList.of("c", "b"), second);
+
+    assertThat(idSpace.size()).isEqualTo(3);
+    assertThat(first.toString()).isEqualTo("{0, 1}");
+    assertThat(second.toString()).isEqualTo("{1, 2}");
+    assertThat(idSpace.getTargets(second)).containsExactly("b", "c").inOrder();
+  }
+
+  @Test
+  public void addExistingDropsTargetsWithoutIds() {
+    TargetIdSpace<String> idSpace = new TargetIdSpace<>();
+    idSpace.addAll(ImmutableList.of("a", "b"), new BitSet());
+    BitSet bits = new BitSet();
+    idSpace.addExisting(ImmutableList.of("b", "c"), bits);
+
+    assertThat(idSpace.size()).isEqualTo(2);
+    assertThat(idSpace.getTargets(bits)).containsExactly("b");
+  }
+
+  @Test
+  public void setOperations() throws Exception {
+    TargetIdSpace<String> idSpace = new TargetIdSpace<>();
+    BitSetCallback<String> lhs = new BitSetCallback<>(idSpace, /*assignIds=*/ true);
+    lhs.process(ImmutableList.of("a", "b", "c", "d"));
+    BitSetCallback<String> except = new BitSetCallback<>(idSpace, /*assignIds=*/ false);
+    except.process(ImmutableList.of("b", "x"));
+    BitSetCallback<String> intersect = new BitSetCallback<>(idSpace, /*assignIds=*/ false);
+    intersect.process(ImmutableList.of("a", "b", "c", "y"));
+    // A nested expression passes on the ids of its result directly.
+    BitSetCallback<String> nested = new BitSetCallback<>(idSpace, /*assignIds=*/ false);
+    nested.processIds(except.getResult());
+
+    BitSet result = lhs.getResult();
+    result.andNot(nested.getResult());
+    result.and(intersect.getResult());
+    assertThat(idSpace.getTargets(result)).containsExactly("a", "c");
+  }
+}
@@ -0,0 +1,231 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.query2.output;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.testing.GcFinalization;
+import com.google.devtools.build.lib.events.util.EventCollectionApparatus;
+import com.google.devtools.build.lib.packages.Package;
+import com.google.devtools.build.lib.packages.Target;
+import com.google.devtools.build.lib.packages.util.PackageFactoryApparatus;
+import com.google.devtools.build.lib.query2.engine.OutputFormatterCallback;
+import com.google.devtools.build.lib.query2.output.OutputFormatter.StreamedFormatter;
+import com.google.devtools.build.lib.query2.proto.proto2api.Build;
+import com.google.devtools.build.lib.testutil.Scratch;
+import com.google.devtools.common.options.Options;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+/**
+ * Tests that the streamed output of {@link ProtoOutputFormatter} and {@link XmlOutputFormatter}
+ * is a single result, however many batches the targets arrive in, and that a large result is
+ * written batch by batch without keeping earlier targets.
+ */
+@RunWith(JUnit4.class)
+public class StreamedOutputFormatterTest {
+  private static final int LARGE_BATCH_SIZE = 1000;
+  private static final int LARGE_BATCHES = 200;
+
+  private final EventCollectionApparatus events = new EventCollectionApparatus();
+  private final Scratch scratch = new Scratch("/workspace");
+  private final PackageFactoryApparatus packages = new PackageFactoryApparatus(events.reporter());
+  private final QueryOptions options = Options.getDefaults(QueryOptions.class);
+  private Package pkg;
+
+  @Before
+  public final void createPackage() throws Exception {
+    pkg =
+        packages.createPackage(
+            "pkg",
+            scratch.file(
+                "pkg/BUILD",
+                "genrule(name = 'a', cmd = '', outs = [])",
+                "genrule(name = 'b', cmd = '', outs = [])",
+                "genrule(name = 'c', cmd = '', outs = [])"));
+    events.assertNoWarningsOrErrors();
+  }
+
+  /** An output stream that drops the bytes written to it, only counting them and their flushes. */
+  private static final class CountingOutputStream extends OutputStream {
+    private long bytes;
+    private long unflushedBytes;
+
+    @Override
+    public void write(int b) {
+      bytes++;
+      unflushedBytes++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+      bytes += len;
+      unflushedBytes += len;
+    }
+
+    @Override
+    public void flush() {
+      unflushedBytes = 0;
+    }
+  }
+
+  /** Streams the targets in one batch per element of {@code batches}. */
+  private byte[] stream(StreamedFormatter formatter, List<ImmutableList<String>> batches)
+      throws Exception {
+    formatter.setOptions(options, new NullAspectResolver());
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    PrintStream out = new PrintStream(bytes);
+    OutputFormatterCallback<Target> callback = formatter.createStreamCallback(out, options);
+    callback.start();
+    for (ImmutableList<String> batch : batches) {
+      List<Target> targets = new ArrayList<>();
+      for (String name : batch) {
+        targets.add(pkg.getTarget(name));
+      }
+      callback.process(targets);
+    }
+    callback.close();
+    return bytes.toByteArray();
+  }
+
+  @Test
+  public void protoBatchesFormOneQueryResult() throws Exception {
+    byte[] streamed =
+        stream(
+            new ProtoOutputFormatter(),
+            ImmutableList.of(ImmutableList.of("a"), ImmutableList.of("b", "c")));
+
+    Build.QueryResult result = Build.QueryResult.parseFrom(streamed);
+    List<String> names = new ArrayList<>();
+    for (Build.Target target : result.getTargetList()) {
+      names.add(target.getRule().getName());
+    }
+    assertThat(names).containsExactly("//pkg:a", "//pkg:b", "//pkg:c").inOrder();
+    // The same bytes as the result of a single batch.
+    assertThat(streamed)
+        .isEqualTo(
+            stream(new ProtoOutputFormatter(), ImmutableList.of(ImmutableList.of("a", "b", "c"))));
+  }
+
+  @Test
+  public void xmlBatchesFormOneDocument() throws Exception {
+    byte[] streamed =
+        stream(
+            new XmlOutputFormatter(),
+            ImmutableList.of(ImmutableList.of("a"), ImmutableList.of("b", "c")));
+
+    Document document =
+        DocumentBuilderFactory.newInstance()
+            .newDocumentBuilder()
+            .parse(new ByteArrayInputStream(streamed));
+    Element query = document.getDocumentElement();
+    assertThat(query.getTagName()).isEqualTo("query");
+    assertThat(query.getAttribute("version")).isEqualTo("2");
+    NodeList rules = query.getElementsByTagName("rule");
+    List<String> names = new ArrayList<>();
+    for (int i = 0; i < rules.getLength(); i++) {
+      Element rule = (Element) rules.item(i);
+      if (rule.getParentNode() == query) {
+        names.add(rule.getAttribute("name"));
+      }
+    }
+    assertThat(names).containsExactly("//pkg:a", "//pkg:b", "//pkg:c").inOrder();
+  }
+
+  @Test
+  public void protoStreamsLargeResultBatchByBatch() throws Exception {
+    assertStreamsLargeResultBatchByBatch(new ProtoOutputFormatter());
+  }
+
+  @Test
+  public void xmlStreamsLargeResultBatchByBatch() throws Exception {
+    assertStreamsLargeResultBatchByBatch(new XmlOutputFormatter());
+  }
+
+  /**
+   * Streams {@value #LARGE_BATCHES} batches of {@value #LARGE_BATCH_SIZE} targets, and asserts
+   * that each batch is written and flushed before the next one arrives, and that the targets of
+   * earlier batches can be garbage collected while the query still runs.
+   */
+  private void assertStreamsLargeResultBatchByBatch(StreamedFormatter formatter)
+      throws Exception {
+    String[] lines = new String[LARGE_BATCH_SIZE];
+    for (int i = 0; i < LARGE_BATCH_SIZE; i++) {
+      lines[i] = "genrule(name = 't" + i + "', cmd = '', outs = [])";
+    }
+    Package large = packages.createPackage("large", scratch.file("large/BUILD", lines));
+    events.assertNoWarningsOrErrors();
+    List<Target> batch = new ArrayList<>();
+    for (int i = 0; i < LARGE_BATCH_SIZE; i++) {
+      batch.add(large.getTarget("t" + i));
+    }
+
+    formatter.setOptions(options, new NullAspectResolver());
+    CountingOutputStream counting = new CountingOutputStream();
+    OutputFormatterCallback<Target> callback =
+        formatter.createStreamCallback(new PrintStream(counting), options);
+    callback.start();
+    WeakReference<Target> earlierTarget = processEarlierBatch(callback);
+    assertThat(counting.unflushedBytes).isEqualTo(0L);
+    long batchBytes = -1;
+    for (int i = 0; i < LARGE_BATCHES; i++) {
+      long before = counting.bytes;
+      callback.process(batch);
+      // Every batch is the same, so it is written in full right away, and not held back.
+      if (batchBytes == -1) {
+        batchBytes = counting.bytes - before;
+        assertThat(batchBytes).isGreaterThan(0L);
+      }
+      assertThat(counting.bytes - before).isEqualTo(batchBytes);
+      assertThat(counting.unflushedBytes).isEqualTo(0L);
+    }
+    // Nothing but the formatter could still reference the target of the earlier batch.
+    GcFinalization.awaitClear(earlierTarget);
+    callback.close();
+    assertThat(counting.unflushedBytes).isEqualTo(0L);
+  }
+
+  /**
+   * Processes a batch with the only target of a package nothing else references, and returns a
+   * weak reference to that target.
+   */
+  private WeakReference<Target> processEarlierBatch(OutputFormatterCallback<Target> callback)
+      throws Exception {
+    Target target =
+        packages
+            .createPackage(
+                "earlier",
+                scratch.file("earlier/BUILD", "genrule(name = 'e', cmd = '', outs = [])"))
+            .getTarget("e");
+    callback.process(ImmutableList.of(target));
+    return new WeakReference<>(target);
+  }
+}
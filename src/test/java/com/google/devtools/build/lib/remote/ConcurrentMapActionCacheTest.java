@@ -0,0 +1,197 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.remote;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.fail;
+
+import com.google.common.collect.ImmutableList;
+import com.google.devtools.build.lib.actions.ActionInputHelper;
+import com.google.devtools.build.lib.exec.SingleBuildFileCache;
+import com.google.devtools.build.lib.remote.RemoteProtocol.CacheEntry;
+import com.google.devtools.build.lib.testutil.TestUtils;
+import com.google.devtools.build.lib.vfs.FileSystem;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.util.FileSystems;
+import com.google.devtools.common.options.Options;
+import com.hazelcast.core.Hazelcast;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.net.ServerSocket;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/** Tests for {@link ConcurrentMapActionCache}. */
+@RunWith(JUnit4.class)
+public class ConcurrentMapActionCacheTest {
+  private static final int LARGE_FILE_SIZE = 2 * ConcurrentMapActionCache.CHUNK_SIZE_BYTES + 17;
+
+  private Path execRoot;
+  private ConcurrentMap<String, byte[]> map;
+  private ConcurrentMapActionCache cache;
+
+  @Before
+  public final void createCache() throws Exception {
+    FileSystem fileSystem = FileSystems.getJavaIoFileSystem();
+    Path testRoot = fileSystem.getPath(TestUtils.tmpDir());
+    FileSystemUtils.deleteTreesBelow(testRoot);
+    execRoot = testRoot.getRelative("exec");
+    FileSystemUtils.createDirectoryAndParents(execRoot);
+    map = new ConcurrentHashMap<>();
+    cache = new ConcurrentMapActionCache(execRoot, Options.getDefaults(RemoteOptions.class), map);
+  }
+
+  private Path createFile(String name, byte[] content) throws Exception {
+    Path file = execRoot.getRelative(name);
+    FileSystemUtils.createDirectoryAndParents(file.getParentDirectory());
+    FileSystemUtils.writeContent(file, content);
+    return file;
+  }
+
+  private static byte[] randomBytes(int size) {
+    byte[] bytes = new byte[size];
+    new Random(size).nextBytes(bytes);
+    return bytes;
+  }
+
+  private void assertRoundTrip(ConcurrentMapActionCache cache, int size) throws Exception {
+    byte[] content = randomBytes(size);
+    String key = cache.putFileIfNotExist(createFile("in/" + size, content));
+    Path restored = execRoot.getRelative("out/" + size);
+    FileSystemUtils.createDirectoryAndParents(restored.getParentDirectory());
+    cache.writeFile(key, restored, false);
+    assertThat(FileSystemUtils.readContent(restored)).isEqualTo(content);
+  }
+
+  @Test
+  public void smallFileIsStoredInOneEntry() throws Exception {
+    assertRoundTrip(cache, 100);
+    assertThat(map).hasSize(1);
+  }
+
+  @Test
+  public void largeFileIsStoredInChunks() throws Exception {
+    String key = cache.putFileIfNotExist(createFile("large", randomBytes(LARGE_FILE_SIZE)));
+    assertThat(CacheEntry.parseFrom(map.get(key)).getFileChunkKeysCount()).isEqualTo(3);
+    // The file entry and one entry per chunk.
+    assertThat(map).hasSize(4);
+    assertRoundTrip(cache, LARGE_FILE_SIZE);
+  }
+
+  @Test
+  public void fileOfOneChunkIsStoredInOneEntry() throws Exception {
+    assertRoundTrip(cache, ConcurrentMapActionCache.CHUNK_SIZE_BYTES);
+    assertThat(map).hasSize(1);
+  }
+
+  @Test
+  public void chunkWithTheContentsOfACachedFile() throws Exception {
+    byte[] half = randomBytes(ConcurrentMapActionCache.CHUNK_SIZE_BYTES);
+    byte[] content = new byte[2 * half.length];
+    System.arraycopy(half, 0, content, 0, half.length);
+    System.arraycopy(half, 0, content, half.length, half.length);
+    content[content.length - 1]++;
+    String halfKey = cache.putFileIfNotExist(createFile("half", half));
+
+    String key = cache.putFileIfNotExist(createFile("whole", content));
+    assertThat(CacheEntry.parseFrom(map.get(key)).getFileChunkKeys(0)).isEqualTo(halfKey);
+    Path restored = execRoot.getRelative("restored");
+    cache.writeFile(key, restored, false);
+    assertThat(FileSystemUtils.readContent(restored)).isEqualTo(content);
+    cache.writeFile(halfKey, restored, false);
+    assertThat(FileSystemUtils.readContent(restored)).isEqualTo(half);
+  }
+
+  @Test
+  public void missingChunk() throws Exception {
+    String key = cache.putFileIfNotExist(createFile("large", randomBytes(LARGE_FILE_SIZE)));
+    map.remove(CacheEntry.parseFrom(map.get(key)).getFileChunkKeys(1));
+    try {
+      cache.writeFile(key, execRoot.getRelative("restored"), false);
+      fail();
+    } catch (CacheNotFoundException e) {
+      assertThat(e.getMessage()).contains("chunk");
+    }
+  }
+
+  @Test
+  public void chunkedRoundTripThroughHazelcast() throws Exception {
+    RemoteOptions options = Options.getDefaults(RemoteOptions.class);
+    try (ServerSocket socket = new ServerSocket(0)) {
+      options.hazelcastStandaloneListenPort = socket.getLocalPort();
+    }
+    try {
+      ConcurrentMapActionCache hazelcastCache =
+          new ConcurrentMapActionCache(execRoot, options, HazelcastCacheFactory.create(options));
+      assertRoundTrip(hazelcastCache, 100);
+      assertRoundTrip(hazelcastCache, LARGE_FILE_SIZE);
+    } finally {
+      Hazelcast.shutdownAll();
+    }
+  }
+
+  @Test
+  public void findMissing() throws Exception {
+    String present = cache.putFileIfNotExist(createFile("a", randomBytes(10)));
+    assertThat(cache.findMissing(ImmutableList.of(present, "0123456789abcdef")))
+        .containsExactly("0123456789abcdef");
+  }
+
+  @Test
+  public void putFilesIfNotExistOnlyUploadsMissingFiles() throws Exception {
+    // randomBytes is deterministic, so "a" and "c" have the same content.
+    createFile("a", randomBytes(10));
+    Path b = createFile("b", randomBytes(20));
+    createFile("c", randomBytes(10));
+    cache.putFileIfNotExist(b);
+    assertThat(cache.getUploadedBytes()).isEqualTo(20);
+
+    List<String> keys =
+        cache.putFilesIfNotExist(
+            new SingleBuildFileCache(execRoot.getPathString(), execRoot.getFileSystem()),
+            ImmutableList.of(
+                ActionInputHelper.fromPath("a"),
+                ActionInputHelper.fromPath("b"),
+                ActionInputHelper.fromPath("c")));
+    assertThat(keys).hasSize(3);
+    assertThat(keys.get(2)).isEqualTo(keys.get(0));
+    assertThat(map.keySet()).containsExactly(keys.get(0), keys.get(1));
+    assertThat(cache.getUploadedBytes()).isEqualTo(30);
+    assertThat(cache.getSkippedBytes()).isEqualTo(20);
+  }
+
+  @Test
+  public void uploadAfterFailureOnlySendsMissingChunks() throws Exception {
+    Path large = createFile("large", randomBytes(LARGE_FILE_SIZE));
+    String key = cache.putFileIfNotExist(large);
+    // As if the upload had failed after the first chunk.
+    CacheEntry entry = CacheEntry.parseFrom(map.get(key));
+    map.remove(key);
+    map.remove(entry.getFileChunkKeys(1));
+    map.remove(entry.getFileChunkKeys(2));
+    long uploaded = cache.getUploadedBytes();
+
+    cache.putFileIfNotExist(large);
+    assertThat(cache.getUploadedBytes() - uploaded)
+        .isEqualTo(LARGE_FILE_SIZE - ConcurrentMapActionCache.CHUNK_SIZE_BYTES);
+    assertThat(cache.getSkippedBytes()).isEqualTo(ConcurrentMapActionCache.CHUNK_SIZE_BYTES);
+  }
+}
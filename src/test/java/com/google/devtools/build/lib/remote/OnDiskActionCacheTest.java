@@ -0,0 +1,113 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.remote;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.fail;
+
+import com.google.common.collect.ImmutableList;
+import com.google.devtools.build.lib.testutil.TestUtils;
+import com.google.devtools.build.lib.vfs.FileSystem;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.util.FileSystems;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link OnDiskActionCache}. */
+@RunWith(JUnit4.class)
+public class OnDiskActionCacheTest {
+  private Path execRoot;
+  private OnDiskActionCache cache;
+
+  @Before
+  public final void createCache() throws Exception {
+    FileSystem fileSystem = FileSystems.getJavaIoFileSystem();
+    Path testRoot = fileSystem.getPath(TestUtils.tmpDir());
+    FileSystemUtils.deleteTreesBelow(testRoot);
+    execRoot = testRoot.getRelative("exec");
+    FileSystemUtils.createDirectoryAndParents(execRoot);
+    cache = new OnDiskActionCache(execRoot, testRoot.getRelative("cache"), 1024 * 1024);
+  }
+
+  private Path createOutput(String name, String content) throws Exception {
+    Path file = execRoot.getRelative(name);
+    FileSystemUtils.createDirectoryAndParents(file.getParentDirectory());
+    FileSystemUtils.writeContent(file, UTF_8, content);
+    return file;
+  }
+
+  @Test
+  public void actionOutputRoundTrip() throws Exception {
+    Path output = createOutput("out/a.txt", "contents");
+    Path tool = createOutput("out/tool.sh", "#!/bin/sh");
+    tool.setExecutable(true);
+    cache.putActionOutput("ac0123", execRoot, ImmutableList.of(output, tool));
+    output.delete();
+    tool.delete();
+
+    cache.writeActionOutput("ac0123", execRoot);
+    assertThat(FileSystemUtils.readContent(output, UTF_8)).isEqualTo("contents");
+    assertThat(output.isExecutable()).isFalse();
+    assertThat(FileSystemUtils.readContent(tool, UTF_8)).isEqualTo("#!/bin/sh");
+    assertThat(tool.isExecutable()).isTrue();
+  }
+
+  @Test
+  public void writingRestoredOutputDoesNotChangeCachedContent() throws Exception {
+    Path output = createOutput("out/a.txt", "contents");
+    cache.putActionOutput("ac0123", execRoot, ImmutableList.of(output));
+    cache.writeActionOutput("ac0123", execRoot);
+
+    // An action that rewrites its output in place must not modify the stored content.
+    FileSystemUtils.writeContent(output, UTF_8, "modified");
+    cache.writeActionOutput("ac0123", execRoot);
+    assertThat(FileSystemUtils.readContent(output, UTF_8)).isEqualTo("contents");
+  }
+
+  @Test
+  public void missingContent() throws Exception {
+    try {
+      cache.writeFile("0123456789abcdef", execRoot.getRelative("out/b.txt"), false);
+      fail();
+    } catch (CacheNotFoundException e) {
+      // Expected.
+    }
+    try {
+      cache.writeActionOutput("ac4567", execRoot);
+      fail();
+    } catch (CacheNotFoundException e) {
+      // Expected.
+    }
+    assertThat(execRoot.getRelative("out/b.txt").exists()).isFalse();
+  }
+
+  @Test
+  public void actionWithDirectoryOutputIsNotCached() throws Exception {
+    Path output = createOutput("out/a.txt", "contents");
+    Path directory = execRoot.getRelative("out/dir");
+    FileSystemUtils.createDirectoryAndParents(directory);
+    cache.putActionOutput("ac0123", execRoot, ImmutableList.of(output, directory));
+    try {
+      cache.writeActionOutput("ac0123", execRoot);
+      fail();
+    } catch (CacheNotFoundException e) {
+      // Expected.
+    }
+  }
+}
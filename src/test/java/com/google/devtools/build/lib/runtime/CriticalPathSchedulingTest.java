@@ -0,0 +1,224 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.runtime;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.devtools.build.lib.actions.Action;
+import com.google.devtools.build.lib.actions.ActionCompletionEvent;
+import com.google.devtools.build.lib.actions.ActionStartedEvent;
+import com.google.devtools.build.lib.actions.Artifact;
+import com.google.devtools.build.lib.actions.Root;
+import com.google.devtools.build.lib.actions.util.TestAction;
+import com.google.devtools.build.lib.events.NullEventHandler;
+import com.google.devtools.build.lib.skyframe.ActionExecutionValue;
+import com.google.devtools.build.lib.skyframe.CriticalPathSchedulingPolicy;
+import com.google.devtools.build.lib.skyframe.SkyFunctions;
+import com.google.devtools.build.lib.testutil.ManualClock;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.inmemoryfs.InMemoryFileSystem;
+import com.google.devtools.build.skyframe.EvaluationResult;
+import com.google.devtools.build.skyframe.InMemoryMemoizingEvaluator;
+import com.google.devtools.build.skyframe.MemoizingEvaluator;
+import com.google.devtools.build.skyframe.MemoizingEvaluator.EmittedEventState;
+import com.google.devtools.build.skyframe.RecordingDifferencer;
+import com.google.devtools.build.skyframe.SequentialBuildDriver;
+import com.google.devtools.build.skyframe.SkyFunction;
+import com.google.devtools.build.skyframe.SkyFunctionName;
+import com.google.devtools.build.skyframe.SkyKey;
+import com.google.devtools.build.skyframe.SkyValue;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Tests that the longest chains through actions computed by {@link CriticalPathComputer} let a
+ * {@link CriticalPathSchedulingPolicy} start the longest chain of actions first.
+ */
+@RunWith(JUnit4.class)
+public class CriticalPathSchedulingTest {
+  private static final SkyFunctionName TOP = SkyFunctionName.create("TOP");
+
+  private final ManualClock clock = new ManualClock();
+  private final SimpleCriticalPathComputer computer = new SimpleCriticalPathComputer(clock);
+  private Root sourceRoot;
+  private Root outputRoot;
+
+  /** The value of a node that is done. */
+  private static final class DoneValue implements SkyValue {}
+
+  @Before
+  public final void createRoots() throws Exception {
+    Path execRoot = new InMemoryFileSystem().getPath("/exec");
+    sourceRoot = Root.asSourceRoot(execRoot);
+    outputRoot = Root.asDerivedRoot(execRoot, execRoot.getRelative("out"));
+  }
+
+  private Artifact source(String name) {
+    return new Artifact(sourceRoot.getPath().getRelative(name), sourceRoot);
+  }
+
+  /** Returns an action generating {@code output} from {@code inputs}. */
+  private Action action(String output, Artifact... inputs) {
+    return new TestAction(
+        TestAction.NO_EFFECT,
+        ImmutableList.copyOf(inputs),
+        ImmutableList.of(new Artifact(outputRoot.getPath().getRelative(output), outputRoot)));
+  }
+
+  /** Reports to the computer that {@code action} ran for {@code millis}. */
+  private void run(Action action, long millis) {
+    long start = clock.nanoTime();
+    computer.actionStarted(new ActionStartedEvent(action, start));
+    clock.advanceMillis(millis);
+    computer.actionComplete(new ActionCompletionEvent(start, action));
+  }
+
+  @Test
+  public void longestPathThroughFollowsDepsAndConsumers() throws Exception {
+    Action head = action("head", source("head.in"));
+    Action middle = action("middle", head.getPrimaryOutput());
+    Action last = action("last", middle.getPrimaryOutput(), source("last.in"));
+    Action single = action("single", source("single.in"));
+    run(head, 10);
+    run(middle, 10);
+    run(last, 10);
+    run(single, 25);
+
+    Map<Artifact, Long> through = computer.computeLongestPathThroughMillis();
+    assertThat(through)
+        .containsExactly(
+            head.getPrimaryOutput(), 30L,
+            middle.getPrimaryOutput(), 30L,
+            last.getPrimaryOutput(), 30L,
+            single.getPrimaryOutput(), 25L);
+  }
+
+  @Test
+  public void longestPathThroughTakesTheLongestConsumer() throws Exception {
+    Action shared = action("shared", source("shared.in"));
+    Action shortConsumer = action("short", shared.getPrimaryOutput());
+    Action longConsumer = action("long", shared.getPrimaryOutput());
+    Action both =
+        action("both", shortConsumer.getPrimaryOutput(), longConsumer.getPrimaryOutput());
+    run(shared, 5);
+    run(shortConsumer, 1);
+    run(longConsumer, 20);
+    run(both, 2);
+
+    Map<Artifact, Long> through = computer.computeLongestPathThroughMillis();
+    assertThat(through.get(shared.getPrimaryOutput())).isEqualTo(27L);
+    assertThat(through.get(shortConsumer.getPrimaryOutput())).isEqualTo(8L);
+    assertThat(through.get(longConsumer.getPrimaryOutput())).isEqualTo(27L);
+    assertThat(through.get(both.getPrimaryOutput())).isEqualTo(27L);
+  }
+
+  @Test
+  public void headOfTheLongestChainIsScheduledFirst() throws Exception {
+    // A chain of three 10ms actions, next to a single 25ms action and a single 5ms action. The
+    // single 25ms action has a longer critical path up to itself than the head of the chain, but
+    // the chain takes longer from its head on.
+    Action head = action("head", source("head.in"));
+    Action middle = action("middle", head.getPrimaryOutput());
+    Action last = action("last", middle.getPrimaryOutput());
+    Action single = action("single", source("single.in"));
+    Action quick = action("quick", source("quick.in"));
+    run(head, 10);
+    run(middle, 10);
+    run(last, 10);
+    run(single, 25);
+    run(quick, 5);
+
+    CriticalPathSchedulingPolicy policy = new CriticalPathSchedulingPolicy();
+    for (Map.Entry<Artifact, Long> entry
+        : computer.computeLongestPathThroughMillis().entrySet()) {
+      policy.recordCriticalPath(entry.getKey(), entry.getValue());
+    }
+
+    // The next build runs the actions that can run right away by the longest chain through them,
+    // whichever order it requests them in.
+    assertThat(evaluate(policy, head, single, quick))
+        .containsExactly(head, single, quick)
+        .inOrder();
+    assertThat(evaluate(policy, quick, single, head))
+        .containsExactly(head, single, quick)
+        .inOrder();
+  }
+
+  /**
+   * Evaluates the executions of {@code actions} on a single thread with {@code policy}, and
+   * returns the actions in the order they were evaluated.
+   */
+  private static List<Action> evaluate(CriticalPathSchedulingPolicy policy, Action... actions)
+      throws InterruptedException {
+    final List<Action> evaluated = Collections.synchronizedList(new ArrayList<Action>());
+    final List<SkyKey> actionKeys = new ArrayList<>();
+    for (Action action : actions) {
+      actionKeys.add(ActionExecutionValue.key(action));
+    }
+    SkyFunction actionFunction =
+        new SkyFunction() {
+          @Override
+          public SkyValue compute(SkyKey key, Environment env) {
+            evaluated.add((Action) key.argument());
+            return new DoneValue();
+          }
+
+          @Override
+          public String extractTag(SkyKey skyKey) {
+            return null;
+          }
+        };
+    // With a single thread, all actions wait in the queue until this node requested them.
+    SkyFunction topFunction =
+        new SkyFunction() {
+          @Override
+          public SkyValue compute(SkyKey key, Environment env) throws InterruptedException {
+            env.getValues(actionKeys);
+            return env.valuesMissing() ? null : new DoneValue();
+          }
+
+          @Override
+          public String extractTag(SkyKey skyKey) {
+            return null;
+          }
+        };
+    MemoizingEvaluator evaluator =
+        InMemoryMemoizingEvaluator.SUPPLIER.create(
+            ImmutableMap.of(SkyFunctions.ACTION_EXECUTION, actionFunction, TOP, topFunction),
+            new RecordingDifferencer(),
+            /*invalidationReceiver=*/ null,
+            new EmittedEventState(),
+            /*keepEdges=*/ true);
+    evaluator.setSchedulingPolicy(policy);
+    EvaluationResult<DoneValue> result =
+        new SequentialBuildDriver(evaluator)
+            .<DoneValue>evaluate(
+                ImmutableList.of(SkyKey.create(TOP, "top")),
+                /*keepGoing=*/ false,
+                /*numThreads=*/ 1,
+                NullEventHandler.INSTANCE);
+    assertThat(result.hasError()).isFalse();
+    return evaluated;
+  }
+}
@@ -0,0 +1,186 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.skyframe;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+
+import com.google.devtools.build.lib.skyframe.DiffAwareness.View;
+import com.google.devtools.build.lib.testutil.TestUtils;
+import com.google.devtools.build.lib.util.OS;
+import com.google.devtools.build.lib.vfs.ModifiedFileSet;
+import com.google.devtools.build.lib.vfs.PathFragment;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/** Tests for {@link LinuxInotifyDiffAwareness}. */
+@RunWith(JUnit4.class)
+public class LinuxInotifyDiffAwarenessTest {
+  private Path root;
+  private LinuxInotifyDiffAwareness diffAwareness;
+  private View view;
+
+  @Before
+  public final void createDiffAwareness() throws Exception {
+    assumeTrue(OS.getCurrent() == OS.LINUX);
+    root = TestUtils.makeTempDir().toPath().toRealPath();
+  }
+
+  @After
+  public final void closeDiffAwareness() {
+    if (diffAwareness != null) {
+      diffAwareness.close();
+    }
+  }
+
+  /** Starts watching the root, and waits until the views report precise changes. */
+  private void startWatching() throws Exception {
+    diffAwareness = new LinuxInotifyDiffAwareness(root.toString());
+    view = diffAwareness.getCurrentView();
+    waitForPreciseChanges();
+  }
+
+  private void waitForPreciseChanges() throws Exception {
+    for (int i = 0; i < 600; i++) {
+      if (!nextDiff().treatEverythingAsModified()) {
+        return;
+      }
+      Thread.sleep(100);
+    }
+    fail("The directories were not registered");
+  }
+
+  private ModifiedFileSet nextDiff() throws Exception {
+    View oldView = view;
+    view = diffAwareness.getCurrentView();
+    return diffAwareness.getDiff(oldView, view);
+  }
+
+  private static void write(Path file, String content) throws Exception {
+    Files.write(file, content.getBytes(UTF_8));
+  }
+
+  private static List<PathFragment> fragments(String... paths) {
+    List<PathFragment> fragments = new ArrayList<>();
+    for (String path : paths) {
+      fragments.add(new PathFragment(path));
+    }
+    return fragments;
+  }
+
+  @Test
+  public void changesAreUnknownUntilTheTreeIsRegistered() throws Exception {
+    diffAwareness = new LinuxInotifyDiffAwareness(root.toString());
+    view = diffAwareness.getCurrentView();
+    assertThat(nextDiff().treatEverythingAsModified()).isTrue();
+  }
+
+  @Test
+  public void reportsCreatedModifiedAndDeletedFiles() throws Exception {
+    Files.createDirectories(root.resolve("dir"));
+    write(root.resolve("dir/modified"), "old");
+    write(root.resolve("deleted"), "old");
+    startWatching();
+
+    write(root.resolve("dir/created"), "new");
+    write(root.resolve("dir/modified"), "new");
+    Files.delete(root.resolve("deleted"));
+
+    assertThat(nextDiff().modifiedSourceFiles())
+        .containsExactlyElementsIn(fragments("dir/created", "dir/modified", "deleted"));
+    assertThat(nextDiff().modifiedSourceFiles()).isEmpty();
+  }
+
+  @Test
+  public void watchesCreatedDirectories() throws Exception {
+    startWatching();
+
+    Files.createDirectories(root.resolve("a/b"));
+    write(root.resolve("a/b/file"), "new");
+    assertThat(nextDiff().modifiedSourceFiles())
+        .containsExactlyElementsIn(fragments("a", "a/b", "a/b/file"));
+
+    write(root.resolve("a/b/file"), "newer");
+    assertThat(nextDiff().modifiedSourceFiles()).containsExactlyElementsIn(fragments("a/b/file"));
+  }
+
+  @Test
+  public void followsMovedDirectories() throws Exception {
+    Files.createDirectories(root.resolve("old/sub"));
+    write(root.resolve("old/sub/file"), "content");
+    startWatching();
+
+    Files.move(root.resolve("old"), root.resolve("new"));
+    assertThat(nextDiff().modifiedSourceFiles())
+        .containsExactlyElementsIn(fragments("old", "new", "new/sub", "new/sub/file"));
+
+    write(root.resolve("new/sub/file"), "new content");
+    assertThat(nextDiff().modifiedSourceFiles())
+        .containsExactlyElementsIn(fragments("new/sub/file"));
+  }
+
+  @Test
+  public void deletedRootBreaksTheWatcher() throws Exception {
+    startWatching();
+    Files.delete(root);
+    try {
+      diffAwareness.getCurrentView();
+      fail();
+    } catch (BrokenDiffAwarenessException expected) {
+      // Expected.
+    }
+  }
+
+  @Test
+  public void noChangeIsLostWhenManyFilesChange() throws Exception {
+    int dirCount = 100;
+    int filesPerDir = 1000;
+    for (int i = 0; i < dirCount; i++) {
+      Files.createDirectory(root.resolve("dir" + i));
+    }
+    startWatching();
+
+    // Enough events to overflow the default inotify queue of 16384 events.
+    List<PathFragment> written = new ArrayList<>();
+    for (int i = 0; i < dirCount; i++) {
+      for (int j = 0; j < filesPerDir; j++) {
+        String path = "dir" + i + "/file" + j;
+        write(root.resolve(path), "content");
+        written.add(new PathFragment(path));
+      }
+    }
+    ModifiedFileSet diff = nextDiff();
+    if (!diff.treatEverythingAsModified()) {
+      assertThat(diff.modifiedSourceFiles()).containsAllIn(written);
+    }
+
+    // Once the tree is registered again, changes are precise.
+    waitForPreciseChanges();
+    write(root.resolve("dir42/file42"), "new content");
+    Files.createDirectory(root.resolve("dir42/sub"));
+    assertThat(nextDiff().modifiedSourceFiles())
+        .containsExactlyElementsIn(fragments("dir42/file42", "dir42/sub"));
+  }
+}
@@ -0,0 +1,89 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.skyframe;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableList;
+import com.google.devtools.build.lib.analysis.util.BuildViewTestCase;
+import com.google.devtools.build.lib.cmdline.Label;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link ReverseDepsIndex}. */
+@RunWith(JUnit4.class)
+public class ReverseDepsIndexTest extends BuildViewTestCase {
+
+  private ImmutableList<Label> getReverseDeps(ReverseDepsIndex index, String label)
+      throws Exception {
+    Label parsed = Label.parseAbsolute(label);
+    return index.getReverseDeps(ImmutableList.of(parsed)).get(parsed);
+  }
+
+  @Test
+  public void testIndexIsBuiltFromLoadedPackages() throws Exception {
+    scratch.file("a/BUILD", "sh_library(name = 'a', srcs = ['a.sh'])");
+    scratch.file("b/BUILD", "sh_library(name = 'b', deps = ['//a'])");
+    getTarget("//a:a");
+    getTarget("//b:b");
+
+    ReverseDepsIndex index = getSkyframeExecutor().getReverseDepsIndex();
+    index.ensureEnabled();
+    assertThat(getReverseDeps(index, "//a:a")).containsExactly(Label.parseAbsolute("//b:b"));
+    assertThat(getReverseDeps(index, "//a:a.sh")).containsExactly(Label.parseAbsolute("//a:a"));
+    assertThat(getReverseDeps(index, "//b:b")).isEmpty();
+  }
+
+  @Test
+  public void testIndexFollowsPackageChanges() throws Exception {
+    scratch.file("a/BUILD", "sh_library(name = 'a')");
+    scratch.file("b/BUILD", "sh_library(name = 'b', deps = ['//a'])");
+    getTarget("//b:b");
+    ReverseDepsIndex index = getSkyframeExecutor().getReverseDepsIndex();
+    index.ensureEnabled();
+    int edgeCount = index.getEdgeCount();
+
+    // A package that is loaded after the index was built is added to it.
+    scratch.file("c/BUILD", "sh_library(name = 'c', deps = ['//a'])");
+    getTarget("//c:c");
+    assertThat(getReverseDeps(index, "//a:a"))
+        .containsExactly(Label.parseAbsolute("//b:b"), Label.parseAbsolute("//c:c"));
+
+    // A package that changed replaces its edges.
+    scratch.overwriteFile("b/BUILD", "sh_library(name = 'b')");
+    invalidatePackages();
+    getTarget("//b:b");
+    getTarget("//c:c");
+    assertThat(getReverseDeps(index, "//a:a")).containsExactly(Label.parseAbsolute("//c:c"));
+    assertThat(index.getEdgeCount()).isEqualTo(edgeCount);
+  }
+
+  @Test
+  public void testIndexKeepsPackagesThatAreUnchangedAfterInvalidation() throws Exception {
+    scratch.file("a/BUILD", "sh_library(name = 'a')");
+    scratch.file("b/BUILD", "sh_library(name = 'b', deps = ['//a'])");
+    getTarget("//b:b");
+    ReverseDepsIndex index = getSkyframeExecutor().getReverseDepsIndex();
+    index.ensureEnabled();
+
+    // The package is dropped while dirty and restored when its value turns out to be unchanged.
+    scratch.overwriteFile("b/BUILD", "sh_library(name = 'b', deps = ['//a'])");
+    invalidatePackages();
+    getTarget("//b:b");
+    assertThat(index.contains(Label.parseAbsolute("//b:b").getPackageIdentifier())).isTrue();
+    assertThat(getReverseDeps(index, "//a:a")).containsExactly(Label.parseAbsolute("//b:b"));
+  }
+}
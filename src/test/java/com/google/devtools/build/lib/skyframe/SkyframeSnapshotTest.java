@@ -0,0 +1,132 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.skyframe;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.fail;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.devtools.build.lib.skyframe.FileStateValue.RegularFileStateValue;
+import com.google.devtools.build.lib.skyframe.FileStateValue.SpecialFileStateValue;
+import com.google.devtools.build.lib.skyframe.FileStateValue.SymlinkFileStateValue;
+import com.google.devtools.build.lib.vfs.Dirent;
+import com.google.devtools.build.lib.vfs.FileSystem;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.PathFragment;
+import com.google.devtools.build.lib.vfs.RootedPath;
+import com.google.devtools.build.lib.vfs.inmemoryfs.InMemoryFileSystem;
+import com.google.devtools.build.skyframe.SkyKey;
+import com.google.devtools.build.skyframe.SkyValue;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Tests for {@link SkyframeSnapshot}.
+ */
+@RunWith(JUnit4.class)
+public class SkyframeSnapshotTest {
+  private Path root;
+  private Path otherRoot;
+  private Path snapshotFile;
+
+  @Before
+  public final void createFileSystem() throws Exception {
+    FileSystem fs = new InMemoryFileSystem();
+    root = fs.getPath("/workspace");
+    otherRoot = fs.getPath("/other");
+    snapshotFile = fs.getPath("/output/snapshot");
+    FileSystemUtils.createDirectoryAndParents(snapshotFile.getParentDirectory());
+  }
+
+  private SkyKey fileStateKey(Path root, String relativePath) {
+    return FileStateValue.key(RootedPath.toRootedPath(root, new PathFragment(relativePath)));
+  }
+
+  @Test
+  public void roundTrip() throws Exception {
+    Map<SkyKey, SkyValue> fileSystemValues =
+        ImmutableMap.<SkyKey, SkyValue>builder()
+            .put(
+                fileStateKey(root, "pkg/BUILD"),
+                new RegularFileStateValue(12, 100, null, FileContentsProxy.create(100, 7)))
+            .put(
+                fileStateKey(root, "pkg/empty"),
+                new RegularFileStateValue(0, 200, null, FileContentsProxy.create(200, 8)))
+            .put(
+                fileStateKey(root, "pkg/digested"),
+                new RegularFileStateValue(3, 300, new byte[] {1, 2, 3}, null))
+            .put(
+                fileStateKey(root, "pkg/fifo"),
+                new SpecialFileStateValue(FileContentsProxy.create(400, 9)))
+            .put(
+                fileStateKey(root, "pkg/link"),
+                new SymlinkFileStateValue(new PathFragment("../x")))
+            .put(fileStateKey(root, "pkg"), FileStateValue.DIRECTORY_FILE_STATE_NODE)
+            .put(fileStateKey(root, "missing"), FileStateValue.NONEXISTENT_FILE_STATE_NODE)
+            .put(
+                DirectoryListingStateValue.key(
+                    RootedPath.toRootedPath(root, new PathFragment("pkg"))),
+                DirectoryListingStateValue.create(
+                    ImmutableList.of(
+                        new Dirent("BUILD", Dirent.Type.FILE),
+                        new Dirent("link", Dirent.Type.SYMLINK),
+                        new Dirent("sub", Dirent.Type.DIRECTORY))))
+            .build();
+    Map<SkyKey, SkyValue> values =
+        ImmutableMap.<SkyKey, SkyValue>builder()
+            .putAll(fileSystemValues)
+            // Neither under a path entry nor a file system value.
+            .put(fileStateKey(otherRoot, "pkg/BUILD"), FileStateValue.DIRECTORY_FILE_STATE_NODE)
+            .put(
+                PackageLookupValue.key(new PathFragment("pkg")),
+                PackageLookupValue.NO_BUILD_FILE_VALUE)
+            .build();
+
+    assertThat(SkyframeSnapshot.write(values, ImmutableList.of(root), snapshotFile))
+        .isEqualTo(fileSystemValues.size());
+    assertThat(SkyframeSnapshot.read(snapshotFile, ImmutableList.of(otherRoot, root)))
+        .isEqualTo(fileSystemValues);
+  }
+
+  @Test
+  public void valuesOfRemovedPathEntriesAreDropped() throws Exception {
+    SkyframeSnapshot.write(
+        ImmutableMap.<SkyKey, SkyValue>of(
+            fileStateKey(root, "a"), FileStateValue.NONEXISTENT_FILE_STATE_NODE,
+            fileStateKey(otherRoot, "b"), FileStateValue.NONEXISTENT_FILE_STATE_NODE),
+        ImmutableList.of(root, otherRoot),
+        snapshotFile);
+    assertThat(SkyframeSnapshot.read(snapshotFile, ImmutableList.of(otherRoot)))
+        .containsExactly(fileStateKey(otherRoot, "b"), FileStateValue.NONEXISTENT_FILE_STATE_NODE);
+  }
+
+  @Test
+  public void unexpectedFormat() throws Exception {
+    FileSystemUtils.writeContentAsLatin1(snapshotFile, "not a snapshot");
+    try {
+      SkyframeSnapshot.read(snapshotFile, ImmutableList.of(root));
+      fail();
+    } catch (IOException e) {
+      assertThat(e.getMessage()).contains("Unexpected format");
+    }
+  }
+}
@@ -0,0 +1,81 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Compares the {@link DigestFunction}s {@link Fingerprint} can use, on inputs shaped like action
+ * keys: a few dozen command line arguments and paths per fingerprint.
+ *
+ * <p>Usage: {@code FingerprintBenchmark [number of fingerprints]}. Prints the median time of
+ * computing all fingerprints with each function.
+ */
+public class FingerprintBenchmark {
+  private static final int WARMUP_RUNS = 3;
+  private static final int RUNS = 7;
+  private static final int STRINGS_PER_FINGERPRINT = 40;
+
+  public static void main(String[] args) {
+    int count = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+    List<String> strings = new ArrayList<>(STRINGS_PER_FINGERPRINT);
+    for (int i = 0; i < STRINGS_PER_FINGERPRINT; i++) {
+      strings.add(
+          i % 2 == 0
+              ? "bazel-out/local-fastbuild/bin/some/package/path/lib" + i + ".jar"
+              : "-Xlint:option" + i);
+    }
+
+    System.out.printf(
+        "%d fingerprints of %d strings each, median of %d runs%n",
+        count, STRINGS_PER_FINGERPRINT, RUNS);
+    try {
+      for (DigestFunction digestFunction : DigestFunction.values()) {
+        Fingerprint.setDigestFunction(digestFunction);
+        System.out.printf("%-10s %6d ms%n", digestFunction, time(strings, count));
+      }
+    } finally {
+      Fingerprint.setDigestFunction(DigestFunction.MD5);
+    }
+  }
+
+  private static int fingerprintAll(List<String> strings, int count) {
+    int result = 0;
+    for (int i = 0; i < count; i++) {
+      Fingerprint fingerprint = new Fingerprint();
+      fingerprint.addInt(i);
+      fingerprint.addStrings(strings);
+      // Keeps the digests from being optimized away.
+      result += fingerprint.digestAndReset()[0];
+    }
+    return result;
+  }
+
+  private static long time(List<String> strings, int count) {
+    for (int i = 0; i < WARMUP_RUNS; i++) {
+      fingerprintAll(strings, count);
+    }
+    long[] millis = new long[RUNS];
+    for (int i = 0; i < RUNS; i++) {
+      System.gc();
+      long start = System.nanoTime();
+      fingerprintAll(strings, count);
+      millis[i] = (System.nanoTime() - start) / 1000000;
+    }
+    Arrays.sort(millis);
+    return millis[RUNS / 2];
+  }
+}
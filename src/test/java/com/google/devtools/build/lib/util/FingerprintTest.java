@@ -21,6 +21,7 @@ import com.google.devtools.build.lib.vfs.Path;
 import com.google.devtools.build.lib.vfs.PathFragment;
 import com.google.devtools.build.lib.vfs.inmemoryfs.InMemoryFileSystem;
 
+import org.junit.After;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
@@ -35,6 +36,11 @@ import java.util.Map;
 @RunWith(JUnit4.class)
 public class FingerprintTest {
 
+  @After
+  public final void resetDigestFunction() {
+    Fingerprint.setDigestFunction(DigestFunction.MD5);
+  }
+
   private static void assertFingerprintsDiffer(List<String> list1, List<String>list2) {
     Fingerprint f1 = new Fingerprint();
     Fingerprint f1Latin1 = new Fingerprint();
@@ -142,4 +148,24 @@ public class FingerprintTest {
     assertThat(f1).isEqualTo(new Fingerprint().addNullableString(null).hexDigestAndReset());
     assertThat(f1).isNotEqualTo(new Fingerprint().addNullableString("").hexDigestAndReset());
   }
+
+  @Test
+  public void digestFunction() throws Exception {
+    Fingerprint.setDigestFunction(DigestFunction.SHA256);
+    assertThat(new Fingerprint().addBytes("Hello World!".getBytes(UTF_8)).hexDigestAndReset())
+        .isEqualTo("7f83b1657ff1fc53b92dc18148a1d65dfc2d4b1fa3d677284addd200126d9069");
+    // md5Digest is independent of the selected function.
+    assertThat(Fingerprint.md5Digest("Hello World!"))
+        .isEqualTo("ed076287532e86365e841e92bfc50d8c");
+  }
+
+  @Test
+  public void allDigestFunctionsProduceAtLeast128Bits() throws Exception {
+    for (DigestFunction function : DigestFunction.values()) {
+      Fingerprint.setDigestFunction(function);
+      assertThat(new Fingerprint().addString("a").digestAndReset().length)
+          .isAtLeast(16);
+      assertFingerprintsDiffer(ImmutableList.of("a"), ImmutableList.of("b"));
+    }
+  }
 }
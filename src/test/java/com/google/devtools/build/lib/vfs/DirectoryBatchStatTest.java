@@ -0,0 +1,78 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.vfs;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.collect.ImmutableList;
+import com.google.devtools.build.lib.vfs.inmemoryfs.InMemoryFileSystem;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.List;
+
+/** Tests for {@link DirectoryBatchStat}. */
+@RunWith(JUnit4.class)
+public class DirectoryBatchStatTest {
+  private Path execRoot;
+
+  @Before
+  public final void createExecRoot() throws Exception {
+    execRoot = new InMemoryFileSystem().getPath("/exec");
+    FileSystemUtils.createDirectoryAndParents(execRoot.getRelative("a/b"));
+    FileSystemUtils.writeContentAsLatin1(execRoot.getRelative("a/file"), "contents");
+    FileSystemUtils.writeContentAsLatin1(execRoot.getRelative("a/b/file"), "more contents");
+    execRoot.getRelative("a/link").createSymbolicLink(new PathFragment("file"));
+  }
+
+  @Test
+  public void returnsStatusesInTheOrderOfThePaths() throws Exception {
+    List<FileStatusWithDigest> stats =
+        new DirectoryBatchStat(execRoot)
+            .batchStat(
+                /*includeDigest=*/ true,
+                /*includeLinks=*/ true,
+                ImmutableList.of(
+                    new PathFragment("a/b/file"),
+                    new PathFragment("a/file"),
+                    new PathFragment("a/missing"),
+                    new PathFragment("missing/file"),
+                    new PathFragment("a/b"),
+                    new PathFragment("a/link")));
+    assertThat(stats).hasSize(6);
+    assertEquals(13, stats.get(0).getSize());
+    assertEquals(8, stats.get(1).getSize());
+    assertNull(stats.get(2));
+    assertNull(stats.get(3));
+    assertTrue(stats.get(4).isDirectory());
+    assertTrue(stats.get(5).isSymbolicLink());
+  }
+
+  @Test
+  public void followsSymlinksUnlessLinksAreIncluded() throws Exception {
+    List<FileStatusWithDigest> stats =
+        new DirectoryBatchStat(execRoot)
+            .batchStat(
+                /*includeDigest=*/ false,
+                /*includeLinks=*/ false,
+                ImmutableList.of(new PathFragment("a/link")));
+    assertTrue(stats.get(0).isFile());
+  }
+}
@@ -18,9 +18,11 @@ import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import com.google.common.collect.ImmutableList;
 import com.google.devtools.build.lib.vfs.FileSystem.NotASymlinkException;
 
 import org.junit.Before;
@@ -29,6 +31,7 @@ import org.junit.Test;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.util.Collection;
+import java.util.List;
 
 /**
  * This class handles the generic tests that any filesystem must pass.
@@ -66,6 +69,17 @@ public abstract class SymlinkAwareFileSystemTest extends FileSystemTest {
     createSymbolicLink(xDanglingLink, xNothing);
   }
 
+  @Test
+  public void testStatChildrenIfFoundFollowsSymlinksOnRequest() throws IOException {
+    List<String> names = ImmutableList.of("xLinkToFile", "xDanglingLink");
+    List<FileStatus> noFollow = workingDir.statChildrenIfFound(names, Symlinks.NOFOLLOW);
+    assertTrue(noFollow.get(0).isSymbolicLink());
+    assertTrue(noFollow.get(1).isSymbolicLink());
+    List<FileStatus> follow = workingDir.statChildrenIfFound(names, Symlinks.FOLLOW);
+    assertTrue(follow.get(0).isFile());
+    assertNull(follow.get(1));
+  }
+
   @Test
   public void testCreateLinkToFile() throws IOException {
     Path newPath = xEmptyDirectory.getChild("new-file");
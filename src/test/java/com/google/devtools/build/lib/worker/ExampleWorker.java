@@ -33,8 +33,12 @@ import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
 import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * An example implementation of a worker process that is used for integration tests.
@@ -45,7 +49,7 @@ public class ExampleWorker {
   static final UUID workerUuid = UUID.randomUUID();
 
   // A counter that increases with each work unit processed.
-  static int workUnitCounter = 1;
+  static final AtomicInteger workUnitCounter = new AtomicInteger(1);
 
   // If true, returns corrupt responses instead of correct protobufs.
   static boolean poisoned = false;
@@ -64,21 +68,35 @@ public class ExampleWorker {
       runPersistentWorker(workerOptions);
     } else {
       // This is a single invocation of the example that exits after it processed the request.
-      processRequest(ImmutableList.copyOf(args));
+      processRequest(ImmutableList.copyOf(args), inputs, System.out);
     }
   }
 
   private static void runPersistentWorker(ExampleWorkerOptions workerOptions) throws IOException {
     PrintStream originalStdOut = System.out;
     PrintStream originalStdErr = System.err;
+    ExecutorService multiplexedRequestPool = Executors.newCachedThreadPool();
 
     while (true) {
       try {
-        WorkRequest request = WorkRequest.parseDelimitedFrom(System.in);
+        final WorkRequest request = WorkRequest.parseDelimitedFrom(System.in);
         if (request == null) {
           break;
         }
 
+        if (request.getRequestId() != 0) {
+          // Bazel sends request ids only to workers that support multiplexing, so work on this
+          // request in parallel to the others.
+          multiplexedRequestPool.execute(
+              new Runnable() {
+                @Override
+                public void run() {
+                  processMultiplexedRequest(request);
+                }
+              });
+          continue;
+        }
+
         inputs.clear();
         for (Input input : request.getInputsList()) {
           inputs.put(input.getPath(), input.getDigest().toStringUtf8());
@@ -92,7 +110,7 @@ public class ExampleWorker {
           System.setErr(ps);
 
           try {
-            processRequest(request.getArgumentsList());
+            processRequest(request.getArgumentsList(), inputs, ps);
           } catch (Exception e) {
             e.printStackTrace();
             exitCode = 1;
@@ -113,11 +131,11 @@ public class ExampleWorker {
         }
         System.out.flush();
 
-        if (workerOptions.exitAfter > 0 && workUnitCounter > workerOptions.exitAfter) {
+        if (workerOptions.exitAfter > 0 && workUnitCounter.get() > workerOptions.exitAfter) {
           return;
         }
 
-        if (workerOptions.poisonAfter > 0 && workUnitCounter > workerOptions.poisonAfter) {
+        if (workerOptions.poisonAfter > 0 && workUnitCounter.get() > workerOptions.poisonAfter) {
           poisoned = true;
         }
       } finally {
@@ -127,7 +145,40 @@ public class ExampleWorker {
     }
   }
 
-  private static void processRequest(List<String> args) throws Exception {
+  private static void processMultiplexedRequest(WorkRequest request) {
+    Map<String, String> requestInputs = new LinkedHashMap<>();
+    for (Input input : request.getInputsList()) {
+      requestInputs.put(input.getPath(), input.getDigest().toStringUtf8());
+    }
+
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    int exitCode = 0;
+    try (PrintStream ps = new PrintStream(baos)) {
+      try {
+        processRequest(request.getArgumentsList(), requestInputs, ps);
+      } catch (Exception e) {
+        e.printStackTrace(ps);
+        exitCode = 1;
+      }
+    }
+
+    synchronized (System.out) {
+      try {
+        WorkResponse.newBuilder()
+            .setOutput(baos.toString())
+            .setExitCode(exitCode)
+            .setRequestId(request.getRequestId())
+            .build()
+            .writeDelimitedTo(System.out);
+      } catch (IOException e) {
+        throw new IllegalStateException(e);
+      }
+      System.out.flush();
+    }
+  }
+
+  private static void processRequest(
+      List<String> args, Map<String, String> inputs, PrintStream out) throws Exception {
     if (args.size() == 1 && args.get(0).startsWith("@")) {
       args = Files.readAllLines(Paths.get(args.get(0).substring(1)), UTF_8);
     }
@@ -144,7 +195,7 @@ public class ExampleWorker {
     }
 
     if (options.writeCounter) {
-      outputs.add("COUNTER " + workUnitCounter++);
+      outputs.add("COUNTER " + workUnitCounter.getAndIncrement());
     }
 
     String residueStr = Joiner.on(' ').join(parser.getResidue());
@@ -167,7 +218,7 @@ public class ExampleWorker {
 
     String outputStr = Joiner.on('\n').join(outputs);
     if (options.outputFile.isEmpty()) {
-      System.out.println(outputStr);
+      out.println(outputStr);
     } else {
       try (PrintStream outputFile = new PrintStream(options.outputFile)) {
         outputFile.println(outputStr);
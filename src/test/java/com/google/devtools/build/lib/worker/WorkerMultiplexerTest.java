@@ -0,0 +1,129 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.worker;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.fail;
+
+import com.google.devtools.build.lib.worker.WorkerProtocol.WorkRequest;
+import com.google.devtools.build.lib.worker.WorkerProtocol.WorkResponse;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.IOException;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/** Tests for {@link WorkerMultiplexer}. */
+@RunWith(JUnit4.class)
+public class WorkerMultiplexerTest {
+  private PipedInputStream requestsIn;
+  private PipedOutputStream responsesOut;
+  private WorkerMultiplexer multiplexer;
+  private ExecutorService executor;
+
+  @Before
+  public final void createMultiplexer() throws Exception {
+    requestsIn = new PipedInputStream();
+    PipedOutputStream requestsOut = new PipedOutputStream(requestsIn);
+    responsesOut = new PipedOutputStream();
+    PipedInputStream responsesIn = new PipedInputStream(responsesOut);
+    multiplexer = new WorkerMultiplexer(responsesIn, requestsOut, "test");
+    executor = Executors.newCachedThreadPool();
+  }
+
+  @After
+  public final void shutdownExecutor() {
+    executor.shutdownNow();
+  }
+
+  private Future<WorkResponse> exec(String argument) {
+    final WorkRequest request = WorkRequest.newBuilder().addArguments(argument).build();
+    return executor.submit(
+        new Callable<WorkResponse>() {
+          @Override
+          public WorkResponse call() throws Exception {
+            return multiplexer.exec(request);
+          }
+        });
+  }
+
+  /** Responds to the request with its first argument as the output. */
+  private void respond(WorkRequest request) throws IOException {
+    WorkResponse.newBuilder()
+        .setRequestId(request.getRequestId())
+        .setOutput(request.getArguments(0))
+        .build()
+        .writeDelimitedTo(responsesOut);
+    responsesOut.flush();
+  }
+
+  @Test
+  public void responsesMayArriveInAnyOrder() throws Exception {
+    Future<WorkResponse> first = exec("first");
+    Future<WorkResponse> second = exec("second");
+
+    WorkRequest request1 = WorkRequest.parseDelimitedFrom(requestsIn);
+    WorkRequest request2 = WorkRequest.parseDelimitedFrom(requestsIn);
+    assertThat(request1.getRequestId()).isNotEqualTo(request2.getRequestId());
+    respond(request2);
+    respond(request1);
+
+    assertThat(first.get().getOutput()).isEqualTo("first");
+    assertThat(second.get().getOutput()).isEqualTo("second");
+  }
+
+  @Test
+  public void requestsFailWhenTheWorkerClosesItsOutput() throws Exception {
+    Future<WorkResponse> pending = exec("pending");
+    WorkRequest.parseDelimitedFrom(requestsIn);
+    responsesOut.close();
+
+    try {
+      pending.get();
+      fail();
+    } catch (ExecutionException expected) {
+      assertThat(expected.getCause()).isInstanceOf(IOException.class);
+    }
+    try {
+      multiplexer.exec(WorkRequest.getDefaultInstance());
+      fail();
+    } catch (IOException expected) {
+      // Expected.
+    }
+  }
+
+  @Test
+  public void interruptedRequestDoesNotAffectOthers() throws Exception {
+    Future<WorkResponse> interrupted = exec("interrupted");
+    WorkRequest interruptedRequest = WorkRequest.parseDelimitedFrom(requestsIn);
+    interrupted.cancel(/*mayInterruptIfRunning=*/ true);
+
+    Future<WorkResponse> other = exec("other");
+    WorkRequest otherRequest = WorkRequest.parseDelimitedFrom(requestsIn);
+    // The late response to the interrupted request is dropped.
+    respond(interruptedRequest);
+    respond(otherRequest);
+    assertThat(other.get().getOutput()).isEqualTo("other");
+  }
+}
@@ -0,0 +1,123 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.worker;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.hash.HashCode;
+import com.google.devtools.build.lib.vfs.FileSystem;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.inmemoryfs.InMemoryFileSystem;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.concurrent.TimeUnit;
+
+/** Tests for {@link WorkerStats}. */
+@RunWith(JUnit4.class)
+public class WorkerStatsTest {
+  private final FileSystem fileSystem = new InMemoryFileSystem();
+
+  private WorkerKey key(String mnemonic, int hash, boolean multiplex) {
+    return new WorkerKey(
+        ImmutableList.of("worker", "--persistent_worker"),
+        ImmutableMap.of("PATH", "/bin"),
+        fileSystem.getPath("/execroot"),
+        mnemonic,
+        HashCode.fromInt(hash),
+        multiplex);
+  }
+
+  @Test
+  public void describesTheRequestsOfEachBuild() throws Exception {
+    WorkerStats stats = new WorkerStats();
+    stats.recordRequest(key("Javac", 1, false), TimeUnit.MILLISECONDS.toNanos(10));
+    stats.recordRequest(key("Javac", 1, false), TimeUnit.MILLISECONDS.toNanos(30));
+    stats.recordRequest(key("Work", 2, true), TimeUnit.MILLISECONDS.toNanos(5));
+
+    assertThat(stats.finishBuild())
+        .containsExactly(
+            "Javac workers served 2 requests in 20 ms on average",
+            "Work workers served 1 requests in 5 ms on average")
+        .inOrder();
+    assertThat(stats.finishBuild()).isEmpty();
+    assertThat(stats.getKeys()).hasSize(2);
+  }
+
+  @Test
+  public void savedKeysAreLoadedWithTheirLatestHash() throws Exception {
+    Path file = fileSystem.getPath("/worker-keys");
+    WorkerStats stats = new WorkerStats();
+    stats.recordRequest(key("Javac", 1, false), 1);
+    stats.recordRequest(key("Javac", 3, false), 1);
+    stats.recordRequest(key("Work", 2, true), 1);
+    stats.save(file);
+
+    WorkerStats loaded = new WorkerStats();
+    loaded.load(file);
+    assertThat(loaded.getKeys())
+        .containsExactly(key("Javac", 1, false), key("Work", 2, true))
+        .inOrder();
+    WorkerKey javacKey = loaded.getKeys().get(0);
+    assertThat(javacKey.getWorkerFilesHash()).isEqualTo(HashCode.fromInt(3));
+    assertThat(javacKey.getArgs()).containsExactly("worker", "--persistent_worker").inOrder();
+    assertThat(javacKey.getEnv()).containsExactly("PATH", "/bin");
+    assertThat(javacKey.getWorkDir()).isEqualTo(fileSystem.getPath("/execroot"));
+    assertThat(loaded.getKeys().get(1).isMultiplex()).isTrue();
+  }
+
+  @Test
+  public void unusedKeysAreForgotten() throws Exception {
+    Path file = fileSystem.getPath("/worker-keys");
+    WorkerStats stats = new WorkerStats();
+    stats.recordRequest(key("Javac", 1, false), 1);
+    stats.recordRequest(key("Work", 2, true), 1);
+    stats.finishBuild();
+    for (int i = 1; i < WorkerStats.MAX_UNUSED_BUILDS; i++) {
+      stats.recordRequest(key("Javac", 1, false), 1);
+      stats.finishBuild();
+    }
+    // The count of unused builds survives a server restart.
+    stats.save(file);
+    WorkerStats loaded = new WorkerStats();
+    loaded.load(file);
+    assertThat(loaded.getKeys()).containsExactly(key("Javac", 1, false), key("Work", 2, true));
+
+    loaded.recordRequest(key("Javac", 1, false), 1);
+    loaded.finishBuild();
+    assertThat(loaded.getKeys()).containsExactly(key("Javac", 1, false));
+  }
+
+  @Test
+  public void longestUnusedKeyIsForgottenWhenThereAreTooMany() throws Exception {
+    WorkerStats stats = new WorkerStats();
+    for (int i = 0; i < WorkerStats.MAX_KEYS; i++) {
+      stats.recordRequest(key("Work" + i, i, false), 1);
+    }
+    stats.finishBuild();
+    for (int i = 1; i < WorkerStats.MAX_KEYS; i++) {
+      stats.recordRequest(key("Work" + i, i, false), 1);
+    }
+    stats.finishBuild();
+
+    stats.recordRequest(key("New", 0, false), 1);
+    assertThat(stats.getKeys()).hasSize(WorkerStats.MAX_KEYS);
+    assertThat(stats.getKeys()).doesNotContain(key("Work0", 0, false));
+    assertThat(stats.getKeys()).contains(key("New", 0, false));
+  }
+}
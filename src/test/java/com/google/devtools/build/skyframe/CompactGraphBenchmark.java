@@ -0,0 +1,130 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.skyframe;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.devtools.build.lib.events.NullEventHandler;
+import com.google.devtools.build.skyframe.MemoizingEvaluator.EmittedEventState;
+import com.google.devtools.build.skyframe.MemoizingEvaluator.EvaluatorSupplier;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compares the heap retained by the default in-memory graph with the heap retained by {@link
+ * CompactInMemoryGraph}, which stores the direct deps of done nodes as int ids.
+ *
+ * <p>Usage: {@code CompactGraphBenchmark [number of nodes]}. Every node has two single deps and a
+ * group of four deps, like the nodes of a typical build graph. Prints the time it takes to build
+ * the graph and the heap it retains once built. Run with and without {@code
+ * -XX:-UseCompressedOops} to see both pointer sizes.
+ */
+public class CompactGraphBenchmark {
+  private static final SkyFunctionName NODE = SkyFunctionName.create("NODE");
+  private static final int THREADS = 8;
+
+  private static final class NodeValue implements SkyValue {
+    private final int id;
+
+    private NodeValue(int id) {
+      this.id = id;
+    }
+  }
+
+  private static SkyKey key(int id) {
+    return SkyKey.create(NODE, id);
+  }
+
+  /** Node i depends on i + 1 and i + 2, and on the group of i + 3 to i + 6. */
+  private static final class NodeFunction implements SkyFunction {
+    private final int size;
+
+    private NodeFunction(int size) {
+      this.size = size;
+    }
+
+    @Override
+    public SkyValue compute(SkyKey skyKey, Environment env) throws InterruptedException {
+      int id = (Integer) skyKey.argument();
+      for (int dep = id + 1; dep <= id + 2 && dep < size; dep++) {
+        env.getValue(key(dep));
+      }
+      List<SkyKey> group = new ArrayList<>(4);
+      for (int dep = id + 3; dep <= id + 6 && dep < size; dep++) {
+        group.add(key(dep));
+      }
+      env.getValues(group);
+      return env.valuesMissing() ? null : new NodeValue(id);
+    }
+
+    @Override
+    public String extractTag(SkyKey skyKey) {
+      return null;
+    }
+  }
+
+  public static void main(String[] args) throws InterruptedException {
+    int size = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+    System.out.printf("%d nodes with 6 deps each%n", size);
+    run("default", InMemoryMemoizingEvaluator.SUPPLIER, size);
+    run("compact", InMemoryMemoizingEvaluator.COMPACT_GRAPH_SUPPLIER, size);
+  }
+
+  private static void run(String name, EvaluatorSupplier supplier, int size)
+      throws InterruptedException {
+    long heapBefore = usedHeap();
+    MemoizingEvaluator evaluator =
+        supplier.create(
+            ImmutableMap.of(NODE, new NodeFunction(size)),
+            new RecordingDifferencer(),
+            /*invalidationReceiver=*/ null,
+            new EmittedEventState(),
+            /*keepEdges=*/ true);
+    List<SkyKey> roots = new ArrayList<>(size);
+    for (int i = 0; i < size; i++) {
+      roots.add(key(i));
+    }
+    long start = System.nanoTime();
+    EvaluationResult<NodeValue> result =
+        new SequentialBuildDriver(evaluator)
+            .<NodeValue>evaluate(
+                ImmutableList.copyOf(roots),
+                /*keepGoing=*/ false,
+                THREADS,
+                NullEventHandler.INSTANCE);
+    long millis = (System.nanoTime() - start) / 1000000;
+    if (result.hasError() || result.get(key(size - 1)).id != size - 1) {
+      throw new IllegalStateException(name + ": " + result);
+    }
+    // The roots and the result hold the keys and values, which both graphs keep anyway.
+    result = null;
+    roots = null;
+    long retained = usedHeap() - heapBefore;
+    System.out.printf(
+        "%-8s built in %6d ms, %5d MB retained%n", name, millis, retained / (1024 * 1024));
+    // Keeps the graph reachable until it was measured. It also holds Skyframe's own nodes.
+    if (evaluator.getValues().size() < size) {
+      throw new IllegalStateException(name + ": not all nodes were built");
+    }
+  }
+
+  private static long usedHeap() {
+    Runtime runtime = Runtime.getRuntime();
+    for (int i = 0; i < 3; i++) {
+      System.gc();
+    }
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+}
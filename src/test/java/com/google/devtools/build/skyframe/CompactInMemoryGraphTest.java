@@ -0,0 +1,197 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.skyframe;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.fail;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
+import com.google.devtools.build.lib.util.GroupedList;
+import com.google.devtools.build.lib.util.GroupedList.GroupedListHelper;
+import com.google.devtools.build.skyframe.QueryableGraph.Reason;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Tests for {@link CompactInMemoryGraph} and {@link CompactInMemoryNodeEntry}.
+ */
+@RunWith(JUnit4.class)
+public class CompactInMemoryGraphTest {
+  private static final SkyFunctionName NODE_TYPE = SkyFunctionName.create("Type");
+
+  private final CompactInMemoryGraph graph = new CompactInMemoryGraph();
+
+  private static SkyKey key(String name) {
+    return SkyKey.create(NODE_TYPE, name);
+  }
+
+  private InMemoryNodeEntry create(SkyKey key) {
+    return graph.createIfAbsentBatch(null, Reason.OTHER, ImmutableList.of(key)).get(key);
+  }
+
+  /** Creates a done node for {@code key} whose direct deps are {@code depGroups}. */
+  private InMemoryNodeEntry createDone(SkyKey key, ImmutableList<ImmutableSet<SkyKey>> depGroups)
+      throws InterruptedException {
+    InMemoryNodeEntry entry = create(key);
+    entry.addReverseDepAndCheckIfDone(null);
+    for (Set<SkyKey> depGroup : depGroups) {
+      for (SkyKey dep : depGroup) {
+        create(dep);
+      }
+      entry.addTemporaryDirectDeps(GroupedListHelper.create(depGroup));
+      for (int i = 0; i < depGroup.size(); i++) {
+        entry.signalDep();
+      }
+    }
+    entry.setValue(new SkyValue() {}, IntVersion.of(0L));
+    return entry;
+  }
+
+  private static void assertGroupedDirectDeps(
+      InMemoryNodeEntry entry, ImmutableList<ImmutableSet<SkyKey>> depGroups) {
+    GroupedList<SkyKey> directDeps = entry.getGroupedDirectDeps();
+    assertThat(directDeps.listSize()).isEqualTo(depGroups.size());
+    for (int i = 0; i < depGroups.size(); i++) {
+      assertThat(directDeps.get(i)).containsExactlyElementsIn(depGroups.get(i)).inOrder();
+    }
+  }
+
+  @Test
+  public void groupedDirectDeps() throws InterruptedException {
+    ImmutableList<ImmutableSet<SkyKey>> depGroups = ImmutableList.of(
+        ImmutableSet.of(key("1A")),
+        ImmutableSet.of(key("2A"), key("2B")),
+        ImmutableSet.of(key("3A")),
+        ImmutableSet.of(key("4A"), key("4B"), key("4C")));
+    InMemoryNodeEntry entry = createDone(key("top"), depGroups);
+    assertGroupedDirectDeps(entry, depGroups);
+    // The deps are only encoded once the evaluation is over.
+    assertThat(entry.directDeps).isNotInstanceOf(byte[].class);
+    graph.compact();
+    assertThat(entry.directDeps).isInstanceOf(byte[].class);
+    assertGroupedDirectDeps(entry, depGroups);
+    assertThat(entry.getDirectDeps()).containsExactlyElementsIn(
+        Iterables.concat(depGroups));
+
+    // Marking the node dirty hands the deps to the building state, in their groups.
+    entry.markDirty(/*isChanged=*/ false);
+    entry.addReverseDepAndCheckIfDone(null);
+    assertThat(entry.getNextDirtyDirectDeps()).containsExactly(key("1A"));
+    entry.addTemporaryDirectDeps(GroupedListHelper.create(ImmutableSet.of(key("1A"))));
+    entry.signalDep(IntVersion.of(0L));
+    assertThat(entry.getNextDirtyDirectDeps()).containsExactly(key("2A"), key("2B")).inOrder();
+  }
+
+  @Test
+  public void singleAndNoDirectDeps() throws InterruptedException {
+    ImmutableList<ImmutableSet<SkyKey>> single = ImmutableList.of(ImmutableSet.of(key("dep")));
+    assertGroupedDirectDeps(createDone(key("single"), single), single);
+    ImmutableList<ImmutableSet<SkyKey>> none = ImmutableList.of();
+    InMemoryNodeEntry noneEntry = createDone(key("none"), none);
+    assertGroupedDirectDeps(noneEntry, none);
+    graph.compact();
+    assertGroupedDirectDeps(noneEntry, none);
+  }
+
+  @Test
+  public void reverseDepsArePackedAndUnpacked() throws InterruptedException {
+    SkyKey child = key("child");
+    ImmutableList<ImmutableSet<SkyKey>> deps = ImmutableList.of(ImmutableSet.of(child));
+    InMemoryNodeEntry parent1 = createDone(key("parent1"), deps);
+    InMemoryNodeEntry childEntry = create(child);
+    childEntry.addReverseDepAndCheckIfDone(key("parent1"));
+    childEntry.addReverseDepAndCheckIfDone(key("parent2"));
+    create(key("parent2"));
+    childEntry.setValue(new SkyValue() {}, IntVersion.of(0L));
+    assertThat(childEntry.reverseDeps).isInstanceOf(List.class);
+    graph.compact();
+    assertThat(childEntry.reverseDeps).isInstanceOf(byte[].class);
+    assertThat(childEntry.getReverseDeps()).containsExactly(key("parent1"), key("parent2"));
+
+    // Using the reverse deps decodes them until the graph packs them again.
+    create(key("parent3"));
+    childEntry.addReverseDepAndCheckIfDone(key("parent3"));
+    childEntry.removeReverseDep(key("parent1"));
+    assertThat(childEntry.reverseDeps).isInstanceOf(List.class);
+    graph.compact();
+    assertThat(childEntry.reverseDeps).isInstanceOf(byte[].class);
+    assertThat(childEntry.getReverseDeps()).containsExactly(key("parent2"), key("parent3"));
+    assertThat(parent1.getDirectDeps()).containsExactly(child);
+  }
+
+  @Test
+  public void deltaEncodedIds() {
+    int[] ids = {0, 5, 3, 1 << 20, 7, Integer.MAX_VALUE, 0};
+    DeltaEncodedIds.Writer writer = new DeltaEncodedIds.Writer(1);
+    writer.writeCount(ids.length);
+    for (int id : ids) {
+      writer.writeId(id);
+    }
+    DeltaEncodedIds.Reader reader = new DeltaEncodedIds.Reader(writer.toByteArray());
+    assertThat(reader.readCount()).isEqualTo(ids.length);
+    for (int id : ids) {
+      assertThat(reader.readId()).isEqualTo(id);
+    }
+    assertThat(reader.hasNext()).isFalse();
+  }
+
+  @Test
+  public void idsAreDense() {
+    for (int i = 0; i < 100; i++) {
+      create(key("node" + i));
+      create(key("node" + i));
+    }
+    assertThat(graph.getIdCount()).isEqualTo(100);
+    for (int i = 0; i < 100; i++) {
+      assertThat(graph.getKey(graph.getId(key("node" + i)))).isEqualTo(key("node" + i));
+    }
+  }
+
+  @Test
+  public void removedNodeGetsNewId() {
+    SkyKey key = key("node");
+    create(key);
+    int id = graph.getId(key);
+    graph.remove(key);
+    assertThat(graph.getKey(id)).isEqualTo(key);
+    graph.compact();
+    try {
+      graph.getKey(id);
+      fail();
+    } catch (IllegalStateException e) {
+      assertThat(e.getMessage()).contains("No node with id");
+    }
+    create(key);
+    assertThat(graph.getId(key)).isNotEqualTo(id);
+    assertThat(graph.getKey(graph.getId(key))).isEqualTo(key);
+  }
+
+  @Test
+  public void manyNodes() {
+    // Spans several chunks of the id table.
+    for (int i = 0; i < 100000; i++) {
+      create(key("node" + i));
+    }
+    for (int i = 0; i < 100000; i += 997) {
+      assertThat(graph.getKey(graph.getId(key("node" + i)))).isEqualTo(key("node" + i));
+    }
+  }
+}
@@ -0,0 +1,215 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.skyframe;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.Uninterruptibles;
+import com.google.devtools.build.lib.events.NullEventHandler;
+import com.google.devtools.build.skyframe.MemoizingEvaluator.EmittedEventState;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how much a {@link SchedulingPolicy} that starts the longest chains of work first
+ * shortens a build that has more runnable nodes than threads, like the critical path policy of the
+ * build tool does for actions.
+ *
+ * <p>Usage: {@code CriticalPathSchedulingBenchmark [number of independent nodes] [chain length]}.
+ * Every node sleeps for {@value #NODE_MILLIS}ms, and a top node requests the independent nodes
+ * with the end of the chain in the middle. A first build without a policy records the time of each
+ * node. Prints the median wall time of building on a fresh graph with priorities computed from
+ * them in three ways: the critical path up to a node, the remaining critical path from a node on,
+ * and the longest path through a node, which the build tool records. The remaining critical path
+ * alone barely helps, since Skyframe discovers the start of a chain from its end.
+ */
+public class CriticalPathSchedulingBenchmark {
+  private static final SkyFunctionName INDEPENDENT = SkyFunctionName.create("INDEPENDENT");
+  private static final SkyFunctionName CHAIN = SkyFunctionName.create("CHAIN");
+  private static final SkyFunctionName TOP = SkyFunctionName.create("TOP");
+  private static final SkyKey TOP_KEY = SkyKey.create(TOP, "top");
+  private static final int THREADS = 8;
+  private static final int NODE_MILLIS = 10;
+  private static final int RUNS = 5;
+
+  private static final class DoneValue implements SkyValue {}
+
+  private static final DoneValue DONE = new DoneValue();
+
+  /** Sleeps for a node's work and records its duration, once its deps are done. */
+  private static final class NodeFunction implements SkyFunction {
+    private final int chainLength;
+    private final Map<SkyKey, Long> millis;
+
+    private NodeFunction(int chainLength, Map<SkyKey, Long> millis) {
+      this.chainLength = chainLength;
+      this.millis = millis;
+    }
+
+    @Override
+    public SkyValue compute(SkyKey skyKey, Environment env) throws InterruptedException {
+      // Chain node i depends on chain node i + 1, the last one being the start of the chain.
+      if (skyKey.functionName().equals(CHAIN)) {
+        int index = (Integer) skyKey.argument();
+        if (index + 1 < chainLength && env.getValue(SkyKey.create(CHAIN, index + 1)) == null) {
+          return null;
+        }
+      }
+      long start = System.nanoTime();
+      Uninterruptibles.sleepUninterruptibly(NODE_MILLIS, TimeUnit.MILLISECONDS);
+      millis.put(skyKey, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+      return DONE;
+    }
+
+    @Override
+    public String extractTag(SkyKey skyKey) {
+      return null;
+    }
+  }
+
+  private static final class TopFunction implements SkyFunction {
+    private final ImmutableList<SkyKey> deps;
+
+    private TopFunction(ImmutableList<SkyKey> deps) {
+      this.deps = deps;
+    }
+
+    @Override
+    public SkyValue compute(SkyKey skyKey, Environment env) throws InterruptedException {
+      env.getValues(deps);
+      return env.valuesMissing() ? null : DONE;
+    }
+
+    @Override
+    public String extractTag(SkyKey skyKey) {
+      return null;
+    }
+  }
+
+  /** Gives each node the critical path recorded for it, like the build tool's policy. */
+  private static final class RecordedPolicy implements SchedulingPolicy {
+    private final Map<SkyKey, Long> criticalPathMillis;
+
+    private RecordedPolicy(Map<SkyKey, Long> criticalPathMillis) {
+      this.criticalPathMillis = criticalPathMillis;
+    }
+
+    @Override
+    public int getPriority(SkyKey key) {
+      Long millis = criticalPathMillis.get(key);
+      return millis == null ? 0 : millis.intValue();
+    }
+  }
+
+  public static void main(String[] args) throws InterruptedException {
+    int independent = args.length > 0 ? Integer.parseInt(args[0]) : 400;
+    int chainLength = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+    List<SkyKey> deps = new ArrayList<>();
+    for (int i = 0; i < independent; i++) {
+      deps.add(SkyKey.create(INDEPENDENT, i));
+    }
+    deps.add(independent / 2, SkyKey.create(CHAIN, 0));
+    ImmutableList<SkyKey> topDeps = ImmutableList.copyOf(deps);
+
+    Map<SkyKey, Long> recorded = new ConcurrentHashMap<>();
+    build(topDeps, chainLength, SchedulingPolicy.NONE, recorded);
+    // Chain node i is consumed by chain node i - 1, and depends on chain node i + 1.
+    Map<SkyKey, Long> upToNode = new HashMap<>();
+    Map<SkyKey, Long> remaining = new HashMap<>();
+    for (int i = 0; i < independent; i++) {
+      SkyKey key = SkyKey.create(INDEPENDENT, i);
+      upToNode.put(key, recorded.get(key));
+      remaining.put(key, recorded.get(key));
+    }
+    long path = 0;
+    for (int i = chainLength - 1; i >= 0; i--) {
+      SkyKey key = SkyKey.create(CHAIN, i);
+      path += recorded.get(key);
+      upToNode.put(key, path);
+    }
+    path = 0;
+    for (int i = 0; i < chainLength; i++) {
+      SkyKey key = SkyKey.create(CHAIN, i);
+      path += recorded.get(key);
+      remaining.put(key, path);
+    }
+    Map<SkyKey, Long> through = new HashMap<>();
+    for (SkyKey key : recorded.keySet()) {
+      through.put(key, upToNode.get(key) + remaining.get(key) - recorded.get(key));
+    }
+
+    System.out.printf(
+        "%d independent nodes and a chain of %d, %dms each, %d threads, median of %d runs%n",
+        independent, chainLength, NODE_MILLIS, THREADS, RUNS);
+    System.out.printf(
+        "%-30s %6d ms%n",
+        "ideal",
+        Math.max(
+            (long) chainLength * NODE_MILLIS,
+            (long) (independent + chainLength) * NODE_MILLIS / THREADS));
+    run("default order", topDeps, chainLength, SchedulingPolicy.NONE);
+    run("critical path up to node", topDeps, chainLength, new RecordedPolicy(upToNode));
+    run("remaining critical path", topDeps, chainLength, new RecordedPolicy(remaining));
+    run("longest path through node", topDeps, chainLength, new RecordedPolicy(through));
+  }
+
+  private static void run(
+      String name, ImmutableList<SkyKey> topDeps, int chainLength, SchedulingPolicy policy)
+      throws InterruptedException {
+    long[] millis = new long[RUNS];
+    for (int i = 0; i < RUNS; i++) {
+      System.gc();
+      long start = System.nanoTime();
+      build(topDeps, chainLength, policy, new ConcurrentHashMap<SkyKey, Long>());
+      millis[i] = (System.nanoTime() - start) / 1000000;
+    }
+    Arrays.sort(millis);
+    System.out.printf("%-30s %6d ms%n", name, millis[RUNS / 2]);
+  }
+
+  /** Builds the nodes on a fresh graph, recording the time each of them took. */
+  private static void build(
+      ImmutableList<SkyKey> topDeps,
+      int chainLength,
+      SchedulingPolicy policy,
+      Map<SkyKey, Long> millis)
+      throws InterruptedException {
+    NodeFunction nodeFunction = new NodeFunction(chainLength, millis);
+    MemoizingEvaluator evaluator =
+        InMemoryMemoizingEvaluator.SUPPLIER.create(
+            ImmutableMap.of(
+                INDEPENDENT, nodeFunction, CHAIN, nodeFunction, TOP, new TopFunction(topDeps)),
+            new RecordingDifferencer(),
+            /*invalidationReceiver=*/ null,
+            new EmittedEventState(),
+            /*keepEdges=*/ true);
+    evaluator.setSchedulingPolicy(policy);
+    EvaluationResult<DoneValue> result =
+        new SequentialBuildDriver(evaluator)
+            .<DoneValue>evaluate(
+                ImmutableList.of(TOP_KEY),
+                /*keepGoing=*/ false,
+                THREADS,
+                NullEventHandler.INSTANCE);
+    if (result.hasError()) {
+      throw new IllegalStateException(result.toString());
+    }
+  }
+}
@@ -34,6 +34,7 @@ import com.google.devtools.build.lib.testutil.TestUtils;
 import com.google.devtools.build.lib.util.Pair;
 import com.google.devtools.build.lib.util.Preconditions;
 import com.google.devtools.build.skyframe.GraphTester.StringValue;
+import com.google.devtools.build.skyframe.InvalidatingNodeVisitor.BatchedDirtyingNodeVisitor;
 import com.google.devtools.build.skyframe.InvalidatingNodeVisitor.DeletingNodeVisitor;
 import com.google.devtools.build.skyframe.InvalidatingNodeVisitor.DirtyingInvalidationState;
 import com.google.devtools.build.skyframe.InvalidatingNodeVisitor.DirtyingNodeVisitor;
@@ -125,6 +126,10 @@ public class EagerInvalidatorTest {
     throw new UnsupportedOperationException("Sublcasses must override");
   }
 
+  protected InMemoryGraphImpl newGraph() {
+    return new InMemoryGraphImpl();
+  }
+
   protected InvalidationType defaultInvalidationType() {
     throw new UnsupportedOperationException("Sublcasses must override");
   }
@@ -214,7 +219,7 @@ public class EagerInvalidatorTest {
         throw new UnsupportedOperationException();
       }
     };
-    graph = new InMemoryGraphImpl();
+    graph = newGraph();
     set("a", "a");
     set("b", "b");
     tester.getOrCreate("ab").addDependency("a").addDependency("b")
@@ -259,7 +264,7 @@ public class EagerInvalidatorTest {
 
     // Given a graph consisting of two nodes, "a" and "ab" such that "ab" depends on "a",
     // And given "ab" is in error,
-    graph = new InMemoryGraphImpl();
+    graph = newGraph();
     set("a", "a");
     tester.getOrCreate("ab").addDependency("a").setHasError(true);
     eval(false, skyKey("ab"));
@@ -300,7 +305,7 @@ public class EagerInvalidatorTest {
         throw new UnsupportedOperationException();
       }
     };
-    graph = new InMemoryGraphImpl();
+    graph = newGraph();
     invalidateWithoutError(receiver, skyKey("a"));
     assertThat(invalidated).isEmpty();
     set("a", "a");
@@ -316,7 +321,7 @@ public class EagerInvalidatorTest {
     WeakReference<HeavyValue> weakRef = new WeakReference<>(heavyValue);
     tester.set("a", heavyValue);
 
-    graph = new InMemoryGraphImpl();
+    graph = newGraph();
     eval(false, key);
     invalidate(graph, null, key);
 
@@ -334,7 +339,7 @@ public class EagerInvalidatorTest {
 
   @Test
   public void reverseDepsConsistent() throws Exception {
-    graph = new InMemoryGraphImpl();
+    graph = newGraph();
     set("a", "a");
     set("b", "b");
     set("c", "c");
@@ -379,7 +384,7 @@ public class EagerInvalidatorTest {
 
   @Test
   public void interruptChild() throws Exception {
-    graph = new InMemoryGraphImpl();
+    graph = newGraph();
     int numValues = 50; // More values than the invalidator has threads.
     final SkyKey[] family = new SkyKey[numValues];
     final SkyKey child = GraphTester.skyKey("child");
@@ -517,7 +522,7 @@ public class EagerInvalidatorTest {
     Random random = new Random(TestUtils.getRandomSeed());
     int graphSize = 1000;
     int tries = 5;
-    graph = new InMemoryGraphImpl();
+    graph = newGraph();
     SkyKey[] values = constructLargeGraph(graphSize);
     eval(/*keepGoing=*/false, values);
     final Thread mainThread = Thread.currentThread();
@@ -586,7 +591,7 @@ public class EagerInvalidatorTest {
   }
 
   protected void setupInvalidatableGraph() throws Exception {
-    graph = new InMemoryGraphImpl();
+    graph = newGraph();
     set("a", "a");
     set("b", "b");
     tester.getOrCreate("ab").addDependency("a").addDependency("b").setComputedValue(CONCATENATE);
@@ -727,4 +732,61 @@ public class EagerInvalidatorTest {
       assertThat(dirtyKeyTracker.getDirtyKeys()).hasSize(2);
     }
   }
+
+  /**
+   * Test suite for the dirtying invalidator that works in batches.
+   */
+  @RunWith(JUnit4.class)
+  public static class BatchedDirtyingInvalidatorTest extends DirtyingInvalidatorTest {
+    @Override
+    protected void invalidate(
+        InMemoryGraph graph, EvaluationProgressReceiver invalidationReceiver, SkyKey... keys)
+        throws InterruptedException {
+      Iterable<SkyKey> diff = ImmutableList.copyOf(keys);
+      BatchedDirtyingNodeVisitor batchedDirtyingNodeVisitor =
+          EagerInvalidator.createBatchedInvalidatingVisitorIfNeeded(
+              (CompactInMemoryGraph) graph, diff, invalidationReceiver, state, dirtyKeyTracker);
+      if (batchedDirtyingNodeVisitor != null) {
+        visitor.set(batchedDirtyingNodeVisitor);
+        batchedDirtyingNodeVisitor.run();
+      }
+    }
+
+    @Override
+    protected InMemoryGraphImpl newGraph() {
+      return new CompactInMemoryGraph();
+    }
+
+    @Test
+    public void dirtiesWideFanIn() throws Exception {
+      graph = newGraph();
+      SkyKey leaf = skyKey("leaf");
+      set("leaf", "leaf");
+      int numParents = 3 * BatchedDirtyingNodeVisitor.BATCH_SIZE + 1;
+      SkyKey[] parents = new SkyKey[numParents];
+      for (int i = 0; i < numParents; i++) {
+        parents[i] = skyKey("parent" + i);
+        tester.getOrCreate(parents[i]).addDependency(leaf).setComputedValue(CONCATENATE);
+      }
+      SkyKey top = skyKey("top");
+      tester.getOrCreate(top).addDependency(parents[0]).addDependency(parents[numParents - 1])
+          .setComputedValue(CONCATENATE);
+      eval(/*keepGoing=*/false, parents);
+      eval(/*keepGoing=*/false, top);
+      TrackingInvalidationReceiver receiver = new TrackingInvalidationReceiver();
+
+      invalidate(graph, receiver, leaf);
+
+      assertThat(receiver.dirty).hasSize(numParents + 2);
+      assertThat(dirtyKeyTracker.getDirtyKeys()).hasSize(numParents + 2);
+      assertThat(state.getInvalidationsForTesting()).isEmpty();
+      assertTrue(graph.get(null, Reason.OTHER, leaf).isChanged());
+      for (SkyKey parent : parents) {
+        NodeEntry entry = graph.get(null, Reason.OTHER, parent);
+        assertTrue(entry.isDirty());
+        assertFalse(entry.isChanged());
+      }
+      assertTrue(graph.get(null, Reason.OTHER, top).isDirty());
+    }
+  }
 }
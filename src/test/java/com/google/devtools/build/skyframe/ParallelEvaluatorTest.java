@@ -51,6 +51,7 @@ import com.google.devtools.build.skyframe.SkyFunctionException.Transience;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -156,6 +157,73 @@ public class ParallelEvaluatorTest {
     assertNoEvents(eventCollector);
   }
 
+  @Test
+  public void schedulingPolicyOrdersPendingEvaluations() throws Exception {
+    graph = new InMemoryGraphImpl();
+    final List<String> evaluated = Collections.synchronizedList(new ArrayList<String>());
+    SkyFunction leaf =
+        new SkyFunction() {
+          @Override
+          public SkyValue compute(SkyKey key, Environment env) {
+            evaluated.add((String) key.argument());
+            return new StringValue("leaf");
+          }
+
+          @Override
+          public String extractTag(SkyKey skyKey) {
+            return null;
+          }
+        };
+    final List<SkyKey> deps = new ArrayList<>();
+    for (String name : ImmutableList.of("short1", "long", "short2", "short3")) {
+      deps.add(GraphTester.toSkyKey(name));
+      tester.getOrCreate(name).setBuilder(leaf);
+    }
+    tester.getOrCreate("top").setBuilder(new SkyFunction() {
+      @Override
+      public SkyValue compute(SkyKey key, Environment env) throws InterruptedException {
+        env.getValues(deps);
+        return env.valuesMissing() ? null : new StringValue("top");
+      }
+
+      @Override
+      public String extractTag(SkyKey skyKey) {
+        return null;
+      }
+    });
+    SchedulingPolicy policy =
+        new SchedulingPolicy() {
+          @Override
+          public int getPriority(SkyKey key) {
+            return key.argument().equals("long") ? 10 : 0;
+          }
+        };
+    // With a single thread, all deps of "top" wait in the queue until it is done.
+    ParallelEvaluator evaluator =
+        new ParallelEvaluator(
+            graph,
+            graphVersion,
+            tester.getSkyFunctionMap(),
+            eventCollector,
+            new MemoizingEvaluator.EmittedEventState(),
+            InMemoryMemoizingEvaluator.DEFAULT_STORED_EVENT_FILTER,
+            /*keepGoing=*/ false,
+            /*threadCount=*/ 1,
+            revalidationReceiver,
+            new DirtyKeyTrackerImpl(),
+            new ParallelEvaluator.Receiver<Collection<SkyKey>>() {
+              @Override
+              public void accept(Collection<SkyKey> object) {
+                // ignore
+              }
+            },
+            policy);
+    assertThat(evaluator.eval(ImmutableList.of(GraphTester.toSkyKey("top"))).hasError())
+        .isFalse();
+    // The other deps keep the default order, most recently enqueued first.
+    assertThat(evaluated).containsExactly("long", "short3", "short2", "short1").inOrder();
+  }
+
   /**
    * Test interruption handling when a long-running SkyFunction gets interrupted.
    */
@@ -0,0 +1,134 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.skyframe;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableList;
+import com.google.devtools.build.lib.events.NullEventHandler;
+import com.google.devtools.build.skyframe.GraphTester.StringValue;
+import com.google.devtools.build.skyframe.SkyFunctionStatistics.FunctionStats;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.Map;
+
+/** Tests for {@link SkyFunctionStatistics}. */
+@RunWith(JUnit4.class)
+public class SkyFunctionStatisticsTest {
+  private final GraphTester tester = new GraphTester();
+  private final RecordingDifferencer differencer = new RecordingDifferencer();
+  private final SkyFunctionStatistics statistics = new SkyFunctionStatistics();
+  private MemoizingEvaluator evaluator;
+  private IntVersion version = IntVersion.of(0);
+
+  @Before
+  public void createEvaluator() {
+    evaluator =
+        new InMemoryMemoizingEvaluator(tester.getSkyFunctionMap(), differencer, statistics);
+  }
+
+  private void eval(String key) throws InterruptedException {
+    EvaluationResult<SkyValue> result =
+        evaluator.evaluate(
+            ImmutableList.of(GraphTester.skyKey(key)),
+            version,
+            /*keepGoing=*/ false,
+            1,
+            NullEventHandler.INSTANCE);
+    assertThat(result.hasError()).isFalse();
+    version = version.next();
+  }
+
+  private void change(String key, String value) {
+    tester.set(key, new StringValue(value));
+    differencer.invalidate(tester.getModifiedValues());
+    tester.clearModifiedValues();
+  }
+
+  @Test
+  public void countsWhatHappenedToDirtiedNodes() throws Exception {
+    // "constant" ignores the value of "leaf", so it is pruned when "leaf" changes, and "top" is
+    // found clean. "copy" changes along with "leaf".
+    tester.set("leaf", new StringValue("old"));
+    tester.getOrCreate("constant").addDependency("leaf").setComputedValue(
+        new GraphTester.ValueComputer() {
+          @Override
+          public SkyValue compute(Map<SkyKey, SkyValue> deps, SkyFunction.Environment env) {
+            return new StringValue("constant");
+          }
+        });
+    tester.getOrCreate("copy").addDependency("leaf").setComputedValue(GraphTester.COPY);
+    tester.getOrCreate("top").addDependency("constant").addDependency("copy")
+        .setComputedValue(GraphTester.CONCATENATE);
+    tester.getOrCreate("other").addDependency("constant").setComputedValue(GraphTester.COPY);
+    eval("top");
+    eval("other");
+    FunctionStats stats = statistics.getStats().get(GraphTester.NODE_TYPE);
+    assertThat(stats.getDirtied()).isEqualTo(0);
+    assertThat(stats.getComputeCalls()).isAtLeast(5L);
+
+    statistics.reset();
+    change("leaf", "new");
+    eval("top");
+    eval("other");
+
+    stats = statistics.getStats().get(GraphTester.NODE_TYPE);
+    assertThat(stats.getDirtied()).isEqualTo(5);
+    // "leaf", "copy" and "top".
+    assertThat(stats.getChanged()).isEqualTo(3);
+    assertThat(stats.getPruned()).isEqualTo(1);
+    assertThat(stats.getVerifiedClean()).isEqualTo(1);
+    assertThat(stats.getPrunedNanos()).isGreaterThan(0L);
+    assertThat(stats.getPrunedNanos()).isAtMost(stats.getComputeNanos());
+    assertThat(statistics.getHottestPrunedNodes()).containsExactly(GraphTester.skyKey("constant"));
+  }
+
+  @Test
+  public void nodesDirtiedBeforeResetAreNotCounted() throws Exception {
+    tester.set("leaf", new StringValue("old"));
+    tester.getOrCreate("top").addDependency("leaf").setComputedValue(GraphTester.COPY);
+    eval("top");
+    change("leaf", "new");
+    eval("top");
+    statistics.reset();
+    eval("top");
+
+    assertThat(statistics.getStats()).isEmpty();
+    assertThat(statistics.getHottestPrunedNodes()).isEmpty();
+  }
+
+  @Test
+  public void dump() throws Exception {
+    tester.set("leaf", new StringValue("old"));
+    tester.getOrCreate("top").addDependency("leaf").setComputedValue(GraphTester.COPY);
+    eval("top");
+    change("leaf", "new");
+    eval("top");
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    PrintStream out = new PrintStream(bytes);
+    statistics.dump(out);
+    out.flush();
+    String dump = bytes.toString();
+    assertThat(dump).contains("dirtied");
+    assertThat(dump).contains(GraphTester.NODE_TYPE.getName());
+    assertThat(dump).doesNotContain("Slowest");
+  }
+}
@@ -93,13 +93,17 @@ def _impl(ctx):
   argfile_contents = "\n".join(["--output_file=" + output.path] + ctx.attr.args)
   ctx.file_action(output=argfile, content=argfile_contents)
 
+  execution_requirements = {"supports-workers": "1"}
+  if ctx.attr.multiplex:
+    execution_requirements["supports-multiplex-workers"] = "1"
+
   ctx.action(
       inputs=[argfile] + ctx.files.srcs,
       outputs=[output],
       executable=worker,
       progress_message="Working on %s" % ctx.label.name,
       mnemonic="Work",
-      execution_requirements={"supports-workers": "1"},
+      execution_requirements=execution_requirements,
       arguments=ctx.attr.worker_args + ["@" + argfile.path],
   )
 
@@ -110,6 +114,7 @@ work = rule(
         "worker_args": attr.string_list(),
         "args": attr.string_list(),
         "srcs": attr.label_list(allow_files=True),
+        "multiplex": attr.bool(),
     },
     outputs = {"out": "%{name}.out"},
 )
@@ -381,6 +386,27 @@ EOF
   expect_log "Build completed, shutting down worker pool..."
 }
 
+function test_multiplexed_worker() {
+  prepare_example_worker
+  cat >>BUILD <<'EOF'
+[work(
+  name = "hello_world_%s" % idx,
+  worker = ":worker",
+  args = ["--write_uuid"],
+  multiplex = True,
+) for idx in range(10)]
+EOF
+
+  bazel build -s --worker_verbose --strategy=Work=worker --worker_max_multiplex_requests=4 \
+    --worker_quit_after_build :all &> $TEST_log \
+    || fail "build failed"
+  expect_log_once "Created new Work worker (id [0-9]\+)"
+
+  # All work units must have been done by the same worker process.
+  worker_uuids=$(cat bazel-bin/hello_world_*.out | grep UUID | sort -u | wc -l)
+  assert_equals "1" $worker_uuids
+}
+
 function test_logs_are_deleted_on_server_restart() {
   prepare_example_worker
   cat >>BUILD <<'EOF'